@@ -0,0 +1,281 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.util.zip.Deflater;
+
+/**
+ * Chooses how to compress each block of a framed file so that CPU goes only
+ * where it saves space. Each block goes through up to three checks:
+ * <ol>
+ * <li>The order-0 entropy of the block is computed from a byte histogram.
+ * Blocks near 8 bits per byte, such as data that are already compressed or
+ * encrypted, are stored without trying to compress them. Deflate cannot beat
+ * the order-0 entropy on data whose bytes are independent, and on such data
+ * the estimate is exact.</li>
+ * <li>Remaining blocks are deflated at the fastest level, which also serves
+ * as a trial. If the result does not save enough space, the block is stored
+ * raw instead.</li>
+ * <li>Every so often a probe block is also deflated at the default level. If
+ * full deflate saves enough beyond the fast level, later blocks use full
+ * deflate until the next probe says otherwise.</li>
+ * </ol>
+ * Both deflate levels produce ordinary zlib streams, so readers decode them
+ * the same way.
+ */
+public class AdaptiveBlockCodec
+{
+    /** Blocks with more bits per byte than this are stored raw. */
+    public static final double DEFAULT_MAX_ENTROPY    = 7.5;
+
+    /** Minimum fraction of a block that compression must save. */
+    public static final double DEFAULT_MIN_SAVINGS    = 0.05;
+
+    /** Fraction of the fast size that full deflate must save. */
+    public static final double DEFAULT_MIN_GAIN       = 0.03;
+
+    /** Blocks between probes of full deflate. */
+    public static final int    DEFAULT_PROBE_INTERVAL = 16;
+
+    private final double        maxEntropy;
+    private final double        minSavings;
+    private final double        minGain;
+    private final int           probeInterval;
+    private final Deflater      fast;
+    private final Deflater      full;
+    private final ResourcePools pools;
+    private final int[]         histogram  = new int[256];
+
+    // Output of the last block and the codec chosen for it.
+    private byte[]              fastOutput = new byte[0];
+    private byte[]              fullOutput = new byte[0];
+    private byte[]              output;
+    private byte                codec;
+    private boolean             useFull;
+
+    // Statistics.
+    private long                blocks;
+    private long                entropySkips;
+    private long                storedBlocks;
+    private long                fastBlocks;
+    private long                fullBlocks;
+
+    /** Creates a codec with default thresholds. */
+    public AdaptiveBlockCodec()
+    {
+        this(DEFAULT_MAX_ENTROPY, DEFAULT_MIN_SAVINGS, DEFAULT_MIN_GAIN,
+                DEFAULT_PROBE_INTERVAL);
+    }
+
+    /**
+     * Creates a codec with default thresholds that borrows its deflaters
+     * from pools. The deflaters go back when the codec ends.
+     *
+     * @param pools Pools that supply the deflaters
+     */
+    public AdaptiveBlockCodec(ResourcePools pools) throws Exception
+    {
+        this(DEFAULT_MAX_ENTROPY, DEFAULT_MIN_SAVINGS, DEFAULT_MIN_GAIN,
+                DEFAULT_PROBE_INTERVAL, pools.getDeflaters(
+                        Deflater.BEST_SPEED, false).borrow(), pools
+                        .getDeflaters(Deflater.DEFAULT_COMPRESSION, false)
+                        .borrow(), pools);
+    }
+
+    /**
+     * Creates a codec.
+     *
+     * @param maxEntropy Store blocks with higher entropy in bits per byte
+     *            without trying to compress them
+     * @param minSavings Store blocks whose compression saves less than this
+     *            fraction of the raw length
+     * @param minGain Use full deflate if it saves at least this fraction of
+     *            the fast deflate length
+     * @param probeInterval Number of blocks between probes of full deflate
+     */
+    public AdaptiveBlockCodec(double maxEntropy, double minSavings,
+            double minGain, int probeInterval)
+    {
+        this(maxEntropy, minSavings, minGain, probeInterval, new Deflater(
+                Deflater.BEST_SPEED), new Deflater(), null);
+    }
+
+    // Common constructor. If pools are given, the deflaters were borrowed
+    // from them and go back when the codec ends.
+    private AdaptiveBlockCodec(double maxEntropy, double minSavings,
+            double minGain, int probeInterval, Deflater fast, Deflater full,
+            ResourcePools pools)
+    {
+        this.fast = fast;
+        this.full = full;
+        this.pools = pools;
+        this.maxEntropy = maxEntropy;
+        this.minSavings = minSavings;
+        this.minGain = minGain;
+        this.probeInterval = Math.max(1, probeInterval);
+    }
+
+    /**
+     * Encodes a block and chooses its codec.
+     *
+     * @param raw Raw block data
+     * @param length Number of bytes in the block
+     * @return Length of the encoded block, which is held in
+     *         {@link #getOutput()}
+     */
+    public int encode(byte[] raw, int length)
+    {
+        boolean probe = blocks++ % probeInterval == 0;
+
+        // Skip blocks that look random.
+        if (entropy(raw, length) > maxEntropy)
+        {
+            entropySkips++;
+            return store(raw, length);
+        }
+
+        // Compress at the chosen level and probe the other level if due.
+        if (fastOutput.length < maxDeflatedLength(length))
+        {
+            fastOutput = new byte[maxDeflatedLength(length)];
+            fullOutput = new byte[maxDeflatedLength(length)];
+        }
+        int fastLength = -1;
+        int fullLength = -1;
+        if (probe || !useFull)
+            fastLength = deflate(fast, raw, length, fastOutput);
+        if (probe || useFull)
+            fullLength = deflate(full, raw, length, fullOutput);
+        if (probe)
+            useFull = fastLength - fullLength >= fastLength * minGain;
+
+        // Take whichever level we are using now, unless it does not save
+        // enough to be worth decompressing.
+        int encodedLength = useFull ? fullLength : fastLength;
+        if (length - encodedLength < length * minSavings)
+            return store(raw, length);
+        codec = useFull ? FramedFormat.CODEC_DEFLATE : FramedFormat.CODEC_FAST;
+        output = useFull ? fullOutput : fastOutput;
+        if (useFull)
+            fullBlocks++;
+        else
+            fastBlocks++;
+        return encodedLength;
+    }
+
+    /** Returns the codec chosen for the last block. */
+    public byte getCodec()
+    {
+        return codec;
+    }
+
+    /** Returns the encoded data of the last block. */
+    public byte[] getOutput()
+    {
+        return output;
+    }
+
+    /** Returns the number of blocks stored for any reason. */
+    public long getStoredBlocks()
+    {
+        return storedBlocks;
+    }
+
+    /** Returns the number of blocks stored because of high entropy. */
+    public long getEntropySkips()
+    {
+        return entropySkips;
+    }
+
+    /** Frees native memory held by the deflaters or returns them to pools. */
+    public void end()
+    {
+        if (pools != null)
+        {
+            pools.getDeflaters(Deflater.BEST_SPEED, false).release(fast);
+            pools.getDeflaters(Deflater.DEFAULT_COMPRESSION, false).release(
+                    full);
+        }
+        else
+        {
+            fast.end();
+            full.end();
+        }
+    }
+
+    /** Prints a summary of codec choices. */
+    public void printStats()
+    {
+        CompressionLab.println(String.format(
+                "  Codecs: stored=%d (entropy skips=%d) fast=%d deflate=%d",
+                storedBlocks, entropySkips, fastBlocks, fullBlocks));
+    }
+
+    /**
+     * Returns the order-0 entropy of data in bits per byte.
+     */
+    public double entropy(byte[] data, int length)
+    {
+        for (int i = 0; i < 256; i++)
+            histogram[i] = 0;
+        for (int i = 0; i < length; i++)
+            histogram[data[i] & 0xff]++;
+        double bits = 0.0;
+        for (int i = 0; i < 256; i++)
+        {
+            if (histogram[i] > 0)
+            {
+                double p = (double) histogram[i] / length;
+                bits -= p * Math.log(p);
+            }
+        }
+        return bits / Math.log(2);
+    }
+
+    // Chooses the stored codec for the current block.
+    private int store(byte[] raw, int length)
+    {
+        codec = FramedFormat.CODEC_STORED;
+        output = raw;
+        storedBlocks++;
+        return length;
+    }
+
+    // Deflates data into the buffer and returns the compressed length. The
+    // buffer must be at least maxDeflatedLength() long.
+    private static int deflate(Deflater deflater, byte[] raw, int length,
+            byte[] buf)
+    {
+        deflater.reset();
+        deflater.setInput(raw, 0, length);
+        deflater.finish();
+        int n = 0;
+        while (!deflater.finished())
+            n += deflater.deflate(buf, n, buf.length - n);
+        return n;
+    }
+
+    // Returns an upper bound on deflated size. Incompressible input costs 5
+    // bytes per 16K stored block plus the zlib header and trailer.
+    private static int maxDeflatedLength(int length)
+    {
+        return length + (length >> 10) + 64;
+    }
+}
@@ -0,0 +1,422 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads a file with a fixed number of requests outstanding using
+ * AsynchronousFileChannel. Reads complete into a ring of direct buffers and
+ * are handed to a small pool of worker threads for decompression,
+ * decryption and checksums, after which the buffer returns to the ring and
+ * the next read is issued. The ring holds enough buffers for every worker
+ * to be busy while the full queue depth is in flight.
+ * <p>
+ * Requests are described by position and length, so callers may read fixed
+ * size chunks or variable size blocks. Each request's latency from issue to
+ * completion is recorded for percentiles. Note that on Linux the JDK runs
+ * asynchronous file reads as blocking reads on the channel's thread pool,
+ * so the pool is sized to the queue depth; that is still a few dozen
+ * threads at most rather than a thread per outstanding request across the
+ * application.
+ */
+public class AsyncFileReader
+{
+    /**
+     * Processes completed reads on worker threads.
+     */
+    public interface Handler
+    {
+        /**
+         * Called with the data for a request between the buffer's position
+         * and limit.
+         *
+         * @param request Index of the request
+         * @param data Data that was read
+         * @return True if the buffer may be reused at once, or false if the
+         *         handler will pass it to {@link AsyncFileReader#release}
+         *         later
+         */
+        boolean completed(int request, ByteBuffer data) throws Exception;
+    }
+
+    private final AsynchronousFileChannel channel;
+    private final ExecutorService         ioPool;
+    private final ExecutorService         workers;
+    private final int                     queueDepth;
+
+    // Requests for the current run.
+    private long[]                        positions;
+    private int[]                         lengths;
+    private Handler                       handler;
+    private long[]                        latencies;
+
+    // Ring state, guarded by this.
+    private final ArrayDeque<ByteBuffer>  free = new ArrayDeque<ByteBuffer>();
+    private int                           unallocated;
+    private int                           next;
+    private int                           inFlight;
+    private int                           done;
+    private Throwable                     error;
+
+    /**
+     * Opens a file.
+     *
+     * @param file File to read
+     * @param queueDepth Maximum number of reads in flight
+     * @param workers Number of threads that process completed reads
+     */
+    public AsyncFileReader(File file, int queueDepth, int workers)
+            throws IOException
+    {
+        this.queueDepth = queueDepth;
+        this.ioPool = Executors.newFixedThreadPool(queueDepth,
+                daemons("aio-io"));
+        this.workers = Executors.newFixedThreadPool(workers,
+                daemons("aio-worker"));
+        this.channel = AsynchronousFileChannel.open(file.toPath(),
+                Collections.singleton(StandardOpenOption.READ), ioPool);
+        this.unallocated = queueDepth + workers * 2;
+    }
+
+    public int getQueueDepth()
+    {
+        return queueDepth;
+    }
+
+    /** Returns the size of the file. */
+    public long size() throws IOException
+    {
+        return channel.size();
+    }
+
+    /**
+     * Reads all requests and waits until every handler has finished.
+     *
+     * @param positions File position of each request
+     * @param lengths Length of each request
+     * @param handler Processes each completed request
+     * @throws Exception Thrown if a read or handler fails
+     */
+    public void readAll(long[] positions, int[] lengths, Handler handler)
+            throws Exception
+    {
+        start(positions, lengths, handler);
+        synchronized (this)
+        {
+            while (done < positions.length && error == null)
+                wait();
+        }
+        checkError();
+    }
+
+    /**
+     * Returns a stream that reads the file sequentially from the start with
+     * requests of the given size kept in flight ahead of the reader. This
+     * suits formats such as a single GZIP or cipher stream that must be
+     * decoded in order on one thread.
+     *
+     * @param length Number of bytes to read
+     * @param requestSize Size of each read request
+     */
+    public InputStream openStream(long length, int requestSize)
+    {
+        int n = (int) ((length + requestSize - 1) / requestSize);
+        long[] pos = new long[n];
+        int[] len = new int[n];
+        for (int i = 0; i < n; i++)
+        {
+            pos[i] = (long) i * requestSize;
+            len[i] = (int) Math.min(requestSize, length - pos[i]);
+        }
+        OrderedStream stream = new OrderedStream(n);
+        start(pos, len, stream);
+        return stream;
+    }
+
+    /**
+     * Returns a buffer to the ring after a handler that returned false is
+     * done with it, and issues further reads.
+     */
+    public void release(ByteBuffer buf)
+    {
+        synchronized (this)
+        {
+            free.add(buf);
+            done++;
+            notifyAll();
+        }
+        issue();
+    }
+
+    /**
+     * Returns a latency percentile for the last run in nanoseconds.
+     *
+     * @param percentile Value from 0 to 100
+     */
+    public long getLatencyNanos(double percentile)
+    {
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        if (sorted.length == 0)
+            return 0;
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    /** Returns the number of requests in the last run. */
+    public int getRequests()
+    {
+        return latencies.length;
+    }
+
+    /** Closes the channel and stops threads. */
+    public void close() throws IOException
+    {
+        channel.close();
+        ioPool.shutdown();
+        workers.shutdown();
+    }
+
+    // Resets state for a run and issues the first reads.
+    private void start(long[] positions, int[] lengths, Handler handler)
+    {
+        synchronized (this)
+        {
+            this.positions = positions;
+            this.lengths = lengths;
+            this.handler = handler;
+            this.latencies = new long[positions.length];
+            next = 0;
+            inFlight = 0;
+            done = 0;
+            error = null;
+        }
+        issue();
+    }
+
+    // Issues reads while there is room in the queue and a free buffer.
+    private void issue()
+    {
+        while (true)
+        {
+            int request;
+            ByteBuffer buf;
+            synchronized (this)
+            {
+                if (error != null || next >= positions.length
+                        || inFlight >= queueDepth
+                        || (free.isEmpty() && unallocated == 0))
+                    return;
+                request = next++;
+                inFlight++;
+                buf = free.poll();
+                if (buf == null)
+                    unallocated--;
+            }
+
+            // Buffers are allocated on first use and grow if a request is
+            // larger than any before.
+            int length = lengths[request];
+            if (buf == null || buf.capacity() < length)
+                buf = ByteBuffer.allocateDirect(length);
+            buf.clear().limit(length);
+            latencies[request] = System.nanoTime();
+            channel.read(buf, positions[request], request,
+                    new ReadCompletion(buf));
+        }
+    }
+
+    // Records a failure and wakes waiters.
+    private synchronized void fail(Throwable t)
+    {
+        if (error == null)
+            error = t;
+        notifyAll();
+    }
+
+    private synchronized void checkError() throws Exception
+    {
+        if (error instanceof Exception)
+            throw (Exception) error;
+        else if (error != null)
+            throw new RuntimeException("Asynchronous read failed", error);
+    }
+
+    /**
+     * Completes a read on an I/O thread, continuing short reads and passing
+     * full buffers to a worker.
+     */
+    private class ReadCompletion implements CompletionHandler<Integer, Integer>
+    {
+        private final ByteBuffer buf;
+
+        ReadCompletion(ByteBuffer buf)
+        {
+            this.buf = buf;
+        }
+
+        public void completed(Integer n, Integer request)
+        {
+            if (n < 0 && buf.hasRemaining())
+            {
+                fail(new IOException("Unexpected end of file: request="
+                        + request));
+                return;
+            }
+            if (buf.hasRemaining())
+            {
+                channel.read(buf, positions[request] + buf.position(),
+                        request, this);
+                return;
+            }
+            latencies[request] = System.nanoTime() - latencies[request];
+            synchronized (AsyncFileReader.this)
+            {
+                inFlight--;
+            }
+            issue();
+
+            final int r = request;
+            workers.execute(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        buf.flip();
+                        if (handler.completed(r, buf))
+                            release(buf);
+                    }
+                    catch (Throwable t)
+                    {
+                        fail(t);
+                    }
+                }
+            });
+        }
+
+        public void failed(Throwable t, Integer request)
+        {
+            fail(t);
+        }
+    }
+
+    /**
+     * Stream that returns completed requests in order. Buffers are held
+     * until the reader has consumed them.
+     */
+    private class OrderedStream extends InputStream implements Handler
+    {
+        private final ByteBuffer[] ready;
+        private int                current;
+        private final byte[]       single = new byte[1];
+
+        OrderedStream(int requests)
+        {
+            ready = new ByteBuffer[requests];
+        }
+
+        public boolean completed(int request, ByteBuffer data)
+        {
+            synchronized (AsyncFileReader.this)
+            {
+                ready[request] = data;
+                AsyncFileReader.this.notifyAll();
+            }
+            return false;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            int n = read(single, 0, 1);
+            return n < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0)
+                return 0;
+            ByteBuffer buf = take();
+            if (buf == null)
+                return -1;
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            if (!buf.hasRemaining())
+            {
+                ready[current++] = null;
+                release(buf);
+            }
+            return n;
+        }
+
+        // Waits for the current request to complete.
+        private ByteBuffer take() throws IOException
+        {
+            synchronized (AsyncFileReader.this)
+            {
+                while (current < ready.length && ready[current] == null
+                        && error == null)
+                {
+                    try
+                    {
+                        AsyncFileReader.this.wait();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        throw new IOException("Interrupted", e);
+                    }
+                }
+                if (error != null)
+                    throw new IOException("Asynchronous read failed", error);
+                return current < ready.length ? ready[current] : null;
+            }
+        }
+    }
+
+    private static ThreadFactory daemons(final String name)
+    {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+}
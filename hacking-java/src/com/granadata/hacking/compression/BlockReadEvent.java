@@ -0,0 +1,46 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event for a single read call on a metered stream layer.
+ * Events are recorded only while a recording with this event enabled is
+ * running, for example with -XX:StartFlightRecording.
+ */
+@Name("com.granadata.hacking.compression.BlockRead")
+@Label("Block Read")
+@Category({"Hacking", "Compression"})
+@Description("Read call on one layer of a stream stack")
+public class BlockReadEvent extends Event
+{
+    @Label("Layer")
+    String layer;
+
+    @Label("Bytes")
+    @DataAmount
+    long   bytes;
+}
@@ -0,0 +1,44 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event for a single write call on a metered stream layer.
+ */
+@Name("com.granadata.hacking.compression.BlockWrite")
+@Label("Block Write")
+@Category({"Hacking", "Compression"})
+@Description("Write call on one layer of a stream stack")
+public class BlockWriteEvent extends Event
+{
+    @Label("Layer")
+    String layer;
+
+    @Label("Bytes")
+    @DataAmount
+    long   bytes;
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Checksum;
+
+/**
+ * Measures checksum throughput in memory. Each checksum type runs first on a
+ * single thread and then with the data split into ranges that are checksummed
+ * in parallel and combined, which is how partitioned and framed reads verify
+ * data. Combined values are checked against the single-threaded value.
+ */
+public class ChecksumLab
+{
+    // Each measurement covers at least this many bytes in total.
+    private static final long MIN_BYTES = 256L * 1024 * 1024;
+
+    private final byte[]      data;
+    private final int         threads;
+
+    /**
+     * Creates a lab.
+     *
+     * @param data Data to checksum
+     * @param threads Maximum number of threads
+     */
+    public ChecksumLab(byte[] data, int threads)
+    {
+        this.data = data;
+        this.threads = threads;
+    }
+
+    /** Runs measurements for each checksum type. */
+    public void run() throws Exception
+    {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try
+        {
+            int passes = (int) Math.max(1, MIN_BYTES / Math.max(1,
+                    data.length));
+            for (ChecksumType type : ChecksumType.values())
+            {
+                long expected = 0;
+                for (int t = 1; t <= threads; t *= 2)
+                {
+                    if (t > 1 && !type.isCombinable())
+                        break;
+                    long value = 0;
+                    long start = System.nanoTime();
+                    for (int p = 0; p < passes; p++)
+                        value = checksum(pool, type, t);
+                    double seconds = (System.nanoTime() - start) / 1e9;
+                    if (t == 1)
+                        expected = value;
+                    CompressionLab.println(String.format(
+                            "Checksum: %-8s Threads: %d Value: %-20d GB/s: %-8.2f%s",
+                            type.getName(), t, value, (double) data.length
+                                    * passes / seconds / 1e9,
+                            value == expected ? "" : " COMBINE FAILED"));
+                }
+            }
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    // Checksums the data in equal ranges, one per task, and combines the
+    // partial values in range order.
+    private long checksum(ExecutorService pool, final ChecksumType type,
+            int numThreads) throws Exception
+    {
+        List<Future<Long>> futures = new ArrayList<Future<Long>>();
+        int rangeSize = (data.length + numThreads - 1) / numThreads;
+        for (int i = 0; i < numThreads; i++)
+        {
+            final int start = Math.min(data.length, i * rangeSize);
+            final int length = Math.min(rangeSize, data.length - start);
+            futures.add(pool.submit(new Callable<Long>()
+            {
+                public Long call()
+                {
+                    Checksum checksum = type.create();
+                    checksum.update(data, start, length);
+                    return checksum.getValue();
+                }
+            }));
+        }
+        if (numThreads == 1)
+            return futures.get(0).get();
+        long value = type.emptyValue();
+        for (int i = 0; i < numThreads; i++)
+        {
+            int start = Math.min(data.length, i * rangeSize);
+            int length = Math.min(rangeSize, data.length - start);
+            value = type.combine(value, futures.get(i).get(), length);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,56 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.util.zip.Checksum;
+
+/**
+ * Pipeline stage that computes a checksum over data as it passes through.
+ * Buffers go downstream unchanged.
+ */
+public class ChecksumStage extends PipelineStage
+{
+    private final Checksum crc;
+
+    public ChecksumStage(ChecksumType checksum)
+    {
+        super("crc", 0, 0);
+        this.crc = checksum.create();
+    }
+
+    /** Returns the checksum of all data seen so far. */
+    public long getValue()
+    {
+        return crc.getValue();
+    }
+
+    @Override
+    protected void execute() throws Exception
+    {
+        PipelineBuffer buf;
+        while (!(buf = take()).isEndOfStream())
+        {
+            bytesIn += buf.length;
+            crc.update(buf.data, 0, buf.length);
+            emit(buf);
+        }
+        emit(buf);
+    }
+}
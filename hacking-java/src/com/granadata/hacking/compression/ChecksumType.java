@@ -0,0 +1,156 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/**
+ * Checksums available for verifying data. CRC32 and CRC32C use hardware
+ * instructions on most current processors, Adler32 is cheap in software,
+ * and xxHash64 is a fast 64-bit hash written in Java. All but xxHash64 can
+ * combine values computed over adjacent ranges, which lets threads verify
+ * parts of a file in parallel.
+ */
+public enum ChecksumType
+{
+    CRC32("crc32", "CRC"),
+    CRC32C("crc32c", "CRC32C"),
+    ADLER32("adler32", "Adler32"),
+    XXHASH64("xxhash64", "XXH64");
+
+    // Modulus used by Adler32.
+    private static final int ADLER_BASE = 65521;
+
+    private final String     name;
+    private final String     label;
+
+    private ChecksumType(String name, String label)
+    {
+        this.name = name;
+        this.label = label;
+    }
+
+    /**
+     * Returns the checksum type with the given name.
+     *
+     * @throws IllegalArgumentException Thrown if there is no such type
+     */
+    public static ChecksumType forName(String name)
+    {
+        for (ChecksumType type : values())
+        {
+            if (type.name.equals(name))
+                return type;
+        }
+        throw new IllegalArgumentException("Unknown checksum: " + name);
+    }
+
+    /** Returns the name used in options. */
+    public String getName()
+    {
+        return name;
+    }
+
+    /** Returns a short label for reports. */
+    public String getLabel()
+    {
+        return label;
+    }
+
+    /** Creates a new checksum of this type. */
+    public Checksum create()
+    {
+        switch (this)
+        {
+            case CRC32 :
+                return new CRC32();
+            case CRC32C :
+                return new CRC32C();
+            case ADLER32 :
+                return new Adler32();
+            default :
+                return new XxHash64();
+        }
+    }
+
+    /** Returns the checksum of no data. */
+    public long emptyValue()
+    {
+        return create().getValue();
+    }
+
+    /** Returns true if values for adjacent ranges can be combined. */
+    public boolean isCombinable()
+    {
+        return this != XXHASH64;
+    }
+
+    /**
+     * Returns the checksum of two concatenated ranges. The value for an empty
+     * first range is {@link #emptyValue()}.
+     *
+     * @param value1 Checksum of the first range
+     * @param value2 Checksum of the second range
+     * @param len2 Length of the second range in bytes
+     * @throws UnsupportedOperationException Thrown if this type cannot be
+     *             combined
+     */
+    public long combine(long value1, long value2, long len2)
+    {
+        switch (this)
+        {
+            case CRC32 :
+                return CrcCombiner.combine(value1, value2, len2,
+                        CrcCombiner.CRC32_POLYNOMIAL);
+            case CRC32C :
+                return CrcCombiner.combine(value1, value2, len2,
+                        CrcCombiner.CRC32C_POLYNOMIAL);
+            case ADLER32 :
+                return combineAdler(value1, value2, len2);
+            default :
+                throw new UnsupportedOperationException(
+                        "Checksum values cannot be combined: " + name);
+        }
+    }
+
+    // Combines Adler32 values as zlib's adler32_combine() does. The sums of
+    // the second range are shifted by the first range's running byte sum.
+    private static long combineAdler(long adler1, long adler2, long len2)
+    {
+        long rem = len2 % ADLER_BASE;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (rem * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xffff) + ADLER_BASE - 1;
+        sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff)
+                + ADLER_BASE - rem;
+        if (sum1 >= ADLER_BASE)
+            sum1 -= ADLER_BASE;
+        if (sum1 >= ADLER_BASE)
+            sum1 -= ADLER_BASE;
+        if (sum2 >= (ADLER_BASE << 1))
+            sum2 -= (ADLER_BASE << 1);
+        if (sum2 >= ADLER_BASE)
+            sum2 -= ADLER_BASE;
+        return sum1 | (sum2 << 16);
+    }
+}
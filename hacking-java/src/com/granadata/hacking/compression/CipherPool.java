@@ -0,0 +1,135 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.Key;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
+
+/**
+ * Pool of ciphers for a single algorithm, key and mode. Cipher.getInstance
+ * is costly because it searches providers, so it pays to keep ciphers.
+ * Released ciphers are initialized again, which clears any partial state
+ * left by a stream that was not read to the end.
+ */
+public class CipherPool extends ResourcePool<Cipher>
+{
+    private final String algorithm;
+    private final Key    key;
+    private final int    mode;
+
+    /**
+     * Creates a pool.
+     *
+     * @param algorithm Cipher algorithm
+     * @param key Secret key
+     * @param mode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+     * @param maxIdle Maximum idle ciphers to keep
+     * @param trackLeaks If true, record where each cipher was borrowed
+     */
+    public CipherPool(String algorithm, Key key, int mode, int maxIdle,
+            boolean trackLeaks)
+    {
+        super(mode == Cipher.ENCRYPT_MODE ? "cipher-encrypt"
+                : "cipher-decrypt", maxIdle, trackLeaks);
+        this.algorithm = algorithm;
+        this.key = key;
+        this.mode = mode;
+    }
+
+    @Override
+    protected Cipher create() throws Exception
+    {
+        Cipher cipher = Cipher.getInstance(algorithm);
+        cipher.init(mode, key);
+        return cipher;
+    }
+
+    @Override
+    protected void reset(Cipher cipher) throws Exception
+    {
+        cipher.init(mode, key);
+    }
+
+    /**
+     * Opens a cipher input stream with a borrowed cipher, which goes back to
+     * the pool when the stream is closed.
+     */
+    public InputStream openInputStream(InputStream in) throws Exception
+    {
+        final Cipher cipher = borrow();
+        return new CipherInputStream(in, cipher)
+        {
+            private boolean released;
+
+            @Override
+            public void close() throws IOException
+            {
+                try
+                {
+                    super.close();
+                }
+                finally
+                {
+                    if (!released)
+                    {
+                        released = true;
+                        release(cipher);
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Opens a cipher output stream with a borrowed cipher, which goes back to
+     * the pool when the stream is closed.
+     */
+    public OutputStream openOutputStream(OutputStream out) throws Exception
+    {
+        final Cipher cipher = borrow();
+        return new CipherOutputStream(out, cipher)
+        {
+            private boolean released;
+
+            @Override
+            public void close() throws IOException
+            {
+                try
+                {
+                    super.close();
+                }
+                finally
+                {
+                    if (!released)
+                    {
+                        released = true;
+                        release(cipher);
+                    }
+                }
+            }
+        };
+    }
+}
@@ -27,8 +27,15 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.zip.CRC32;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 import java.util.zip.CheckedOutputStream;
+import java.util.zip.Checksum;
 import java.util.zip.GZIPOutputStream;
 
 import javax.crypto.Cipher;
@@ -46,14 +53,49 @@ import joptsimple.OptionSet;
 public class CompressionLab
 {
     // Parameters from options.
-    private Long      runLength = (long) 10000;
-    private Integer   threads   = 1;
-    private String    data;
-    private File      dataFile;
-    private String    algorithm = "DESede";
+    private Long         runLength  = (long) 10000;
+    private Integer      threads    = 1;
+    private String       data;
+    private File         dataFile;
+    private String       algorithm  = "DESede";
+    private String       generator;
+    private Long         seed       = (long) 1;
+    private Double       entropy    = 4.0;
+    private boolean      pipeline;
+    private Integer      buffers    = 4;
+    private Integer      blockSize  = 65536;
+    private boolean      framed;
+    private boolean      adaptive;
+    private Integer      pointReads = 0;
+    private boolean      partitioned;
+    private String       mode       = "stream";
+    private Integer      records    = 100000;
+    private Integer      batch      = 32;
+    private Integer      dictionary = 16384;
+    private Integer      sample     = 2000;
+    private boolean      meter;
+    private boolean      pool;
+    private boolean      trackLeaks;
+    private String       sync       = "none";
+    private Long         syncBytes  = (long) 1048576;
+    private boolean      direct;
+    private boolean      cold;
+    private Integer      files      = 1000;
+    private Integer      fileSize   = 16384;
+    private String       sizes      = "lognormal";
+    private Integer      fanout     = 256;
+    private String       dir        = "out.files";
+    private ChecksumType checksum   = ChecksumType.CRC32;
+    private Integer      queueDepth = 0;
+    private Integer      readSize   = 65536;
+    private Integer      workers    = 2;
+
+    // Bytes allocated by worker threads during the current test.
+    private long         workerAllocated;
 
     // Additional properties.
-    private SecretKey secretKey;
+    private SecretKey     secretKey;
+    private ResourcePools pools;
 
     /** Creates an instance for doing real work. */
     public CompressionLab()
@@ -65,13 +107,25 @@ public class CompressionLab
      */
     public static void main(String[] args)
     {
-        new CompressionLab().go(args);
+        int status = run(args);
+        if (status != 0)
+            System.exit(status);
+    }
+
+    /**
+     * Runs the tool without exiting, for callers such as the tool daemon.
+     *
+     * @return Exit status, which is 0 on success
+     */
+    public static int run(String[] args)
+    {
+        return new CompressionLab().go(args);
     }
 
     /**
      * Process the test.
      */
-    public void go(String[] args)
+    public int go(String[] args)
     {
         OptionParser parser = new OptionParser();
         parser.accepts("length", "Run length for compression")
@@ -81,8 +135,86 @@ public class CompressionLab
         parser.accepts("data",
                 "Data to be written and read, must be at least run length in size")
                 .withRequiredArg().ofType(String.class);
+        parser.accepts(
+                "generator",
+                "Generate data instead of reading a file (random, text, records, logs, mixed)")
+                .withRequiredArg().ofType(String.class);
+        parser.accepts("seed", "Seed for generated data").withRequiredArg()
+                .ofType(Long.class).defaultsTo((long) 1);
+        parser.accepts("entropy",
+                "Target entropy in bits per byte for mixed generator")
+                .withRequiredArg().ofType(Double.class).defaultsTo(4.0);
         parser.accepts("algorithm", "Encryption algorithm").withRequiredArg()
                 .ofType(String.class).defaultsTo("DESede");
+        parser.accepts("pipeline",
+                "Write using a multi-threaded pipeline of stages");
+        parser.accepts("buffers", "Buffers per pipeline stage")
+                .withRequiredArg().ofType(Integer.class).defaultsTo(4);
+        parser.accepts("block-size",
+                "Size of pipeline buffers and framed blocks in bytes")
+                .withRequiredArg().ofType(Integer.class).defaultsTo(65536);
+        parser.accepts("format",
+                "File format: stream (single GZIP/cipher stream) or framed")
+                .withRequiredArg().ofType(String.class).defaultsTo("stream");
+        parser.accepts("adaptive",
+                "Choose stored, fast or full deflate for each framed block");
+        parser.accepts("point-reads",
+                "Number of random point reads to time on framed files")
+                .withRequiredArg().ofType(Integer.class).defaultsTo(0);
+        parser.accepts("partitioned",
+                "Split uncompressed, unencrypted files into ranges read in parallel");
+        parser.accepts("mode",
+                "Test mode: stream (large files), records (small records), files (many small files) or checksum")
+                .withRequiredArg().ofType(String.class).defaultsTo("stream");
+        parser.accepts("records", "Number of records in records mode")
+                .withRequiredArg().ofType(Integer.class).defaultsTo(100000);
+        parser.accepts("batch", "Records per batch in records mode")
+                .withRequiredArg().ofType(Integer.class).defaultsTo(32);
+        parser.accepts("dictionary-size",
+                "Maximum trained dictionary size in records mode")
+                .withRequiredArg().ofType(Integer.class).defaultsTo(16384);
+        parser.accepts("sample",
+                "Number of records used to train the dictionary")
+                .withRequiredArg().ofType(Integer.class).defaultsTo(2000);
+        parser.accepts("meter",
+                "Time each stream layer and print allocation and GC per test");
+        parser.accepts("pool",
+                "Reuse ciphers, deflaters, inflaters and direct buffers across streams and tests");
+        parser.accepts("track-leaks",
+                "Record where pooled objects are borrowed and print unreleased ones");
+        parser.accepts("sync",
+                "Force file data to disk: none, block (every block size bytes), bytes (every --sync-bytes) or close")
+                .withRequiredArg().ofType(String.class).defaultsTo("none");
+        parser.accepts("sync-bytes", "Bytes between forces for --sync bytes")
+                .withRequiredArg().ofType(Long.class).defaultsTo((long) 1048576);
+        parser.accepts("direct",
+                "Bypass the page cache with direct I/O for writes and stream reads (Linux)");
+        parser.accepts("cold",
+                "Drop the page cache and time a cold read before warm reads (Linux, root)");
+        parser.accepts("files", "Number of files in files mode")
+                .withRequiredArg().ofType(Integer.class).defaultsTo(1000);
+        parser.accepts("file-size", "Mean file size in files mode")
+                .withRequiredArg().ofType(Integer.class).defaultsTo(16384);
+        parser.accepts("size-distribution",
+                "File size distribution: fixed, uniform or lognormal")
+                .withRequiredArg().ofType(String.class)
+                .defaultsTo("lognormal");
+        parser.accepts("fanout", "Files per subdirectory in files mode")
+                .withRequiredArg().ofType(Integer.class).defaultsTo(256);
+        parser.accepts("dir", "Directory for files mode").withRequiredArg()
+                .ofType(String.class).defaultsTo("out.files");
+        parser.accepts("checksum",
+                "Checksum to verify data: crc32, crc32c, adler32 or xxhash64")
+                .withRequiredArg().ofType(String.class).defaultsTo("crc32");
+        parser.accepts("queue-depth",
+                "Also read with asynchronous I/O at queue depths up to this value")
+                .withRequiredArg().ofType(Integer.class).defaultsTo(0);
+        parser.accepts("request-size",
+                "Size of asynchronous read requests on unframed files")
+                .withRequiredArg().ofType(Integer.class).defaultsTo(65536);
+        parser.accepts("workers",
+                "Threads that process completed asynchronous reads")
+                .withRequiredArg().ofType(Integer.class).defaultsTo(2);
         parser.accepts("help");
 
         // Parse options.
@@ -95,7 +227,7 @@ public class CompressionLab
         {
             println("Parsing failed: " + e.getMessage());
             println("Try --help for command line options");
-            System.exit(1);
+            return 1;
         }
         if (options.has("help"))
         {
@@ -110,48 +242,147 @@ public class CompressionLab
                 // This is very unlikely.
                 e.printStackTrace();
             }
-            System.exit(0);
+            return 0;
         }
 
         // Grab option values for further processing.
         runLength = (Long) options.valueOf("length");
         threads = (Integer) options.valueOf("threads");
         data = (String) options.valueOf("data");
-        dataFile = new File(data);
         algorithm = (String) options.valueOf("algorithm");
+        generator = (String) options.valueOf("generator");
+        seed = (Long) options.valueOf("seed");
+        entropy = (Double) options.valueOf("entropy");
+        pipeline = options.has("pipeline");
+        buffers = (Integer) options.valueOf("buffers");
+        blockSize = (Integer) options.valueOf("block-size");
+        String format = (String) options.valueOf("format");
+        if ("framed".equals(format))
+            framed = true;
+        else if (!"stream".equals(format))
+        {
+            println("Unknown format: " + format);
+            return 1;
+        }
+        adaptive = options.has("adaptive");
+        if (adaptive && !framed)
+        {
+            println("Adaptive compression requires --format framed");
+            return 1;
+        }
+        pointReads = (Integer) options.valueOf("point-reads");
+        partitioned = options.has("partitioned");
+        meter = options.has("meter");
+        pool = options.has("pool");
+        trackLeaks = options.has("track-leaks");
+        sync = (String) options.valueOf("sync");
+        syncBytes = (Long) options.valueOf("sync-bytes");
+        if (!"none".equals(sync) && !"block".equals(sync)
+                && !"bytes".equals(sync) && !"close".equals(sync))
+        {
+            println("Unknown sync mode: " + sync);
+            return 1;
+        }
+        direct = options.has("direct");
+        if (direct && !DirectIO.isSupported())
+        {
+            println("Direct I/O is not supported on this JVM");
+            return 1;
+        }
+        cold = options.has("cold");
+        try
+        {
+            checksum = ChecksumType.forName((String) options
+                    .valueOf("checksum"));
+        }
+        catch (IllegalArgumentException e)
+        {
+            println(e.getMessage());
+            return 1;
+        }
+        queueDepth = (Integer) options.valueOf("queue-depth");
+        readSize = (Integer) options.valueOf("request-size");
+        workers = (Integer) options.valueOf("workers");
+        mode = (String) options.valueOf("mode");
+        records = (Integer) options.valueOf("records");
+        batch = (Integer) options.valueOf("batch");
+        dictionary = (Integer) options.valueOf("dictionary-size");
+        sample = (Integer) options.valueOf("sample");
+        files = (Integer) options.valueOf("files");
+        fileSize = (Integer) options.valueOf("file-size");
+        sizes = (String) options.valueOf("size-distribution");
+        if (!Arrays.asList(FileLab.DISTRIBUTIONS).contains(sizes))
+        {
+            println("Unknown size distribution: " + sizes);
+            return 1;
+        }
+        fanout = (Integer) options.valueOf("fanout");
+        dir = (String) options.valueOf("dir");
+        if ("records".equals(mode))
+        {
+            return runRecords();
+        }
+        else if ("files".equals(mode))
+        {
+            return runFiles();
+        }
+        else if ("checksum".equals(mode))
+        {
+            return runChecksums();
+        }
+        else if (!"stream".equals(mode))
+        {
+            println("Unknown mode: " + mode);
+            return 1;
+        }
+        if (generator == null && data == null)
+        {
+            println("You must specify either --data or --generator");
+            println("Try --help for command line options");
+            return 1;
+        }
+        if (data != null)
+            dataFile = new File(data);
 
         // Print the starting time zone information.
         printSeparator();
         println("Configuration info...");
         println(String.format("length : %d", runLength));
         println(String.format("threads: %d", threads));
-        println(String.format("data   : %s", dataFile.getPath()));
+        if (generator == null)
+            println(String.format("data   : %s", dataFile.getPath()));
+        else
+        {
+            println(String.format("generator: %s seed: %d", generator, seed));
+            if ("mixed".equals(generator))
+                println(String.format("entropy: %.2f bits/byte", entropy));
+        }
         println(String.format("encryption algorithm: %s", algorithm));
+        if (meter)
+            println("metering: true");
+        if (pipeline)
+            println(String.format("pipeline: buffers=%d block size=%d",
+                    buffers, blockSize));
+        if (framed)
+            println(String.format("format : framed block size=%d adaptive=%s",
+                    blockSize, adaptive));
+        if (partitioned)
+            println("partitioned reads: true");
+        if (pool)
+            println(String.format("pooling: true track leaks: %s",
+                    trackLeaks));
+        if (!"none".equals(sync) || direct)
+            println(String.format("sync: %s direct: %s", sync, direct));
+        if (checksum != ChecksumType.CRC32)
+            println(String.format("checksum: %s", checksum.getName()));
+        if (queueDepth > 0)
+            println(String.format(
+                    "async reads: queue depth<=%d request size=%d workers=%d",
+                    queueDepth, readSize, workers));
 
         try
         {
-            // Generate a secret key for encryption.
-            KeyGenerator keyGenerator = KeyGenerator.getInstance(algorithm);
-            if ("AES".equals(algorithm))
-                keyGenerator.init(128);
-            else if ("DES".equals(algorithm))
-                keyGenerator.init(56);
-            else if ("DESede".equals(algorithm))
-                keyGenerator.init(168);
-            else if ("HmacSHA1".equals(algorithm))
-            {
-                // Do nothing?
-            }
-            else if ("HmacSHA256".equals(algorithm))
-            {
-                // Do nothing
-            }
-            else
-            {
-                throw new Exception("Unknown encryption algorithm: "
-                        + algorithm);
-            }
-            secretKey = keyGenerator.generateKey();
+            initSecurity();
 
             // Write and read back uncompressed file.
             printSeparator();
@@ -168,12 +399,178 @@ public class CompressionLab
             // Write and read back compressed, encrypted file.
             printSeparator();
             writeRead(dataFile, true, true);
+
+            if (pools != null)
+                pools.close();
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            return 1;
+        }
+        return 0;
+    }
+
+    // Generates the secret key and creates resource pools if requested.
+    private void initSecurity() throws Exception
+    {
+        // Generate a secret key for encryption.
+        KeyGenerator keyGenerator = KeyGenerator.getInstance(algorithm);
+        if ("AES".equals(algorithm))
+            keyGenerator.init(128);
+        else if ("DES".equals(algorithm))
+            keyGenerator.init(56);
+        else if ("DESede".equals(algorithm))
+            keyGenerator.init(168);
+        else if ("HmacSHA1".equals(algorithm))
+        {
+            // Do nothing?
+        }
+        else if ("HmacSHA256".equals(algorithm))
+        {
+            // Do nothing
+        }
+        else
+        {
+            throw new Exception("Unknown encryption algorithm: "
+                    + algorithm);
+        }
+        secretKey = keyGenerator.generateKey();
+
+        // Pools live across all tests. Each read thread and async worker
+        // holds at most one object from each pool at a time, and readers
+        // close framed indexes before starting them.
+        if (pool)
+            pools = new ResourcePools(secretKey, algorithm, blockSize,
+                    Math.max(Math.max(threads, workers), 2), trackLeaks);
+    }
+
+    // Run the records mode test, which does not use files or encryption.
+    private int runRecords()
+    {
+        if (generator == null)
+            generator = "logs";
+        printSeparator();
+        println("Configuration info...");
+        println(String.format("records: %d batch: %d", records, batch));
+        println(String.format("generator: %s seed: %d", generator, seed));
+        println(String.format("dictionary size: %d sample: %d", dictionary,
+                sample));
+        printSeparator();
+        try
+        {
+            DataGenerator source = DataGenerator.create(generator, seed,
+                    entropy);
+            if (!(source instanceof LineDataGenerator))
+            {
+                throw new Exception(
+                        "Records mode requires a line-based generator (text, records, logs): "
+                                + generator);
+            }
+            // Records need no key, so only compression objects are pooled.
+            ResourcePools recordPools = pool ? new ResourcePools(null,
+                    algorithm, blockSize, 2, trackLeaks) : null;
+            new RecordLab((LineDataGenerator) source, records, batch,
+                    dictionary, sample, recordPools).run();
+            if (recordPools != null)
+            {
+                recordPools.printStats();
+                recordPools.close();
+            }
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            return 1;
+        }
+        return 0;
+    }
+
+    // Run the files mode test, which writes and reads many small files.
+    private int runFiles()
+    {
+        if (generator == null && data == null)
+            generator = "logs";
+        printSeparator();
+        println("Configuration info...");
+        println(String.format("files: %d mean size: %d distribution: %s",
+                files, fileSize, sizes));
+        println(String.format("directory: %s fanout: %d threads: %d", dir,
+                fanout, threads));
+        if (generator == null)
+            println(String.format("data   : %s", data));
+        else
+            println(String.format("generator: %s seed: %d", generator, seed));
+        println(String.format("encryption algorithm: %s", algorithm));
+        if (checksum != ChecksumType.CRC32)
+            println(String.format("checksum: %s", checksum.getName()));
+        if (pool)
+            println("pooling: true");
+        try
+        {
+            initSecurity();
+
+            // File contents come from a buffer large enough to give varied
+            // data even to the largest files.
+            int length = (int) Math.min(64 * 1024 * 1024, Math.max(
+                    8 * 1024 * 1024, fileSize * 16L));
+            byte[] source = new byte[length];
+            if (data == null)
+                DataGenerator.create(generator, seed, entropy).fill(source, 0,
+                        length);
+            else
+            {
+                dataFile = new File(data);
+                InputStream in = new FileInputStream(dataFile);
+                int n = 0;
+                int actual = 0;
+                while (n < length
+                        && (actual = in.read(source, n, length - n)) > 0)
+                    n += actual;
+                in.close();
+                if (n < length)
+                    source = Arrays.copyOf(source, Math.max(1, n));
+            }
+            new FileLab(new File(dir), source, files, fileSize, sizes,
+                    fanout, threads, seed, secretKey, algorithm, pools,
+                    checksum).run();
+            if (pools != null)
+                pools.close();
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            return 1;
+        }
+        return 0;
+    }
+
+    // Run the checksum mode test, which measures checksum throughput on
+    // generated data in memory.
+    private int runChecksums()
+    {
+        if (generator == null)
+            generator = "random";
+        printSeparator();
+        println("Configuration info...");
+        println(String.format("length : %d", runLength));
+        println(String.format("threads: %d", threads));
+        println(String.format("generator: %s seed: %d", generator, seed));
+        printSeparator();
+        try
+        {
+            byte[] buf = new byte[(int) Math.min(Integer.MAX_VALUE - 8,
+                    runLength)];
+            DataGenerator.create(generator, seed, entropy).fill(buf, 0,
+                    buf.length);
+            new ChecksumLab(buf, threads).run();
         }
         catch (Exception e)
         {
             e.printStackTrace();
-            System.exit(1);
+            return 1;
         }
+        return 0;
     }
 
     // Write and then read back the file.
@@ -189,32 +586,114 @@ public class CompressionLab
             outName = "out.gz";
         else
             outName = "out";
+        if (framed)
+            outName += ".framed";
         File outFile = new File(outName);
 
         // Write the test information.
         printTest(outFile, runLength, compress, encrypt);
+        ResourceUsage before = ResourceUsage.snapshot();
+        workerAllocated = 0;
 
-        // Construct stack of streams to write to file.
-        OutputStream fos = new FileOutputStream(outFile);
-        OutputStream b1;
-        if (encrypt)
+        // Write the file using either the pipeline or a serial stream stack.
+        long crcValue;
+        if (pipeline)
+            crcValue = writePipelined(outFile, compress, encrypt);
+        else
+            crcValue = writeSerial(outFile, compress, encrypt);
+
+        // Time a read with nothing in the page cache. All later reads find
+        // the file cached unless they use direct I/O.
+        if (cold)
         {
-            Cipher cipher = Cipher.getInstance(algorithm);
-            cipher.init(Cipher.ENCRYPT_MODE, secretKey);
-            b1 = new CipherOutputStream(fos, cipher);
+            if (DirectIO.dropCaches(outFile))
+                read(outFile, 1, compress, encrypt, crcValue, "cold");
+            else
+                println("Cold read skipped: unable to drop page cache");
         }
-        else
-            b1 = fos;
+
+        // Read the file using sets of threads up to the max.
+        int currentThreads = 1;
+        while (currentThreads <= threads)
+        {
+            read(outFile, currentThreads, compress, encrypt, crcValue, "read");
+            currentThreads *= 2;
+        }
+
+        // Plain files can also be read cooperatively by splitting them into
+        // ranges.
+        if (partitioned && !compress && !encrypt && !framed
+                && !checksum.isCombinable())
+        {
+            println(String.format(
+                    "Partitioned reads skipped: %s values cannot be combined",
+                    checksum.getName()));
+        }
+        else if (partitioned && !compress && !encrypt && !framed)
+        {
+            currentThreads = 1;
+            while (currentThreads <= threads)
+            {
+                readPartitioned(outFile, currentThreads, crcValue);
+                currentThreads *= 2;
+            }
+        }
+
+        // Read with asynchronous I/O at increasing queue depths.
+        for (int depth = 1; depth <= queueDepth; depth *= 2)
+            readAsync(outFile, compress, encrypt, crcValue, depth);
+
+        // Time random point reads, which only framed files support.
+        if (framed && pointReads > 0)
+            pointRead(outFile, encrypt);
+
+        // Summarize memory use over the whole test. Pool statistics are
+        // cumulative, so they show reuse across tests.
+        if (meter)
+            ResourceUsage.snapshot().printSince(before, workerAllocated);
+        if (pools != null)
+            pools.printStats();
+    }
+
+    // Write the file through a stack of streams on the current thread.
+    private long writeSerial(File outFile, boolean compress, boolean encrypt)
+            throws Exception
+    {
+        // Construct stack of streams to write to file. When metering, each
+        // layer is wrapped so we can see where time goes.
+        StreamMeters meters = new StreamMeters(meter);
+        OutputStream file = openOutput(outFile);
+        OutputStream fos = meters.wrap("file", file);
         OutputStream b2;
-        if (compress)
-            b2 = new BufferedOutputStream(new GZIPOutputStream(b1));
+        AdaptiveBlockCodec codec = adaptiveCodec(compress);
+        if (framed)
+        {
+            // Framed files compress and encrypt each block separately.
+            FramedOutputStream frame;
+            if (codec != null && pools != null)
+                frame = new FramedOutputStream(fos, blockSize, codec,
+                        encrypt, pools);
+            else if (codec != null)
+                frame = new FramedOutputStream(fos, blockSize, codec,
+                        encryptCipher(encrypt));
+            else if (pools != null)
+                frame = new FramedOutputStream(fos, blockSize, compress,
+                        encrypt, pools);
+            else
+                frame = new FramedOutputStream(fos, blockSize, compress,
+                        encryptCipher(encrypt));
+            b2 = new BufferedOutputStream(meters.wrap("frame", frame));
+        }
         else
-            b2 = new BufferedOutputStream(b1);
-        CRC32 crc = new CRC32();
-        CheckedOutputStream os = new CheckedOutputStream(b2, crc);
+            b2 = openWriteStack(fos, compress, encrypt, secretKey, algorithm,
+                    meters, pools);
+        b2 = meters.wrap("buffer", b2);
+        Checksum crc = checksum.create();
+        OutputStream os = meters.wrap("crc", new CheckedOutputStream(b2, crc));
 
-        InputStream fis = new FileInputStream(dataFile);
-        BufferedInputStream is = new BufferedInputStream(fis);
+        // The source is timed separately since it is not part of the stack.
+        StreamMeters sourceMeters = new StreamMeters(meter);
+        InputStream is = sourceMeters.wrap("source", openSource());
 
         long read = 0;
         byte[] buf = new byte[4096];
@@ -226,35 +705,205 @@ public class CompressionLab
             os.write(buf, 0, actual);
             read += actual;
         }
-        os.flush();
+        // Closing finishes compression and any final force, so it is part
+        // of the write time.
+        os.close();
         long dw = System.currentTimeMillis() - w1;
         long crcValue = crc.getValue();
-        os.close();
         is.close();
 
         // Print write results.
         printOp("write", outFile, 1, runLength, read, dw, crcValue);
+        printSync(file);
+        if (codec != null)
+            codec.printStats();
+        sourceMeters.print();
+        meters.print();
+        return crcValue;
+    }
 
-        // Read the file using sets of threads up to the max.
-        int currentThreads = 1;
-        while (currentThreads <= threads)
+    // Constructs the encrypt, compress and buffer layers of a stack of
+    // streams to write a file, taking ciphers and deflaters from pools if
+    // provided. If a layer cannot be opened, the layers below are closed so
+    // that the file and any pooled cipher are released.
+    static OutputStream openWriteStack(OutputStream fos, boolean compress,
+            boolean encrypt, SecretKey secretKey, String algorithm,
+            StreamMeters meters, ResourcePools pools) throws Exception
+    {
+        OutputStream b1 = fos;
+        try
         {
-            read(outFile, currentThreads, compress, encrypt, crcValue);
-            currentThreads *= 2;
+            if (encrypt && pools != null)
+                b1 = meters.wrap("cipher", pools.getEncryptCiphers()
+                        .openOutputStream(fos));
+            else if (encrypt)
+            {
+                Cipher cipher = Cipher.getInstance(algorithm);
+                cipher.init(Cipher.ENCRYPT_MODE, secretKey);
+                b1 = meters.wrap("cipher", new CipherOutputStream(fos,
+                        cipher));
+            }
+            if (compress && pools != null)
+                return new BufferedOutputStream(meters.wrap("gzip",
+                        new PooledGZIPOutputStream(b1, pools.getDeflaters(),
+                                512)));
+            else if (compress)
+                return new BufferedOutputStream(meters.wrap("gzip",
+                        new GZIPOutputStream(b1)));
+            else
+                return new BufferedOutputStream(b1);
+        }
+        catch (Exception e)
+        {
+            try
+            {
+                b1.close();
+            }
+            catch (IOException ce)
+            {
+                e.addSuppressed(ce);
+            }
+            throw e;
         }
     }
 
-    // Read back an existing file.
+    // Write the file through a pipeline with a thread per stage.
+    private long writePipelined(File outFile, boolean compress,
+            boolean encrypt) throws Exception
+    {
+        AdaptiveBlockCodec codec = adaptiveCodec(compress);
+        OutputStream file = openOutput(outFile);
+        WritePipeline wp = new WritePipeline(openSource(), runLength, file,
+                compress, encrypt, framed, codec, secretKey, algorithm,
+                pools, buffers, blockSize, checksum);
+        long w1 = System.currentTimeMillis();
+        wp.run();
+        long dw = System.currentTimeMillis() - w1;
+        long read = wp.getStages().get(0).getBytesOut();
+        long crcValue = wp.getCrcValue();
+
+        // Print write results followed by a breakdown of each stage.
+        printOp("write", outFile, 1, runLength, read, dw, crcValue);
+        printSync(file);
+        if (codec != null)
+            codec.printStats();
+        for (PipelineStage stage : wp.getStages())
+        {
+            println(String.format(
+                    "  Stage: %-6s Busy: %-6.3f Wait-in: %-6.3f Wait-out: %-6.3f Bytes-out: %d",
+                    stage.getName(), stage.getBusyNanos() / 1e9,
+                    stage.getInputWaitNanos() / 1e9,
+                    stage.getOutputWaitNanos() / 1e9, stage.getBytesOut()));
+            workerAllocated += stage.getAllocated();
+        }
+        println(String.format("  Bottleneck: %s", wp.getBottleneck()
+                .getName()));
+        return crcValue;
+    }
+
+    // Opens the output file. Plain file streams are used unless we need to
+    // force data to disk or use direct I/O.
+    private OutputStream openOutput(File outFile) throws Exception
+    {
+        if ("none".equals(sync) && !direct)
+            return new FileOutputStream(outFile);
+        long interval = 0;
+        if ("block".equals(sync))
+            interval = blockSize;
+        else if ("bytes".equals(sync))
+            interval = syncBytes;
+        return new DurableFileOutputStream(outFile, direct, blockSize,
+                interval, !"none".equals(sync));
+    }
+
+    // Opens a file for sequential reading.
+    private InputStream openInput(File outFile) throws Exception
+    {
+        if (direct)
+            return new DirectFileInputStream(outFile, blockSize);
+        else
+            return new FileInputStream(outFile);
+    }
+
+    // Prints the number and cost of forces to disk, if any.
+    private void printSync(OutputStream file)
+    {
+        if (!(file instanceof DurableFileOutputStream))
+            return;
+        DurableFileOutputStream durable = (DurableFileOutputStream) file;
+        long forces = durable.getForces();
+        double seconds = durable.getForceNanos() / 1e9;
+        println(String.format(
+                "  Sync: %-6s Forces: %-6d Secs: %-6.3f Avg msecs: %-8.3f",
+                sync, forces, seconds, forces == 0 ? 0.0 : seconds * 1000
+                        / forces));
+    }
+
+    // Returns a new adaptive block codec, or null if adaptive compression is
+    // not in use for this test. The codec takes deflaters from pools if
+    // pooling is on.
+    private AdaptiveBlockCodec adaptiveCodec(boolean compress)
+            throws Exception
+    {
+        if (!adaptive || !compress)
+            return null;
+        else if (pools != null)
+            return new AdaptiveBlockCodec(pools);
+        else
+            return new AdaptiveBlockCodec();
+    }
+
+    // Returns a cipher ready for encryption or null if not encrypting.
+    private Cipher encryptCipher(boolean encrypt) throws Exception
+    {
+        if (!encrypt)
+            return null;
+        Cipher cipher = Cipher.getInstance(algorithm);
+        cipher.init(Cipher.ENCRYPT_MODE, secretKey);
+        return cipher;
+    }
+
+    // Opens the source of data to write, which is either the data file or a
+    // generator. Generated data always start from the same seed so that each
+    // test sees identical input.
+    private InputStream openSource() throws Exception
+    {
+        if (generator == null)
+            return new BufferedInputStream(new FileInputStream(dataFile));
+        else
+            return new GeneratorInputStream(DataGenerator.create(generator,
+                    seed, entropy), runLength);
+    }
+
+    // Read back an existing file, reporting results under the given op name.
     private void read(File outFile, int numThreads, boolean compress,
-            boolean encrypt, long crcValue) throws Exception
+            boolean encrypt, long crcValue, String op) throws Exception
     {
-        // Allocate thread and task array.
+        // Allocate thread and task array. Tasks on framed files split the
+        // file by blocks, whereas stream files must be read from the start.
         ReadTask[] tasks = new ReadTask[numThreads];
         Thread[] threads = new Thread[numThreads];
+        long[] expected = new long[numThreads];
+        long[] offsets = framed ? rangeOffsets(outFile, numThreads, encrypt)
+                : null;
         for (int i = 0; i < numThreads; i++)
         {
-            tasks[i] = new ReadTask(outFile, runLength, compress, encrypt,
-                    secretKey, algorithm);
+            if (framed)
+            {
+                long start = offsets[i];
+                long end = offsets[i + 1];
+                tasks[i] = ReadTask.forFramedRange(outFile, start, end
+                        - start, encrypt, secretKey, algorithm,
+                        new StreamMeters(meter), pools, checksum);
+                expected[i] = end - start;
+            }
+            else
+            {
+                tasks[i] = new ReadTask(openInput(outFile), runLength,
+                        compress, encrypt, secretKey, algorithm,
+                        new StreamMeters(meter), pools, checksum);
+                expected[i] = runLength;
+            }
             threads[i] = new Thread(tasks[i]);
         }
 
@@ -265,25 +914,341 @@ public class CompressionLab
             threads[i].start();
         }
 
+        long totalRead = 0;
+        long combinedCrc = checksum.emptyValue();
+        boolean combinable = checksum.isCombinable() || numThreads == 1;
+        StreamMeters meters = new StreamMeters(meter);
         for (int i = 0; i < numThreads; i++)
         {
             threads[i].join(600000);
-            if (tasks[i].read != runLength)
+            totalRead += tasks[i].read;
+            workerAllocated += tasks[i].allocated;
+            meters.add(tasks[i].meters);
+            if (framed && checksum.isCombinable())
+                combinedCrc = checksum.combine(combinedCrc,
+                        tasks[i].crcValue, tasks[i].read);
+            else if (framed)
+                combinedCrc = tasks[i].crcValue;
+            if (tasks[i].read != expected[i])
             {
                 println(String.format("Thread read failed: [%d] read=%d", i,
                         tasks[i].read));
             }
-            else if (tasks[i].crcValue != crcValue)
+            else if (!framed && tasks[i].crcValue != crcValue)
             {
                 println(String.format("Thread read failed: [%d] crc[0]=%d", i,
                         tasks[i].crcValue));
             }
         }
 
-        // Print read results.
+        // Tasks on framed files each read one range, so their checksums
+        // must combine to the checksum of the whole.
+        if (framed && combinable && combinedCrc != crcValue)
+        {
+            println(String.format("Combined read failed: crc=%d",
+                    combinedCrc));
+        }
+        else if (framed && !combinable)
+        {
+            println(String.format(
+                    "  Combined check skipped: %s values cannot be combined",
+                    checksum.getName()));
+        }
+
+        // Print read results. Split reads report the combined bandwidth.
+        long dr = System.currentTimeMillis() - r1;
+        long bytes = framed ? totalRead : tasks[0].read;
+        printOp(op, outFile, numThreads, runLength, bytes, dr, crcValue);
+        meters.print();
+    }
+
+    // Returns the raw offsets that split a framed file into block-aligned
+    // ranges, one per thread, followed by the end of the data. The index is
+    // closed before tasks open their own readers, so that reading never
+    // needs more pooled objects than there are threads.
+    private long[] rangeOffsets(File outFile, int numThreads, boolean encrypt)
+            throws Exception
+    {
+        FramedFileReader index = ReadTask.openFramed(outFile, encrypt,
+                secretKey, algorithm, pools);
+        try
+        {
+            int blocks = index.getBlockCount();
+            long[] offsets = new long[numThreads + 1];
+            for (int i = 0; i <= numThreads; i++)
+                offsets[i] = index.getRawOffset(i * blocks / numThreads);
+            return offsets;
+        }
+        finally
+        {
+            index.close();
+        }
+    }
+
+    // Read a plain file by splitting it into equal ranges, one per thread.
+    // Tasks share a single channel and use positional reads.
+    private void readPartitioned(File outFile, int numThreads, long crcValue)
+            throws Exception
+    {
+        FileChannel channel = new RandomAccessFile(outFile, "r").getChannel();
+        try
+        {
+            readPartitioned(channel, outFile, numThreads, crcValue);
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    private void readPartitioned(FileChannel channel, File outFile,
+            int numThreads, long crcValue) throws Exception
+    {
+        long size = channel.size();
+
+        // Allocate tasks with ranges aligned to 4K pages.
+        RangeReadTask[] tasks = new RangeReadTask[numThreads];
+        Thread[] threads = new Thread[numThreads];
+        long rangeSize = rangeSize(size, numThreads);
+        for (int i = 0; i < numThreads; i++)
+        {
+            long start = Math.min(size, i * rangeSize);
+            long length = Math.min(rangeSize, size - start);
+            if (pools == null)
+                tasks[i] = new RangeReadTask(channel, start, length,
+                        blockSize, checksum);
+            else
+                tasks[i] = new RangeReadTask(channel, start, length,
+                        pools.getDirectBuffers(), checksum);
+            threads[i] = new Thread(tasks[i]);
+        }
+
+        // Start tasks and wait for them to finish.
+        long r1 = System.currentTimeMillis();
+        for (int i = 0; i < numThreads; i++)
+        {
+            threads[i].start();
+        }
+
+        // Merge partial checksums in range order.
+        long totalRead = 0;
+        long combinedCrc = checksum.emptyValue();
+        for (int i = 0; i < numThreads; i++)
+        {
+            threads[i].join(600000);
+            if (tasks[i].read != tasks[i].length)
+            {
+                println(String.format("Thread read failed: [%d] read=%d", i,
+                        tasks[i].read));
+            }
+            totalRead += tasks[i].read;
+            workerAllocated += tasks[i].allocated;
+            combinedCrc = checksum.combine(combinedCrc, tasks[i].crcValue,
+                    tasks[i].read);
+        }
+        long dr = System.currentTimeMillis() - r1;
+
+        if (combinedCrc != crcValue)
+        {
+            println(String.format("Combined read failed: crc=%d",
+                    combinedCrc));
+        }
+        printOp("pread", outFile, numThreads, runLength, totalRead, dr,
+                combinedCrc);
+    }
+
+    /**
+     * Returns the size of each range when a file is split among threads,
+     * rounded up to a multiple of 4K pages so that the ranges cover the
+     * whole file.
+     */
+    static long rangeSize(long size, int numThreads)
+    {
+        return ((size + numThreads - 1) / numThreads + 4095) / 4096 * 4096;
+    }
+
+    // Read a file with asynchronous I/O at one queue depth. Workers decode
+    // framed blocks and checksum chunks of plain files in parallel, and the
+    // partial checksums are combined in order. Stream files must be decoded
+    // in order, so this thread decodes them while reads run ahead. Plain
+    // files whose checksum values cannot be combined are read as streams
+    // too. Framed files can only be read by block, so with such checksums
+    // the whole-file value is not verified.
+    private void readAsync(File outFile, boolean compress, boolean encrypt,
+            long crcValue, int depth) throws Exception
+    {
+        AsyncFileReader reader = new AsyncFileReader(outFile, depth, workers);
+        try
+        {
+            readAsync(reader, outFile, compress, encrypt, crcValue, depth);
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    private void readAsync(AsyncFileReader reader, final File outFile,
+            boolean compress, final boolean encrypt, long crcValue, int depth)
+            throws Exception
+    {
+        long r1 = System.currentTimeMillis();
+        long bytes = 0;
+        long value;
+        boolean verify = true;
+        if (framed || (!compress && !encrypt && checksum.isCombinable()))
+        {
+            // Describe requests as framed blocks or fixed size chunks.
+            final boolean decode = framed;
+            FramedFileReader index = framed ? ReadTask.openFramed(outFile,
+                    encrypt, secretKey, algorithm, pools) : null;
+            final List<FramedFileReader> opened = new ArrayList<FramedFileReader>();
+            try
+            {
+                int n = framed ? index.getBlockCount() : (int) ((reader
+                        .size() + readSize - 1) / readSize);
+                long[] positions = new long[n];
+                int[] lengths = new int[n];
+                long[] rawLengths = new long[n];
+                for (int i = 0; i < n; i++)
+                {
+                    if (framed)
+                    {
+                        positions[i] = index.getPosition(i);
+                        lengths[i] = index.getExtent(i);
+                        rawLengths[i] = index.getRawOffset(i + 1)
+                                - index.getRawOffset(i);
+                    }
+                    else
+                    {
+                        positions[i] = (long) i * readSize;
+                        lengths[i] = (int) Math.min(readSize, reader.size()
+                                - positions[i]);
+                        rawLengths[i] = lengths[i];
+                    }
+                }
+
+                // Release the index before workers borrow for their own
+                // decoders.
+                if (index != null)
+                {
+                    index.close();
+                    index = null;
+                }
+
+                // Each worker needs its own decoder, since decoders hold an
+                // inflater and cipher.
+                final ThreadLocal<FramedFileReader> decoders = new ThreadLocal<FramedFileReader>();
+                final ThreadLocal<byte[]> raw = new ThreadLocal<byte[]>();
+                final long[] values = new long[n];
+                reader.readAll(positions, lengths, new AsyncFileReader.Handler()
+                {
+                    public boolean completed(int request, ByteBuffer data)
+                            throws Exception
+                    {
+                        Checksum crc = checksum.create();
+                        if (decode)
+                        {
+                            FramedFileReader decoder = decoders.get();
+                            if (decoder == null)
+                            {
+                                decoder = ReadTask.openFramed(outFile,
+                                        encrypt, secretKey, algorithm, pools);
+                                decoders.set(decoder);
+                                raw.set(new byte[decoder.getBlockSize()]);
+                                synchronized (opened)
+                                {
+                                    opened.add(decoder);
+                                }
+                            }
+                            int len = decoder.decodeBlock(request, data,
+                                    raw.get());
+                            crc.update(raw.get(), 0, len);
+                        }
+                        else
+                            crc.update(data);
+                        values[request] = crc.getValue();
+                        return true;
+                    }
+                });
+
+                // Combine partial checksums in file order.
+                verify = checksum.isCombinable();
+                value = checksum.emptyValue();
+                for (int i = 0; i < n; i++)
+                {
+                    if (verify)
+                        value = checksum.combine(value, values[i],
+                                rawLengths[i]);
+                    bytes += rawLengths[i];
+                }
+            }
+            finally
+            {
+                // Closing returns pooled inflaters and ciphers, so do it
+                // even if the read fails.
+                try
+                {
+                    synchronized (opened)
+                    {
+                        for (FramedFileReader decoder : opened)
+                            decoder.close();
+                    }
+                }
+                finally
+                {
+                    if (index != null)
+                        index.close();
+                }
+            }
+        }
+        else
+        {
+            ReadTask task = new ReadTask(reader.openStream(reader.size(),
+                    readSize), runLength, compress, encrypt, secretKey,
+                    algorithm, new StreamMeters(false), pools, checksum);
+            task.run();
+            bytes = task.read;
+            value = task.crcValue;
+        }
         long dr = System.currentTimeMillis() - r1;
-        printOp("read", outFile, numThreads, runLength, tasks[0].read, dr,
-                crcValue);
+
+        if (bytes != runLength || (verify && value != crcValue))
+            println(String.format("Async read failed: read=%d crc=%d",
+                    bytes, value));
+        if (!verify)
+            println(String.format(
+                    "Async checksum not verified: %s values cannot be combined",
+                    checksum.getName()));
+        double seconds = dr / 1000.0;
+        println(String.format(
+                "Op: async QD: %-3d Workers: %d Requests: %-7d Secs: %-6.3f MB/s: %-8.2f Lat usecs p50: %-8.1f p99: %-8.1f max: %-8.1f",
+                depth, workers, reader.getRequests(), seconds, bytes
+                        / (seconds * 1024.0 * 1024.0),
+                reader.getLatencyNanos(50) / 1000.0,
+                reader.getLatencyNanos(99) / 1000.0,
+                reader.getLatencyNanos(100) / 1000.0));
+    }
+
+    // Time reads of small ranges at random offsets in a framed file.
+    private void pointRead(File outFile, boolean encrypt) throws Exception
+    {
+        FramedFileReader reader = ReadTask.openFramed(outFile, encrypt,
+                secretKey, algorithm, pools);
+        Random random = new Random(seed);
+        byte[] buf = new byte[128];
+        long limit = Math.max(1, reader.getLength() - buf.length);
+        long r1 = System.nanoTime();
+        for (int i = 0; i < pointReads; i++)
+        {
+            long offset = (long) (random.nextDouble() * limit);
+            reader.read(offset, buf, 0, buf.length);
+        }
+        long dr = System.nanoTime() - r1;
+        reader.close();
+        println(String.format(
+                "Op: point Reads: %d Blocks: %d Avg usecs: %-8.1f",
+                pointReads, reader.getBlockCount(), dr / 1000.0 / pointReads));
     }
 
     /** Print a summary of a test. */
@@ -304,8 +1269,9 @@ public class CompressionLab
         double mbs = ((long) bytes) / (seconds * 1024.0 * 1024.0);
         double compression = 100.0 - ((long) f.length() * 100.0) / runLength;
         String msg = String
-                .format("Op: %5s Threads: %d CRC: %d Compression: %5.1f%% Secs: %-6.3f MB/s: %-8.2f",
-                        op, threads, crcValue, compression, seconds, mbs);
+                .format("Op: %5s Threads: %d %s: %d Compression: %5.1f%% Secs: %-6.3f MB/s: %-8.2f",
+                        op, threads, checksum.getLabel(), crcValue,
+                        compression, seconds, mbs);
         println(msg);
     }
 
@@ -0,0 +1,123 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+/**
+ * Combines CRC values computed over adjacent ranges of data into the CRC of
+ * the whole. This lets threads checksum parts of a file independently. Any
+ * reflected 32-bit CRC works, including CRC32 and CRC32C, given its
+ * polynomial.
+ * The method is the one used by zlib's crc32_combine(), which applies the
+ * effect of appending len2 zero bytes to the first CRC using a matrix over
+ * GF(2) that is squared repeatedly, so cost is logarithmic in len2.
+ */
+public class CrcCombiner
+{
+    /** Reflected CRC-32 polynomial used by java.util.zip.CRC32. */
+    public static final long CRC32_POLYNOMIAL  = 0xEDB88320L;
+
+    /** Reflected CRC-32C (Castagnoli) polynomial used by CRC32C. */
+    public static final long CRC32C_POLYNOMIAL = 0x82F63B78L;
+
+    /**
+     * Returns the CRC32 of two concatenated ranges.
+     *
+     * @param crc1 CRC32 of the first range
+     * @param crc2 CRC32 of the second range
+     * @param len2 Length of the second range in bytes
+     */
+    public static long combine(long crc1, long crc2, long len2)
+    {
+        return combine(crc1, crc2, len2, CRC32_POLYNOMIAL);
+    }
+
+    /**
+     * Returns the CRC of two concatenated ranges for a CRC with the given
+     * reflected polynomial.
+     *
+     * @param crc1 CRC of the first range
+     * @param crc2 CRC of the second range
+     * @param len2 Length of the second range in bytes
+     * @param polynomial Reflected 32-bit polynomial
+     */
+    public static long combine(long crc1, long crc2, long len2,
+            long polynomial)
+    {
+        if (len2 <= 0)
+            return crc1;
+
+        // Operator for one zero bit.
+        long[] odd = new long[32];
+        odd[0] = polynomial;
+        long row = 1;
+        for (int n = 1; n < 32; n++)
+        {
+            odd[n] = row;
+            row <<= 1;
+        }
+
+        // Operators for two and then four zero bits.
+        long[] even = new long[32];
+        square(even, odd);
+        square(odd, even);
+
+        // Apply len2 zero bytes to crc1, squaring the operator for each bit
+        // of the length.
+        do
+        {
+            square(even, odd);
+            if ((len2 & 1) != 0)
+                crc1 = times(even, crc1);
+            len2 >>= 1;
+            if (len2 == 0)
+                break;
+
+            square(odd, even);
+            if ((len2 & 1) != 0)
+                crc1 = times(odd, crc1);
+            len2 >>= 1;
+        }
+        while (len2 != 0);
+
+        return (crc1 ^ crc2) & 0xffffffffL;
+    }
+
+    // Multiplies a vector by a GF(2) matrix.
+    private static long times(long[] mat, long vec)
+    {
+        long sum = 0;
+        int i = 0;
+        while (vec != 0)
+        {
+            if ((vec & 1) != 0)
+                sum ^= mat[i];
+            vec >>>= 1;
+            i++;
+        }
+        return sum;
+    }
+
+    // Stores the square of a GF(2) matrix.
+    private static void square(long[] square, long[] mat)
+    {
+        for (int n = 0; n < 32; n++)
+            square[n] = times(mat, mat[n]);
+    }
+}
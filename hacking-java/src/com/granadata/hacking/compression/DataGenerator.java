@@ -0,0 +1,111 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+/**
+ * Denotes a source of synthetic test data. Generators are seeded so that the
+ * same seed always produces the same byte sequence, which makes runs
+ * reproducible without staging data on disk. Generators are not thread-safe.
+ */
+public abstract class DataGenerator
+{
+    /** Names of the available generator types. */
+    public static final String[] TYPES = {"random", "text", "records",
+            "logs", "mixed"};
+
+    // Pseudo-random state.
+    private long state;
+
+    /**
+     * Creates a generator.
+     *
+     * @param seed Seed value; generators with the same seed produce the same
+     *            data
+     */
+    protected DataGenerator(long seed)
+    {
+        // Scramble the seed so that small seeds still give good sequences.
+        // The state must never be zero.
+        state = seed * 0x9E3779B97F4A7C15L + 0x632BE59BD9B4E5D9L;
+        if (state == 0)
+            state = 1;
+    }
+
+    /**
+     * Returns a generator by type name.
+     *
+     * @param type One of the names in {@link #TYPES}
+     * @param seed Seed for pseudo-random values
+     * @param entropy Target entropy in bits per byte, used by mixed generator
+     * @throws IllegalArgumentException Thrown if the type is unknown
+     */
+    public static DataGenerator create(String type, long seed, double entropy)
+    {
+        if ("random".equals(type))
+            return new RandomDataGenerator(seed);
+        else if ("text".equals(type))
+            return new TextDataGenerator(seed);
+        else if ("records".equals(type))
+            return new RecordDataGenerator(seed);
+        else if ("logs".equals(type))
+            return new LogDataGenerator(seed);
+        else if ("mixed".equals(type))
+            return new MixedDataGenerator(seed, entropy);
+        else
+            throw new IllegalArgumentException("Unknown data generator: "
+                    + type);
+    }
+
+    /** Returns the type name of this generator. */
+    public abstract String getName();
+
+    /**
+     * Fills a buffer with generated data.
+     *
+     * @param buf Buffer to fill
+     * @param off Starting offset
+     * @param len Number of bytes to generate
+     */
+    public abstract void fill(byte[] buf, int off, int len);
+
+    /**
+     * Returns the next 64 bits from an xorshift64* sequence. This is a good
+     * deal faster than java.util.Random, which matters when generating
+     * gigabytes.
+     */
+    protected final long nextLong()
+    {
+        long x = state;
+        x ^= x >>> 12;
+        x ^= x << 25;
+        x ^= x >>> 27;
+        state = x;
+        return x * 0x2545F4914F6CDD1DL;
+    }
+
+    /**
+     * Returns a pseudo-random integer between 0 (inclusive) and bound
+     * (exclusive).
+     */
+    protected final int nextInt(int bound)
+    {
+        return (int) (((nextLong() >>> 32) * bound) >>> 32);
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.util.zip.Deflater;
+
+/**
+ * Pool of deflaters with the same level and wrapping. Each deflater holds
+ * about 256K of native memory, which is freed only when end() is called.
+ */
+public class DeflaterPool extends ResourcePool<Deflater>
+{
+    private final int     level;
+    private final boolean nowrap;
+
+    public DeflaterPool(int level, boolean nowrap, int maxIdle,
+            boolean trackLeaks)
+    {
+        super(name(level, nowrap), maxIdle, trackLeaks);
+        this.level = level;
+        this.nowrap = nowrap;
+    }
+
+    // Returns a pool name that shows settings other than the gzip defaults.
+    private static String name(int level, boolean nowrap)
+    {
+        String name = nowrap ? "deflater" : "deflater-zlib";
+        if (level != Deflater.DEFAULT_COMPRESSION)
+            name += "-" + level;
+        return name;
+    }
+
+    @Override
+    protected Deflater create()
+    {
+        return new Deflater(level, nowrap);
+    }
+
+    @Override
+    protected void reset(Deflater deflater)
+    {
+        deflater.reset();
+    }
+
+    @Override
+    protected void destroy(Deflater deflater)
+    {
+        deflater.end();
+    }
+}
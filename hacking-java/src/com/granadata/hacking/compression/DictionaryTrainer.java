@@ -0,0 +1,152 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Builds a preset dictionary for deflate from a sample of records. Deflate
+ * can only refer back to data it has already seen, so small records compress
+ * poorly on their own. A dictionary of strings that recur across records
+ * gives each record something to refer to.
+ * <p>
+ * Training counts 8-byte substrings across the sample, scores fixed-size
+ * segments of each record by the counts of the substrings they contain, and
+ * greedily picks the best segments that are not already covered. The best
+ * segments go at the end of the dictionary, since deflate encodes nearer
+ * matches with fewer bits.
+ */
+public class DictionaryTrainer
+{
+    // Substring length for counting and segment length for selection.
+    private static final int GRAM      = 8;
+    private static final int SEGMENT   = 32;
+    private static final int HASH_BITS = 20;
+
+    // Candidate segment within the sample.
+    private static class Segment
+    {
+        final int  record;
+        final int  offset;
+        final long score;
+
+        Segment(int record, int offset, long score)
+        {
+            this.record = record;
+            this.offset = offset;
+            this.score = score;
+        }
+    }
+
+    /**
+     * Trains a dictionary.
+     *
+     * @param data Buffer containing sample records
+     * @param offsets Starting offset of each record in the buffer
+     * @param lengths Length of each record
+     * @param count Number of records to use
+     * @param maxSize Maximum dictionary size; deflate uses at most 32K
+     * @return Dictionary bytes
+     */
+    public static byte[] train(byte[] data, int[] offsets, int[] lengths,
+            int count, int maxSize)
+    {
+        // Count occurrences of every 8-byte substring by hash.
+        int[] counts = new int[1 << HASH_BITS];
+        for (int r = 0; r < count; r++)
+        {
+            for (int i = 0; i + GRAM <= lengths[r]; i++)
+                counts[hash(data, offsets[r] + i)]++;
+        }
+
+        // Score segments of each record, stepping by a gram at a time.
+        List<Segment> segments = new ArrayList<Segment>();
+        for (int r = 0; r < count; r++)
+        {
+            for (int i = 0; i + SEGMENT <= lengths[r]; i += GRAM)
+            {
+                long score = score(data, offsets[r] + i, counts);
+                if (score > 0)
+                    segments.add(new Segment(r, i, score));
+            }
+        }
+        Collections.sort(segments, new Comparator<Segment>()
+        {
+            public int compare(Segment a, Segment b)
+            {
+                return a.score > b.score ? -1 : (a.score < b.score ? 1 : 0);
+            }
+        });
+
+        // Pick segments greedily. Once chosen, a segment's substrings no
+        // longer count, so near-duplicates drop in score and are skipped.
+        List<Segment> chosen = new ArrayList<Segment>();
+        int size = 0;
+        for (Segment seg : segments)
+        {
+            if (size + SEGMENT > maxSize)
+                break;
+            int start = offsets[seg.record] + seg.offset;
+            if (score(data, start, counts) * 2 < seg.score)
+                continue;
+            chosen.add(seg);
+            size += SEGMENT;
+            for (int i = 0; i + GRAM <= SEGMENT; i++)
+                counts[hash(data, start + i)] = 0;
+        }
+
+        // Lay out the dictionary with the best segments last.
+        byte[] dictionary = new byte[size];
+        int pos = size;
+        for (Segment seg : chosen)
+        {
+            pos -= SEGMENT;
+            System.arraycopy(data, offsets[seg.record] + seg.offset,
+                    dictionary, pos, SEGMENT);
+        }
+        return dictionary;
+    }
+
+    // Sums substring counts over a segment.
+    private static long score(byte[] data, int start, int[] counts)
+    {
+        long score = 0;
+        for (int i = 0; i + GRAM <= SEGMENT; i++)
+        {
+            int c = counts[hash(data, start + i)];
+            if (c > 1)
+                score += c;
+        }
+        return score;
+    }
+
+    // Hashes the 8-byte substring at an offset.
+    private static int hash(byte[] data, int off)
+    {
+        long h = 0;
+        for (int i = 0; i < GRAM; i++)
+            h = (h << 8) | (data[off + i] & 0xff);
+        h *= 0x9E3779B97F4A7C15L;
+        return (int) (h >>> (64 - HASH_BITS));
+    }
+}
@@ -0,0 +1,50 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pool of direct byte buffers of a single size. Direct buffers avoid a copy
+ * on channel I/O but are slow to allocate and are freed only when collected,
+ * so they should be kept rather than allocated per use.
+ */
+public class DirectBufferPool extends ResourcePool<ByteBuffer>
+{
+    private final int size;
+
+    public DirectBufferPool(int size, int maxIdle, boolean trackLeaks)
+    {
+        super("direct-buffer", maxIdle, trackLeaks);
+        this.size = size;
+    }
+
+    @Override
+    protected ByteBuffer create()
+    {
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    @Override
+    protected void reset(ByteBuffer buf)
+    {
+        buf.clear();
+    }
+}
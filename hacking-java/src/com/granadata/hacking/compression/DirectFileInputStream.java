@@ -0,0 +1,91 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a file sequentially with direct I/O, which bypasses the page cache
+ * so that every read goes to the device. Reads fill an aligned buffer in
+ * whole aligned units; the read that reaches the end of the file returns
+ * fewer bytes.
+ */
+public class DirectFileInputStream extends InputStream
+{
+    private final FileChannel channel;
+    private final ByteBuffer  buffer;
+    private final byte[]      single = new byte[1];
+    private boolean           eof;
+
+    /**
+     * Opens a file.
+     *
+     * @param file File to read
+     * @param bufferSize Size of each read, rounded up to the alignment
+     */
+    public DirectFileInputStream(File file, int bufferSize)
+            throws IOException
+    {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                DirectIO.directOption());
+        buffer = DirectIO.allocateAligned(bufferSize, DirectIO
+                .alignment(file));
+        buffer.limit(0);
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        int n = read(single, 0, 1);
+        return n < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (!buffer.hasRemaining())
+        {
+            if (eof)
+                return -1;
+            buffer.clear();
+            int n = channel.read(buffer);
+            buffer.flip();
+            // Only the last read of the file can be short.
+            if (n < buffer.capacity())
+                eof = true;
+            if (n <= 0)
+                return -1;
+        }
+        int n = Math.min(len, buffer.remaining());
+        buffer.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Utilities for I/O that bypasses or clears the operating system page cache.
+ * Direct I/O uses the JDK-specific ExtendedOpenOption.DIRECT, which we look
+ * up by name so that the code still builds and runs where it does not exist.
+ * Direct I/O requires buffers, file positions and transfer sizes aligned to
+ * the file system block size.
+ */
+public class DirectIO
+{
+    private static final OpenOption DIRECT = findDirectOption();
+
+    /** Returns true if direct I/O is available on this JVM. */
+    public static boolean isSupported()
+    {
+        return DIRECT != null;
+    }
+
+    /**
+     * Returns the option to open a file channel for direct I/O.
+     *
+     * @throws UnsupportedOperationException Thrown if direct I/O is not
+     *             available
+     */
+    public static OpenOption directOption()
+    {
+        if (DIRECT == null)
+            throw new UnsupportedOperationException(
+                    "Direct I/O is not supported on this JVM");
+        return DIRECT;
+    }
+
+    /** Returns the block size to which direct I/O must be aligned. */
+    public static int alignment(File file) throws IOException
+    {
+        File dir = file.getAbsoluteFile().getParentFile();
+        return (int) Files.getFileStore(dir.toPath()).getBlockSize();
+    }
+
+    /** Rounds a size up to a multiple of the alignment. */
+    public static int roundUp(int size, int alignment)
+    {
+        return (size + alignment - 1) / alignment * alignment;
+    }
+
+    /**
+     * Allocates a direct buffer whose address and capacity are multiples of
+     * the alignment.
+     */
+    public static ByteBuffer allocateAligned(int size, int alignment)
+    {
+        int capacity = roundUp(size, alignment);
+        ByteBuffer buf = ByteBuffer.allocateDirect(capacity + alignment);
+        buf = buf.alignedSlice(alignment);
+        buf.limit(capacity);
+        return buf.slice();
+    }
+
+    /**
+     * Writes a file's dirty pages to disk and then asks the kernel to drop
+     * clean pages from the page cache, so that the next read of the file
+     * comes from the device. This needs Linux and root privileges.
+     *
+     * @return True if caches were dropped, false if this is not possible
+     */
+    public static boolean dropCaches(File file)
+    {
+        try
+        {
+            FileChannel channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.WRITE);
+            try
+            {
+                channel.force(true);
+            }
+            finally
+            {
+                channel.close();
+            }
+            OutputStream out = Files.newOutputStream(Paths
+                    .get("/proc/sys/vm/drop_caches"));
+            try
+            {
+                out.write("1\n".getBytes("US-ASCII"));
+            }
+            finally
+            {
+                out.close();
+            }
+            return true;
+        }
+        catch (Exception e)
+        {
+            return false;
+        }
+    }
+
+    // Looks up the direct open option, returning null if it is missing.
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static OpenOption findDirectOption()
+    {
+        try
+        {
+            Class c = Class.forName("com.sun.nio.file.ExtendedOpenOption");
+            return (OpenOption) Enum.valueOf(c, "DIRECT");
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+    }
+}
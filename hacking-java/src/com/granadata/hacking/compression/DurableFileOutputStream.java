@@ -0,0 +1,186 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes a file through a file channel and forces data to disk on a chosen
+ * schedule, either every so many bytes, at close, or both. The stream counts
+ * and times each force so that the cost of durability can be reported.
+ * <p>
+ * With direct I/O, writes bypass the page cache. Data are collected in an
+ * aligned buffer and written in aligned units. The final partial unit is
+ * padded and the file is then truncated to its real length. Direct I/O does
+ * not make writes durable by itself, since the device may still cache them,
+ * so forcing still applies.
+ */
+public class DurableFileOutputStream extends OutputStream
+{
+    private final FileChannel channel;
+    private final ByteBuffer  buffer;
+    private final int         alignment;
+    private final long        syncInterval;
+    private final boolean     syncOnClose;
+    private final byte[]      single = new byte[1];
+    private boolean           closed;
+
+    // Bytes written and not yet forced, and total bytes accepted.
+    private long              unsynced;
+    private long              length;
+
+    // Statistics.
+    private long              forces;
+    private long              forceNanos;
+
+    /**
+     * Creates a stream, truncating any existing file.
+     *
+     * @param file File to write
+     * @param direct If true, bypass the page cache with direct I/O
+     * @param bufferSize Size of the aligned buffer for direct I/O
+     * @param syncInterval Force after at least this many bytes reach the
+     *            file, or 0 to force only on close
+     * @param syncOnClose If true, force before closing
+     */
+    public DurableFileOutputStream(File file, boolean direct, int bufferSize,
+            long syncInterval, boolean syncOnClose) throws IOException
+    {
+        if (direct)
+        {
+            channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    DirectIO.directOption());
+            alignment = DirectIO.alignment(file);
+            buffer = DirectIO.allocateAligned(bufferSize, alignment);
+        }
+        else
+        {
+            channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            buffer = null;
+            alignment = 1;
+        }
+        this.syncInterval = syncInterval;
+        this.syncOnClose = syncOnClose;
+    }
+
+    /** Returns the number of times data were forced to disk. */
+    public long getForces()
+    {
+        return forces;
+    }
+
+    /** Returns the total nanoseconds spent forcing data to disk. */
+    public long getForceNanos()
+    {
+        return forceNanos;
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        single[0] = (byte) b;
+        write(single, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        length += len;
+        if (buffer == null)
+        {
+            writeFully(ByteBuffer.wrap(b, off, len));
+            return;
+        }
+        while (len > 0)
+        {
+            int n = Math.min(len, buffer.remaining());
+            buffer.put(b, off, n);
+            off += n;
+            len -= n;
+            if (!buffer.hasRemaining())
+            {
+                buffer.flip();
+                writeFully(buffer);
+                buffer.clear();
+            }
+        }
+    }
+
+    /**
+     * Writes buffered data, pads and truncates for direct I/O, forces data
+     * to disk if required, and closes the file.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (closed)
+            return;
+        closed = true;
+        try
+        {
+            if (buffer != null && buffer.position() > 0)
+            {
+                // Pad the last write to a whole aligned unit. The force
+                // below covers it, so do not force here as well.
+                int padded = DirectIO.roundUp(buffer.position(), alignment);
+                while (buffer.position() < padded)
+                    buffer.put((byte) 0);
+                buffer.flip();
+                while (buffer.hasRemaining())
+                    unsynced += channel.write(buffer);
+                channel.truncate(length);
+            }
+            if (syncOnClose || (syncInterval > 0 && unsynced > 0))
+                force(true);
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    // Writes a whole buffer and forces data if enough have accumulated.
+    private void writeFully(ByteBuffer buf) throws IOException
+    {
+        while (buf.hasRemaining())
+            unsynced += channel.write(buf);
+        if (syncInterval > 0 && unsynced >= syncInterval)
+            force(false);
+    }
+
+    // Forces data and optionally metadata to disk.
+    private void force(boolean metadata) throws IOException
+    {
+        long start = System.nanoTime();
+        channel.force(metadata);
+        forceNanos += System.nanoTime() - start;
+        forces++;
+        unsynced = 0;
+    }
+}
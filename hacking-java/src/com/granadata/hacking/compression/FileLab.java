@@ -0,0 +1,330 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Checksum;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Writes and reads a directory tree of many small files through the same
+ * compress and encrypt stacks that CompressionLab uses for single large
+ * files. With small files, the fixed cost of opening a file, writing headers
+ * and initializing a cipher dominates, so we report files per second and
+ * break out the time spent opening and closing each stack.
+ * <p>
+ * File sizes follow a fixed, uniform or log-normal distribution around a
+ * mean. File contents are slices of a single buffer of source data
+ * generated up front, so generating data does not count against the test.
+ * Files go into subdirectories of a fixed fanout, as object stores
+ * typically arrange them.
+ */
+public class FileLab
+{
+    /** Supported size distributions. */
+    public static final String[] DISTRIBUTIONS = {"fixed", "uniform",
+            "lognormal"};
+
+    // Files are grouped into batches that each run as one pool task.
+    private static final int    BATCH         = 16;
+
+    private final File          root;
+    private final byte[]        source;
+    private final int[]         sizes;
+    private final int[]         offsets;
+    private final int           fanout;
+    private final int           threads;
+    private final SecretKey     secretKey;
+    private final String        algorithm;
+    private final ResourcePools pools;
+    private final ChecksumType  checksum;
+    private final long          totalSize;
+
+    // Expected checksum of each file.
+    private final long[]        checksums;
+
+    /**
+     * Creates a lab.
+     *
+     * @param root Directory under which to write file trees
+     * @param source Data from which file contents are taken
+     * @param files Number of files
+     * @param meanSize Mean file size in bytes
+     * @param distribution Size distribution: fixed, uniform or lognormal
+     * @param fanout Number of files per subdirectory
+     * @param threads Maximum number of threads in the pool
+     * @param seed Seed for sizes and offsets
+     * @param secretKey Key for encryption
+     * @param algorithm Encryption algorithm
+     * @param pools Resource pools, or null to create resources per file
+     * @param checksum Type of checksum used to verify each file
+     */
+    public FileLab(File root, byte[] source, int files, int meanSize,
+            String distribution, int fanout, int threads, long seed,
+            SecretKey secretKey, String algorithm, ResourcePools pools,
+            ChecksumType checksum)
+    {
+        this.root = root;
+        this.source = source;
+        this.fanout = fanout;
+        this.threads = threads;
+        this.secretKey = secretKey;
+        this.algorithm = algorithm;
+        this.pools = pools;
+        this.checksum = checksum;
+        this.sizes = new int[files];
+        this.offsets = new int[files];
+        this.checksums = new long[files];
+
+        // Choose sizes and source offsets. Log-normal sizes with sigma 1
+        // have a long tail of large files, like most real object stores;
+        // mu is set so that the mean comes out as requested.
+        Random random = new Random(seed);
+        long total = 0;
+        for (int i = 0; i < files; i++)
+        {
+            double size;
+            if ("fixed".equals(distribution))
+                size = meanSize;
+            else if ("uniform".equals(distribution))
+                size = random.nextDouble() * 2 * meanSize;
+            else if ("lognormal".equals(distribution))
+                size = Math.exp(Math.log(meanSize) - 0.5
+                        + random.nextGaussian());
+            else
+                throw new IllegalArgumentException(
+                        "Unknown size distribution: " + distribution);
+            sizes[i] = (int) Math.min(source.length, Math.max(0, size));
+            offsets[i] = random.nextInt(source.length - sizes[i] + 1);
+            total += sizes[i];
+        }
+
+        // Compute expected checksums here so that they do not count against
+        // write times.
+        Checksum crc = checksum.create();
+        for (int i = 0; i < files; i++)
+        {
+            crc.reset();
+            crc.update(source, offsets[i], sizes[i]);
+            checksums[i] = crc.getValue();
+        }
+        this.totalSize = total;
+    }
+
+    /**
+     * Runs write and read tests for each combination of compression and
+     * encryption, doubling threads up to the maximum.
+     */
+    public void run() throws Exception
+    {
+        CompressionLab.println(String.format(
+                "Files: %d Total bytes: %d Mean size: %d", sizes.length,
+                totalSize, totalSize / Math.max(1, sizes.length)));
+        boolean[][] tests = { {false, false}, {true, false}, {false, true},
+                {true, true}};
+        for (boolean[] test : tests)
+        {
+            boolean compress = test[0];
+            boolean encrypt = test[1];
+            CompressionLab.printSeparator();
+            String name = (encrypt ? "encrypt" : "plain")
+                    + (compress ? ".gz" : "");
+            File dir = new File(root, name);
+            CompressionLab.println(String.format(
+                    "TEST--Directory: %s Compressed: %s Encrypted: %s", dir,
+                    compress, encrypt));
+            makeDirectories(dir);
+            for (int t = 1; t <= threads; t *= 2)
+            {
+                execute(dir, t, true, compress, encrypt);
+                execute(dir, t, false, compress, encrypt);
+            }
+        }
+        if (pools != null)
+            pools.printStats();
+    }
+
+    // Creates subdirectories ahead of time so that the writes time only
+    // file creation.
+    private void makeDirectories(File dir) throws Exception
+    {
+        for (int i = 0; i < sizes.length; i += fanout)
+        {
+            File subdir = fileFor(dir, i).getParentFile();
+            if (!subdir.isDirectory() && !subdir.mkdirs())
+                throw new Exception("Unable to create directory: " + subdir);
+        }
+    }
+
+    // Returns the path of a file in the tree.
+    private File fileFor(File dir, int index)
+    {
+        return new File(new File(dir, String.format("d%05d", index / fanout)),
+                String.format("f%08d", index));
+    }
+
+    // Writes or reads all files with a pool of threads and prints results.
+    private void execute(final File dir, int numThreads, final boolean write,
+            final boolean compress, final boolean encrypt) throws Exception
+    {
+        final AtomicLong openNanos = new AtomicLong();
+        final AtomicLong closeNanos = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        long start = System.nanoTime();
+        for (int b = 0; b < sizes.length; b += BATCH)
+        {
+            final int first = b;
+            final int last = Math.min(sizes.length, b + BATCH);
+            futures.add(pool.submit(new Runnable()
+            {
+                public void run()
+                {
+                    long[] nanos = new long[2];
+                    for (int i = first; i < last; i++)
+                    {
+                        try
+                        {
+                            if (write)
+                                writeFile(dir, i, compress, encrypt, nanos);
+                            else if (!readFile(dir, i, compress, encrypt,
+                                    nanos))
+                                failures.incrementAndGet();
+                        }
+                        catch (Exception e)
+                        {
+                            e.printStackTrace();
+                            failures.incrementAndGet();
+                        }
+                    }
+                    openNanos.addAndGet(nanos[0]);
+                    closeNanos.addAndGet(nanos[1]);
+                }
+            }));
+        }
+        for (Future<?> future : futures)
+            future.get();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        pool.shutdown();
+
+        // Stored size is measured after timing since it needs a stat call
+        // per file.
+        long stored = 0;
+        for (int i = 0; i < sizes.length; i++)
+            stored += fileFor(dir, i).length();
+        double compression = totalSize == 0 ? 0.0 : 100.0 - stored * 100.0
+                / totalSize;
+        int files = sizes.length;
+        CompressionLab.println(String.format(
+                "Op: %5s Threads: %d Files: %d Compression: %5.1f%% Secs: %-6.3f Files/s: %-9.1f MB/s: %-8.2f",
+                write ? "write" : "read", numThreads, files, compression,
+                seconds, files / seconds, totalSize / (seconds * 1024.0
+                        * 1024.0)));
+        CompressionLab.println(String.format(
+                "  Per file: open usecs: %-8.1f close usecs: %-8.1f",
+                openNanos.get() / 1000.0 / files, closeNanos.get() / 1000.0
+                        / files));
+        if (failures.get() > 0)
+            CompressionLab.println(String.format("  Failed files: %d",
+                    failures.get()));
+    }
+
+    // Writes one file. Open time covers creating the file and the stack,
+    // which includes cipher initialization and the GZIP header; close time
+    // covers finishing compression and closing the file. The stack is closed
+    // even if writing fails so that pooled objects go back.
+    private void writeFile(File dir, int index, boolean compress,
+            boolean encrypt, long[] nanos) throws Exception
+    {
+        long t0 = System.nanoTime();
+        FileOutputStream file = new FileOutputStream(fileFor(dir, index));
+        OutputStream os = null;
+        long t1 = t0;
+        long t2 = t0;
+        try
+        {
+            os = CompressionLab.openWriteStack(file, compress, encrypt,
+                    secretKey, algorithm, new StreamMeters(false), pools);
+            t1 = System.nanoTime();
+            os.write(source, offsets[index], sizes[index]);
+            t2 = System.nanoTime();
+        }
+        finally
+        {
+            if (os != null)
+                os.close();
+            else
+                file.close();
+        }
+        long t3 = System.nanoTime();
+        nanos[0] += t1 - t0;
+        nanos[1] += t3 - t2;
+    }
+
+    // Reads one file and checks its length and checksum. The file and stack are
+    // closed even if opening or reading fails.
+    private boolean readFile(File dir, int index, boolean compress,
+            boolean encrypt, long[] nanos) throws Exception
+    {
+        long t0 = System.nanoTime();
+        FileInputStream file = new FileInputStream(fileFor(dir, index));
+        InputStream is = null;
+        long t1 = t0;
+        Checksum crc = checksum.create();
+        byte[] buf = new byte[4096];
+        long read = 0;
+        int n;
+        try
+        {
+            is = ReadTask.openStream(file, compress, encrypt, secretKey,
+                    algorithm, new StreamMeters(false), pools);
+            t1 = System.nanoTime();
+            while ((n = is.read(buf, 0, buf.length)) >= 0)
+            {
+                crc.update(buf, 0, n);
+                read += n;
+            }
+        }
+        finally
+        {
+            long t2 = System.nanoTime();
+            if (is != null)
+                is.close();
+            else
+                file.close();
+            nanos[0] += t1 - t0;
+            nanos[1] += System.nanoTime() - t2;
+        }
+        return read == sizes[index] && crc.getValue() == checksums[index];
+    }
+}
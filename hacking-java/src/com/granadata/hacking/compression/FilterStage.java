@@ -0,0 +1,84 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Pipeline stage that transforms data by writing it through a filter output
+ * stream, such as a GZIP or cipher stream. Output from the filter is
+ * collected into fresh buffers and sent downstream.
+ */
+public abstract class FilterStage extends PipelineStage
+{
+    /**
+     * Creates a filter stage.
+     *
+     * @param name Stage name for reporting
+     * @param buffers Number of buffers in the stage pool
+     * @param bufferSize Size of each buffer
+     */
+    protected FilterStage(String name, int buffers, int bufferSize)
+    {
+        super(name, buffers, bufferSize);
+    }
+
+    /**
+     * Returns a filter stream that writes transformed data to the given
+     * stream.
+     */
+    protected abstract OutputStream wrap(OutputStream out) throws Exception;
+
+    @Override
+    protected void execute() throws Exception
+    {
+        OutputStream os = wrap(new EmittingOutputStream());
+        PipelineBuffer buf;
+        boolean complete = false;
+        try
+        {
+            while (!(buf = take()).isEndOfStream())
+            {
+                bytesIn += buf.length;
+                os.write(buf.data, 0, buf.length);
+                buf.release();
+            }
+            complete = true;
+        }
+        finally
+        {
+            // Closing the filter flushes trailing output such as the GZIP
+            // trailer or final cipher block. It also returns pooled
+            // deflaters and ciphers, so it happens after a failure too, in
+            // which case the original failure is the one reported.
+            try
+            {
+                os.close();
+            }
+            catch (IOException e)
+            {
+                if (complete)
+                    throw e;
+            }
+        }
+        emit(buf);
+    }
+}
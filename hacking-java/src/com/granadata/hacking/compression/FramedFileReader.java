@@ -0,0 +1,491 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import javax.crypto.Cipher;
+
+/**
+ * Provides random access to a file in the framed container format. The
+ * reader loads the block index when it opens and thereafter decodes single
+ * blocks on demand using positional reads, so the cost of reading any range
+ * is proportional to the number of blocks it touches rather than to its
+ * offset in the file. Readers are not thread-safe; use one per thread.
+ *
+ * @see FramedFormat
+ */
+public class FramedFileReader
+{
+    private final File          file;
+    private final FileChannel   channel;
+    private final Cipher        cipher;
+    private final Inflater      inflater;
+    private final ResourcePools pools;
+    private final CRC32         crc      = new CRC32();
+
+    // File metadata.
+    private final boolean       compressed;
+    private final boolean       encrypted;
+    private final int           blockSize;
+    private final int           blockCount;
+    private final long          length;
+    private final long[]        rawOffsets;
+    private final long[]        positions;
+    private final long          indexPosition;
+
+    // Buffers for block decoding.
+    private final ByteBuffer    blockHeader;
+    private byte[]              stored;
+    private byte[]              opened;
+
+    // Most recently decoded block, used for point reads.
+    private final byte[]        cache;
+    private int                 cachedBlock = -1;
+    private int                 cachedLength;
+    private boolean             closed;
+
+    /**
+     * Opens a file and loads its index.
+     *
+     * @param file File to read
+     * @param cipher Cipher initialized for decryption, or null if the file is
+     *            not encrypted
+     * @throws IOException Thrown if the file cannot be read or is not in the
+     *             framed format
+     */
+    public FramedFileReader(File file, Cipher cipher) throws IOException
+    {
+        this(file, cipher, new Inflater(), null);
+    }
+
+    /**
+     * Opens a file and loads its index, borrowing the inflater and any
+     * cipher from pools. Borrowed objects go back when the reader closes.
+     *
+     * @param file File to read
+     * @param encrypt If true, the file is encrypted
+     * @param pools Pools that supply the inflater and cipher
+     * @throws IOException Thrown if the file cannot be read or is not in the
+     *             framed format
+     */
+    public FramedFileReader(File file, boolean encrypt, ResourcePools pools)
+            throws Exception
+    {
+        this(file, encrypt ? pools.getDecryptCiphers().borrow() : null, pools
+                .getInflaters(false).borrow(), pools);
+    }
+
+    // Common constructor. If pools are given, the cipher and inflater were
+    // borrowed from them. Everything is released if the file cannot be
+    // opened.
+    private FramedFileReader(File file, Cipher cipher, Inflater inflater,
+            ResourcePools pools) throws IOException
+    {
+        this.file = file;
+        this.cipher = cipher;
+        this.inflater = inflater;
+        this.pools = pools;
+        boolean loaded = false;
+        try
+        {
+            this.channel = new RandomAccessFile(file, "r").getChannel();
+
+            // Read and check the file header.
+            ByteBuffer header = ByteBuffer
+                    .allocate(FramedFormat.HEADER_SIZE);
+            readFully(header, 0);
+            if (header.getInt() != FramedFormat.MAGIC)
+                throw formatError("Bad header magic number");
+            short version = header.getShort();
+            if (version != FramedFormat.VERSION)
+                throw formatError("Unsupported version: " + version);
+            short flags = header.getShort();
+            compressed = (flags & FramedFormat.FLAG_COMPRESS) != 0;
+            encrypted = (flags & FramedFormat.FLAG_ENCRYPT) != 0;
+            blockSize = header.getInt();
+            if (encrypted && cipher == null)
+                throw new IOException(
+                        "File is encrypted but no cipher provided: " + file);
+
+            if (blockSize <= 0)
+                throw formatError("Bad block size: " + blockSize);
+
+            // Read the trailer and then the index, which must fill the space
+            // between the last block and the trailer exactly.
+            long size = channel.size();
+            if (size < FramedFormat.HEADER_SIZE + FramedFormat.TRAILER_SIZE)
+                throw formatError("File too short for trailer");
+            ByteBuffer trailer = ByteBuffer
+                    .allocate(FramedFormat.TRAILER_SIZE);
+            readFully(trailer, size - FramedFormat.TRAILER_SIZE);
+            indexPosition = trailer.getLong();
+            blockCount = trailer.getInt();
+            length = trailer.getLong();
+            if (trailer.getInt() != FramedFormat.MAGIC)
+                throw formatError("Bad trailer magic number");
+            if (blockCount < 0 || length < 0
+                    || indexPosition < FramedFormat.HEADER_SIZE
+                    || indexPosition + (long) blockCount
+                            * FramedFormat.INDEX_ENTRY_SIZE != size
+                            - FramedFormat.TRAILER_SIZE)
+                throw formatError("Bad trailer: index position="
+                        + indexPosition + " blocks=" + blockCount);
+
+            ByteBuffer index = ByteBuffer.allocate(blockCount
+                    * FramedFormat.INDEX_ENTRY_SIZE);
+            readFully(index, indexPosition);
+            rawOffsets = new long[blockCount];
+            positions = new long[blockCount];
+            for (int i = 0; i < blockCount; i++)
+            {
+                rawOffsets[i] = index.getLong();
+                positions[i] = index.getLong();
+                long minPosition = i == 0 ? FramedFormat.HEADER_SIZE
+                        : positions[i - 1] + FramedFormat.BLOCK_HEADER_SIZE;
+                long minOffset = i == 0 ? 0 : rawOffsets[i - 1] + 1;
+                if (positions[i] < minPosition
+                        || positions[i] + FramedFormat.BLOCK_HEADER_SIZE
+                                > indexPosition
+                        || rawOffsets[i] < minOffset
+                        || rawOffsets[i] >= length
+                        || (i == 0 && rawOffsets[i] != 0))
+                    throw formatError("Bad index entry: block=" + i);
+            }
+
+            blockHeader = ByteBuffer
+                    .allocate(FramedFormat.BLOCK_HEADER_SIZE);
+            stored = new byte[blockSize + 64];
+            opened = new byte[blockSize + 64];
+            cache = new byte[blockSize];
+            loaded = true;
+        }
+        finally
+        {
+            if (!loaded)
+                close();
+        }
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    public boolean isCompressed()
+    {
+        return compressed;
+    }
+
+    public boolean isEncrypted()
+    {
+        return encrypted;
+    }
+
+    /** Returns the raw size of full blocks. */
+    public int getBlockSize()
+    {
+        return blockSize;
+    }
+
+    public int getBlockCount()
+    {
+        return blockCount;
+    }
+
+    /** Returns the total length of raw data in the file. */
+    public long getLength()
+    {
+        return length;
+    }
+
+    /** Returns the raw offset at which a block starts. */
+    public long getRawOffset(int block)
+    {
+        return block == blockCount ? length : rawOffsets[block];
+    }
+
+    /**
+     * Returns the block that contains a raw offset.
+     *
+     * @param offset Offset in raw data, which must be less than the length
+     */
+    public int findBlock(long offset)
+    {
+        int lo = 0;
+        int hi = blockCount - 1;
+        while (lo < hi)
+        {
+            int mid = (lo + hi + 1) >>> 1;
+            if (rawOffsets[mid] <= offset)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        return lo;
+    }
+
+    /** Returns the file position at which a block and its header start. */
+    public long getPosition(int block)
+    {
+        return positions[block];
+    }
+
+    /**
+     * Returns the number of bytes a block occupies in the file including its
+     * header, which is the distance to the next block or the index.
+     */
+    public int getExtent(int block)
+    {
+        long end = block + 1 < blockCount ? positions[block + 1]
+                : indexPosition;
+        return (int) (end - positions[block]);
+    }
+
+    /**
+     * Reads and decodes a single block, checking its CRC.
+     *
+     * @param block Index of the block
+     * @param dest Buffer for raw data, which must hold a full block
+     * @return Number of raw bytes in the block
+     */
+    public int readBlock(int block, byte[] dest) throws IOException
+    {
+        FramedBlockEvent event = new FramedBlockEvent();
+        event.begin();
+
+        // Read the block header.
+        long position = positions[block];
+        blockHeader.clear();
+        readFully(blockHeader, position);
+        byte codec = blockHeader.get();
+        int rawLength = blockHeader.getInt();
+        int storedLength = blockHeader.getInt();
+        int expectedCrc = blockHeader.getInt();
+        if (rawLength > dest.length)
+            throw formatError("Block too large for buffer: block=" + block);
+        if (rawLength < 0 || storedLength < 0
+                || storedLength > getExtent(block)
+                        - FramedFormat.BLOCK_HEADER_SIZE)
+            throw formatError("Bad block lengths: block=" + block);
+
+        // Read the stored data.
+        if (stored.length < storedLength)
+            stored = new byte[storedLength];
+        readFully(ByteBuffer.wrap(stored, 0, storedLength), position
+                + FramedFormat.BLOCK_HEADER_SIZE);
+        return decode(block, codec, rawLength, storedLength, expectedCrc,
+                dest, event);
+    }
+
+    /**
+     * Decodes a block that has already been read from the file, for example
+     * by asynchronous I/O, checking its CRC.
+     *
+     * @param block Index of the block
+     * @param data Block header and stored data from position to limit, as
+     *            read from {@link #getPosition(int)}
+     * @param dest Buffer for raw data, which must hold a full block
+     * @return Number of raw bytes in the block
+     */
+    public int decodeBlock(int block, ByteBuffer data, byte[] dest)
+            throws IOException
+    {
+        FramedBlockEvent event = new FramedBlockEvent();
+        event.begin();
+        if (data.remaining() < FramedFormat.BLOCK_HEADER_SIZE)
+            throw formatError("Short block header: block=" + block);
+        byte codec = data.get();
+        int rawLength = data.getInt();
+        int storedLength = data.getInt();
+        int expectedCrc = data.getInt();
+        if (rawLength > dest.length)
+            throw formatError("Block too large for buffer: block=" + block);
+        if (rawLength < 0 || storedLength < 0)
+            throw formatError("Bad block lengths: block=" + block);
+        if (storedLength > data.remaining())
+            throw formatError("Short block data: block=" + block);
+        if (stored.length < storedLength)
+            stored = new byte[storedLength];
+        data.get(stored, 0, storedLength);
+        return decode(block, codec, rawLength, storedLength, expectedCrc,
+                dest, event);
+    }
+
+    // Decrypts, decompresses and checks a block held in the stored buffer.
+    private int decode(int block, byte codec, int rawLength,
+            int storedLength, int expectedCrc, byte[] dest,
+            FramedBlockEvent event) throws IOException
+    {
+        // Decrypt.
+        byte[] payload = stored;
+        int payloadLength = storedLength;
+        if (encrypted)
+        {
+            if (opened.length < storedLength)
+                opened = new byte[storedLength];
+            try
+            {
+                payloadLength = cipher.doFinal(stored, 0, storedLength,
+                        opened, 0);
+            }
+            catch (GeneralSecurityException e)
+            {
+                throw new IOException("Unable to decrypt block: " + block, e);
+            }
+            payload = opened;
+        }
+
+        // Decompress.
+        int actualLength;
+        if (codec == FramedFormat.CODEC_DEFLATE
+                || codec == FramedFormat.CODEC_FAST)
+        {
+            inflater.reset();
+            inflater.setInput(payload, 0, payloadLength);
+            try
+            {
+                actualLength = 0;
+                while (!inflater.finished() && actualLength < rawLength)
+                {
+                    int n = inflater.inflate(dest, actualLength, rawLength
+                            - actualLength);
+                    if (n == 0 && (inflater.needsInput()
+                            || inflater.needsDictionary()))
+                        break;
+                    actualLength += n;
+                }
+            }
+            catch (DataFormatException e)
+            {
+                throw new IOException("Unable to inflate block: " + block, e);
+            }
+        }
+        else if (codec == FramedFormat.CODEC_STORED)
+        {
+            actualLength = Math.min(payloadLength, rawLength);
+            System.arraycopy(payload, 0, dest, 0, actualLength);
+        }
+        else
+            throw formatError("Unknown codec: block=" + block + " codec="
+                    + codec);
+
+        // Check length and CRC.
+        if (actualLength != rawLength)
+            throw formatError("Block length mismatch: block=" + block
+                    + " expected=" + rawLength + " actual=" + actualLength);
+        crc.reset();
+        crc.update(dest, 0, rawLength);
+        if ((int) crc.getValue() != expectedCrc)
+            throw formatError("Block CRC mismatch: block=" + block);
+        if (event.shouldCommit())
+        {
+            event.operation = "decode";
+            event.block = block;
+            event.codec = codec;
+            event.rawLength = rawLength;
+            event.storedLength = storedLength;
+            event.commit();
+        }
+        return rawLength;
+    }
+
+    /**
+     * Reads raw data starting at any offset, decoding only the blocks that
+     * hold the requested range. The last block decoded is cached, so small
+     * sequential reads do not decode the same block repeatedly.
+     *
+     * @param offset Raw offset from which to read
+     * @param buf Destination buffer
+     * @param off Offset in destination buffer
+     * @param len Number of bytes requested
+     * @return Number of bytes read, or -1 if offset is at or past the end
+     */
+    public int read(long offset, byte[] buf, int off, int len)
+            throws IOException
+    {
+        if (offset >= length)
+            return -1;
+        int total = 0;
+        while (total < len && offset < length)
+        {
+            int block = findBlock(offset);
+            if (block != cachedBlock)
+            {
+                cachedLength = readBlock(block, cache);
+                cachedBlock = block;
+            }
+            int start = (int) (offset - rawOffsets[block]);
+            int n = Math.min(len - total, cachedLength - start);
+            System.arraycopy(cache, start, buf, off + total, n);
+            total += n;
+            offset += n;
+        }
+        return total;
+    }
+
+    /**
+     * Releases the file and native decompression resources, returning
+     * borrowed objects to their pools.
+     */
+    public void close() throws IOException
+    {
+        if (closed)
+            return;
+        closed = true;
+        if (pools != null)
+        {
+            pools.getInflaters(false).release(inflater);
+            if (cipher != null)
+                pools.getDecryptCiphers().release(cipher);
+        }
+        else
+            inflater.end();
+        if (channel != null)
+            channel.close();
+    }
+
+    // Fills the buffer using positional reads.
+    private void readFully(ByteBuffer buf, long position) throws IOException
+    {
+        while (buf.hasRemaining())
+        {
+            int n = channel.read(buf, position);
+            if (n < 0)
+                throw formatError("Unexpected end of file at position: "
+                        + position);
+            position += n;
+        }
+        buf.flip();
+    }
+
+    private IOException formatError(String msg)
+    {
+        return new IOException(msg + " (file=" + file + ")");
+    }
+}
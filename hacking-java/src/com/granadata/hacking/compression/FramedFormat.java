@@ -0,0 +1,64 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+/**
+ * Constants for the framed container format, which stores data as a series
+ * of independently compressed and encrypted blocks followed by an index. The
+ * layout is as follows, with all numbers big-endian:
+ *
+ * <pre>
+ * File header:  magic (int), version (short), flags (short), block size (int)
+ * Block:        codec (byte), raw length (int), stored length (int),
+ *               CRC32 of raw data (int), stored data
+ * Index:        for each block, raw offset (long), file position (long)
+ * Trailer:      index position (long), block count (int),
+ *               raw length (long), magic (int)
+ * </pre>
+ *
+ * Readers locate the trailer at the end of the file, load the index and can
+ * then decode any block without touching the others.
+ */
+public class FramedFormat
+{
+    /** Magic number at start and end of the file ("GRBF"). */
+    public static final int   MAGIC             = 0x47524246;
+    public static final short VERSION           = 1;
+
+    /** Header flags. */
+    public static final short FLAG_COMPRESS     = 0x1;
+    public static final short FLAG_ENCRYPT      = 0x2;
+    public static final short FLAG_ADAPTIVE     = 0x4;
+
+    /**
+     * Block codecs. Fast blocks are deflated at the fastest level; they are
+     * decoded exactly like deflate blocks but tell readers how the writer
+     * chose to spend CPU.
+     */
+    public static final byte  CODEC_STORED      = 0;
+    public static final byte  CODEC_DEFLATE     = 1;
+    public static final byte  CODEC_FAST        = 2;
+
+    /** Sizes of fixed-length structures in bytes. */
+    public static final int   HEADER_SIZE       = 12;
+    public static final int   BLOCK_HEADER_SIZE = 13;
+    public static final int   INDEX_ENTRY_SIZE  = 16;
+    public static final int   TRAILER_SIZE      = 24;
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a range of raw data from a framed container file as a stream,
+ * decoding one block at a time. The range may start at any offset.
+ */
+public class FramedInputStream extends InputStream
+{
+    private final FramedFileReader reader;
+    private final long             end;
+    private long                   offset;
+
+    // Current decoded block.
+    private final byte[]           block;
+    private long                   blockStart;
+    private int                    blockLength;
+
+    /**
+     * Creates a stream over a range of the file.
+     *
+     * @param reader Reader for the file, which is closed with the stream
+     * @param offset Raw offset at which to start
+     * @param length Maximum number of bytes to read
+     */
+    public FramedInputStream(FramedFileReader reader, long offset,
+            long length)
+    {
+        this.reader = reader;
+        this.offset = offset;
+        this.end = Math.min(reader.getLength(), offset + length);
+        this.block = new byte[reader.getBlockSize()];
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        byte[] b = new byte[1];
+        int n = read(b, 0, 1);
+        return n < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buf, int off, int len) throws IOException
+    {
+        if (offset >= end)
+            return -1;
+
+        // Decode the next block if we have used up the current one.
+        if (offset < blockStart || offset >= blockStart + blockLength)
+        {
+            int b = reader.findBlock(offset);
+            blockLength = reader.readBlock(b, block);
+            blockStart = reader.getRawOffset(b);
+        }
+        int start = (int) (offset - blockStart);
+        int n = (int) Math.min(Math.min(len, blockLength - start), end
+                - offset);
+        System.arraycopy(block, start, buf, off, n);
+        offset += n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        reader.close();
+    }
+}
@@ -0,0 +1,360 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import javax.crypto.Cipher;
+
+/**
+ * Writes data in the framed container format. Data are collected into blocks
+ * of fixed size, and each block is compressed and encrypted on its own so
+ * that readers can decode any block independently.
+ *
+ * @see FramedFormat
+ */
+public class FramedOutputStream extends OutputStream
+{
+    private final DataOutputStream   out;
+    private final int                blockSize;
+    private final Deflater           deflater;
+    private final AdaptiveBlockCodec adaptive;
+    private final Cipher             cipher;
+    private final ResourcePools      pools;
+    private final CRC32              crc      = new CRC32();
+
+    // Current raw block and output buffers.
+    private final byte[]             raw;
+    private int                      rawLength;
+    private byte[]                   packed;
+    private byte[]                   sealed;
+
+    // Positions and index data.
+    private long                     position;
+    private long                     rawOffset;
+    private long[]                   indexRawOffsets = new long[64];
+    private long[]                   indexPositions  = new long[64];
+    private int                      blockCount;
+    private boolean                  closed;
+
+    /**
+     * Creates a stream and writes the file header.
+     *
+     * @param out Underlying stream, which is closed when this stream closes
+     * @param blockSize Size of raw data in each block
+     * @param compress If true, deflate each block
+     * @param cipher Cipher initialized for encryption, or null to store data
+     *            unencrypted
+     */
+    public FramedOutputStream(OutputStream out, int blockSize,
+            boolean compress, Cipher cipher) throws IOException
+    {
+        this(out, blockSize, compress, null, cipher, compress
+                ? new Deflater() : null, null);
+    }
+
+    /**
+     * Creates a stream that borrows its deflater and cipher from pools, then
+     * writes the file header. Borrowed objects go back when the stream
+     * closes.
+     *
+     * @param out Underlying stream, which is closed when this stream closes
+     * @param blockSize Size of raw data in each block
+     * @param compress If true, deflate each block
+     * @param encrypt If true, encrypt each block
+     * @param pools Pools that supply the deflater and cipher
+     */
+    public FramedOutputStream(OutputStream out, int blockSize,
+            boolean compress, boolean encrypt, ResourcePools pools)
+            throws Exception
+    {
+        this(out, blockSize, compress, null, encrypt ? pools
+                .getEncryptCiphers().borrow() : null, compress ? pools
+                .getDeflaters(Deflater.DEFAULT_COMPRESSION, false).borrow()
+                : null, pools);
+    }
+
+    /**
+     * Creates a stream that chooses a codec for each block with an adaptive
+     * codec, then writes the file header.
+     *
+     * @param out Underlying stream, which is closed when this stream closes
+     * @param blockSize Size of raw data in each block
+     * @param adaptive Codec that encodes each block; this stream ends it on
+     *            close
+     * @param cipher Cipher initialized for encryption, or null to store data
+     *            unencrypted
+     */
+    public FramedOutputStream(OutputStream out, int blockSize,
+            AdaptiveBlockCodec adaptive, Cipher cipher) throws IOException
+    {
+        this(out, blockSize, true, adaptive, cipher, null, null);
+    }
+
+    /**
+     * Creates a stream that chooses a codec for each block with an adaptive
+     * codec and borrows its cipher from a pool, then writes the file header.
+     *
+     * @param out Underlying stream, which is closed when this stream closes
+     * @param blockSize Size of raw data in each block
+     * @param adaptive Codec that encodes each block; this stream ends it on
+     *            close
+     * @param encrypt If true, encrypt each block
+     * @param pools Pools that supply the cipher
+     */
+    public FramedOutputStream(OutputStream out, int blockSize,
+            AdaptiveBlockCodec adaptive, boolean encrypt, ResourcePools pools)
+            throws Exception
+    {
+        this(out, blockSize, true, adaptive, encrypt ? pools
+                .getEncryptCiphers().borrow() : null, null, pools);
+    }
+
+    // Common constructor. If pools are given, the deflater and cipher were
+    // borrowed from them and go back on close.
+    private FramedOutputStream(OutputStream out, int blockSize,
+            boolean compress, AdaptiveBlockCodec adaptive, Cipher cipher,
+            Deflater deflater, ResourcePools pools) throws IOException
+    {
+        this.out = new DataOutputStream(out);
+        this.blockSize = blockSize;
+        this.deflater = deflater;
+        this.adaptive = adaptive;
+        this.cipher = cipher;
+        this.pools = pools;
+        this.raw = new byte[blockSize];
+        this.packed = deflater != null ? new byte[blockSize + 64] : null;
+
+        short flags = 0;
+        if (compress)
+            flags |= FramedFormat.FLAG_COMPRESS;
+        if (cipher != null)
+            flags |= FramedFormat.FLAG_ENCRYPT;
+        if (adaptive != null)
+            flags |= FramedFormat.FLAG_ADAPTIVE;
+        try
+        {
+            this.out.writeInt(FramedFormat.MAGIC);
+            this.out.writeShort(FramedFormat.VERSION);
+            this.out.writeShort(flags);
+            this.out.writeInt(blockSize);
+        }
+        catch (IOException e)
+        {
+            release();
+            throw e;
+        }
+        position = FramedFormat.HEADER_SIZE;
+    }
+
+    /** Returns the number of blocks written so far. */
+    public int getBlockCount()
+    {
+        return blockCount;
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        raw[rawLength++] = (byte) b;
+        if (rawLength == blockSize)
+            writeBlock();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        while (len > 0)
+        {
+            int n = Math.min(len, blockSize - rawLength);
+            System.arraycopy(b, off, raw, rawLength, n);
+            rawLength += n;
+            off += n;
+            len -= n;
+            if (rawLength == blockSize)
+                writeBlock();
+        }
+    }
+
+    /**
+     * Flushes the underlying stream. Partial blocks are not written until
+     * the stream closes, since every block but the last must be full.
+     */
+    @Override
+    public void flush() throws IOException
+    {
+        out.flush();
+    }
+
+    /**
+     * Writes the last block, the index and the trailer, then closes the
+     * underlying stream. Compression and encryption resources are released
+     * even if writing fails.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (closed)
+            return;
+        closed = true;
+        try
+        {
+            writeBlock();
+            long indexPosition = position;
+            for (int i = 0; i < blockCount; i++)
+            {
+                out.writeLong(indexRawOffsets[i]);
+                out.writeLong(indexPositions[i]);
+            }
+            out.writeLong(indexPosition);
+            out.writeInt(blockCount);
+            out.writeLong(rawOffset);
+            out.writeInt(FramedFormat.MAGIC);
+            out.close();
+        }
+        finally
+        {
+            release();
+        }
+    }
+
+    // Ends or returns the deflater, adaptive codec and cipher.
+    private void release()
+    {
+        if (deflater != null)
+        {
+            if (pools != null)
+                pools.getDeflaters(Deflater.DEFAULT_COMPRESSION, false)
+                        .release(deflater);
+            else
+                deflater.end();
+        }
+        if (adaptive != null)
+            adaptive.end();
+        if (cipher != null && pools != null)
+            pools.getEncryptCiphers().release(cipher);
+    }
+
+    // Encodes and writes the current block, if it contains any data.
+    private void writeBlock() throws IOException
+    {
+        if (rawLength == 0)
+            return;
+        FramedBlockEvent event = new FramedBlockEvent();
+        event.begin();
+        crc.reset();
+        crc.update(raw, 0, rawLength);
+
+        // Compress.
+        byte codec;
+        byte[] payload;
+        int payloadLength;
+        if (adaptive != null)
+        {
+            payloadLength = adaptive.encode(raw, rawLength);
+            codec = adaptive.getCodec();
+            payload = adaptive.getOutput();
+        }
+        else if (deflater != null)
+        {
+            deflater.reset();
+            deflater.setInput(raw, 0, rawLength);
+            deflater.finish();
+            payloadLength = 0;
+            while (!deflater.finished())
+            {
+                if (payloadLength == packed.length)
+                {
+                    byte[] larger = new byte[packed.length * 2];
+                    System.arraycopy(packed, 0, larger, 0, payloadLength);
+                    packed = larger;
+                }
+                payloadLength += deflater.deflate(packed, payloadLength,
+                        packed.length - payloadLength);
+            }
+            codec = FramedFormat.CODEC_DEFLATE;
+            payload = packed;
+        }
+        else
+        {
+            codec = FramedFormat.CODEC_STORED;
+            payload = raw;
+            payloadLength = rawLength;
+        }
+
+        // Encrypt. Calling doFinal leaves the cipher ready for the next
+        // block.
+        if (cipher != null)
+        {
+            int size = cipher.getOutputSize(payloadLength);
+            if (sealed == null || sealed.length < size)
+                sealed = new byte[size];
+            try
+            {
+                payloadLength = cipher.doFinal(payload, 0, payloadLength,
+                        sealed, 0);
+            }
+            catch (GeneralSecurityException e)
+            {
+                throw new IOException("Unable to encrypt block: "
+                        + blockCount, e);
+            }
+            payload = sealed;
+        }
+
+        // Record the block in the index.
+        if (blockCount == indexPositions.length)
+        {
+            long[] offsets = new long[blockCount * 2];
+            long[] positions = new long[blockCount * 2];
+            System.arraycopy(indexRawOffsets, 0, offsets, 0, blockCount);
+            System.arraycopy(indexPositions, 0, positions, 0, blockCount);
+            indexRawOffsets = offsets;
+            indexPositions = positions;
+        }
+        indexRawOffsets[blockCount] = rawOffset;
+        indexPositions[blockCount] = position;
+        blockCount++;
+
+        // Write the block header and data.
+        out.writeByte(codec);
+        out.writeInt(rawLength);
+        out.writeInt(payloadLength);
+        out.writeInt((int) crc.getValue());
+        out.write(payload, 0, payloadLength);
+        position += FramedFormat.BLOCK_HEADER_SIZE + payloadLength;
+        rawOffset += rawLength;
+        if (event.shouldCommit())
+        {
+            event.operation = "encode";
+            event.block = blockCount - 1;
+            event.codec = codec;
+            event.rawLength = rawLength;
+            event.storedLength = payloadLength;
+            event.commit();
+        }
+        rawLength = 0;
+    }
+}
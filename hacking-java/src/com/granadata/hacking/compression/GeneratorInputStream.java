@@ -0,0 +1,70 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.io.InputStream;
+
+/**
+ * Presents a data generator as an input stream of fixed length. Data are
+ * generated on the fly as the stream is read.
+ */
+public class GeneratorInputStream extends InputStream
+{
+    private final DataGenerator generator;
+    private final long          length;
+    private long                position;
+    private final byte[]        single = new byte[1];
+
+    /**
+     * Creates a stream.
+     *
+     * @param generator Source of data
+     * @param length Number of bytes to return before end of stream
+     */
+    public GeneratorInputStream(DataGenerator generator, long length)
+    {
+        this.generator = generator;
+        this.length = length;
+    }
+
+    @Override
+    public int read()
+    {
+        int n = read(single, 0, 1);
+        return n < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buf, int off, int len)
+    {
+        if (position >= length)
+            return -1;
+        int n = (int) Math.min(len, length - position);
+        generator.fill(buf, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available()
+    {
+        return (int) Math.min(Integer.MAX_VALUE, length - position);
+    }
+}
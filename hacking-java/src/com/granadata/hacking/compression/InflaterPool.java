@@ -0,0 +1,55 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.util.zip.Inflater;
+
+/**
+ * Pool of inflaters. Like deflaters, inflaters hold native memory until
+ * end() is called.
+ */
+public class InflaterPool extends ResourcePool<Inflater>
+{
+    private final boolean nowrap;
+
+    public InflaterPool(boolean nowrap, int maxIdle, boolean trackLeaks)
+    {
+        super(nowrap ? "inflater" : "inflater-zlib", maxIdle, trackLeaks);
+        this.nowrap = nowrap;
+    }
+
+    @Override
+    protected Inflater create()
+    {
+        return new Inflater(nowrap);
+    }
+
+    @Override
+    protected void reset(Inflater inflater)
+    {
+        inflater.reset();
+    }
+
+    @Override
+    protected void destroy(Inflater inflater)
+    {
+        inflater.end();
+    }
+}
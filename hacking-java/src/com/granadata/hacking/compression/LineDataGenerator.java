@@ -0,0 +1,158 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+/**
+ * Base class for generators that produce ASCII text one line at a time.
+ * Subclasses build each line with the append methods, which write directly
+ * into a reusable byte array so that no objects are allocated per line.
+ */
+public abstract class LineDataGenerator extends DataGenerator
+{
+    // Current line and read position within it.
+    private byte[] line = new byte[1024];
+    private int    lineLength;
+    private int    linePos;
+
+    protected LineDataGenerator(long seed)
+    {
+        super(seed);
+    }
+
+    /**
+     * Generates the next line using the append methods. Lines should end with
+     * a newline character.
+     */
+    protected abstract void generateLine();
+
+    /**
+     * Fills the buffer from generated lines, generating new lines as each
+     * previous one is used up.
+     */
+    @Override
+    public void fill(byte[] buf, int off, int len)
+    {
+        while (len > 0)
+        {
+            if (linePos == lineLength)
+            {
+                lineLength = 0;
+                linePos = 0;
+                generateLine();
+            }
+            int n = Math.min(len, lineLength - linePos);
+            System.arraycopy(line, linePos, buf, off, n);
+            linePos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Generates a complete new line and copies it to the buffer. This is
+     * useful for workloads that handle lines as individual records. Any
+     * unread part of the previous line is discarded.
+     *
+     * @param buf Destination buffer
+     * @param off Offset at which to copy the line
+     * @return Length of the line
+     * @throws IllegalArgumentException Thrown if the line does not fit
+     */
+    public int nextLine(byte[] buf, int off)
+    {
+        lineLength = 0;
+        generateLine();
+        if (lineLength > buf.length - off)
+            throw new IllegalArgumentException(
+                    "Buffer too small for line: length=" + lineLength);
+        System.arraycopy(line, 0, buf, off, lineLength);
+        linePos = lineLength;
+        return lineLength;
+    }
+
+    /** Appends a single ASCII character to the current line. */
+    protected final void append(char c)
+    {
+        if (lineLength == line.length)
+        {
+            byte[] newLine = new byte[line.length * 2];
+            System.arraycopy(line, 0, newLine, 0, lineLength);
+            line = newLine;
+        }
+        line[lineLength++] = (byte) c;
+    }
+
+    /** Appends an ASCII string to the current line. */
+    protected final void append(String s)
+    {
+        for (int i = 0; i < s.length(); i++)
+        {
+            append(s.charAt(i));
+        }
+    }
+
+    /** Appends a decimal number to the current line. */
+    protected final void append(long value)
+    {
+        appendPadded(value, 1);
+    }
+
+    /**
+     * Appends a decimal number to the current line, padding with leading
+     * zeros to the given width.
+     */
+    protected final void appendPadded(long value, int width)
+    {
+        if (value < 0)
+        {
+            append('-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value / 10; v > 0; v /= 10)
+            digits++;
+        for (int i = digits; i < width; i++)
+            append('0');
+        long divisor = 1;
+        for (int i = 1; i < digits; i++)
+            divisor *= 10;
+        for (; divisor > 0; divisor /= 10)
+            append((char) ('0' + (value / divisor) % 10));
+    }
+
+    /** Returns a pseudo-randomly chosen string from the array. */
+    protected final String choose(String[] values)
+    {
+        return values[nextInt(values.length)];
+    }
+
+    /**
+     * Returns a string from the array with a skewed distribution that favors
+     * early entries, roughly as word frequencies do in real text.
+     */
+    protected final String chooseSkewed(String[] values)
+    {
+        // Multiplying two uniform values gives a density that falls off
+        // toward the end of the array.
+        int a = nextInt(values.length);
+        int b = nextInt(values.length);
+        return values[(int) ((long) a * b / values.length)];
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+/**
+ * Generates JSON-like application log lines with a timestamp that advances
+ * steadily, a handful of levels and messages, and some high-entropy fields
+ * such as request IDs and latencies.
+ */
+public class LogDataGenerator extends LineDataGenerator
+{
+    private static final String[] LEVELS   = {"INFO", "INFO", "INFO", "INFO",
+            "DEBUG", "DEBUG", "WARN", "ERROR"};
+    private static final String[] SERVICES = {"replicator", "applier",
+            "extractor", "api-gateway", "auth", "billing"};
+    private static final String[] MESSAGES = {
+            "Transaction committed",
+            "Applied event batch",
+            "Connection established",
+            "Connection closed by peer",
+            "Slow query detected",
+            "Cache miss for key",
+            "Retrying after timeout",
+            "Checkpoint written",
+            "User session started",
+            "Request completed"};
+    private static final char[]   HEX      = "0123456789abcdef".toCharArray();
+
+    // Log time in milliseconds, starting at 2014-06-01 00:00:00 UTC.
+    private long                  millis   = 1401580800000L;
+
+    public LogDataGenerator(long seed)
+    {
+        super(seed);
+    }
+
+    @Override
+    public String getName()
+    {
+        return "logs";
+    }
+
+    /**
+     * Generates a single log line as a JSON object.
+     */
+    @Override
+    protected void generateLine()
+    {
+        millis += nextInt(50);
+        long secs = millis / 1000;
+
+        append("{\"ts\":\"2014-06-");
+        appendPadded(1 + (secs / 86400) % 30, 2);
+        append('T');
+        appendPadded((secs / 3600) % 24, 2);
+        append(':');
+        appendPadded((secs / 60) % 60, 2);
+        append(':');
+        appendPadded(secs % 60, 2);
+        append('.');
+        appendPadded(millis % 1000, 3);
+        append("Z\",\"level\":\"");
+        append(choose(LEVELS));
+        append("\",\"service\":\"");
+        append(choose(SERVICES));
+        append("\",\"thread\":\"worker-");
+        append(nextInt(16));
+        append("\",\"request_id\":\"");
+        long id = nextLong();
+        for (int i = 0; i < 16; i++)
+        {
+            append(HEX[(int) (id & 0xf)]);
+            id >>>= 4;
+        }
+        append("\",\"msg\":\"");
+        append(choose(MESSAGES));
+        append("\",\"latency_ms\":");
+        append(nextInt(nextInt(2000) + 1));
+        append(",\"rows\":");
+        append(nextInt(500));
+        append("}\n");
+    }
+}
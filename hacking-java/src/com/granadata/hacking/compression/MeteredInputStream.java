@@ -0,0 +1,88 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream decorator that times calls to the stream it wraps and records
+ * a flight recorder event for each read.
+ */
+public class MeteredInputStream extends FilterInputStream
+{
+    private final StreamMeter meter;
+
+    public MeteredInputStream(InputStream in, StreamMeter meter)
+    {
+        super(in);
+        this.meter = meter;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        long start = System.nanoTime();
+        int b = in.read();
+        meter.nanos += System.nanoTime() - start;
+        meter.calls++;
+        if (b >= 0)
+            meter.bytes++;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        BlockReadEvent event = new BlockReadEvent();
+        event.begin();
+        long start = System.nanoTime();
+        int n = in.read(b, off, len);
+        meter.nanos += System.nanoTime() - start;
+        meter.calls++;
+        if (n > 0)
+            meter.bytes += n;
+        if (event.shouldCommit())
+        {
+            event.layer = meter.getName();
+            event.bytes = n;
+            event.commit();
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException
+    {
+        long start = System.nanoTime();
+        long skipped = in.skip(n);
+        meter.nanos += System.nanoTime() - start;
+        return skipped;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        long start = System.nanoTime();
+        in.close();
+        meter.nanos += System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream decorator that times calls to the stream it wraps and
+ * records a flight recorder event for each write.
+ */
+public class MeteredOutputStream extends FilterOutputStream
+{
+    private final StreamMeter meter;
+
+    public MeteredOutputStream(OutputStream out, StreamMeter meter)
+    {
+        super(out);
+        this.meter = meter;
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        long start = System.nanoTime();
+        out.write(b);
+        meter.nanos += System.nanoTime() - start;
+        meter.calls++;
+        meter.bytes++;
+    }
+
+    /**
+     * Writes the whole array in one call. FilterOutputStream would otherwise
+     * write one byte at a time.
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        BlockWriteEvent event = new BlockWriteEvent();
+        event.begin();
+        long start = System.nanoTime();
+        out.write(b, off, len);
+        meter.nanos += System.nanoTime() - start;
+        meter.calls++;
+        meter.bytes += len;
+        if (event.shouldCommit())
+        {
+            event.layer = meter.getName();
+            event.bytes = len;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        long start = System.nanoTime();
+        out.flush();
+        meter.nanos += System.nanoTime() - start;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        long start = System.nanoTime();
+        out.close();
+        meter.nanos += System.nanoTime() - start;
+    }
+}
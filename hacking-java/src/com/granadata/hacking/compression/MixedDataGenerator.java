@@ -0,0 +1,156 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+/**
+ * Generates bytes that mix all 256 byte values in proportions chosen to hit
+ * a target entropy in bits per byte. Symbol probabilities fall off
+ * geometrically, p(i) ~ r^i, and r is solved for so that the Shannon entropy
+ * of the distribution equals the target. Bytes are independent, so an ideal
+ * entropy coder would compress the data to about entropy/8 of its size. This
+ * lets us dial compressibility anywhere from constant data (0 bits) to random
+ * data (8 bits).
+ */
+public class MixedDataGenerator extends DataGenerator
+{
+    // Symbols are drawn by indexing this table with 16 random bits.
+    private static final int TABLE_BITS = 16;
+    private final byte[]     table      = new byte[1 << TABLE_BITS];
+    private final double     entropy;
+
+    // Symbols left over from the last random value, so that output does not
+    // depend on how callers split it into fills.
+    private long             remainder;
+    private int              remaining;
+
+    /**
+     * Creates a generator.
+     *
+     * @param seed Seed for pseudo-random values
+     * @param entropy Target entropy between 0 and 8 bits per byte
+     */
+    public MixedDataGenerator(long seed, double entropy)
+    {
+        super(seed);
+        this.entropy = Math.max(0.0, Math.min(8.0, entropy));
+
+        // Find the ratio that gives the desired entropy. Entropy increases
+        // monotonically with the ratio so a bisection search works.
+        double lo = 0.0;
+        double hi = 1.0;
+        for (int i = 0; i < 60; i++)
+        {
+            double mid = (lo + hi) / 2;
+            if (entropyOf(mid) < this.entropy)
+                lo = mid;
+            else
+                hi = mid;
+        }
+        double[] p = probabilities(hi);
+
+        // Shuffle symbols so that frequent values are not all small numbers.
+        byte[] symbols = new byte[256];
+        for (int i = 0; i < 256; i++)
+            symbols[i] = (byte) i;
+        for (int i = 255; i > 0; i--)
+        {
+            int j = nextInt(i + 1);
+            byte tmp = symbols[i];
+            symbols[i] = symbols[j];
+            symbols[j] = tmp;
+        }
+
+        // Fill the lookup table according to the cumulative distribution.
+        double cumulative = 0.0;
+        int index = 0;
+        for (int i = 0; i < 256; i++)
+        {
+            cumulative += p[i];
+            int limit = (int) Math.round(cumulative * table.length);
+            while (index < limit && index < table.length)
+                table[index++] = symbols[i];
+        }
+        while (index < table.length)
+            table[index++] = symbols[0];
+    }
+
+    @Override
+    public String getName()
+    {
+        return "mixed";
+    }
+
+    /** Returns the target entropy in bits per byte. */
+    public double getEntropy()
+    {
+        return entropy;
+    }
+
+    /**
+     * Fills the buffer, drawing four symbols per 64-bit random value.
+     */
+    @Override
+    public void fill(byte[] buf, int off, int len)
+    {
+        int end = off + len;
+        int i = off;
+        while (i < end)
+        {
+            if (remaining == 0)
+            {
+                remainder = nextLong();
+                remaining = 4;
+            }
+            buf[i++] = table[(int) (remainder & 0xffff)];
+            remainder >>>= 16;
+            remaining--;
+        }
+    }
+
+    // Returns geometric symbol probabilities for the given ratio.
+    private static double[] probabilities(double ratio)
+    {
+        double[] p = new double[256];
+        double sum = 0.0;
+        double weight = 1.0;
+        for (int i = 0; i < 256; i++)
+        {
+            p[i] = weight;
+            sum += weight;
+            weight *= ratio;
+        }
+        for (int i = 0; i < 256; i++)
+            p[i] /= sum;
+        return p;
+    }
+
+    // Returns the Shannon entropy in bits of the distribution for a ratio.
+    private static double entropyOf(double ratio)
+    {
+        double[] p = probabilities(ratio);
+        double h = 0.0;
+        for (int i = 0; i < 256; i++)
+        {
+            if (p[i] > 0)
+                h -= p[i] * Math.log(p[i]) / Math.log(2);
+        }
+        return h;
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A recyclable buffer passed between pipeline stages. Each buffer belongs to
+ * the pool of the stage that filled it and goes back to that pool when the
+ * consuming stage releases it.
+ */
+public class PipelineBuffer
+{
+    /** Marker passed down the pipeline after the last data buffer. */
+    public static final PipelineBuffer          END_OF_STREAM;
+    static
+    {
+        END_OF_STREAM = new PipelineBuffer(null, 0);
+    }
+
+    final byte[]                                data;
+    int                                         length;
+    private final BlockingQueue<PipelineBuffer> owner;
+
+    /**
+     * Creates a buffer.
+     *
+     * @param owner Pool to which the buffer returns on release
+     * @param size Buffer capacity in bytes
+     */
+    public PipelineBuffer(BlockingQueue<PipelineBuffer> owner, int size)
+    {
+        this.owner = owner;
+        this.data = new byte[size];
+    }
+
+    /** Returns true if this is the end of stream marker. */
+    public boolean isEndOfStream()
+    {
+        return this == END_OF_STREAM;
+    }
+
+    /**
+     * Returns the buffer to its owning pool. Pools are sized to hold all of
+     * their buffers, so this never blocks.
+     */
+    public void release()
+    {
+        length = 0;
+        owner.add(this);
+    }
+}
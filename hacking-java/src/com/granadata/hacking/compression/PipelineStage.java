@@ -0,0 +1,253 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A single stage of a pipeline. Each stage runs on its own thread, takes
+ * buffers from an input queue and puts buffers on an output queue. Stages
+ * that produce new data fill buffers from their own pool, which keeps memory
+ * bounded and prevents deadlock since a stage never waits on buffers that are
+ * sitting in its own input queue.
+ * <p>
+ * Stages track how long they spend waiting for input, waiting for free
+ * buffers or space downstream, and working. The busiest stage is the
+ * bottleneck.
+ */
+public abstract class PipelineStage implements Runnable
+{
+    private final String                        name;
+    private BlockingQueue<PipelineBuffer>       input;
+    private BlockingQueue<PipelineBuffer>       output;
+    private final BlockingQueue<PipelineBuffer> pool;
+
+    // Statistics.
+    private long                                totalNanos;
+    private long                                inputWaitNanos;
+    private long                                outputWaitNanos;
+    protected long                              bytesIn;
+    protected long                              bytesOut;
+    private long                                allocated;
+
+    // Failure, if any.
+    private volatile Throwable                  error;
+
+    /**
+     * Creates a stage.
+     *
+     * @param name Stage name for reporting
+     * @param buffers Number of buffers in the stage pool, or 0 if the stage
+     *            does not produce new buffers
+     * @param bufferSize Size of pool buffers
+     */
+    protected PipelineStage(String name, int buffers, int bufferSize)
+    {
+        this.name = name;
+        this.pool = new ArrayBlockingQueue<PipelineBuffer>(Math.max(1,
+                buffers));
+        for (int i = 0; i < buffers; i++)
+        {
+            pool.add(new PipelineBuffer(pool, bufferSize));
+        }
+    }
+
+    /** Connects the queue from which this stage reads. */
+    public void setInput(BlockingQueue<PipelineBuffer> input)
+    {
+        this.input = input;
+    }
+
+    /** Connects the queue to which this stage writes. */
+    public void setOutput(BlockingQueue<PipelineBuffer> output)
+    {
+        this.output = output;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    /** Returns the exception that stopped the stage, if any. */
+    public Throwable getError()
+    {
+        return error;
+    }
+
+    /** Returns nanoseconds spent doing work. */
+    public long getBusyNanos()
+    {
+        return totalNanos - inputWaitNanos - outputWaitNanos;
+    }
+
+    /** Returns nanoseconds spent waiting for input. */
+    public long getInputWaitNanos()
+    {
+        return inputWaitNanos;
+    }
+
+    /** Returns nanoseconds spent waiting for buffers or downstream space. */
+    public long getOutputWaitNanos()
+    {
+        return outputWaitNanos;
+    }
+
+    public long getBytesIn()
+    {
+        return bytesIn;
+    }
+
+    public long getBytesOut()
+    {
+        return bytesOut;
+    }
+
+    /** Returns bytes allocated by the stage thread. */
+    public long getAllocated()
+    {
+        return allocated;
+    }
+
+    /**
+     * Runs the stage, recording elapsed time and any failure.
+     */
+    public void run()
+    {
+        long start = System.nanoTime();
+        long startAllocated = ResourceUsage.threadAllocatedBytes();
+        try
+        {
+            execute();
+        }
+        catch (InterruptedException e)
+        {
+            // Another stage failed and the pipeline is shutting down.
+        }
+        catch (Throwable t)
+        {
+            // Interruption may also surface wrapped in an I/O exception.
+            if (!(t.getCause() instanceof InterruptedException))
+                error = t;
+        }
+        totalNanos = System.nanoTime() - start;
+        allocated = ResourceUsage.threadAllocatedBytes() - startAllocated;
+    }
+
+    /**
+     * Does the work of the stage. Implementations must send
+     * {@link PipelineBuffer#END_OF_STREAM} downstream when they are done.
+     */
+    protected abstract void execute() throws Exception;
+
+    /** Takes the next buffer from the input queue. */
+    protected PipelineBuffer take() throws InterruptedException
+    {
+        long start = System.nanoTime();
+        PipelineBuffer buf = input.take();
+        inputWaitNanos += System.nanoTime() - start;
+        return buf;
+    }
+
+    /** Acquires an empty buffer from this stage's pool. */
+    protected PipelineBuffer acquire() throws InterruptedException
+    {
+        long start = System.nanoTime();
+        PipelineBuffer buf = pool.take();
+        outputWaitNanos += System.nanoTime() - start;
+        return buf;
+    }
+
+    /**
+     * Sends a buffer to the next stage. The buffer belongs to the next stage
+     * once it is on the queue, so we must not touch it afterwards.
+     */
+    protected void emit(PipelineBuffer buf) throws InterruptedException
+    {
+        bytesOut += buf.length;
+        long start = System.nanoTime();
+        output.put(buf);
+        outputWaitNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Output stream that fills buffers from the stage pool and emits each one
+     * downstream as it fills. Stages that transform data through standard
+     * filter streams write to this at the bottom of the stream stack.
+     */
+    protected class EmittingOutputStream extends OutputStream
+    {
+        private PipelineBuffer current;
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            try
+            {
+                while (len > 0)
+                {
+                    if (current == null)
+                        current = acquire();
+                    int n = Math.min(len, current.data.length - current.length);
+                    System.arraycopy(b, off, current.data, current.length, n);
+                    current.length += n;
+                    off += n;
+                    len -= n;
+                    if (current.length == current.data.length)
+                    {
+                        emit(current);
+                        current = null;
+                    }
+                }
+            }
+            catch (InterruptedException e)
+            {
+                throw new IOException("Pipeline interrupted", e);
+            }
+        }
+
+        /** Emits any partially filled buffer. */
+        @Override
+        public void close() throws IOException
+        {
+            try
+            {
+                if (current != null && current.length > 0)
+                    emit(current);
+                else if (current != null)
+                    current.release();
+                current = null;
+            }
+            catch (InterruptedException e)
+            {
+                throw new IOException("Pipeline interrupted", e);
+            }
+        }
+    }
+}
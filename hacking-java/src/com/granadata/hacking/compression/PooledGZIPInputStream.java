@@ -0,0 +1,167 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Reads gzip format using an inflater borrowed from a pool. This is the
+ * counterpart of {@link PooledGZIPOutputStream}. Unlike GZIPInputStream it
+ * reads a single gzip member only, which is all that our writers produce.
+ * The inflater goes back to the pool when the stream is closed.
+ */
+public class PooledGZIPInputStream extends InflaterInputStream
+{
+    private static final int FHCRC    = 2;
+    private static final int FEXTRA   = 4;
+    private static final int FNAME    = 8;
+    private static final int FCOMMENT = 16;
+
+    private final InflaterPool pool;
+    private final CRC32        crc    = new CRC32();
+    private boolean            eos;
+    private boolean            closed;
+
+    /**
+     * Creates a stream and reads the gzip header.
+     *
+     * @param in Underlying stream
+     * @param pool Pool of raw (nowrap) inflaters
+     * @param size Input buffer size
+     */
+    public PooledGZIPInputStream(InputStream in, InflaterPool pool, int size)
+            throws Exception
+    {
+        super(in, pool.borrow(), size);
+        this.pool = pool;
+        try
+        {
+            readHeader();
+        }
+        catch (IOException e)
+        {
+            pool.release(inf);
+            closed = true;
+            throw e;
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (eos)
+            return -1;
+        int n = super.read(b, off, len);
+        if (n < 0)
+        {
+            eos = true;
+            readTrailer();
+        }
+        else
+            crc.update(b, off, n);
+        return n;
+    }
+
+    /** Closes the underlying stream and returns the inflater to the pool. */
+    @Override
+    public void close() throws IOException
+    {
+        if (closed)
+            return;
+        closed = true;
+        try
+        {
+            super.close();
+        }
+        finally
+        {
+            pool.release(inf);
+        }
+    }
+
+    // Reads and checks the fixed header, then skips optional fields.
+    private void readHeader() throws IOException
+    {
+        if (readByte() != 0x1f || readByte() != 0x8b)
+            throw new ZipException("Not in GZIP format");
+        if (readByte() != Deflater.DEFLATED)
+            throw new ZipException("Unsupported compression method");
+        int flags = readByte();
+        // Skip modification time, extra flags and OS.
+        for (int i = 0; i < 6; i++)
+            readByte();
+        if ((flags & FEXTRA) != 0)
+        {
+            int length = readByte() | (readByte() << 8);
+            for (int i = 0; i < length; i++)
+                readByte();
+        }
+        if ((flags & FNAME) != 0)
+        {
+            while (readByte() != 0)
+                ;
+        }
+        if ((flags & FCOMMENT) != 0)
+        {
+            while (readByte() != 0)
+                ;
+        }
+        if ((flags & FHCRC) != 0)
+        {
+            readByte();
+            readByte();
+        }
+    }
+
+    // Checks the CRC and length in the trailer. The trailer may already be
+    // partly in the input buffer past the end of the compressed data.
+    private void readTrailer() throws IOException
+    {
+        byte[] trailer = new byte[8];
+        int remaining = Math.min(inf.getRemaining(), trailer.length);
+        System.arraycopy(buf, len - inf.getRemaining(), trailer, 0, remaining);
+        for (int i = remaining; i < trailer.length; i++)
+            trailer[i] = (byte) readByte();
+        if (readIntLE(trailer, 0) != (int) crc.getValue())
+            throw new ZipException("Corrupt GZIP trailer: bad CRC");
+        if (readIntLE(trailer, 4) != (int) inf.getBytesWritten())
+            throw new ZipException("Corrupt GZIP trailer: bad length");
+    }
+
+    private int readByte() throws IOException
+    {
+        int b = in.read();
+        if (b < 0)
+            throw new EOFException("Unexpected end of GZIP stream");
+        return b;
+    }
+
+    private static int readIntLE(byte[] buf, int off)
+    {
+        return (buf[off] & 0xff) | (buf[off + 1] & 0xff) << 8
+                | (buf[off + 2] & 0xff) << 16 | (buf[off + 3] & 0xff) << 24;
+    }
+}
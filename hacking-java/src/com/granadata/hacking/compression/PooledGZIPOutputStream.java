@@ -0,0 +1,108 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes gzip format using a deflater borrowed from a pool. GZIPOutputStream
+ * always creates its own deflater, so we write the gzip header and trailer
+ * ourselves around a raw deflate stream. The deflater goes back to the pool
+ * when the stream is closed.
+ */
+public class PooledGZIPOutputStream extends DeflaterOutputStream
+{
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b,
+            Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final DeflaterPool  pool;
+    private final CRC32         crc     = new CRC32();
+    private boolean             finished;
+    private boolean             closed;
+
+    /**
+     * Creates a stream and writes the gzip header.
+     *
+     * @param out Underlying stream
+     * @param pool Pool of raw (nowrap) deflaters
+     * @param size Output buffer size
+     */
+    public PooledGZIPOutputStream(OutputStream out, DeflaterPool pool,
+            int size) throws Exception
+    {
+        super(out, pool.borrow(), size);
+        this.pool = pool;
+        out.write(HEADER);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        super.write(b, off, len);
+        crc.update(b, off, len);
+    }
+
+    /** Finishes compressed data and writes the gzip trailer. */
+    @Override
+    public void finish() throws IOException
+    {
+        if (finished)
+            return;
+        super.finish();
+        byte[] trailer = new byte[8];
+        writeIntLE(trailer, 0, (int) crc.getValue());
+        writeIntLE(trailer, 4, (int) def.getBytesRead());
+        out.write(trailer);
+        finished = true;
+    }
+
+    /**
+     * Finishes the stream, closes the underlying stream and returns the
+     * deflater to the pool.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (closed)
+            return;
+        closed = true;
+        try
+        {
+            finish();
+            out.close();
+        }
+        finally
+        {
+            pool.release(def);
+        }
+    }
+
+    private static void writeIntLE(byte[] buf, int off, int value)
+    {
+        buf[off] = (byte) value;
+        buf[off + 1] = (byte) (value >>> 8);
+        buf[off + 2] = (byte) (value >>> 16);
+        buf[off + 3] = (byte) (value >>> 24);
+    }
+}
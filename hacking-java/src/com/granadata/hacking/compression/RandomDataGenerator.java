@@ -0,0 +1,63 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+/**
+ * Generates uniformly random bytes, which are effectively incompressible.
+ */
+public class RandomDataGenerator extends DataGenerator
+{
+    // Bytes left over from the last random value, so that output does not
+    // depend on how callers split it into fills.
+    private long remainder;
+    private int  remaining;
+
+    public RandomDataGenerator(long seed)
+    {
+        super(seed);
+    }
+
+    @Override
+    public String getName()
+    {
+        return "random";
+    }
+
+    /**
+     * Fills the buffer 8 bytes at a time from the pseudo-random sequence.
+     */
+    @Override
+    public void fill(byte[] buf, int off, int len)
+    {
+        int end = off + len;
+        int i = off;
+        while (i < end)
+        {
+            if (remaining == 0)
+            {
+                remainder = nextLong();
+                remaining = 8;
+            }
+            buf[i++] = (byte) remainder;
+            remainder >>>= 8;
+            remaining--;
+        }
+    }
+}
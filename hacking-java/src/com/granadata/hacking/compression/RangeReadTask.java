@@ -0,0 +1,114 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.Checksum;
+
+/**
+ * Reads one range of a file with positional reads and computes a CRC over
+ * the range. Several tasks can share a single file channel, since positional
+ * reads do not change the channel position. Partial checksums are merged
+ * with {@link ChecksumType#combine(long, long, long)}.
+ */
+public class RangeReadTask implements Runnable
+{
+    FileChannel      channel;
+    long             start;
+    long             length;
+    int              bufferSize;
+    DirectBufferPool pool;
+    ChecksumType     checksum;
+    volatile long    read;
+    volatile long    crcValue;
+    volatile long    allocated;
+
+    /**
+     * Creates a task.
+     *
+     * @param channel Channel open for reading
+     * @param start Position of first byte to read
+     * @param length Number of bytes to read
+     * @param bufferSize Size of each read request
+     * @param checksum Type of checksum to compute
+     */
+    public RangeReadTask(FileChannel channel, long start, long length,
+            int bufferSize, ChecksumType checksum)
+    {
+        this.channel = channel;
+        this.start = start;
+        this.length = length;
+        this.bufferSize = bufferSize;
+        this.checksum = checksum;
+    }
+
+    /**
+     * Creates a task that reads into a direct buffer from a pool. Direct
+     * buffers let the channel read without copying through a temporary
+     * buffer. The pool buffer size is used in place of a buffer size.
+     */
+    public RangeReadTask(FileChannel channel, long start, long length,
+            DirectBufferPool pool, ChecksumType checksum)
+    {
+        this(channel, start, length, 0, checksum);
+        this.pool = pool;
+    }
+
+    public void run()
+    {
+        long startAllocated = ResourceUsage.threadAllocatedBytes();
+        ByteBuffer buf = null;
+        try
+        {
+            Checksum crc = checksum.create();
+            if (pool == null)
+                buf = ByteBuffer.allocate(bufferSize);
+            else
+                buf = pool.borrow();
+            int size = buf.capacity();
+            long position = start;
+            long end = start + length;
+            while (position < end)
+            {
+                buf.clear();
+                buf.limit((int) Math.min(size, end - position));
+                int actual = channel.read(buf, position);
+                if (actual < 0)
+                    break;
+                buf.flip();
+                crc.update(buf);
+                position += actual;
+            }
+            read = position - start;
+            crcValue = crc.getValue();
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+        finally
+        {
+            if (pool != null && buf != null)
+                pool.release(buf);
+        }
+        allocated = ResourceUsage.threadAllocatedBytes() - startAllocated;
+    }
+}
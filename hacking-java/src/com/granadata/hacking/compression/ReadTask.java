@@ -22,9 +22,10 @@ package com.granadata.hacking.compression;
 import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.util.zip.CRC32;
 import java.util.zip.CheckedInputStream;
+import java.util.zip.Checksum;
 import java.util.zip.GZIPInputStream;
 
 import javax.crypto.Cipher;
@@ -36,38 +37,143 @@ import javax.crypto.SecretKey;
  */
 public class ReadTask implements Runnable
 {
-    CheckedInputStream is;
-    CRC32              crc;
+    InputStream        is;
+    Checksum           crc;
     long               runLength;
+    StreamMeters       meters;
     volatile long      read;
     volatile long      crcValue;
+    volatile long      allocated;
 
+    /**
+     * Creates a task to read a file from the beginning through a stack of
+     * streams.
+     */
     public ReadTask(File outFile, long runLength, boolean compress,
             boolean encrypt, SecretKey secretKey, String algorithm)
             throws Exception
     {
-        InputStream fis = new FileInputStream(outFile);
-        InputStream b1;
-        if (encrypt)
+        this(new FileInputStream(outFile), runLength, compress, encrypt,
+                secretKey, algorithm, new StreamMeters(false), null,
+                ChecksumType.CRC32);
+    }
+
+    /**
+     * Creates a task to read a file from the beginning through a stack of
+     * streams on top of an open file stream, taking ciphers and inflaters
+     * from pools if provided. Pooled objects go back when the task closes
+     * its stream.
+     */
+    public ReadTask(InputStream file, long runLength, boolean compress,
+            boolean encrypt, SecretKey secretKey, String algorithm,
+            StreamMeters meters, ResourcePools pools, ChecksumType checksum)
+            throws Exception
+    {
+        this(openStream(file, compress, encrypt, secretKey, algorithm,
+                meters, pools), runLength, meters, checksum);
+    }
+
+    /**
+     * Creates a task to read from an existing stream, verifying data with
+     * the given type of checksum and adding a metered checksum layer on top
+     * if metering is enabled.
+     */
+    public ReadTask(InputStream in, long runLength, StreamMeters meters,
+            ChecksumType checksum)
+    {
+        crc = checksum.create();
+        is = meters.wrap("crc", new CheckedInputStream(in, crc));
+        this.runLength = runLength;
+        this.meters = meters;
+    }
+
+    /**
+     * Creates a task to read a range of a file in framed container format.
+     * Reading starts directly at the block that contains the offset. The
+     * reader takes its inflater and cipher from pools if provided.
+     */
+    public static ReadTask forFramedRange(File outFile, long offset,
+            long runLength, boolean encrypt, SecretKey secretKey,
+            String algorithm, StreamMeters meters, ResourcePools pools,
+            ChecksumType checksum) throws Exception
+    {
+        return new ReadTask(meters.wrap("frame", new FramedInputStream(
+                openFramed(outFile, encrypt, secretKey, algorithm, pools),
+                offset, runLength)), runLength, meters, checksum);
+    }
+
+    // Constructs a stack of streams to read a file. If a layer cannot be
+    // opened, for example because the gzip header is bad, the layers below
+    // are closed so that the file and any pooled cipher are released.
+    static InputStream openStream(InputStream file, boolean compress,
+            boolean encrypt, SecretKey secretKey, String algorithm,
+            StreamMeters meters, ResourcePools pools) throws Exception
+    {
+        InputStream fis = meters.wrap("file", file);
+        InputStream b1 = fis;
+        try
         {
-            Cipher cipher = Cipher.getInstance(algorithm);
-            cipher.init(Cipher.DECRYPT_MODE, secretKey);
-            b1 = new CipherInputStream(fis, cipher);
+            if (encrypt && pools != null)
+                b1 = meters.wrap("cipher", pools.getDecryptCiphers()
+                        .openInputStream(fis));
+            else if (encrypt)
+                b1 = meters.wrap("cipher", new CipherInputStream(fis,
+                        decryptCipher(true, secretKey, algorithm)));
+            InputStream b2;
+            if (compress && pools != null)
+                b2 = new BufferedInputStream(meters.wrap("gzip",
+                        new PooledGZIPInputStream(b1, pools.getInflaters(),
+                                512)));
+            else if (compress)
+                b2 = new BufferedInputStream(meters.wrap("gzip",
+                        new GZIPInputStream(b1)));
+            else
+                b2 = new BufferedInputStream(b1);
+            return meters.wrap("buffer", b2);
         }
+        catch (Exception e)
+        {
+            try
+            {
+                b1.close();
+            }
+            catch (IOException ce)
+            {
+                e.addSuppressed(ce);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a framed file, taking the inflater and cipher from pools if
+     * provided.
+     */
+    static FramedFileReader openFramed(File file, boolean encrypt,
+            SecretKey secretKey, String algorithm, ResourcePools pools)
+            throws Exception
+    {
+        if (pools != null)
+            return new FramedFileReader(file, encrypt, pools);
         else
-            b1 = fis;
-        BufferedInputStream b2;
-        if (compress)
-            b2 = new BufferedInputStream(new GZIPInputStream(b1));
-        else
-            b2 = new BufferedInputStream(b1);
-        crc = new CRC32();
-        is = new CheckedInputStream(b2, crc);
-        this.runLength = runLength;
+            return new FramedFileReader(file, decryptCipher(encrypt,
+                    secretKey, algorithm));
+    }
+
+    /** Returns a cipher ready for decryption or null if not encrypting. */
+    static Cipher decryptCipher(boolean encrypt, SecretKey secretKey,
+            String algorithm) throws Exception
+    {
+        if (!encrypt)
+            return null;
+        Cipher cipher = Cipher.getInstance(algorithm);
+        cipher.init(Cipher.DECRYPT_MODE, secretKey);
+        return cipher;
     }
 
     public void run()
     {
+        long startAllocated = ResourceUsage.threadAllocatedBytes();
         try
         {
             byte[] buf = new byte[4096];
@@ -76,14 +182,27 @@ public class ReadTask implements Runnable
             {
                 int requested = (int) Math.min(4096, runLength - read);
                 actual = is.read(buf, 0, requested);
-                read += actual;
+                if (actual > 0)
+                    read += actual;
             }
             crcValue = crc.getValue();
-            is.close();
         }
         catch (Exception e)
         {
             e.printStackTrace();
         }
+        finally
+        {
+            // Closing returns any pooled resources, so do it even on failure.
+            try
+            {
+                is.close();
+            }
+            catch (Exception e)
+            {
+                e.printStackTrace();
+            }
+        }
+        allocated = ResourceUsage.threadAllocatedBytes() - startAllocated;
     }
 }
@@ -0,0 +1,75 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+/**
+ * Generates highly repetitive fixed-layout records similar to a CSV dump of
+ * an order table. Only a few fields vary from row to row, so the data
+ * compresses very well.
+ */
+public class RecordDataGenerator extends LineDataGenerator
+{
+    private static final String[] CUSTOMERS = {"ACME Corporation",
+            "Globex Inc", "Initech", "Umbrella Ltd", "Hooli", "Vandelay Ind",
+            "Stark Enterprises", "Wayne Holdings"};
+    private static final String[] STATUS    = {"NEW", "PAID", "SHIPPED",
+            "DELIVERED"};
+    private static final String[] REGIONS   = {"us-east", "us-west",
+            "eu-central", "ap-south"};
+
+    // Row counter.
+    private long                  rowId     = 0;
+
+    public RecordDataGenerator(long seed)
+    {
+        super(seed);
+    }
+
+    @Override
+    public String getName()
+    {
+        return "records";
+    }
+
+    /**
+     * Generates a single comma-separated record.
+     */
+    @Override
+    protected void generateLine()
+    {
+        rowId++;
+        appendPadded(rowId, 10);
+        append(',');
+        append(choose(CUSTOMERS));
+        append(',');
+        append(choose(REGIONS));
+        append(',');
+        append(choose(STATUS));
+        append(',');
+        append(1 + nextInt(20));
+        append(',');
+        append(nextInt(100000) / 100);
+        append('.');
+        appendPadded(nextInt(100), 2);
+        append(",2014-06-");
+        appendPadded(1 + (rowId / 100000) % 30, 2);
+        append(",,,N,N,Y\n");
+    }
+}
@@ -0,0 +1,230 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Measures compression of many small records, comparing records compressed
+ * one at a time with records compressed together in batches, each with and
+ * without a preset dictionary trained from a sample of records. Results are
+ * reported as records per second and bytes per record so that we can pick a
+ * strategy for shipping small events with low latency.
+ */
+public class RecordLab
+{
+    private final LineDataGenerator generator;
+    private final int               records;
+    private final int               batch;
+    private final int               dictionarySize;
+    private final int               sample;
+    private final ResourcePools     pools;
+
+    // Records laid end to end, with offset and length of each.
+    private byte[]                  data;
+    private int[]                   offsets;
+    private int[]                   lengths;
+    private long                    rawBytes;
+    private long                    rawCrc;
+
+    /**
+     * Creates a record test.
+     *
+     * @param generator Source of records, one per generated line
+     * @param records Number of records to process
+     * @param batch Number of records per batch
+     * @param dictionarySize Maximum size of trained dictionary
+     * @param sample Number of records used to train the dictionary
+     * @param pools Pools that supply deflaters and inflaters, or null to
+     *            create them for each strategy
+     */
+    public RecordLab(LineDataGenerator generator, int records, int batch,
+            int dictionarySize, int sample, ResourcePools pools)
+    {
+        this.generator = generator;
+        this.records = records;
+        this.batch = batch;
+        this.dictionarySize = dictionarySize;
+        this.sample = Math.min(sample, records);
+        this.pools = pools;
+    }
+
+    /**
+     * Generates records, trains a dictionary and runs each strategy.
+     */
+    public void run() throws Exception
+    {
+        generate();
+        CompressionLab.println(String.format(
+                "TEST--Records: %d Raw bytes: %d Bytes/rec: %.1f", records,
+                rawBytes, rawBytes / (double) records));
+
+        // Train the dictionary. Note that we train on the first records and
+        // test on all of them, so results are slightly optimistic.
+        long t1 = System.nanoTime();
+        byte[] dictionary = DictionaryTrainer.train(data, offsets, lengths,
+                sample, dictionarySize);
+        double trainSecs = (System.nanoTime() - t1) / 1e9;
+        CompressionLab.println(String.format(
+                "Dictionary: %d bytes from %d records in %.3f secs",
+                dictionary.length, sample, trainSecs));
+
+        runStrategy("record", null, 1);
+        runStrategy("record+dict", dictionary, 1);
+        runStrategy("batch", null, batch);
+        runStrategy("batch+dict", dictionary, batch);
+    }
+
+    // Fills the record buffer from the generator.
+    private void generate()
+    {
+        data = new byte[1024 * 1024];
+        offsets = new int[records];
+        lengths = new int[records];
+        byte[] line = new byte[64 * 1024];
+        int pos = 0;
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < records; i++)
+        {
+            int len = generator.nextLine(line, 0);
+            if (pos + len > data.length)
+            {
+                byte[] larger = new byte[Math.max(data.length * 2, pos + len)];
+                System.arraycopy(data, 0, larger, 0, pos);
+                data = larger;
+            }
+            System.arraycopy(line, 0, data, pos, len);
+            crc.update(line, 0, len);
+            offsets[i] = pos;
+            lengths[i] = len;
+            pos += len;
+        }
+        rawBytes = pos;
+        rawCrc = crc.getValue();
+    }
+
+    // Compresses all records in units of the given number of records, then
+    // decompresses them and checks the result.
+    private void runStrategy(String name, byte[] dictionary, int unitSize)
+            throws Exception
+    {
+        RecordCodec codec;
+        if (pools != null)
+            codec = new RecordCodec(dictionary, Deflater.DEFAULT_COMPRESSION,
+                    pools);
+        else
+            codec = new RecordCodec(dictionary, Deflater.DEFAULT_COMPRESSION);
+        int units = (records + unitSize - 1) / unitSize;
+        int[] unitOffsets = new int[units];
+        int[] unitLengths = new int[units];
+
+        // Batches are framed with a 4-byte length before each record.
+        int maxUnit = 0;
+        long maxPacked = 0;
+        for (int u = 0; u < units; u++)
+        {
+            int first = u * unitSize;
+            int last = Math.min(records, first + unitSize);
+            int size = unitSize == 1 ? 0 : 4 * (last - first);
+            for (int r = first; r < last; r++)
+                size += lengths[r];
+            maxUnit = Math.max(maxUnit, size);
+            maxPacked += RecordCodec.maxCompressedLength(size);
+        }
+        if (maxPacked > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException(
+                    "Too much record data to hold in memory; reduce --records");
+        byte[] unit = new byte[maxUnit];
+        byte[] packed = new byte[(int) maxPacked];
+
+        // Compress.
+        long packedBytes = 0;
+        long c1 = System.nanoTime();
+        for (int u = 0; u < units; u++)
+        {
+            int first = u * unitSize;
+            int last = Math.min(records, first + unitSize);
+            int n;
+            if (unitSize == 1)
+            {
+                n = codec.compress(data, offsets[first], lengths[first],
+                        packed, (int) packedBytes);
+            }
+            else
+            {
+                int len = 0;
+                for (int r = first; r < last; r++)
+                {
+                    int rl = lengths[r];
+                    unit[len++] = (byte) (rl >>> 24);
+                    unit[len++] = (byte) (rl >>> 16);
+                    unit[len++] = (byte) (rl >>> 8);
+                    unit[len++] = (byte) rl;
+                    System.arraycopy(data, offsets[r], unit, len, rl);
+                    len += rl;
+                }
+                n = codec.compress(unit, 0, len, packed, (int) packedBytes);
+            }
+            unitOffsets[u] = (int) packedBytes;
+            unitLengths[u] = n;
+            packedBytes += n;
+        }
+        double compressSecs = (System.nanoTime() - c1) / 1e9;
+
+        // Decompress and verify the CRC of the original records.
+        CRC32 crc = new CRC32();
+        long d1 = System.nanoTime();
+        for (int u = 0; u < units; u++)
+        {
+            int len = codec.decompress(packed, unitOffsets[u],
+                    unitLengths[u], unit, 0);
+            if (unitSize == 1)
+                crc.update(unit, 0, len);
+            else
+            {
+                int pos = 0;
+                while (pos < len)
+                {
+                    int rl = ((unit[pos] & 0xff) << 24)
+                            | ((unit[pos + 1] & 0xff) << 16)
+                            | ((unit[pos + 2] & 0xff) << 8)
+                            | (unit[pos + 3] & 0xff);
+                    crc.update(unit, pos + 4, rl);
+                    pos += 4 + rl;
+                }
+            }
+        }
+        double decompressSecs = (System.nanoTime() - d1) / 1e9;
+        codec.end();
+
+        if (crc.getValue() != rawCrc)
+        {
+            CompressionLab.println(String.format(
+                    "Record check failed: strategy=%s crc=%d", name,
+                    crc.getValue()));
+        }
+        double ratio = 100.0 - (packedBytes * 100.0) / rawBytes;
+        CompressionLab.println(String.format(
+                "Op: %-11s Unit: %4d Bytes/rec: %-7.1f Compression: %5.1f%% Comp rec/s: %-10.0f Decomp rec/s: %-10.0f",
+                name, unitSize, packedBytes / (double) records, ratio,
+                records / compressSecs, records / decompressSecs));
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Pool of reusable objects that are expensive to create, such as ciphers and
+ * deflaters with native memory. Subclasses create new objects and reset them
+ * when they come back. The pool keeps track of objects that are borrowed but
+ * not yet released so that leaks can be reported. With leak tracking on, the
+ * pool also records where each outstanding object was borrowed. Pools are
+ * thread-safe.
+ *
+ * @param <T> Type of pooled object
+ */
+public abstract class ResourcePool<T>
+{
+    private final String          name;
+    private final int             maxIdle;
+    private final boolean         trackLeaks;
+    private final Deque<T>        idle        = new ArrayDeque<T>();
+    private final Map<T, Throwable> outstanding = new IdentityHashMap<T, Throwable>();
+
+    // Statistics.
+    private long                  created;
+    private long                  borrowed;
+    private long                  destroyed;
+
+    /**
+     * Creates a pool.
+     *
+     * @param name Pool name for reporting
+     * @param maxIdle Maximum number of idle objects to keep; extra objects
+     *            are destroyed on release
+     * @param trackLeaks If true, record the stack of each borrow
+     */
+    protected ResourcePool(String name, int maxIdle, boolean trackLeaks)
+    {
+        this.name = name;
+        this.maxIdle = maxIdle;
+        this.trackLeaks = trackLeaks;
+    }
+
+    /** Creates a new object ready for use. */
+    protected abstract T create() throws Exception;
+
+    /**
+     * Returns a released object to its initial state. If this throws, the
+     * object is destroyed rather than reused.
+     */
+    protected abstract void reset(T item) throws Exception;
+
+    /** Releases any resources held by an object that leaves the pool. */
+    protected void destroy(T item)
+    {
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Borrows an object, reusing an idle one if possible.
+     */
+    public T borrow() throws Exception
+    {
+        T item;
+        synchronized (this)
+        {
+            item = idle.pollFirst();
+            borrowed++;
+        }
+        if (item == null)
+        {
+            item = create();
+            synchronized (this)
+            {
+                created++;
+            }
+        }
+        Throwable where = trackLeaks ? new Throwable("Borrowed from pool: "
+                + name) : null;
+        synchronized (this)
+        {
+            outstanding.put(item, where);
+        }
+        return item;
+    }
+
+    /**
+     * Returns an object to the pool.
+     *
+     * @throws IllegalStateException Thrown if the object is not currently
+     *             borrowed from this pool
+     */
+    public void release(T item)
+    {
+        synchronized (this)
+        {
+            if (!outstanding.containsKey(item))
+                throw new IllegalStateException(
+                        "Object not borrowed from pool: " + name);
+            outstanding.remove(item);
+        }
+        boolean keep;
+        try
+        {
+            reset(item);
+            keep = true;
+        }
+        catch (Exception e)
+        {
+            keep = false;
+        }
+        synchronized (this)
+        {
+            if (keep && idle.size() < maxIdle)
+            {
+                idle.addFirst(item);
+                return;
+            }
+            destroyed++;
+        }
+        destroy(item);
+    }
+
+    /** Returns the number of objects borrowed and not yet released. */
+    public synchronized int getOutstanding()
+    {
+        return outstanding.size();
+    }
+
+    /** Prints pool statistics and any outstanding borrows. */
+    public synchronized void printStats()
+    {
+        CompressionLab.println(String.format(
+                "  Pool: %-15s Created: %-5d Borrowed: %-7d Idle: %-4d Destroyed: %-5d Leaked: %d",
+                name, created, borrowed, idle.size(), destroyed,
+                outstanding.size()));
+        for (Throwable where : outstanding.values())
+        {
+            if (where != null)
+                where.printStackTrace(System.out);
+        }
+    }
+
+    /** Destroys idle objects. Outstanding objects are left alone. */
+    public void close()
+    {
+        while (true)
+        {
+            T item;
+            synchronized (this)
+            {
+                item = idle.pollFirst();
+                if (item == null)
+                    break;
+                destroyed++;
+            }
+            destroy(item);
+        }
+    }
+}
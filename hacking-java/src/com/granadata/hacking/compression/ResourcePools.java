@@ -0,0 +1,183 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * The set of resource pools shared by reads and writes across test runs.
+ * Cipher pools exist only when a key is given. Deflaters and inflaters are
+ * pooled separately for each level and wrapping, since these are fixed when
+ * the objects are created; pools for settings other than the gzip defaults
+ * are created on first use.
+ */
+public class ResourcePools
+{
+    private final CipherPool                 encryptCiphers;
+    private final CipherPool                 decryptCiphers;
+    private final Map<String, DeflaterPool>  deflaters;
+    private final Map<Boolean, InflaterPool> inflaters;
+    private final DirectBufferPool           directBuffers;
+    private final int                        maxIdle;
+    private final boolean                    trackLeaks;
+
+    /**
+     * Creates pools.
+     *
+     * @param secretKey Key for cipher pools or null if not encrypting
+     * @param algorithm Cipher algorithm
+     * @param bufferSize Size of direct buffers
+     * @param maxIdle Maximum idle objects per pool
+     * @param trackLeaks If true, record where each object was borrowed
+     */
+    public ResourcePools(SecretKey secretKey, String algorithm,
+            int bufferSize, int maxIdle, boolean trackLeaks)
+    {
+        if (secretKey == null)
+        {
+            encryptCiphers = null;
+            decryptCiphers = null;
+        }
+        else
+        {
+            encryptCiphers = new CipherPool(algorithm, secretKey,
+                    Cipher.ENCRYPT_MODE, maxIdle, trackLeaks);
+            decryptCiphers = new CipherPool(algorithm, secretKey,
+                    Cipher.DECRYPT_MODE, maxIdle, trackLeaks);
+        }
+        this.maxIdle = maxIdle;
+        this.trackLeaks = trackLeaks;
+        deflaters = new LinkedHashMap<String, DeflaterPool>();
+        inflaters = new LinkedHashMap<Boolean, InflaterPool>();
+        getDeflaters();
+        getInflaters();
+        directBuffers = new DirectBufferPool(bufferSize, maxIdle, trackLeaks);
+    }
+
+    public CipherPool getEncryptCiphers()
+    {
+        return encryptCiphers;
+    }
+
+    public CipherPool getDecryptCiphers()
+    {
+        return decryptCiphers;
+    }
+
+    /** Returns the pool of raw deflaters at the default level for gzip. */
+    public DeflaterPool getDeflaters()
+    {
+        return getDeflaters(Deflater.DEFAULT_COMPRESSION, true);
+    }
+
+    /**
+     * Returns the pool of deflaters with the given settings.
+     *
+     * @param level Deflate compression level
+     * @param nowrap If true, deflaters write raw deflate; otherwise zlib
+     */
+    public synchronized DeflaterPool getDeflaters(int level, boolean nowrap)
+    {
+        String key = level + (nowrap ? "/raw" : "/zlib");
+        DeflaterPool pool = deflaters.get(key);
+        if (pool == null)
+        {
+            pool = new DeflaterPool(level, nowrap, maxIdle, trackLeaks);
+            deflaters.put(key, pool);
+        }
+        return pool;
+    }
+
+    /** Returns the pool of raw inflaters for gzip. */
+    public InflaterPool getInflaters()
+    {
+        return getInflaters(true);
+    }
+
+    /**
+     * Returns the pool of inflaters with the given wrapping.
+     *
+     * @param nowrap If true, inflaters read raw deflate; otherwise zlib
+     */
+    public synchronized InflaterPool getInflaters(boolean nowrap)
+    {
+        InflaterPool pool = inflaters.get(nowrap);
+        if (pool == null)
+        {
+            pool = new InflaterPool(nowrap, maxIdle, trackLeaks);
+            inflaters.put(nowrap, pool);
+        }
+        return pool;
+    }
+
+    public DirectBufferPool getDirectBuffers()
+    {
+        return directBuffers;
+    }
+
+    /** Returns the number of objects not yet returned to any pool. */
+    public synchronized int getOutstanding()
+    {
+        int outstanding = directBuffers.getOutstanding();
+        for (DeflaterPool pool : deflaters.values())
+            outstanding += pool.getOutstanding();
+        for (InflaterPool pool : inflaters.values())
+            outstanding += pool.getOutstanding();
+        if (encryptCiphers != null)
+            outstanding += encryptCiphers.getOutstanding()
+                    + decryptCiphers.getOutstanding();
+        return outstanding;
+    }
+
+    /** Prints statistics for each pool. */
+    public synchronized void printStats()
+    {
+        if (encryptCiphers != null)
+        {
+            encryptCiphers.printStats();
+            decryptCiphers.printStats();
+        }
+        for (DeflaterPool pool : deflaters.values())
+            pool.printStats();
+        for (InflaterPool pool : inflaters.values())
+            pool.printStats();
+        directBuffers.printStats();
+    }
+
+    /** Releases idle objects in all pools. */
+    public synchronized void close()
+    {
+        if (encryptCiphers != null)
+        {
+            encryptCiphers.close();
+            decryptCiphers.close();
+        }
+        for (DeflaterPool pool : deflaters.values())
+            pool.close();
+        for (InflaterPool pool : inflaters.values())
+            pool.close();
+        directBuffers.close();
+    }
+}
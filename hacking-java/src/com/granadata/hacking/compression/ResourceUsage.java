@@ -0,0 +1,97 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Snapshot of garbage collection counts and heap use from the platform
+ * MXBeans. The difference between two snapshots summarizes the memory cost
+ * of a test. Allocation is counted per thread, so threads that do work must
+ * report their own totals with {@link #threadAllocatedBytes()} before they
+ * exit.
+ */
+public class ResourceUsage
+{
+    private final long gcCount;
+    private final long gcMillis;
+    private final long heapUsed;
+    private final long allocated;
+
+    private ResourceUsage()
+    {
+        long count = 0;
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory
+                .getGarbageCollectorMXBeans())
+        {
+            count += Math.max(0, gc.getCollectionCount());
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        gcCount = count;
+        gcMillis = millis;
+        heapUsed = memory.getHeapMemoryUsage().getUsed();
+        allocated = threadAllocatedBytes();
+    }
+
+    /** Returns a snapshot of current usage. */
+    public static ResourceUsage snapshot()
+    {
+        return new ResourceUsage();
+    }
+
+    /**
+     * Returns bytes allocated so far by the current thread, or 0 if the JVM
+     * does not support allocation counting.
+     */
+    public static long threadAllocatedBytes()
+    {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean)
+        {
+            com.sun.management.ThreadMXBean t = (com.sun.management.ThreadMXBean) threads;
+            if (t.isThreadAllocatedMemorySupported()
+                    && t.isThreadAllocatedMemoryEnabled())
+                return t.getThreadAllocatedBytes(Thread.currentThread()
+                        .getId());
+        }
+        return 0;
+    }
+
+    /**
+     * Prints the usage since an earlier snapshot.
+     *
+     * @param before Earlier snapshot taken on the same thread
+     * @param workerAllocated Bytes allocated by worker threads
+     */
+    public void printSince(ResourceUsage before, long workerAllocated)
+    {
+        double allocatedMB = (allocated - before.allocated + workerAllocated)
+                / (1024.0 * 1024.0);
+        CompressionLab.println(String.format(
+                "  GC: %d collections %d ms Allocated: %.1f MB Heap used: %.1f MB",
+                gcCount - before.gcCount, gcMillis - before.gcMillis,
+                allocatedMB, heapUsed / (1024.0 * 1024.0)));
+    }
+}
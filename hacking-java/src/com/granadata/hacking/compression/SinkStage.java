@@ -0,0 +1,70 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Last pipeline stage, which writes buffers to an output stream.
+ */
+public class SinkStage extends PipelineStage
+{
+    private final OutputStream out;
+
+    public SinkStage(OutputStream out)
+    {
+        super("write", 0, 0);
+        this.out = out;
+    }
+
+    @Override
+    protected void execute() throws Exception
+    {
+        boolean complete = false;
+        try
+        {
+            PipelineBuffer buf;
+            while (!(buf = take()).isEndOfStream())
+            {
+                bytesIn += buf.length;
+                out.write(buf.data, 0, buf.length);
+                bytesOut += buf.length;
+                buf.release();
+            }
+            out.flush();
+            complete = true;
+        }
+        finally
+        {
+            // Close on failure too so that the file and any pooled objects
+            // in the stream are released, keeping the original failure.
+            try
+            {
+                out.close();
+            }
+            catch (IOException e)
+            {
+                if (complete)
+                    throw e;
+            }
+        }
+    }
+}
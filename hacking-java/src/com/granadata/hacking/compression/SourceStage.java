@@ -0,0 +1,85 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.io.InputStream;
+
+/**
+ * First pipeline stage, which reads data from an input stream into buffers.
+ */
+public class SourceStage extends PipelineStage
+{
+    private final InputStream in;
+    private final long        length;
+
+    /**
+     * Creates a source stage.
+     *
+     * @param in Stream to read
+     * @param length Maximum number of bytes to read
+     * @param buffers Number of buffers in the stage pool
+     * @param bufferSize Size of each buffer
+     */
+    public SourceStage(InputStream in, long length, int buffers, int bufferSize)
+    {
+        super("read", buffers, bufferSize);
+        this.in = in;
+        this.length = length;
+    }
+
+    /**
+     * Fills buffers until we reach the requested length or end of stream.
+     */
+    @Override
+    protected void execute() throws Exception
+    {
+        try
+        {
+            boolean eof = false;
+            while (!eof && bytesIn < length)
+            {
+                PipelineBuffer buf = acquire();
+                int requested = (int) Math.min(buf.data.length, length
+                        - bytesIn);
+                while (buf.length < requested)
+                {
+                    int actual = in.read(buf.data, buf.length, requested
+                            - buf.length);
+                    if (actual < 0)
+                    {
+                        eof = true;
+                        break;
+                    }
+                    buf.length += actual;
+                }
+                bytesIn += buf.length;
+                if (buf.length > 0)
+                    emit(buf);
+                else
+                    buf.release();
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        emit(PipelineBuffer.END_OF_STREAM);
+    }
+}
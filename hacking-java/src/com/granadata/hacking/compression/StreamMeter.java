@@ -0,0 +1,67 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+/**
+ * Counts calls, bytes and time spent in one layer of a stream stack. Time is
+ * inclusive of all layers beneath. Meters are not thread-safe; each stack
+ * has its own.
+ */
+public class StreamMeter
+{
+    private final String name;
+    long                 calls;
+    long                 bytes;
+    long                 nanos;
+
+    public StreamMeter(String name)
+    {
+        this.name = name;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public long getCalls()
+    {
+        return calls;
+    }
+
+    public long getBytes()
+    {
+        return bytes;
+    }
+
+    /** Returns nanoseconds spent in this layer and all layers beneath. */
+    public long getNanos()
+    {
+        return nanos;
+    }
+
+    /** Adds counts from another meter for the same layer. */
+    public void add(StreamMeter other)
+    {
+        calls += other.calls;
+        bytes += other.bytes;
+        nanos += other.nanos;
+    }
+}
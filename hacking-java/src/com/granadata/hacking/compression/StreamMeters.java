@@ -0,0 +1,105 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Meters for the layers of one stream stack, listed from the outermost
+ * layer to the innermost. Because each meter includes time in the layers
+ * beneath it, the time spent in a layer itself is its time less that of the
+ * next layer down. Disabled instances return streams unwrapped, so callers
+ * can build stacks the same way whether or not metering is on.
+ */
+public class StreamMeters
+{
+    private final boolean           enabled;
+    private final List<StreamMeter> meters = new ArrayList<StreamMeter>();
+
+    public StreamMeters(boolean enabled)
+    {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /** Returns the meters from the outermost layer to the innermost. */
+    public List<StreamMeter> getMeters()
+    {
+        return meters;
+    }
+
+    /**
+     * Wraps a layer of an output stack. Stacks are built from the inside
+     * out, so each new layer goes at the front of the list.
+     */
+    public OutputStream wrap(String name, OutputStream out)
+    {
+        if (!enabled)
+            return out;
+        StreamMeter meter = new StreamMeter(name);
+        meters.add(0, meter);
+        return new MeteredOutputStream(out, meter);
+    }
+
+    /** Wraps a layer of an input stack. */
+    public InputStream wrap(String name, InputStream in)
+    {
+        if (!enabled)
+            return in;
+        StreamMeter meter = new StreamMeter(name);
+        meters.add(0, meter);
+        return new MeteredInputStream(in, meter);
+    }
+
+    /** Adds counts from another stack with the same layers. */
+    public void add(StreamMeters other)
+    {
+        if (meters.isEmpty())
+        {
+            for (StreamMeter m : other.meters)
+                meters.add(new StreamMeter(m.getName()));
+        }
+        for (int i = 0; i < meters.size() && i < other.meters.size(); i++)
+            meters.get(i).add(other.meters.get(i));
+    }
+
+    /** Prints a line per layer with inclusive and exclusive time. */
+    public void print()
+    {
+        for (int i = 0; i < meters.size(); i++)
+        {
+            StreamMeter m = meters.get(i);
+            long exclusive = m.getNanos();
+            if (i + 1 < meters.size())
+                exclusive -= meters.get(i + 1).getNanos();
+            CompressionLab.println(String.format(
+                    "  Layer: %-7s Calls: %-9d Bytes: %-11d Incl: %-7.3f Excl: %-7.3f",
+                    m.getName(), m.getCalls(), m.getBytes(),
+                    m.getNanos() / 1e9, exclusive / 1e9));
+        }
+    }
+}
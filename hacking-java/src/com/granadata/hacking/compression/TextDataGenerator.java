@@ -0,0 +1,95 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+/**
+ * Generates English-like text from common words with skewed frequencies.
+ * Sentences vary in length and are grouped into lines of a few sentences
+ * each.
+ */
+public class TextDataGenerator extends LineDataGenerator
+{
+    // Common English words, roughly in order of decreasing frequency.
+    private static final String[] WORDS = {"the", "of", "and", "to", "a",
+            "in", "is", "it", "that", "was", "for", "on", "are", "with", "as",
+            "be", "at", "by", "this", "had", "not", "but", "from", "or",
+            "have", "an", "they", "which", "one", "you", "were", "her", "all",
+            "she", "there", "would", "their", "we", "him", "been", "has",
+            "when", "who", "will", "more", "no", "if", "out", "so", "said",
+            "what", "up", "its", "about", "into", "than", "them", "can",
+            "only", "other", "new", "some", "could", "time", "these", "two",
+            "may", "then", "do", "first", "any", "my", "now", "such", "like",
+            "our", "over", "man", "me", "even", "most", "made", "after",
+            "also", "did", "many", "before", "must", "through", "back",
+            "years", "where", "much", "your", "way", "well", "down", "should",
+            "because", "each", "just", "those", "people", "how", "too",
+            "little", "state", "good", "very", "make", "world", "still",
+            "own", "see", "men", "work", "long", "get", "here", "between",
+            "both", "life", "being", "under", "never", "day", "same",
+            "another", "know", "while", "last", "might", "us", "great", "old",
+            "year", "off", "come", "since", "against", "go", "came", "right",
+            "used", "take", "three", "replication", "database", "server",
+            "transaction", "network", "compression", "performance", "memory"};
+
+    public TextDataGenerator(long seed)
+    {
+        super(seed);
+    }
+
+    @Override
+    public String getName()
+    {
+        return "text";
+    }
+
+    /**
+     * Generates a line of one to four sentences.
+     */
+    @Override
+    protected void generateLine()
+    {
+        int sentences = 1 + nextInt(4);
+        for (int s = 0; s < sentences; s++)
+        {
+            if (s > 0)
+                append(' ');
+            int words = 4 + nextInt(14);
+            for (int w = 0; w < words; w++)
+            {
+                String word = chooseSkewed(WORDS);
+                if (w == 0)
+                {
+                    append(Character.toUpperCase(word.charAt(0)));
+                    for (int i = 1; i < word.length(); i++)
+                        append(word.charAt(i));
+                }
+                else
+                {
+                    append(' ');
+                    append(word);
+                    if (w < words - 1 && nextInt(12) == 0)
+                        append(',');
+                }
+            }
+            append(nextInt(10) == 0 ? '?' : '.');
+        }
+        append('\n');
+    }
+}
@@ -0,0 +1,219 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPOutputStream;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.SecretKey;
+
+/**
+ * Writes data through a pipeline of stages that each run on a separate
+ * thread: read, CRC, compress, encrypt and write. Stages exchange recycled
+ * buffers through bounded queues, so CPU-heavy compression and encryption
+ * overlap with I/O. The output is identical to what the serial stream stack
+ * in {@link CompressionLab} produces. For framed files a single stage
+ * compresses and encrypts each block.
+ */
+public class WritePipeline
+{
+    private final List<PipelineStage> stages = new ArrayList<PipelineStage>();
+    private final ChecksumStage       checksum;
+
+    /**
+     * Creates a pipeline.
+     *
+     * @param in Source of data
+     * @param length Number of bytes to read from the source
+     * @param out Destination stream, which is closed at the end
+     * @param compress If true, add a GZIP compression stage
+     * @param encrypt If true, add an encryption stage
+     * @param framed If true, write the framed container format
+     * @param adaptive Codec that chooses how to compress each framed block,
+     *            or null to deflate every block if compressing
+     * @param secretKey Key for encryption
+     * @param algorithm Encryption algorithm
+     * @param pools Pools that supply ciphers and deflaters, or null to
+     *            create them in each stage
+     * @param buffers Number of buffers per stage and slots per queue
+     * @param bufferSize Size of each buffer
+     * @param checksum Type of checksum computed over the data
+     */
+    public WritePipeline(InputStream in, long length, OutputStream out,
+            final boolean compress, final boolean encrypt, boolean framed,
+            final AdaptiveBlockCodec adaptive, final SecretKey secretKey,
+            final String algorithm, final ResourcePools pools, int buffers,
+            final int bufferSize, ChecksumType checksum)
+    {
+        stages.add(new SourceStage(in, length, buffers, bufferSize));
+        this.checksum = new ChecksumStage(checksum);
+        stages.add(this.checksum);
+        if (framed)
+        {
+            stages.add(new FilterStage("frame", buffers, bufferSize)
+            {
+                @Override
+                protected OutputStream wrap(OutputStream out)
+                        throws Exception
+                {
+                    if (pools != null && adaptive != null)
+                        return new FramedOutputStream(out, bufferSize,
+                                adaptive, encrypt, pools);
+                    else if (pools != null)
+                        return new FramedOutputStream(out, bufferSize,
+                                compress, encrypt, pools);
+                    Cipher cipher = null;
+                    if (encrypt)
+                    {
+                        cipher = Cipher.getInstance(algorithm);
+                        cipher.init(Cipher.ENCRYPT_MODE, secretKey);
+                    }
+                    if (adaptive != null)
+                        return new FramedOutputStream(out, bufferSize,
+                                adaptive, cipher);
+                    return new FramedOutputStream(out, bufferSize, compress,
+                            cipher);
+                }
+            });
+        }
+        else if (compress)
+        {
+            stages.add(new FilterStage("gzip", buffers, bufferSize)
+            {
+                @Override
+                protected OutputStream wrap(OutputStream out)
+                        throws Exception
+                {
+                    if (pools != null)
+                        return new PooledGZIPOutputStream(out,
+                                pools.getDeflaters(), 4096);
+                    return new GZIPOutputStream(out, 4096);
+                }
+            });
+        }
+        if (encrypt && !framed)
+        {
+            stages.add(new FilterStage("cipher", buffers, bufferSize)
+            {
+                @Override
+                protected OutputStream wrap(OutputStream out)
+                        throws Exception
+                {
+                    if (pools != null)
+                        return pools.getEncryptCiphers().openOutputStream(out);
+                    Cipher cipher = Cipher.getInstance(algorithm);
+                    cipher.init(Cipher.ENCRYPT_MODE, secretKey);
+                    return new CipherOutputStream(out, cipher);
+                }
+            });
+        }
+        stages.add(new SinkStage(out));
+
+        // Connect adjacent stages with bounded queues.
+        for (int i = 1; i < stages.size(); i++)
+        {
+            BlockingQueue<PipelineBuffer> queue = new ArrayBlockingQueue<PipelineBuffer>(
+                    buffers + 1);
+            stages.get(i - 1).setOutput(queue);
+            stages.get(i).setInput(queue);
+        }
+    }
+
+    /**
+     * Runs all stages to completion. If any stage fails, the remaining
+     * stages are interrupted and the failure is rethrown.
+     */
+    public void run() throws Exception
+    {
+        List<Thread> threads = new ArrayList<Thread>();
+        for (PipelineStage stage : stages)
+        {
+            Thread t = new Thread(stage, "pipeline-" + stage.getName());
+            threads.add(t);
+            t.start();
+        }
+
+        // Wait for completion, stopping everything on the first failure.
+        Throwable failure = null;
+        for (Thread t : threads)
+        {
+            while (t.isAlive())
+            {
+                t.join(100);
+                if (failure == null)
+                    failure = findError();
+                if (failure != null)
+                {
+                    for (Thread other : threads)
+                        other.interrupt();
+                }
+            }
+        }
+        if (failure == null)
+            failure = findError();
+        if (failure instanceof Exception)
+            throw (Exception) failure;
+        else if (failure != null)
+            throw new RuntimeException("Pipeline stage failed", failure);
+    }
+
+    /** Returns the CRC of data read from the source. */
+    public long getCrcValue()
+    {
+        return checksum.getValue();
+    }
+
+    /** Returns the pipeline stages in order. */
+    public List<PipelineStage> getStages()
+    {
+        return stages;
+    }
+
+    /** Returns the stage with the most busy time. */
+    public PipelineStage getBottleneck()
+    {
+        PipelineStage busiest = null;
+        for (PipelineStage stage : stages)
+        {
+            if (busiest == null
+                    || stage.getBusyNanos() > busiest.getBusyNanos())
+                busiest = stage;
+        }
+        return busiest;
+    }
+
+    // Returns the first stage error, if any.
+    private Throwable findError()
+    {
+        for (PipelineStage stage : stages)
+        {
+            if (stage.getError() != null)
+                return stage.getError();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,191 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.zip.Checksum;
+
+/**
+ * Pure Java implementation of the 64-bit xxHash algorithm as a streaming
+ * checksum. xxHash64 consumes 32 bytes per round in four independent lanes,
+ * so it runs at several GB/s without special instructions. It is a hash, not
+ * a CRC, so values for adjacent ranges cannot be combined.
+ */
+public class XxHash64 implements Checksum
+{
+    private static final long      P1      = 0x9E3779B185EBCA87L;
+    private static final long      P2      = 0xC2B2AE3D27D4EB4FL;
+    private static final long      P3      = 0x165667B19E3779F9L;
+    private static final long      P4      = 0x85EBCA77C2B2AE63L;
+    private static final long      P5      = 0x27D4EB2F165667C5L;
+
+    // Little-endian views of byte arrays.
+    private static final VarHandle LONGS   = MethodHandles
+            .byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INTS    = MethodHandles
+            .byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final long             seed;
+    private long                   v1;
+    private long                   v2;
+    private long                   v3;
+    private long                   v4;
+    private long                   total;
+
+    // Input that does not yet fill a 32-byte stripe.
+    private final byte[]           pending = new byte[32];
+    private int                    pendingLength;
+
+    /** Creates a checksum with seed 0. */
+    public XxHash64()
+    {
+        this(0);
+    }
+
+    /** Creates a checksum with the given seed. */
+    public XxHash64(long seed)
+    {
+        this.seed = seed;
+        reset();
+    }
+
+    @Override
+    public void update(int b)
+    {
+        pending[pendingLength++] = (byte) b;
+        total++;
+        if (pendingLength == 32)
+        {
+            stripe(pending, 0);
+            pendingLength = 0;
+        }
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len)
+    {
+        total += len;
+
+        // Complete any pending stripe first.
+        if (pendingLength > 0)
+        {
+            int n = Math.min(len, 32 - pendingLength);
+            System.arraycopy(b, off, pending, pendingLength, n);
+            pendingLength += n;
+            off += n;
+            len -= n;
+            if (pendingLength < 32)
+                return;
+            stripe(pending, 0);
+            pendingLength = 0;
+        }
+
+        // Process whole stripes directly from the input.
+        int end = off + len - 32;
+        while (off <= end)
+        {
+            stripe(b, off);
+            off += 32;
+        }
+        len = end + 32 - off;
+        System.arraycopy(b, off, pending, 0, len);
+        pendingLength = len;
+    }
+
+    @Override
+    public long getValue()
+    {
+        long h;
+        if (total >= 32)
+        {
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7)
+                    + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = merge(h, v1);
+            h = merge(h, v2);
+            h = merge(h, v3);
+            h = merge(h, v4);
+        }
+        else
+            h = seed + P5;
+        h += total;
+
+        // Mix in the remaining bytes, 8, then 4, then 1 at a time.
+        int i = 0;
+        for (; i + 8 <= pendingLength; i += 8)
+        {
+            h ^= round(0, (long) LONGS.get(pending, i));
+            h = Long.rotateLeft(h, 27) * P1 + P4;
+        }
+        if (i + 4 <= pendingLength)
+        {
+            h ^= ((int) INTS.get(pending, i) & 0xffffffffL) * P1;
+            h = Long.rotateLeft(h, 23) * P2 + P3;
+            i += 4;
+        }
+        for (; i < pendingLength; i++)
+        {
+            h ^= (pending[i] & 0xff) * P5;
+            h = Long.rotateLeft(h, 11) * P1;
+        }
+
+        // Final avalanche.
+        h ^= h >>> 33;
+        h *= P2;
+        h ^= h >>> 29;
+        h *= P3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    @Override
+    public void reset()
+    {
+        v1 = seed + P1 + P2;
+        v2 = seed + P2;
+        v3 = seed;
+        v4 = seed - P1;
+        total = 0;
+        pendingLength = 0;
+    }
+
+    // Consumes one 32-byte stripe, 8 bytes per lane.
+    private void stripe(byte[] b, int off)
+    {
+        v1 = round(v1, (long) LONGS.get(b, off));
+        v2 = round(v2, (long) LONGS.get(b, off + 8));
+        v3 = round(v3, (long) LONGS.get(b, off + 16));
+        v4 = round(v4, (long) LONGS.get(b, off + 24));
+    }
+
+    private static long round(long acc, long input)
+    {
+        acc += input * P2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * P1;
+    }
+
+    private static long merge(long acc, long lane)
+    {
+        acc ^= round(0, lane);
+        return acc * P1 + P4;
+    }
+}
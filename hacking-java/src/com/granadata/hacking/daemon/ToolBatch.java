@@ -0,0 +1,86 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.daemon;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Runs a list of tool invocations in a single JVM. Each line of the command
+ * file holds a tool class followed by its arguments separated by white
+ * space; blank lines and lines starting with # are ignored. This is useful
+ * for scripted sweeps and for recording the classes that a typical set of
+ * runs loads, which bin/cds-archive uses to build a class-data sharing
+ * archive.
+ *
+ * @see ToolDaemon
+ */
+public class ToolBatch
+{
+    /**
+     * Run the commands in the file given as the only argument.
+     */
+    public static void main(String[] args)
+    {
+        if (args.length != 1)
+        {
+            println("Usage: toolbatch <command-file>");
+            System.exit(1);
+        }
+        int failed = 0;
+        try
+        {
+            BufferedReader reader = new BufferedReader(new FileReader(
+                    args[0]));
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#"))
+                    continue;
+                String[] words = line.split("\\s+");
+                int status = ToolDaemon.invoke(words[0], Arrays.copyOfRange(
+                        words, 1, words.length), System.out, System.err);
+                if (status != 0)
+                {
+                    println("Command failed with status " + status + ": "
+                            + line);
+                    failed++;
+                }
+            }
+            reader.close();
+        }
+        catch (IOException e)
+        {
+            println("Unable to read commands: " + e);
+            System.exit(1);
+        }
+        if (failed > 0)
+            System.exit(1);
+    }
+
+    // Generic output routines.
+    public static void println(String msg)
+    {
+        System.out.println(msg);
+    }
+}
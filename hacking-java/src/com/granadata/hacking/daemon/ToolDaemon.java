@@ -0,0 +1,504 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.daemon;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+import java.util.TimeZone;
+
+import joptsimple.OptionException;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+
+/**
+ * Keeps a warmed JVM resident and runs tool invocations sent by
+ * bin/toolclient, so repeated short runs skip JVM startup, class loading and
+ * JIT compilation. A tool is any class with a method
+ * <code>public static int run(String[] args)</code> that returns an exit
+ * status rather than calling System.exit().
+ * <p>
+ * The daemon listens on a Unix domain socket in a directory that only the
+ * owner can open, so file permissions keep other users out. Clients must
+ * run in the directory where the daemon starts, since tools resolve
+ * relative paths against the JVM working directory, which cannot change.
+ * Invocations run one at a time because standard output, standard error and
+ * the default time zone are process-wide.
+ * <p>
+ * Requests are a length followed by the client directory, the class name,
+ * an argument count and the arguments, each string in
+ * {@link DataOutputStream#writeUTF} format. A client must send the whole
+ * request within the read timeout, and oversized requests are refused from
+ * the length alone, so a stalled client cannot hold up the daemon.
+ * Responses are frames of a type byte, a length and data: standard output,
+ * standard error and finally the exit status.
+ */
+public class ToolDaemon
+{
+    /** Default directory for the socket, relative to the daemon's. */
+    public static final String SOCKET_DIR  = ".tooldaemon";
+
+    /** Name of the socket within its directory. */
+    public static final String SOCKET_NAME = "socket";
+
+    /** Largest request accepted, in bytes. */
+    public static final int    MAX_REQUEST = 1 << 20;
+
+    /** Class name that stops the daemon instead of running a tool. */
+    public static final String STOP        = "stop";
+
+    // Response frame types.
+    public static final byte   FRAME_OUT   = 'O';
+    public static final byte   FRAME_ERR   = 'E';
+    public static final byte   FRAME_EXIT  = 'X';
+
+    private final ServerSocketChannel server;
+    private final Path                socket;
+    private final int                 timeoutMillis;
+    private final File                directory;
+    private final PrintStream         log;
+    private volatile boolean          stopped;
+    private long                      invocations;
+
+    /**
+     * Creates a daemon listening on a Unix domain socket. The socket
+     * directory is created if needed and restricted to the owner.
+     *
+     * @param socketDir Directory for the socket
+     * @param timeoutMillis Time allowed for a client to send its request
+     * @param log Stream for the daemon's own messages
+     */
+    public ToolDaemon(File socketDir, int timeoutMillis, PrintStream log)
+            throws IOException
+    {
+        this.socket = prepareSocket(socketDir.toPath());
+        this.server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try
+        {
+            server.bind(UnixDomainSocketAddress.of(socket));
+        }
+        catch (IOException e)
+        {
+            server.close();
+            throw e;
+        }
+        this.timeoutMillis = timeoutMillis;
+        this.directory = new File(System.getProperty("user.dir"))
+                .getCanonicalFile();
+        this.log = log;
+    }
+
+    /** Returns the path of the socket clients connect to. */
+    public Path getSocketPath()
+    {
+        return socket;
+    }
+
+    /** Returns the number of tool invocations served. */
+    public long getInvocations()
+    {
+        return invocations;
+    }
+
+    // Creates the socket directory with owner-only permissions, tightening
+    // them if it already exists, and removes a socket left by a daemon that
+    // did not shut down cleanly. A socket that still accepts connections
+    // belongs to a live daemon and is left alone.
+    private static Path prepareSocket(Path dir) throws IOException
+    {
+        Set<PosixFilePermission> ownerOnly = PosixFilePermissions
+                .fromString("rwx------");
+        if (!Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS))
+            Files.createDirectory(dir, PosixFilePermissions
+                    .asFileAttribute(ownerOnly));
+        Files.setPosixFilePermissions(dir, ownerOnly);
+        Path socket = dir.resolve(SOCKET_NAME);
+        if (Files.exists(socket, LinkOption.NOFOLLOW_LINKS))
+        {
+            boolean live;
+            try
+            {
+                SocketChannel.open(UnixDomainSocketAddress.of(socket))
+                        .close();
+                live = true;
+            }
+            catch (IOException e)
+            {
+                live = false;
+            }
+            if (live)
+                throw new IOException("Daemon already listening on "
+                        + socket);
+            Files.delete(socket);
+        }
+        return socket;
+    }
+
+    /**
+     * Accepts and serves connections until a client sends {@link #STOP} or
+     * the daemon is closed.
+     */
+    public void serve() throws IOException
+    {
+        while (!stopped)
+        {
+            SocketChannel channel;
+            try
+            {
+                channel = server.accept();
+            }
+            catch (IOException e)
+            {
+                if (stopped)
+                    break;
+                throw e;
+            }
+            try
+            {
+                handle(channel);
+            }
+            catch (IOException e)
+            {
+                log.println("Connection failed: " + e);
+            }
+            finally
+            {
+                channel.close();
+            }
+        }
+    }
+
+    /** Stops serving and removes the socket. */
+    public void close() throws IOException
+    {
+        stopped = true;
+        server.close();
+        Files.deleteIfExists(socket);
+    }
+
+    // Reads one request, runs it and sends back the results.
+    private void handle(SocketChannel channel) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                readRequest(channel)));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Channels.newOutputStream(channel), 8192));
+        String clientDirectory = in.readUTF();
+        String className = in.readUTF();
+        int argc = in.readInt();
+        if (argc < 0 || argc > 65536)
+            throw new IOException("Bad argument count: " + argc);
+        String[] args = new String[argc];
+        for (int i = 0; i < argc; i++)
+            args[i] = in.readUTF();
+
+        FrameOutputStream stdout = new FrameOutputStream(out, FRAME_OUT);
+        FrameOutputStream stderr = new FrameOutputStream(out, FRAME_ERR);
+        int status;
+        if (STOP.equals(className))
+        {
+            stdout.write(("Stopping daemon after " + invocations
+                    + " invocations\n").getBytes("UTF-8"));
+            status = 0;
+            stopped = true;
+        }
+        else if (!directory.equals(new File(clientDirectory)
+                .getCanonicalFile()))
+        {
+            stderr.write(("Daemon runs in " + directory
+                    + "; run the client from there\n").getBytes("UTF-8"));
+            status = 1;
+        }
+        else
+        {
+            long start = System.nanoTime();
+            status = invoke(className, args, new PrintStream(stdout, true,
+                    "UTF-8"), new PrintStream(stderr, true, "UTF-8"));
+            invocations++;
+            log.println(String.format("Ran %s status=%d secs=%.3f",
+                    className, status,
+                    (System.nanoTime() - start) / 1000000000.0));
+        }
+        synchronized (out)
+        {
+            out.writeByte(FRAME_EXIT);
+            out.writeInt(4);
+            out.writeInt(status);
+            out.flush();
+        }
+        if (stopped)
+            close();
+    }
+
+    // Reads the length-prefixed request body, giving up if the whole request
+    // does not arrive within the timeout. Unix domain channels have no
+    // SO_TIMEOUT, so the read is non-blocking under a selector. The channel
+    // is back in blocking mode on return so responses can use streams.
+    private byte[] readRequest(SocketChannel channel) throws IOException
+    {
+        long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+        ByteBuffer body;
+        channel.configureBlocking(false);
+        Selector selector = Selector.open();
+        try
+        {
+            channel.register(selector, SelectionKey.OP_READ);
+            ByteBuffer length = ByteBuffer.allocate(4);
+            readFully(channel, selector, length, deadline);
+            int size = length.getInt(0);
+            if (size < 0 || size > MAX_REQUEST)
+                throw new IOException("Bad request length: " + size);
+            body = ByteBuffer.allocate(size);
+            readFully(channel, selector, body, deadline);
+        }
+        finally
+        {
+            // Closing the selector deregisters the channel.
+            selector.close();
+        }
+        channel.configureBlocking(true);
+        return body.array();
+    }
+
+    // Fills a buffer from a non-blocking channel before the deadline.
+    private void readFully(SocketChannel channel, Selector selector,
+            ByteBuffer buffer, long deadline) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            long wait = (deadline - System.nanoTime()) / 1000000;
+            if (wait <= 0)
+                throw new SocketTimeoutException("Request not received in "
+                        + timeoutMillis + " ms");
+            if (selector.select(wait) == 0)
+                continue;
+            selector.selectedKeys().clear();
+            if (channel.read(buffer) < 0)
+                throw new EOFException("Client closed before sending "
+                        + "its request");
+        }
+    }
+
+    /**
+     * Runs a tool with standard output and error redirected, restoring them
+     * and the default time zone afterwards.
+     *
+     * @param className Tool class
+     * @param args Tool arguments
+     * @param out Stream for standard output
+     * @param err Stream for standard error
+     * @return Exit status of the tool, or 1 if it could not run or threw
+     */
+    public static synchronized int invoke(String className, String[] args,
+            PrintStream out, PrintStream err)
+    {
+        PrintStream savedOut = System.out;
+        PrintStream savedErr = System.err;
+        TimeZone savedZone = TimeZone.getDefault();
+        System.setOut(out);
+        System.setErr(err);
+        try
+        {
+            Method run = Class.forName(className).getMethod("run",
+                    String[].class);
+            if (!Modifier.isStatic(run.getModifiers())
+                    || run.getReturnType() != int.class)
+            {
+                err.println("Not a tool: " + className
+                        + " must have public static int run(String[])");
+                return 1;
+            }
+            return (Integer) run.invoke(null, (Object) args);
+        }
+        catch (ClassNotFoundException e)
+        {
+            err.println("Tool class not found: " + className);
+            return 1;
+        }
+        catch (NoSuchMethodException e)
+        {
+            err.println("Not a tool: " + className
+                    + " must have public static int run(String[])");
+            return 1;
+        }
+        catch (InvocationTargetException e)
+        {
+            e.getCause().printStackTrace(err);
+            return 1;
+        }
+        catch (IllegalAccessException e)
+        {
+            err.println("Unable to run tool: " + e);
+            return 1;
+        }
+        finally
+        {
+            out.flush();
+            err.flush();
+            System.setOut(savedOut);
+            System.setErr(savedErr);
+            TimeZone.setDefault(savedZone);
+        }
+    }
+
+    /**
+     * Sends everything written to it as frames of one type. Writes from
+     * different streams and threads are serialized on the socket stream.
+     */
+    private static class FrameOutputStream extends OutputStream
+    {
+        private final DataOutputStream out;
+        private final byte             type;
+
+        FrameOutputStream(DataOutputStream out, byte type)
+        {
+            this.out = out;
+            this.type = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0)
+                return;
+            synchronized (out)
+            {
+                out.writeByte(type);
+                out.writeInt(len);
+                out.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            synchronized (out)
+            {
+                out.flush();
+            }
+        }
+    }
+
+    /**
+     * Accept options and serve until stopped.
+     */
+    public static void main(String[] args)
+    {
+        OptionParser parser = new OptionParser();
+        parser.accepts("socket-dir", "Owner-only directory for the socket")
+                .withRequiredArg().ofType(String.class)
+                .defaultsTo(SOCKET_DIR);
+        parser.accepts("timeout", "Milliseconds allowed to send a request")
+                .withRequiredArg().ofType(Integer.class).defaultsTo(10000);
+        parser.accepts("help");
+
+        // Parse options.
+        OptionSet options = null;
+        try
+        {
+            options = parser.parse(args);
+        }
+        catch (OptionException e)
+        {
+            println("Parsing failed: " + e.getMessage());
+            println("Try --help for command line options");
+            System.exit(1);
+        }
+        if (options.has("help"))
+        {
+            try
+            {
+                println("Run tools in a resident JVM for bin/toolclient");
+                println("Usage: tooldaemon [options]");
+                parser.printHelpOn(System.out);
+            }
+            catch (IOException e)
+            {
+                // This is very unlikely.
+                e.printStackTrace();
+            }
+            System.exit(0);
+        }
+
+        File socketDir = new File((String) options.valueOf("socket-dir"));
+        ToolDaemon daemon = null;
+        try
+        {
+            daemon = new ToolDaemon(socketDir,
+                    (Integer) options.valueOf("timeout"), System.out);
+            println("Listening on " + daemon.getSocketPath() + " in "
+                    + daemon.directory);
+            daemon.serve();
+            println("Stopped after " + daemon.getInvocations()
+                    + " invocations");
+            daemon.close();
+        }
+        catch (IOException e)
+        {
+            println("Daemon failed: " + e);
+            try
+            {
+                if (daemon != null)
+                    daemon.close();
+            }
+            catch (IOException ce)
+            {
+                // Exiting anyway.
+            }
+            System.exit(1);
+        }
+    }
+
+    // Generic output routines.
+    public static void println(String msg)
+    {
+        System.out.println(msg);
+    }
+}
@@ -0,0 +1,571 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.depend;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Executes the component dependency command language of data/proga.dat.
+ * Commands are one per line:
+ * <ul>
+ * <li>DEPEND item dep1 dep2 ... - item depends on the listed components</li>
+ * <li>INSTALL item - install item and, first, any dependencies that are not
+ * installed</li>
+ * <li>REMOVE item - remove item if nothing installed needs it, then remove
+ * dependencies that were installed implicitly and are no longer needed</li>
+ * <li>LIST - list installed components in installation order</li>
+ * <li>END - stop processing</li>
+ * </ul>
+ * Each command line is echoed followed by indented results, as in the
+ * classic form of this problem. Dependencies should be declared before the
+ * components that use them are installed; later declarations apply to later
+ * installs.
+ * <p>
+ * Components are interned as integer IDs and all state lives in primitive
+ * arrays: dependency lists are linked lists in shared edge arrays, each
+ * installed component keeps a count of installed components that depend on
+ * it, each edge records whether it was counted when its component was
+ * installed, so that remove undoes exactly what install did, and
+ * installation order is a doubly linked list through ID arrays.
+ * Install and remove walk the graph with explicit stacks, so deep
+ * dependency chains cannot overflow the thread stack. Input is read in
+ * buffers and parsed in place, so memory depends on the number of
+ * components and edges but not on the number of commands. Engines are not
+ * thread-safe.
+ */
+public class DependencyEngine
+{
+    // Component states.
+    private static final byte   NOT_INSTALLED = 0;
+    private static final byte   IMPLICIT      = 1;
+    private static final byte   EXPLICIT      = 2;
+    private static final byte   VISITING      = 3;
+
+    private static final int    NONE          = -1;
+
+    // Command keywords.
+    private static final byte[] DEPEND        = bytes("DEPEND");
+    private static final byte[] INSTALL       = bytes("INSTALL");
+    private static final byte[] REMOVE        = bytes("REMOVE");
+    private static final byte[] LIST          = bytes("LIST");
+    private static final byte[] END           = bytes("END");
+
+    private final NameTable     names;
+    private final OutputStream  out;
+
+    // Per-component state, indexed by ID.
+    private byte[]              state         = new byte[1024];
+    private int[]               refs          = new int[1024];
+    private int[]               head          = new int[1024];
+    private int[]               tail          = new int[1024];
+    private int[]               prev          = new int[1024];
+    private int[]               next          = new int[1024];
+    private int                 capacity      = 1024;
+
+    // Dependency edges. Edge e points to component target[e],
+    // edgeNext[e] is the next edge from the same component and counted[e]
+    // is true if the edge added to refs[target[e]] at install.
+    private int[]               target        = new int[4096];
+    private int[]               edgeNext      = new int[4096];
+    private boolean[]           counted       = new boolean[4096];
+    private int                 edges;
+
+    // Installation order.
+    private int                 first         = NONE;
+    private int                 last          = NONE;
+    private int                 installed;
+
+    // Stack for graph walks: component and next edge to visit.
+    private int[]               stackItem     = new int[256];
+    private int[]               stackEdge     = new int[256];
+    private int                 depth;
+
+    // Output buffer and statistics.
+    private final byte[]        outBuf        = new byte[65536];
+    private int                 outLen;
+    private long                commands;
+    private long                outputBytes;
+
+    /**
+     * Creates an engine.
+     *
+     * @param names Table for interning component names
+     * @param out Destination for results
+     */
+    public DependencyEngine(NameTable names, OutputStream out)
+    {
+        this.names = names;
+        this.out = out;
+        Arrays.fill(head, NONE);
+    }
+
+    /**
+     * Reads and executes commands until END or end of input. Output is
+     * flushed at the end.
+     *
+     * @param in Source of commands
+     * @return True if END was seen
+     */
+    public boolean process(InputStream in) throws IOException
+    {
+        byte[] buf = new byte[65536];
+        int start = 0;
+        int end = 0;
+        boolean more = true;
+        try
+        {
+            while (true)
+            {
+                // Execute complete lines in the buffer.
+                for (int i = start; i < end; i++)
+                {
+                    if (buf[i] == '\n')
+                    {
+                        if (!execute(buf, start, i - start))
+                            return true;
+                        start = i + 1;
+                    }
+                }
+                if (!more)
+                    break;
+
+                // Move the partial line to the front, growing the buffer if
+                // a line does not fit, and read more.
+                if (start > 0)
+                {
+                    System.arraycopy(buf, start, buf, 0, end - start);
+                    end -= start;
+                    start = 0;
+                }
+                else if (end == buf.length)
+                {
+                    byte[] newBuf = new byte[buf.length * 2];
+                    System.arraycopy(buf, 0, newBuf, 0, end);
+                    buf = newBuf;
+                }
+                int n = in.read(buf, end, buf.length - end);
+                if (n < 0)
+                    more = false;
+                else
+                    end += n;
+            }
+
+            // Execute a final line without a newline.
+            if (start < end)
+                return !execute(buf, start, end - start);
+            return false;
+        }
+        finally
+        {
+            flush();
+        }
+    }
+
+    /**
+     * Executes a single command line.
+     *
+     * @param line Buffer holding the line, which may end with '\r'
+     * @param off Offset of the line
+     * @param len Length of the line, excluding the newline
+     * @return False if the command was END
+     */
+    public boolean execute(byte[] line, int off, int len) throws IOException
+    {
+        int end = off + len;
+        if (end > off && line[end - 1] == '\r')
+            end--;
+        int pos = skipSpace(line, off, end);
+        if (pos == end)
+            return true;
+        commands++;
+
+        // Echo the command.
+        put(line, off, end - off);
+        put('\n');
+
+        int wordEnd = skipWord(line, pos, end);
+        if (matches(line, pos, wordEnd, END))
+            return false;
+        else if (matches(line, pos, wordEnd, DEPEND))
+        {
+            pos = skipSpace(line, wordEnd, end);
+            if (pos == end)
+                return true;
+            wordEnd = skipWord(line, pos, end);
+            int item = intern(line, pos, wordEnd - pos);
+            while ((pos = skipSpace(line, wordEnd, end)) < end)
+            {
+                wordEnd = skipWord(line, pos, end);
+                depend(item, intern(line, pos, wordEnd - pos));
+            }
+        }
+        else if (matches(line, pos, wordEnd, INSTALL))
+        {
+            pos = skipSpace(line, wordEnd, end);
+            if (pos < end)
+                install(intern(line, pos, skipWord(line, pos, end) - pos));
+        }
+        else if (matches(line, pos, wordEnd, REMOVE))
+        {
+            pos = skipSpace(line, wordEnd, end);
+            if (pos < end)
+                remove(intern(line, pos, skipWord(line, pos, end) - pos));
+        }
+        else if (matches(line, pos, wordEnd, LIST))
+            list();
+        else
+        {
+            put("   Unknown command: ");
+            put(line, pos, wordEnd - pos);
+            put('\n');
+        }
+        return true;
+    }
+
+    /** Records that an item depends on another component. */
+    public void depend(int item, int dep)
+    {
+        if (edges == target.length)
+        {
+            target = grow(target, edges * 2);
+            edgeNext = grow(edgeNext, edges * 2);
+            counted = Arrays.copyOf(counted, edges * 2);
+        }
+        target[edges] = dep;
+        edgeNext[edges] = NONE;
+        counted[edges] = false;
+        if (head[item] == NONE)
+            head[item] = edges;
+        else
+            edgeNext[tail[item]] = edges;
+        tail[item] = edges;
+        edges++;
+    }
+
+    /**
+     * Installs an item explicitly, first installing any dependencies that
+     * are not installed. Dependencies are installed depth first so that
+     * each component follows its own dependencies.
+     */
+    public void install(int item) throws IOException
+    {
+        if (state[item] != NOT_INSTALLED)
+        {
+            putName("   ", item, " is already installed.\n");
+            return;
+        }
+
+        // Components on the stack are marked as visiting, which ends cycles.
+        state[item] = VISITING;
+        push(item);
+        while (depth > 0)
+        {
+            int top = depth - 1;
+            int e = stackEdge[top];
+            if (e != NONE)
+            {
+                stackEdge[top] = edgeNext[e];
+                int dep = target[e];
+                if (state[dep] == NOT_INSTALLED)
+                {
+                    state[dep] = VISITING;
+                    push(dep);
+                }
+                continue;
+            }
+
+            // All dependencies are installed, so install this component.
+            int c = stackItem[top];
+            depth--;
+            state[c] = c == item ? EXPLICIT : IMPLICIT;
+            for (e = head[c]; e != NONE; e = edgeNext[e])
+            {
+                int dep = target[e];
+                if (state[dep] == IMPLICIT || state[dep] == EXPLICIT)
+                {
+                    refs[dep]++;
+                    counted[e] = true;
+                }
+            }
+            link(c);
+            putName("   Installing ", c, "\n");
+        }
+    }
+
+    /**
+     * Removes an item if it is installed and no installed component depends
+     * on it, then removes implicitly installed dependencies that are no
+     * longer needed. Only edges counted at install release a dependency, so
+     * dependencies declared after an install do not free components that
+     * others still need.
+     */
+    public void remove(int item) throws IOException
+    {
+        if (state[item] == NOT_INSTALLED)
+        {
+            putName("   ", item, " is not installed.\n");
+            return;
+        }
+        if (refs[item] > 0)
+        {
+            putName("   ", item, " is still needed.\n");
+            return;
+        }
+
+        // Remove each component as it is pushed, then visit its
+        // dependencies in order.
+        uninstall(item);
+        push(item);
+        while (depth > 0)
+        {
+            int top = depth - 1;
+            int e = stackEdge[top];
+            if (e == NONE)
+            {
+                depth--;
+                continue;
+            }
+            stackEdge[top] = edgeNext[e];
+            int dep = target[e];
+            if (counted[e])
+            {
+                counted[e] = false;
+                refs[dep]--;
+                if (refs[dep] == 0 && state[dep] == IMPLICIT)
+                {
+                    uninstall(dep);
+                    push(dep);
+                }
+            }
+        }
+    }
+
+    /** Lists installed components in installation order. */
+    public void list() throws IOException
+    {
+        for (int c = first; c != NONE; c = next[c])
+            putName("   ", c, "\n");
+    }
+
+    /** Writes buffered output. */
+    public void flush() throws IOException
+    {
+        if (outLen > 0)
+        {
+            out.write(outBuf, 0, outLen);
+            outputBytes += outLen;
+            outLen = 0;
+        }
+        out.flush();
+    }
+
+    public NameTable getNames()
+    {
+        return names;
+    }
+
+    /** Returns the number of commands executed. */
+    public long getCommands()
+    {
+        return commands;
+    }
+
+    /** Returns the number of dependency edges. */
+    public int getEdges()
+    {
+        return edges;
+    }
+
+    /** Returns the number of installed components. */
+    public int getInstalled()
+    {
+        return installed;
+    }
+
+    /** Returns true if a component is installed. */
+    public boolean isInstalled(int item)
+    {
+        return state[item] == IMPLICIT || state[item] == EXPLICIT;
+    }
+
+    /** Returns the number of bytes of output written so far. */
+    public long getOutputBytes()
+    {
+        return outputBytes + outLen;
+    }
+
+    /**
+     * Returns the approximate number of bytes used for names, component
+     * state and edges.
+     */
+    public long getMemoryBytes()
+    {
+        return names.getMemoryBytes() + 21L * capacity + 8L * target.length
+                + 8L * stackItem.length;
+    }
+
+    // Interns a name and makes room for its state.
+    private int intern(byte[] buf, int off, int len)
+    {
+        int id = names.intern(buf, off, len);
+        if (id >= capacity)
+        {
+            int newCapacity = Math.max(capacity * 2, id + 1);
+            byte[] newState = new byte[newCapacity];
+            System.arraycopy(state, 0, newState, 0, capacity);
+            state = newState;
+            refs = grow(refs, newCapacity);
+            head = grow(head, newCapacity);
+            tail = grow(tail, newCapacity);
+            prev = grow(prev, newCapacity);
+            next = grow(next, newCapacity);
+            Arrays.fill(head, capacity, newCapacity, NONE);
+            capacity = newCapacity;
+        }
+        return id;
+    }
+
+    // Marks a component installed and appends it to the order.
+    private void link(int c)
+    {
+        prev[c] = last;
+        next[c] = NONE;
+        if (last == NONE)
+            first = c;
+        else
+            next[last] = c;
+        last = c;
+        installed++;
+    }
+
+    // Marks a component not installed and unlinks it from the order.
+    private void uninstall(int c) throws IOException
+    {
+        state[c] = NOT_INSTALLED;
+        refs[c] = 0;
+        if (prev[c] == NONE)
+            first = next[c];
+        else
+            next[prev[c]] = next[c];
+        if (next[c] == NONE)
+            last = prev[c];
+        else
+            prev[next[c]] = prev[c];
+        installed--;
+        putName("   Removing ", c, "\n");
+    }
+
+    private void push(int c)
+    {
+        if (depth == stackItem.length)
+        {
+            stackItem = grow(stackItem, depth * 2);
+            stackEdge = grow(stackEdge, depth * 2);
+        }
+        stackItem[depth] = c;
+        stackEdge[depth] = head[c];
+        depth++;
+    }
+
+    private static int[] grow(int[] array, int length)
+    {
+        int[] newArray = new int[length];
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        return newArray;
+    }
+
+    // Output helpers, which write ASCII to the output buffer.
+    private void putName(String before, int id, String after)
+            throws IOException
+    {
+        put(before);
+        int len = names.nameLength(id);
+        if (outLen + len > outBuf.length)
+            flush();
+        if (len > outBuf.length)
+        {
+            byte[] name = new byte[len];
+            names.copyName(id, name, 0);
+            out.write(name);
+            outputBytes += len;
+        }
+        else
+            outLen += names.copyName(id, outBuf, outLen);
+        put(after);
+    }
+
+    private void put(String s) throws IOException
+    {
+        for (int i = 0; i < s.length(); i++)
+            put((byte) s.charAt(i));
+    }
+
+    private void put(byte[] buf, int off, int len) throws IOException
+    {
+        for (int i = off; i < off + len; i++)
+            put(buf[i]);
+    }
+
+    private void put(int b) throws IOException
+    {
+        if (outLen == outBuf.length)
+            flush();
+        outBuf[outLen++] = (byte) b;
+    }
+
+    // Parsing helpers.
+    private static int skipSpace(byte[] buf, int pos, int end)
+    {
+        while (pos < end && (buf[pos] == ' ' || buf[pos] == '\t'))
+            pos++;
+        return pos;
+    }
+
+    private static int skipWord(byte[] buf, int pos, int end)
+    {
+        while (pos < end && buf[pos] != ' ' && buf[pos] != '\t')
+            pos++;
+        return pos;
+    }
+
+    private static boolean matches(byte[] buf, int start, int end,
+            byte[] word)
+    {
+        if (end - start != word.length)
+            return false;
+        for (int i = 0; i < word.length; i++)
+        {
+            if (buf[start + i] != word[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static byte[] bytes(String s)
+    {
+        byte[] b = new byte[s.length()];
+        for (int i = 0; i < b.length; i++)
+            b[i] = (byte) s.charAt(i);
+        return b;
+    }
+}
@@ -0,0 +1,227 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.depend;
+
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import joptsimple.OptionException;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+
+import com.granadata.hacking.compression.GeneratorInputStream;
+
+/**
+ * Runs the component dependency engine on a command file such as
+ * data/proga.dat, or streams a synthetic workload through it and reports
+ * throughput. The workload is generated as it is read, so runs with tens of
+ * millions of commands need memory only for the component graph.
+ */
+public class DependencyLab
+{
+    /**
+     * Accept options and run.
+     */
+    public static void main(String[] args)
+    {
+        int status = run(args);
+        if (status != 0)
+            System.exit(status);
+    }
+
+    /**
+     * Runs the tool without exiting, for callers such as the tool daemon.
+     *
+     * @return Exit status, which is 0 on success
+     */
+    public static int run(String[] args)
+    {
+        OptionParser parser = new OptionParser();
+        parser.accepts("input",
+                "Command file to execute; results go to standard output")
+                .withRequiredArg().ofType(String.class);
+        parser.accepts("generate",
+                "Write a synthetic command file instead of executing")
+                .withRequiredArg().ofType(String.class);
+        parser.accepts("output", "File for results instead of discarding "
+                + "them (synthetic) or printing them (--input)")
+                .withRequiredArg().ofType(String.class);
+        parser.accepts("quiet", "Discard results and print statistics");
+        parser.accepts("components", "Number of synthetic components")
+                .withRequiredArg().ofType(Integer.class).defaultsTo(1000000);
+        parser.accepts("commands",
+                "Number of synthetic commands after declarations")
+                .withRequiredArg().ofType(Long.class).defaultsTo(10000000L);
+        parser.accepts("max-depends",
+                "Maximum dependencies per synthetic component")
+                .withRequiredArg().ofType(Integer.class).defaultsTo(4);
+        parser.accepts("list-interval",
+                "Issue LIST every this many synthetic commands, or 0 for never")
+                .withRequiredArg().ofType(Long.class).defaultsTo(0L);
+        parser.accepts("seed", "Seed for the synthetic workload")
+                .withRequiredArg().ofType(Long.class).defaultsTo(1L);
+        parser.accepts("names",
+                "Name table: probing (open addressing) or khash (KHashTable)")
+                .withRequiredArg().ofType(String.class).defaultsTo("probing");
+        parser.accepts("help");
+
+        // Parse options.
+        OptionSet options = null;
+        try
+        {
+            options = parser.parse(args);
+        }
+        catch (OptionException e)
+        {
+            println("Parsing failed: " + e.getMessage());
+            println("Try --help for command line options");
+            return 1;
+        }
+        if (options.has("help"))
+        {
+            try
+            {
+                println("Execute DEPEND/INSTALL/REMOVE/LIST/END command streams");
+                println("Usage: dependencylab [options]");
+                parser.printHelpOn(System.out);
+            }
+            catch (IOException e)
+            {
+                // This is very unlikely.
+                e.printStackTrace();
+            }
+            return 0;
+        }
+
+        int components = (Integer) options.valueOf("components");
+        DependencyWorkload workload = new DependencyWorkload(components,
+                (Long) options.valueOf("commands"),
+                (Integer) options.valueOf("max-depends"),
+                (Long) options.valueOf("list-interval"),
+                (Long) options.valueOf("seed"));
+        try
+        {
+            if (options.has("generate"))
+            {
+                generate(workload, (String) options.valueOf("generate"));
+                return 0;
+            }
+
+            // Choose the name table.
+            String type = (String) options.valueOf("names");
+            NameTable names;
+            if ("probing".equals(type))
+                names = new ProbingNameTable(components);
+            else if ("khash".equals(type))
+                names = new KHashNameTable(components);
+            else
+            {
+                println("Unknown name table: " + type);
+                return 1;
+            }
+
+            // Choose input and output.
+            InputStream in;
+            OutputStream out;
+            boolean stats;
+            if (options.has("input"))
+            {
+                in = new FileInputStream((String) options.valueOf("input"));
+                stats = options.has("quiet");
+            }
+            else
+            {
+                in = new GeneratorInputStream(workload, Long.MAX_VALUE);
+                stats = true;
+            }
+            if (options.has("output"))
+                out = new BufferedOutputStream(new FileOutputStream(
+                        (String) options.valueOf("output")), 65536);
+            else if (stats)
+                out = OutputStream.nullOutputStream();
+            else
+                out = System.out;
+
+            run(new DependencyEngine(names, out), in, stats);
+            in.close();
+            if (out != System.out)
+                out.close();
+        }
+        catch (IOException e)
+        {
+            println("Run failed: " + e);
+            return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Executes commands and optionally prints statistics.
+     */
+    public static void run(DependencyEngine engine, InputStream in,
+            boolean stats) throws IOException
+    {
+        Runtime runtime = Runtime.getRuntime();
+        long start = System.nanoTime();
+        engine.process(in);
+        double seconds = (System.nanoTime() - start) / 1000000000.0;
+        if (!stats)
+            return;
+        long heap = runtime.totalMemory() - runtime.freeMemory();
+        println(String.format(
+                "Commands: %d  Secs: %.3f  Commands/s: %.0f  Output MB: %.1f",
+                engine.getCommands(), seconds, engine.getCommands() / seconds,
+                engine.getOutputBytes() / 1000000.0));
+        println(String.format(
+                "Components: %d  Edges: %d  Installed: %d  Graph MB: %.1f  "
+                        + "Heap MB: %.1f", engine.getNames().size(),
+                engine.getEdges(), engine.getInstalled(),
+                engine.getMemoryBytes() / 1000000.0, heap / 1000000.0));
+    }
+
+    /**
+     * Writes a workload to a file.
+     */
+    public static void generate(DependencyWorkload workload, String file)
+            throws IOException
+    {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(
+                file), 65536);
+        byte[] line = new byte[4096];
+        for (long i = 0; i < workload.getTotalCommands(); i++)
+        {
+            int len = workload.nextLine(line, 0);
+            out.write(line, 0, len);
+        }
+        out.close();
+        println("Wrote " + workload.getTotalCommands() + " commands to "
+                + file);
+    }
+
+    // Generic output routines.
+    public static void println(String msg)
+    {
+        System.out.println(msg);
+    }
+}
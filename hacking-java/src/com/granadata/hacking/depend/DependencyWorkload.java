@@ -0,0 +1,130 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.depend;
+
+import com.granadata.hacking.compression.LineDataGenerator;
+
+/**
+ * Generates a synthetic command stream for {@link DependencyEngine}. The
+ * stream first declares dependencies for every component, then issues a mix
+ * of INSTALL and REMOVE commands with an occasional LIST, and ends with END.
+ * Components only depend on components with lower numbers, which keeps the
+ * graph acyclic, and the choice is skewed toward low numbers so that a few
+ * core components are shared widely, as libraries are. Half of the removes
+ * target recently installed components so that they often succeed. After
+ * END the generator repeats END indefinitely.
+ */
+public class DependencyWorkload extends LineDataGenerator
+{
+    private final int   components;
+    private final long  commands;
+    private final int   maxDepends;
+    private final long  listInterval;
+
+    // Position in the stream.
+    private int         declared;
+    private long        issued;
+
+    // Recently installed components.
+    private final int[] recent = new int[1024];
+    private int         recentCount;
+
+    /**
+     * Creates a workload.
+     *
+     * @param components Number of components
+     * @param commands Number of INSTALL, REMOVE and LIST commands after the
+     *            declarations
+     * @param maxDepends Maximum number of dependencies per component
+     * @param listInterval Issue LIST every this many commands, or 0 for never
+     * @param seed Seed for pseudo-random choices
+     */
+    public DependencyWorkload(int components, long commands, int maxDepends,
+            long listInterval, long seed)
+    {
+        super(seed);
+        this.components = components;
+        this.commands = commands;
+        this.maxDepends = maxDepends;
+        this.listInterval = listInterval;
+    }
+
+    @Override
+    public String getName()
+    {
+        return "depend";
+    }
+
+    /** Returns the total number of commands including declarations and END. */
+    public long getTotalCommands()
+    {
+        return components + commands + 1;
+    }
+
+    @Override
+    protected void generateLine()
+    {
+        if (declared < components)
+        {
+            int item = declared++;
+            append("DEPEND ");
+            appendName(item);
+            int n = item == 0 ? 0 : nextInt(maxDepends + 1);
+            for (int i = 0; i < n; i++)
+            {
+                // Cube a uniform value to favor low-numbered components.
+                double u = nextInt(1 << 20) / (double) (1 << 20);
+                append(' ');
+                appendName((int) (item * u * u * u));
+            }
+        }
+        else if (issued < commands)
+        {
+            issued++;
+            if (listInterval > 0 && issued % listInterval == 0)
+                append("LIST");
+            else if (nextInt(2) == 0)
+            {
+                int item = nextInt(components);
+                recent[recentCount++ % recent.length] = item;
+                append("INSTALL ");
+                appendName(item);
+            }
+            else
+            {
+                int item = nextInt(2) == 0 && recentCount > 0
+                        ? recent[nextInt(Math.min(recentCount, recent.length))]
+                        : nextInt(components);
+                append("REMOVE ");
+                appendName(item);
+            }
+        }
+        else
+            append("END");
+        append('\n');
+    }
+
+    // Names are "pkg-" followed by the component number.
+    private void appendName(int item)
+    {
+        append("pkg-");
+        append(item);
+    }
+}
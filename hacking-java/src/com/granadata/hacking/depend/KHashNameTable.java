@@ -0,0 +1,59 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.depend;
+
+import java.nio.charset.StandardCharsets;
+
+import com.granadata.hacking.knuth.hashing.KHashTable;
+import com.granadata.hacking.knuth.hashing.MultiplicativeHashMethod;
+
+/**
+ * Name table indexed by {@link KHashTable} with multiplicative hashing.
+ * Each lookup creates a String key and the table allocates an entry per
+ * name, so this is slower than {@link ProbingNameTable}, but it is useful for
+ * comparing the two.
+ */
+public class KHashNameTable extends NameTable
+{
+    private final KHashTable table;
+
+    /**
+     * Creates a table.
+     *
+     * @param capacity Number of hash buckets, which does not grow
+     */
+    public KHashNameTable(int capacity)
+    {
+        table = new KHashTable(capacity, new MultiplicativeHashMethod());
+    }
+
+    @Override
+    public int intern(byte[] buf, int off, int len)
+    {
+        String name = new String(buf, off, len, StandardCharsets.ISO_8859_1);
+        Integer id = (Integer) table.get(name);
+        if (id == null)
+        {
+            id = add(buf, off, len);
+            table.put(name, id);
+        }
+        return id;
+    }
+}
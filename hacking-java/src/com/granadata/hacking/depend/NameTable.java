@@ -0,0 +1,137 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.depend;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Interns component names as dense integer IDs. Names are stored as bytes
+ * back to back in a single pool, so each name costs its length plus an
+ * offset rather than a String object. Subclasses supply the index that maps
+ * names to IDs. Name tables are not thread-safe.
+ */
+public abstract class NameTable
+{
+    // Name bytes; name i occupies offsets[i] to offsets[i + 1].
+    private byte[]  pool    = new byte[1 << 16];
+    private int[]   offsets = new int[1025];
+    protected int   count;
+
+    /**
+     * Returns the ID for a name, assigning the next ID if the name is new.
+     *
+     * @param buf Buffer holding the name as ASCII bytes
+     * @param off Offset of the name
+     * @param len Length of the name
+     */
+    public abstract int intern(byte[] buf, int off, int len);
+
+    /** Returns the ID for a name given as a string, interning it. */
+    public int intern(String name)
+    {
+        byte[] bytes = name.getBytes(StandardCharsets.ISO_8859_1);
+        return intern(bytes, 0, bytes.length);
+    }
+
+    /** Returns the number of names. */
+    public int size()
+    {
+        return count;
+    }
+
+    /** Returns the length of a name in bytes. */
+    public int nameLength(int id)
+    {
+        return offsets[id + 1] - offsets[id];
+    }
+
+    /**
+     * Copies a name to a buffer.
+     *
+     * @return Number of bytes copied
+     */
+    public int copyName(int id, byte[] dest, int off)
+    {
+        int len = offsets[id + 1] - offsets[id];
+        System.arraycopy(pool, offsets[id], dest, off, len);
+        return len;
+    }
+
+    /** Returns a name as a string, which is useful for tests and messages. */
+    public String getName(int id)
+    {
+        return new String(pool, offsets[id], nameLength(id),
+                StandardCharsets.ISO_8859_1);
+    }
+
+    /** Returns the approximate number of bytes used for names. */
+    public long getMemoryBytes()
+    {
+        return pool.length + 4L * offsets.length;
+    }
+
+    /** Returns a hash code computed over name bytes. */
+    protected static int hashBytes(byte[] buf, int off, int len)
+    {
+        int h = 0;
+        for (int i = off; i < off + len; i++)
+            h = h * 31 + (buf[i] & 0xff);
+        return h;
+    }
+
+    /** Returns true if a stored name equals the given bytes. */
+    protected boolean nameEquals(int id, byte[] buf, int off, int len)
+    {
+        int start = offsets[id];
+        if (offsets[id + 1] - start != len)
+            return false;
+        for (int i = 0; i < len; i++)
+        {
+            if (pool[start + i] != buf[off + i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Appends a new name to the pool.
+     *
+     * @return ID of the new name
+     */
+    protected int add(byte[] buf, int off, int len)
+    {
+        if (count + 2 > offsets.length)
+        {
+            int[] newOffsets = new int[offsets.length * 2];
+            System.arraycopy(offsets, 0, newOffsets, 0, count + 1);
+            offsets = newOffsets;
+        }
+        int start = offsets[count];
+        if (start + len > pool.length)
+        {
+            byte[] newPool = new byte[Math.max(pool.length * 2, start + len)];
+            System.arraycopy(pool, 0, newPool, 0, start);
+            pool = newPool;
+        }
+        System.arraycopy(buf, off, pool, start, len);
+        offsets[count + 1] = start + len;
+        return count++;
+    }
+}
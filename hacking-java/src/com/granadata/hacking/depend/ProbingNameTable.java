@@ -0,0 +1,99 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.depend;
+
+import com.granadata.hacking.knuth.hashing.MultiplicativeHashMethod;
+
+/**
+ * Name table indexed by an open addressing hash table with linear probing.
+ * Each slot holds an ID and the name's hash side by side in a primitive
+ * array, so a probe reads one cache line and compares names only when the
+ * hashes match. The table doubles when it is half full, and lookups
+ * allocate nothing.
+ */
+public class ProbingNameTable extends NameTable
+{
+    // Slot i is slots[2i], which holds ID + 1 or 0 if empty, and
+    // slots[2i + 1], which holds the hash.
+    private int[] slots;
+    private int   bits;
+
+    /**
+     * Creates a table.
+     *
+     * @param expected Expected number of names, used to size the table
+     */
+    public ProbingNameTable(int expected)
+    {
+        bits = 4;
+        while ((1 << bits) < expected * 2)
+            bits++;
+        slots = new int[2 << bits];
+    }
+
+    @Override
+    public int intern(byte[] buf, int off, int len)
+    {
+        int hash = hashBytes(buf, off, len);
+        int mask = (1 << bits) - 1;
+        int index = MultiplicativeHashMethod.hash(hash, bits);
+        int slot;
+        while ((slot = slots[2 * index]) != 0)
+        {
+            if (slots[2 * index + 1] == hash
+                    && nameEquals(slot - 1, buf, off, len))
+                return slot - 1;
+            index = (index + 1) & mask;
+        }
+
+        // Add the new name.
+        int id = add(buf, off, len);
+        slots[2 * index] = id + 1;
+        slots[2 * index + 1] = hash;
+        if (count * 2 > mask + 1)
+            resize();
+        return id;
+    }
+
+    @Override
+    public long getMemoryBytes()
+    {
+        return super.getMemoryBytes() + 4L * slots.length;
+    }
+
+    // Doubles the slot array and reinserts all entries.
+    private void resize()
+    {
+        int[] oldSlots = slots;
+        bits++;
+        slots = new int[2 << bits];
+        int mask = (1 << bits) - 1;
+        for (int i = 0; i < oldSlots.length; i += 2)
+        {
+            if (oldSlots[i] == 0)
+                continue;
+            int index = MultiplicativeHashMethod.hash(oldSlots[i + 1], bits);
+            while (slots[2 * index] != 0)
+                index = (index + 1) & mask;
+            slots[2 * index] = oldSlots[i];
+            slots[2 * index + 1] = oldSlots[i + 1];
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.knuth.hashing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Maps keys to nodes with consistent hashing. Each node owns a number of
+ * virtual nodes, which are points on a ring of hash values placed by hashing
+ * the node name with a replica number. A key belongs to the node that owns
+ * the first point at or after the key's hash, wrapping around at the end.
+ * Adding a node therefore moves only the keys that fall just before its new
+ * points, about 1/n of the total, and more virtual nodes give a more even
+ * share to each node.
+ * <p>
+ * The ring depends only on the node names, not on the order of adding them,
+ * so clients that know the same nodes route every key the same way. Points
+ * are kept in sorted primitive arrays and looked up by binary search.
+ */
+public class ConsistentHashRing
+{
+    private final KHashMethod  hashMethod;
+    private final int          virtualNodes;
+    private final List<String> nodes  = new ArrayList<String>();
+
+    // Sorted points and the node that owns each one.
+    private int[]              points = new int[0];
+    private String[]           owners = new String[0];
+
+    /**
+     * Creates an empty ring.
+     *
+     * @param hashMethod Hash method for node names and keys
+     * @param virtualNodes Number of points on the ring for each node
+     */
+    public ConsistentHashRing(KHashMethod hashMethod, int virtualNodes)
+    {
+        if (virtualNodes < 1 || virtualNodes > 65536)
+            throw new IllegalArgumentException(
+                    "Virtual nodes must be between 1 and 65536: "
+                            + virtualNodes);
+        this.hashMethod = hashMethod;
+        this.virtualNodes = virtualNodes;
+    }
+
+    /**
+     * Creates an empty ring using multiplicative hashing.
+     *
+     * @param virtualNodes Number of points on the ring for each node
+     */
+    public ConsistentHashRing(int virtualNodes)
+    {
+        this(new MultiplicativeHashMethod(), virtualNodes);
+    }
+
+    public int getVirtualNodes()
+    {
+        return virtualNodes;
+    }
+
+    /** Returns the node names in sorted order. */
+    public List<String> getNodes()
+    {
+        return Collections.unmodifiableList(nodes);
+    }
+
+    /**
+     * Adds a node to the ring.
+     *
+     * @throws IllegalArgumentException Thrown if the node is already present
+     */
+    public void addNode(String node)
+    {
+        if (nodes.contains(node))
+            throw new IllegalArgumentException("Node already in ring: " + node);
+        nodes.add(node);
+        Collections.sort(nodes);
+        rebuild();
+    }
+
+    /**
+     * Removes a node from the ring.
+     *
+     * @return True if the node was present
+     */
+    public boolean removeNode(String node)
+    {
+        if (!nodes.remove(node))
+            return false;
+        rebuild();
+        return true;
+    }
+
+    /**
+     * Returns the node that owns a key.
+     *
+     * @return Node name, or null if the ring is empty
+     */
+    public String getNode(String key)
+    {
+        if (points.length == 0)
+            return null;
+        int hash = point(key);
+        int lo = 0;
+        int hi = points.length;
+        while (lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if (points[mid] < hash)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return owners[lo == points.length ? 0 : lo];
+    }
+
+    // Returns the ring position of a string. Polynomial hashes of names that
+    // differ only in a suffix, such as the replicas of one node, fall in
+    // regular patterns that give some nodes far more than their share, so
+    // the hash is scrambled with the MurmurHash3 finalizer. This is a
+    // bijection, so distinct hashes stay distinct.
+    private int point(String s)
+    {
+        int h = hashMethod.hash(s);
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    // Recomputes the sorted points. Each entry packs a point with the index
+    // of its node so that one sort orders both, with ties going to the node
+    // that sorts first by name.
+    private void rebuild()
+    {
+        long[] entries = new long[nodes.size() * virtualNodes];
+        int n = 0;
+        for (int i = 0; i < nodes.size(); i++)
+        {
+            String node = nodes.get(i);
+            for (int replica = 0; replica < virtualNodes; replica++)
+            {
+                entries[n++] = ((long) point(node + "#" + replica) << 32) | i;
+            }
+        }
+        Arrays.sort(entries);
+        points = new int[n];
+        owners = new String[n];
+        for (int i = 0; i < n; i++)
+        {
+            points[i] = (int) (entries[i] >> 32);
+            owners[i] = nodes.get((int) entries[i]);
+        }
+    }
+}
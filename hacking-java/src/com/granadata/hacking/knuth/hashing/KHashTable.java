@@ -19,7 +19,9 @@
 
 package com.granadata.hacking.knuth.hashing;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 
 /**
  * Implements a simple hash table with parameterized hash method.
@@ -170,6 +172,26 @@ public class KHashTable
         return size;
     }
 
+    /**
+     * Returns a list of all keys in the table in bucket order.
+     */
+    public List<Object> keys()
+    {
+        List<Object> keys = new ArrayList<Object>(size);
+        for (int i = 0; i < buckets.length; i++)
+        {
+            if (buckets[i] == null)
+                continue;
+            @SuppressWarnings("unchecked")
+            LinkedList<KeyValue> bucket = (LinkedList<KeyValue>) buckets[i];
+            for (KeyValue kv : bucket)
+            {
+                keys.add(kv.key);
+            }
+        }
+        return keys;
+    }
+
     /**
      * Returns an array showing the number of keys in each bucket.
      */
@@ -0,0 +1,58 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.knuth.hashing;
+
+/**
+ * Implements Knuth's multiplicative hashing. Keys are multiplied by 2^32
+ * divided by the golden ratio, and the high bits of the product are used,
+ * which spreads even similar keys evenly across buckets.
+ */
+public class MultiplicativeHashMethod implements KHashMethod
+{
+    /** Multiplier, which is 2^32 divided by the golden ratio. */
+    public static final int MULTIPLIER = 0x9E3779B9;
+
+    /**
+     * Compute hash by combining character values into a polynomial and
+     * scrambling the result. The value is never negative.
+     */
+    @Override
+    public int hash(String s)
+    {
+        int accumulator = 0;
+        for (int i = 0; i < s.length(); i++)
+        {
+            accumulator = accumulator * 31 + s.charAt(i);
+        }
+        return (accumulator * MULTIPLIER) >>> 1;
+    }
+
+    /**
+     * Returns a slot index for a key in a table of 2^bits slots, which is the
+     * high bits of the scrambled key.
+     *
+     * @param key Key value, for example a hash code
+     * @param bits Number of bits in the index, from 1 to 31
+     */
+    public static int hash(int key, int bits)
+    {
+        return (key * MULTIPLIER) >>> (32 - bits);
+    }
+}
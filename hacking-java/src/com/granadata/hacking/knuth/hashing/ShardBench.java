@@ -0,0 +1,421 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.knuth.hashing;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import joptsimple.OptionException;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+
+/**
+ * Benchmarks a {@link KHashTable} partitioned across {@link ShardServer}
+ * processes on the loopback interface. The benchmark starts the servers,
+ * loads keys, times single-key reads and batched, pipelined reads from one
+ * or more client threads, then adds shards and times rebalancing. A single
+ * in-process table gives the baseline for each run.
+ */
+public class ShardBench
+{
+    // Parameters from options.
+    private int                 shards;
+    private int                 keys;
+    private int                 valueSize;
+    private int                 batch;
+    private int                 pipeline;
+    private int                 virtualNodes;
+    private int                 threads;
+    private int                 add;
+    private int                 singleReads;
+    private String              serverOptions;
+
+    // Server processes, which are stopped on exit.
+    private final List<Process> servers = new ArrayList<Process>();
+
+    /**
+     * Accept options and run the benchmark.
+     */
+    public static void main(String[] args)
+    {
+        OptionParser parser = new OptionParser();
+        parser.accepts("shards", "Number of shard servers to start")
+                .withRequiredArg().ofType(Integer.class).defaultsTo(4);
+        parser.accepts("keys", "Number of keys to load").withRequiredArg()
+                .ofType(Integer.class).defaultsTo(1000000);
+        parser.accepts("value-size", "Length of each value")
+                .withRequiredArg().ofType(Integer.class).defaultsTo(32);
+        parser.accepts("batch", "Maximum keys per request")
+                .withRequiredArg().ofType(Integer.class).defaultsTo(256);
+        parser.accepts("pipeline", "Maximum requests in flight per shard")
+                .withRequiredArg().ofType(Integer.class).defaultsTo(8);
+        parser.accepts("virtual-nodes", "Ring points per shard")
+                .withRequiredArg().ofType(Integer.class).defaultsTo(128);
+        parser.accepts("threads", "Client threads for batched reads")
+                .withRequiredArg().ofType(Integer.class).defaultsTo(1);
+        parser.accepts("add", "Shards to add one at a time after loading")
+                .withRequiredArg().ofType(Integer.class).defaultsTo(1);
+        parser.accepts("single-reads",
+                "Number of unbatched, unpipelined reads to time")
+                .withRequiredArg().ofType(Integer.class).defaultsTo(20000);
+        parser.accepts("server-options",
+                "JVM options for servers, separated by spaces")
+                .withRequiredArg().ofType(String.class).defaultsTo("");
+        parser.accepts("help");
+
+        // Parse options.
+        OptionSet options = null;
+        try
+        {
+            options = parser.parse(args);
+        }
+        catch (OptionException e)
+        {
+            println("Parsing failed: " + e.getMessage());
+            println("Try --help for command line options");
+            System.exit(1);
+        }
+        if (options.has("help"))
+        {
+            try
+            {
+                println("Benchmark a KHashTable sharded across local servers");
+                println("Usage: shardbench [options]");
+                parser.printHelpOn(System.out);
+            }
+            catch (IOException e)
+            {
+                // This is very unlikely.
+                e.printStackTrace();
+            }
+            System.exit(0);
+        }
+
+        ShardBench bench = new ShardBench();
+        bench.shards = (Integer) options.valueOf("shards");
+        bench.keys = (Integer) options.valueOf("keys");
+        bench.valueSize = (Integer) options.valueOf("value-size");
+        bench.batch = (Integer) options.valueOf("batch");
+        bench.pipeline = (Integer) options.valueOf("pipeline");
+        bench.virtualNodes = (Integer) options.valueOf("virtual-nodes");
+        bench.threads = (Integer) options.valueOf("threads");
+        bench.add = (Integer) options.valueOf("add");
+        bench.singleReads = (Integer) options.valueOf("single-reads");
+        bench.serverOptions = (String) options.valueOf("server-options");
+        try
+        {
+            bench.run();
+        }
+        catch (Exception e)
+        {
+            println("Benchmark failed: " + e);
+            bench.stopServers();
+            System.exit(1);
+        }
+        bench.stopServers();
+    }
+
+    /**
+     * Runs all phases of the benchmark.
+     */
+    public void run() throws Exception
+    {
+        printSeparator();
+        println("Configuration info...");
+        println(String.format("shards: %d keys: %d value size: %d", shards,
+                keys, valueSize));
+        println(String.format(
+                "batch: %d pipeline: %d virtual nodes: %d threads: %d",
+                batch, pipeline, virtualNodes, threads));
+
+        // Keys are loaded in sequence and read in a shuffled order.
+        final String[] allKeys = new String[keys];
+        for (int i = 0; i < keys; i++)
+            allKeys[i] = "key-" + i;
+        shuffle(allKeys, new Random(1));
+
+        // Baseline with one table in this process.
+        printSeparator();
+        KHashTable local = new KHashTable(Math.max(1, keys),
+                new MultiplicativeHashMethod());
+        long start = System.nanoTime();
+        for (int i = 0; i < keys; i++)
+            local.put(allKeys[i], value(allKeys[i]));
+        printOps("local put", keys, System.nanoTime() - start);
+        start = System.nanoTime();
+        for (int i = 0; i < keys; i++)
+        {
+            if (local.get(allKeys[i]) == null)
+                throw new Exception("Local key missing: " + allKeys[i]);
+        }
+        printOps("local get", keys, System.nanoTime() - start);
+        local = null;
+
+        // Start servers and load them.
+        printSeparator();
+        int capacity = Math.max(1024, keys / shards);
+        ShardClient client = new ShardClient(virtualNodes, batch, pipeline);
+        for (int i = 0; i < shards; i++)
+            client.connect(startServer(capacity));
+        println("Started shards: " + client.getShards());
+        start = System.nanoTime();
+        int chunk = 65536;
+        for (int off = 0; off < keys; off += chunk)
+        {
+            int len = Math.min(chunk, keys - off);
+            String[] chunkKeys = new String[len];
+            String[] chunkValues = new String[len];
+            for (int i = 0; i < len; i++)
+            {
+                chunkKeys[i] = allKeys[off + i];
+                chunkValues[i] = value(chunkKeys[i]);
+            }
+            client.putAll(chunkKeys, chunkValues);
+        }
+        printOps("put", keys, System.nanoTime() - start);
+        printSizes(client);
+
+        // Time round trips with one key per request.
+        int n = Math.min(singleReads, keys);
+        start = System.nanoTime();
+        for (int i = 0; i < n; i++)
+        {
+            if (client.get(allKeys[i]) == null)
+                throw new Exception("Key missing: " + allKeys[i]);
+        }
+        long elapsed = System.nanoTime() - start;
+        printOps("single get", n, elapsed);
+        println(String.format("Mean round trip usecs: %.1f", elapsed
+                / 1000.0 / Math.max(1, n)));
+
+        // Batched, pipelined reads of every key.
+        readAll(client, allKeys);
+
+        // Add shards and check that every key is still found.
+        for (int i = 0; i < add; i++)
+        {
+            printSeparator();
+            String address = startServer(capacity);
+            int before = client.getShards().size();
+            start = System.nanoTime();
+            long moved = client.addShard(address);
+            elapsed = System.nanoTime() - start;
+            println(String.format(
+                    "Added shard %s Moved: %d (%.1f%%, ideal %.1f%%) Secs: %.3f Keys/s: %.0f",
+                    address, moved, moved * 100.0 / keys,
+                    100.0 / (before + 1), elapsed / 1000000000.0, moved
+                            / (elapsed / 1000000000.0)));
+            printSizes(client);
+            readAll(client, allKeys);
+        }
+        client.close();
+    }
+
+    // Reads all keys with batches and pipelining on the configured number of
+    // threads, each with its own client, and checks values.
+    private void readAll(ShardClient client, final String[] allKeys)
+            throws Exception
+    {
+        final List<String> addresses = client.getShards();
+        final Exception[] errors = new Exception[threads];
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++)
+        {
+            final int id = t;
+            workers[t] = new Thread("reader-" + t)
+            {
+                public void run()
+                {
+                    try
+                    {
+                        ShardClient reader = new ShardClient(virtualNodes,
+                                batch, pipeline);
+                        for (String address : addresses)
+                            reader.connect(address);
+                        int chunk = 65536;
+                        int stride = threads * chunk;
+                        for (int off = id * chunk; off < allKeys.length; off += stride)
+                        {
+                            int len = Math.min(chunk, allKeys.length - off);
+                            String[] chunkKeys = new String[len];
+                            System.arraycopy(allKeys, off, chunkKeys, 0, len);
+                            String[] values = reader.getAll(chunkKeys);
+                            for (int i = 0; i < len; i++)
+                            {
+                                if (!value(chunkKeys[i]).equals(values[i]))
+                                    throw new Exception("Bad value for key: "
+                                            + chunkKeys[i]);
+                            }
+                        }
+                        reader.close();
+                    }
+                    catch (Exception e)
+                    {
+                        errors[id] = e;
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        for (int t = 0; t < threads; t++)
+        {
+            workers[t].join();
+            if (errors[t] != null)
+                throw errors[t];
+        }
+        printOps("batch get", allKeys.length, System.nanoTime() - start);
+    }
+
+    // Starts a server process with the same class path and returns its
+    // address.
+    private String startServer(int capacity) throws IOException
+    {
+        List<String> command = new ArrayList<String>();
+        command.add(System.getProperty("java.home") + File.separator + "bin"
+                + File.separator + "java");
+        for (String option : serverOptions.trim().split("\\s+"))
+        {
+            if (option.length() > 0)
+                command.add(option);
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(ShardServer.class.getName());
+        command.add("--capacity");
+        command.add(Integer.toString(capacity));
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectErrorStream(true);
+        Process process = builder.start();
+        servers.add(process);
+
+        // The first line gives the port; later lines are copied to our output.
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(
+                process.getInputStream()));
+        String line = reader.readLine();
+        String prefix = "Listening on port ";
+        if (line == null || !line.startsWith(prefix))
+            throw new IOException("Server did not start: " + line);
+        final String address = "127.0.0.1:"
+                + line.substring(prefix.length()).trim();
+        Thread copier = new Thread("output-" + address)
+        {
+            public void run()
+            {
+                try
+                {
+                    String next;
+                    while ((next = reader.readLine()) != null)
+                        println(address + ": " + next);
+                }
+                catch (IOException e)
+                {
+                }
+            }
+        };
+        copier.setDaemon(true);
+        copier.start();
+        return address;
+    }
+
+    // Stops all server processes.
+    private void stopServers()
+    {
+        for (Process process : servers)
+            process.destroy();
+    }
+
+    // Returns the value stored for a key, padded to the value size.
+    private String value(String key)
+    {
+        StringBuilder sb = new StringBuilder(valueSize);
+        sb.append(key.hashCode());
+        while (sb.length() < valueSize)
+            sb.append('.');
+        sb.setLength(valueSize);
+        return sb.toString();
+    }
+
+    private static void shuffle(String[] values, Random random)
+    {
+        for (int i = values.length - 1; i > 0; i--)
+        {
+            int j = random.nextInt(i + 1);
+            String tmp = values[i];
+            values[i] = values[j];
+            values[j] = tmp;
+        }
+    }
+
+    private void printOps(String op, long count, long nanos)
+    {
+        double seconds = nanos / 1000000000.0;
+        println(String.format("Op: %-10s Keys: %d Secs: %-6.3f Keys/s: %.0f",
+                op, count, seconds, count / seconds));
+    }
+
+    // Prints keys per shard and the imbalance of the largest shard.
+    private void printSizes(ShardClient client) throws IOException
+    {
+        long[] sizes = client.getShardSizes();
+        long total = 0;
+        long max = 0;
+        StringBuilder sb = new StringBuilder("Keys per shard:");
+        for (long size : sizes)
+        {
+            sb.append(' ').append(size);
+            total += size;
+            max = Math.max(max, size);
+        }
+        println(sb.toString());
+        println(String.format("Total: %d Max/mean: %.3f", total, max
+                * (double) sizes.length / Math.max(1, total)));
+    }
+
+    // Generic output routines.
+    public static void println(String msg)
+    {
+        System.out.println(msg);
+    }
+
+    public static void print(char c)
+    {
+        System.out.print(c);
+    }
+
+    public static void printSeparator()
+    {
+        printSeparator('-', 60);
+    }
+
+    public static void printSeparator(char sepChar, int length)
+    {
+        for (int i = 0; i < length; i++)
+        {
+            print(sepChar);
+        }
+        print('\n');
+    }
+}
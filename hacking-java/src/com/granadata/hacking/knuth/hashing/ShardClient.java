@@ -0,0 +1,420 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.knuth.hashing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Client for a table partitioned across {@link ShardServer} processes.
+ * Keys route to shards through a {@link ConsistentHashRing}, so clients
+ * configured with the same shard addresses agree on where each key lives.
+ * <p>
+ * Bulk operations group keys by shard and send them in batches. Up to a
+ * pipeline depth of batches are in flight on each shard at once and all
+ * shards work in parallel, so throughput is bounded by the servers rather
+ * than by round trips. Limiting the depth keeps both sides from blocking on
+ * full socket buffers. Clients are not thread-safe; use one per thread.
+ */
+public class ShardClient
+{
+    private final ConsistentHashRing ring;
+    private final int                batchSize;
+    private final int                pipeline;
+    private final List<Shard>        shards  = new ArrayList<Shard>();
+    private final Map<String, Shard> byName  = new HashMap<String, Shard>();
+
+    // Statistics.
+    private long                     requests;
+
+    /**
+     * Creates a client with no shards.
+     *
+     * @param virtualNodes Ring points per shard
+     * @param batchSize Maximum keys per request
+     * @param pipeline Maximum requests in flight per shard
+     */
+    public ShardClient(int virtualNodes, int batchSize, int pipeline)
+    {
+        if (batchSize < 1 || batchSize > ShardProtocol.MAX_BATCH)
+            throw new IllegalArgumentException("Bad batch size: " + batchSize);
+        if (pipeline < 1)
+            throw new IllegalArgumentException("Bad pipeline depth: "
+                    + pipeline);
+        this.ring = new ConsistentHashRing(virtualNodes);
+        this.batchSize = batchSize;
+        this.pipeline = pipeline;
+    }
+
+    /**
+     * Connects to a shard and adds it to the ring without moving any keys.
+     * Use this to set up the initial shards.
+     *
+     * @param address Shard address as host:port
+     */
+    public void connect(String address) throws IOException
+    {
+        Shard shard = new Shard(address);
+        shards.add(shard);
+        byName.put(address, shard);
+        ring.addNode(address);
+    }
+
+    /**
+     * Connects to a new, empty shard and moves to it the keys that it now
+     * owns. Only those keys move, which is about 1/n of the total for n
+     * shards. Other clients must not write during rebalancing and must add
+     * the shard themselves afterwards.
+     *
+     * @param address Shard address as host:port
+     * @return Number of keys moved
+     */
+    public long addShard(String address) throws IOException
+    {
+        List<Shard> sources = new ArrayList<Shard>(shards);
+        connect(address);
+        Shard target = byName.get(address);
+        long moved = 0;
+        for (Shard source : sources)
+        {
+            // Find the keys that now belong to the new shard.
+            List<String> keys = source.keys();
+            List<String> moving = new ArrayList<String>();
+            for (String key : keys)
+            {
+                if (ring.getNode(key).equals(address))
+                    moving.add(key);
+            }
+
+            // Copy each batch before removing it, so keys are never lost.
+            for (int off = 0; off < moving.size(); off += batchSize)
+            {
+                int len = Math.min(batchSize, moving.size() - off);
+                String[] batch = moving.subList(off, off + len).toArray(
+                        new String[len]);
+                String[] values = new String[len];
+                source.send(ShardProtocol.OP_GET, batch, null, 0, len);
+                source.receive(ShardProtocol.OP_GET, values, 0, len);
+                target.send(ShardProtocol.OP_PUT, batch, values, 0, len);
+                target.receive(ShardProtocol.OP_PUT, null, 0, len);
+                source.send(ShardProtocol.OP_REMOVE, batch, null, 0, len);
+                source.receive(ShardProtocol.OP_REMOVE, null, 0, len);
+                moved += len;
+            }
+        }
+        return moved;
+    }
+
+    /** Returns shard addresses in the order they were added. */
+    public List<String> getShards()
+    {
+        List<String> names = new ArrayList<String>();
+        for (Shard shard : shards)
+            names.add(shard.name);
+        return names;
+    }
+
+    /** Returns the shard address that owns a key. */
+    public String getShard(String key)
+    {
+        return ring.getNode(key);
+    }
+
+    /** Returns the number of requests sent. */
+    public long getRequests()
+    {
+        return requests;
+    }
+
+    /**
+     * Returns the value for a key, or null if absent.
+     */
+    public String get(String key) throws IOException
+    {
+        return getAll(new String[]{key})[0];
+    }
+
+    /**
+     * Stores a value for a key.
+     *
+     * @return True if the key is new
+     */
+    public boolean put(String key, String value) throws IOException
+    {
+        return putAll(new String[]{key}, new String[]{value}) == 1;
+    }
+
+    /**
+     * Removes a key.
+     *
+     * @return True if the key was present
+     */
+    public boolean remove(String key) throws IOException
+    {
+        return removeAll(new String[]{key}) == 1;
+    }
+
+    /**
+     * Fetches values for many keys.
+     *
+     * @return Values in the same order as the keys, with null for absent keys
+     */
+    public String[] getAll(String[] keys) throws IOException
+    {
+        String[] values = new String[keys.length];
+        execute(ShardProtocol.OP_GET, keys, values);
+        return values;
+    }
+
+    /**
+     * Stores many values.
+     *
+     * @return Number of keys that were new
+     */
+    public long putAll(String[] keys, String[] values) throws IOException
+    {
+        for (String value : values)
+        {
+            if (value == null)
+                throw new IllegalArgumentException("Values may not be null");
+        }
+        return execute(ShardProtocol.OP_PUT, keys, values);
+    }
+
+    /**
+     * Removes many keys.
+     *
+     * @return Number of keys that were present
+     */
+    public long removeAll(String[] keys) throws IOException
+    {
+        return execute(ShardProtocol.OP_REMOVE, keys, null);
+    }
+
+    /**
+     * Returns the number of keys on each shard in the order of
+     * {@link #getShards()}.
+     */
+    public long[] getShardSizes() throws IOException
+    {
+        long[] sizes = new long[shards.size()];
+        for (Shard shard : shards)
+            shard.send(ShardProtocol.OP_SIZE, null, null, 0, 0);
+        for (int i = 0; i < sizes.length; i++)
+            sizes[i] = shards.get(i).receive(ShardProtocol.OP_SIZE, null, 0,
+                    0);
+        return sizes;
+    }
+
+    /** Returns the total number of keys on all shards. */
+    public long size() throws IOException
+    {
+        long total = 0;
+        for (long size : getShardSizes())
+            total += size;
+        return total;
+    }
+
+    /** Disconnects from all shards. */
+    public void close() throws IOException
+    {
+        for (Shard shard : shards)
+            shard.socket.close();
+    }
+
+    // Runs a bulk operation. Keys are grouped by shard, and each shard's
+    // keys are sent in consecutive batches with at most the pipeline depth
+    // unanswered. Returns the sum of counts from PUT and REMOVE responses.
+    private long execute(byte op, String[] keys, String[] values)
+            throws IOException
+    {
+        // Group key positions by shard.
+        int n = shards.size();
+        if (n == 0)
+            throw new IOException("No shards");
+        int[] owner = new int[keys.length];
+        int[] counts = new int[n];
+        Map<String, Integer> indexes = new HashMap<String, Integer>();
+        for (int i = 0; i < n; i++)
+            indexes.put(shards.get(i).name, i);
+        for (int i = 0; i < keys.length; i++)
+        {
+            owner[i] = indexes.get(ring.getNode(keys[i]));
+            counts[owner[i]]++;
+        }
+        String[][] shardKeys = new String[n][];
+        String[][] shardValues = new String[n][];
+        int[][] positions = new int[n][];
+        for (int s = 0; s < n; s++)
+        {
+            shardKeys[s] = new String[counts[s]];
+            shardValues[s] = new String[counts[s]];
+            positions[s] = new int[counts[s]];
+            counts[s] = 0;
+        }
+        for (int i = 0; i < keys.length; i++)
+        {
+            int s = owner[i];
+            shardKeys[s][counts[s]] = keys[i];
+            if (op == ShardProtocol.OP_PUT)
+                shardValues[s][counts[s]] = values[i];
+            positions[s][counts[s]++] = i;
+        }
+
+        // Keep every shard's pipeline full until all batches are answered.
+        int[] sent = new int[n];
+        int[] received = new int[n];
+        long total = 0;
+        boolean busy = true;
+        while (busy)
+        {
+            busy = false;
+            for (int s = 0; s < n; s++)
+            {
+                Shard shard = shards.get(s);
+                while (sent[s] < counts[s]
+                        && sent[s] - received[s] < pipeline * batchSize)
+                {
+                    int len = Math.min(batchSize, counts[s] - sent[s]);
+                    shard.send(op, shardKeys[s], shardValues[s], sent[s], len);
+                    sent[s] += len;
+                }
+                shard.out.flush();
+            }
+            for (int s = 0; s < n; s++)
+            {
+                if (received[s] < sent[s])
+                {
+                    int len = Math.min(batchSize, counts[s] - received[s]);
+                    total += shards.get(s).receive(op, shardValues[s],
+                            received[s], len);
+                    received[s] += len;
+                }
+                if (received[s] < counts[s])
+                    busy = true;
+            }
+        }
+
+        // Return values to their original positions.
+        if (op == ShardProtocol.OP_GET)
+        {
+            for (int s = 0; s < n; s++)
+            {
+                for (int j = 0; j < counts[s]; j++)
+                    values[positions[s][j]] = shardValues[s][j];
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Connection to one shard.
+     */
+    private class Shard
+    {
+        final String           name;
+        final Socket           socket;
+        final DataInputStream  in;
+        final DataOutputStream out;
+
+        Shard(String address) throws IOException
+        {
+            int colon = address.lastIndexOf(':');
+            if (colon < 0)
+                throw new IOException("Shard address must be host:port: "
+                        + address);
+            this.name = address;
+            this.socket = new Socket(address.substring(0, colon),
+                    Integer.parseInt(address.substring(colon + 1)));
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket
+                    .getInputStream(), 65536));
+            out = new DataOutputStream(new BufferedOutputStream(socket
+                    .getOutputStream(), 65536));
+        }
+
+        // Writes a request without flushing.
+        void send(byte op, String[] keys, String[] values, int off, int len)
+                throws IOException
+        {
+            out.writeByte(op);
+            out.writeInt(len);
+            for (int i = off; i < off + len; i++)
+            {
+                out.writeUTF(keys[i]);
+                if (op == ShardProtocol.OP_PUT)
+                    out.writeUTF(values[i]);
+            }
+            requests++;
+        }
+
+        // Flushes and reads the response to the oldest request. GET values
+        // go to the array; other operations return their count.
+        long receive(byte op, String[] values, int off, int len)
+                throws IOException
+        {
+            out.flush();
+            byte status = in.readByte();
+            if (status != ShardProtocol.STATUS_OK)
+                throw new IOException("Shard " + name + " failed: "
+                        + in.readUTF());
+            if (op == ShardProtocol.OP_GET)
+            {
+                long found = 0;
+                for (int i = off; i < off + len; i++)
+                {
+                    if (in.readByte() == ShardProtocol.PRESENT)
+                    {
+                        values[i] = in.readUTF();
+                        found++;
+                    }
+                    else
+                        values[i] = null;
+                }
+                return found;
+            }
+            return in.readInt();
+        }
+
+        // Returns all keys on the shard.
+        List<String> keys() throws IOException
+        {
+            send(ShardProtocol.OP_KEYS, null, null, 0, 0);
+            out.flush();
+            byte status = in.readByte();
+            if (status != ShardProtocol.STATUS_OK)
+                throw new IOException("Shard " + name + " failed: "
+                        + in.readUTF());
+            int count = in.readInt();
+            List<String> keys = new ArrayList<String>(count);
+            for (int i = 0; i < count; i++)
+                keys.add(in.readUTF());
+            return keys;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.knuth.hashing;
+
+/**
+ * Defines the binary protocol between {@link ShardClient} and
+ * {@link ShardServer}. Every request operates on a batch of keys:
+ * <ul>
+ * <li>Request: operation byte, item count, then the items. GET and REMOVE
+ * items are keys; PUT items are key and value pairs. KEYS and SIZE have no
+ * items and a count of 0.</li>
+ * <li>Response: status byte, then for GET one presence byte per key followed
+ * by the value if present; for PUT the number of new keys; for REMOVE the
+ * number of keys removed; for KEYS a count and the keys; for SIZE the number
+ * of keys. A failed request returns an error status and a message.</li>
+ * </ul>
+ * Counts are 4-byte big-endian integers and strings use the
+ * {@link java.io.DataOutput#writeUTF(String)} format, so keys and values are
+ * limited to 65535 encoded bytes. Clients may send further requests before
+ * reading earlier responses, which the server answers in order.
+ */
+public class ShardProtocol
+{
+    // Operations.
+    public static final byte OP_GET       = 1;
+    public static final byte OP_PUT       = 2;
+    public static final byte OP_REMOVE    = 3;
+    public static final byte OP_KEYS      = 4;
+    public static final byte OP_SIZE      = 5;
+
+    // Response status.
+    public static final byte STATUS_OK    = 0;
+    public static final byte STATUS_ERROR = 1;
+
+    // Presence of a value in a GET response.
+    public static final byte ABSENT       = 0;
+    public static final byte PRESENT      = 1;
+
+    /** Maximum number of items in one request. */
+    public static final int  MAX_BATCH    = 65536;
+
+    private ShardProtocol()
+    {
+    }
+}
@@ -0,0 +1,311 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.knuth.hashing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+
+import joptsimple.OptionException;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+
+/**
+ * Serves one shard of a partitioned table: a local {@link KHashTable}
+ * reached over a loopback socket with {@link ShardProtocol}. Each connection
+ * has its own thread, and each batch runs under the table lock, so batches
+ * are atomic. Responses are flushed only when no further requests are
+ * waiting, which lets pipelined requests share packets.
+ */
+public class ShardServer
+{
+    private final ServerSocket server;
+    private final KHashTable   table;
+    private volatile boolean   stopped;
+
+    /**
+     * Creates a server listening on the loopback interface.
+     *
+     * @param port Port, or 0 to choose any free port
+     * @param capacity Number of hash buckets in the table, which does not grow
+     */
+    public ShardServer(int port, int capacity) throws IOException
+    {
+        this.server = new ServerSocket(port, 50,
+                InetAddress.getLoopbackAddress());
+        this.table = new KHashTable(capacity, new MultiplicativeHashMethod());
+    }
+
+    public int getPort()
+    {
+        return server.getLocalPort();
+    }
+
+    /** Returns the number of keys in the shard. */
+    public int size()
+    {
+        synchronized (table)
+        {
+            return table.size();
+        }
+    }
+
+    /**
+     * Accepts connections and starts a thread for each until closed.
+     */
+    public void serve() throws IOException
+    {
+        while (!stopped)
+        {
+            final Socket socket;
+            try
+            {
+                socket = server.accept();
+            }
+            catch (IOException e)
+            {
+                if (stopped)
+                    break;
+                throw e;
+            }
+            Thread t = new Thread("shard-" + socket.getPort())
+            {
+                public void run()
+                {
+                    try
+                    {
+                        handle(socket);
+                    }
+                    catch (EOFException e)
+                    {
+                        // Client disconnected between requests.
+                    }
+                    catch (IOException e)
+                    {
+                        if (!stopped)
+                            println("Connection failed: " + e);
+                    }
+                    finally
+                    {
+                        try
+                        {
+                            socket.close();
+                        }
+                        catch (IOException e)
+                        {
+                        }
+                    }
+                }
+            };
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /** Stops accepting connections. */
+    public void close() throws IOException
+    {
+        stopped = true;
+        server.close();
+    }
+
+    // Answers requests on a connection until the client disconnects.
+    private void handle(Socket socket) throws IOException
+    {
+        socket.setTcpNoDelay(true);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                socket.getInputStream(), 65536));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                socket.getOutputStream(), 65536));
+        String[] keys = new String[0];
+        String[] values = new String[0];
+        while (true)
+        {
+            int op = in.read();
+            if (op < 0)
+                break;
+            int count = in.readInt();
+            if (count < 0 || count > ShardProtocol.MAX_BATCH)
+                throw new IOException("Bad batch size: " + count);
+            if (keys.length < count)
+            {
+                keys = new String[count];
+                values = new String[count];
+            }
+
+            // Read the whole batch before taking the lock.
+            for (int i = 0; i < count; i++)
+            {
+                keys[i] = in.readUTF();
+                if (op == ShardProtocol.OP_PUT)
+                    values[i] = in.readUTF();
+            }
+            execute(op, keys, values, count, out);
+            if (in.available() == 0)
+                out.flush();
+        }
+        out.flush();
+    }
+
+    // Executes one batch and writes the response.
+    private void execute(int op, String[] keys, String[] values, int count,
+            DataOutputStream out) throws IOException
+    {
+        if (op == ShardProtocol.OP_GET)
+        {
+            synchronized (table)
+            {
+                for (int i = 0; i < count; i++)
+                    values[i] = (String) table.get(keys[i]);
+            }
+            out.writeByte(ShardProtocol.STATUS_OK);
+            for (int i = 0; i < count; i++)
+            {
+                if (values[i] == null)
+                    out.writeByte(ShardProtocol.ABSENT);
+                else
+                {
+                    out.writeByte(ShardProtocol.PRESENT);
+                    out.writeUTF(values[i]);
+                }
+            }
+        }
+        else if (op == ShardProtocol.OP_PUT)
+        {
+            int added;
+            synchronized (table)
+            {
+                int before = table.size();
+                for (int i = 0; i < count; i++)
+                    table.put(keys[i], values[i]);
+                added = table.size() - before;
+            }
+            out.writeByte(ShardProtocol.STATUS_OK);
+            out.writeInt(added);
+        }
+        else if (op == ShardProtocol.OP_REMOVE)
+        {
+            int removed;
+            synchronized (table)
+            {
+                int before = table.size();
+                for (int i = 0; i < count; i++)
+                    table.remove(keys[i]);
+                removed = before - table.size();
+            }
+            out.writeByte(ShardProtocol.STATUS_OK);
+            out.writeInt(removed);
+        }
+        else if (op == ShardProtocol.OP_KEYS)
+        {
+            List<Object> all;
+            synchronized (table)
+            {
+                all = table.keys();
+            }
+            out.writeByte(ShardProtocol.STATUS_OK);
+            out.writeInt(all.size());
+            for (Object key : all)
+                out.writeUTF((String) key);
+        }
+        else if (op == ShardProtocol.OP_SIZE)
+        {
+            out.writeByte(ShardProtocol.STATUS_OK);
+            out.writeInt(size());
+        }
+        else
+        {
+            out.writeByte(ShardProtocol.STATUS_ERROR);
+            out.writeUTF("Unknown operation: " + op);
+        }
+
+        // Drop references so that values can be collected.
+        for (int i = 0; i < count; i++)
+            values[i] = null;
+    }
+
+    /**
+     * Accept options and serve until killed.
+     */
+    public static void main(String[] args)
+    {
+        OptionParser parser = new OptionParser();
+        parser.accepts("port", "Loopback port, or 0 for any free port")
+                .withRequiredArg().ofType(Integer.class).defaultsTo(0);
+        parser.accepts("capacity", "Number of hash buckets in the table")
+                .withRequiredArg().ofType(Integer.class).defaultsTo(1048576);
+        parser.accepts("help");
+
+        // Parse options.
+        OptionSet options = null;
+        try
+        {
+            options = parser.parse(args);
+        }
+        catch (OptionException e)
+        {
+            println("Parsing failed: " + e.getMessage());
+            println("Try --help for command line options");
+            System.exit(1);
+        }
+        if (options.has("help"))
+        {
+            try
+            {
+                println("Serve one shard of a partitioned KHashTable");
+                println("Usage: shardserver [options]");
+                parser.printHelpOn(System.out);
+            }
+            catch (IOException e)
+            {
+                // This is very unlikely.
+                e.printStackTrace();
+            }
+            System.exit(0);
+        }
+
+        try
+        {
+            ShardServer server = new ShardServer(
+                    (Integer) options.valueOf("port"),
+                    (Integer) options.valueOf("capacity"));
+            println("Listening on port " + server.getPort());
+            server.serve();
+        }
+        catch (IOException e)
+        {
+            println("Server failed: " + e);
+            System.exit(1);
+        }
+    }
+
+    // Generic output routines.
+    public static void println(String msg)
+    {
+        System.out.println(msg);
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.time;
+
+/**
+ * Converts arrays of epoch milliseconds to UTC offsets and local date and
+ * time fields for a zone. This replaces the pattern of calling
+ * TimeZone.setDefault() and reading fields from Calendar or Timestamp, which
+ * changes global state and allocates per value. Offsets come from a shared
+ * {@link ZoneTable}, and dates are computed from day numbers with integer
+ * arithmetic, so conversion allocates nothing and any number of threads may
+ * convert for different zones at once.
+ */
+public class BulkZoneConverter
+{
+    private static final long MILLIS_PER_DAY = 86400000L;
+
+    /**
+     * Fills UTC offsets for a range of timestamps.
+     *
+     * @param zoneId Zone ID as accepted by ZoneId.of()
+     * @param epochMillis Timestamps in milliseconds since 1970-01-01Z
+     * @param off Index of first timestamp to convert
+     * @param len Number of timestamps to convert
+     * @param offsetMillis Output offsets in milliseconds, starting at index 0
+     */
+    public static void offsets(String zoneId, long[] epochMillis, int off,
+            int len, int[] offsetMillis)
+    {
+        ZoneTable table = ZoneTable.forZone(zoneId);
+        int index = -1;
+        for (int i = 0; i < len; i++)
+        {
+            long t = epochMillis[off + i];
+            if (t < ZoneTable.LIMIT_MILLIS)
+            {
+                index = table.indexOf(t, index);
+                offsetMillis[i] = table.offsetAt(index) * 1000;
+            }
+            else
+                offsetMillis[i] = table.getOffsetSeconds(t) * 1000;
+        }
+    }
+
+    /**
+     * Fills UTC offsets and local date and time fields for a range of
+     * timestamps.
+     *
+     * @param zoneId Zone ID as accepted by ZoneId.of()
+     * @param epochMillis Timestamps in milliseconds since 1970-01-01Z
+     * @param off Index of first timestamp to convert
+     * @param len Number of timestamps to convert
+     * @param offsetMillis Output offsets in milliseconds, starting at index 0,
+     *            or null if not needed
+     * @param fields Output local fields, starting at index 0
+     */
+    public static void convert(String zoneId, long[] epochMillis, int off,
+            int len, int[] offsetMillis, LocalFields fields)
+    {
+        ZoneTable table = ZoneTable.forZone(zoneId);
+        int index = -1;
+        for (int i = 0; i < len; i++)
+        {
+            long t = epochMillis[off + i];
+            int offset;
+            if (t < ZoneTable.LIMIT_MILLIS)
+            {
+                index = table.indexOf(t, index);
+                offset = table.offsetAt(index) * 1000;
+            }
+            else
+                offset = table.getOffsetSeconds(t) * 1000;
+            if (offsetMillis != null)
+                offsetMillis[i] = offset;
+            setFields(t + offset, fields, i);
+        }
+    }
+
+    /**
+     * Sets local fields from local milliseconds, which are epoch milliseconds
+     * plus the offset.
+     */
+    public static void setFields(long localMillis, LocalFields fields, int i)
+    {
+        long epochDay = Math.floorDiv(localMillis, MILLIS_PER_DAY);
+        int millisOfDay = (int) (localMillis - epochDay * MILLIS_PER_DAY);
+
+        // Convert the day number to a proleptic Gregorian date. Counting
+        // from 0000-03-01 puts the leap day at the end of each year, and
+        // each 400-year era has exactly 146097 days.
+        long z = epochDay + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524
+                - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra
+                - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long monthIndex = (5 * dayOfYear + 2) / 153;
+        int month = (int) (monthIndex < 10 ? monthIndex + 3 : monthIndex - 9);
+        fields.year[i] = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+        fields.month[i] = month;
+        fields.day[i] = (int) (dayOfYear - (153 * monthIndex + 2) / 5 + 1);
+
+        fields.hour[i] = millisOfDay / 3600000;
+        fields.minute[i] = millisOfDay / 60000 % 60;
+        fields.second[i] = millisOfDay / 1000 % 60;
+        fields.millis[i] = millisOfDay % 1000;
+    }
+
+    /**
+     * Returns the number of days from 1970-01-01 to a proleptic Gregorian
+     * date. This is the inverse of the date part of
+     * {@link #setFields(long, LocalFields, int)}.
+     */
+    public static long toEpochDay(int year, int month, int day)
+    {
+        long y = month <= 2 ? year - 1 : year;
+        long era = Math.floorDiv(y, 400);
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5
+                + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100
+                + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+}
@@ -0,0 +1,363 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.time;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives the legacy default time zone APIs from many threads to measure
+ * their cost and correctness under load. Each worker repeatedly calls
+ * TimeZone.getDefault(), creates a GregorianCalendar and formats a fixed
+ * Timestamp, while an optional switcher thread changes the default zone
+ * with TimeZone.setDefault(). An operation is inconsistent if the calendar
+ * and the text reflect different zones, which happens when the default
+ * changes between the calls. A sampler records where threads block, which
+ * gives a rough lock profile; sampling takes stack traces and so adds some
+ * overhead of its own.
+ */
+public class DefaultZoneStress
+{
+    // Fixed instant formatted by workers, chosen in July so that zones with
+    // summer time differ from UTC.
+    static final long           INSTANT_MILLIS  = 1404216000123L;
+
+    // Interval between lock samples.
+    private static final long   SAMPLE_MILLIS   = 10;
+
+    // Results of checking formatted text against a zone.
+    static final int            TEXT_MATCHES    = 0;
+    static final int            TEXT_OTHER_ZONE = 1;
+    static final int            TEXT_UNKNOWN    = 2;
+
+    private final String[]      zones;
+    private final int           threads;
+    private final long          durationMillis;
+    private final long          switchMicros;
+
+    // Expected Timestamp text for each zone.
+    private final String[]      expected;
+
+    private volatile boolean    stop;
+    private volatile long       switches;
+
+    // Totals from the last run.
+    private long                ops;
+    private long                inconsistent;
+    private long                unknown;
+
+    /**
+     * Creates a stress test.
+     *
+     * @param zones Zones to switch among; the first is set initially
+     * @param threads Number of worker threads
+     * @param durationMillis How long to run
+     * @param switchMicros Interval between default zone changes in
+     *            microseconds, or 0 for no changes
+     */
+    public DefaultZoneStress(String[] zones, int threads, long durationMillis,
+            long switchMicros)
+    {
+        this.zones = zones;
+        this.threads = threads;
+        this.durationMillis = durationMillis;
+        this.switchMicros = switchMicros;
+        this.expected = new String[zones.length];
+        char[] buf = new char[TimestampFormatter.MAX_LENGTH];
+        for (int i = 0; i < zones.length; i++)
+        {
+            TimestampFormatter formatter = new TimestampFormatter(zones[i],
+                    TimestampFormatter.Style.JDBC);
+            int len = formatter.format(INSTANT_MILLIS, buf, 0);
+            expected[i] = new String(buf, 0, len);
+        }
+    }
+
+    /**
+     * Runs workers for the duration and prints results.
+     */
+    public void run() throws InterruptedException
+    {
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        if (mx.isThreadContentionMonitoringSupported())
+            mx.setThreadContentionMonitoringEnabled(true);
+        TimeZone saved = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone(zones[0]));
+        for (int i = 1; i < zones.length; i++)
+        {
+            for (int j = 0; j < i; j++)
+            {
+                if (expected[i].equals(expected[j]))
+                    TimeZoneMachine.println("Warning: zones " + zones[j]
+                            + " and " + zones[i]
+                            + " give the same text; changes between them "
+                            + "are not detected");
+            }
+        }
+
+        // Start workers and the switcher.
+        stop = false;
+        switches = 0;
+        Worker[] workers = new Worker[threads];
+        long[] ids = new long[threads];
+        for (int i = 0; i < threads; i++)
+        {
+            workers[i] = new Worker(i, mx);
+            ids[i] = workers[i].getId();
+        }
+        Thread switcher = null;
+        if (switchMicros > 0 && zones.length > 1)
+        {
+            switcher = new Thread("zone-switcher")
+            {
+                public void run()
+                {
+                    long n = 0;
+                    while (!stop)
+                    {
+                        TimeZone.setDefault(TimeZone
+                                .getTimeZone(zones[(int) (++n % zones.length)]));
+                        switches = n;
+                        LockSupport.parkNanos(switchMicros * 1000);
+                    }
+                }
+            };
+        }
+        long start = System.nanoTime();
+        for (Worker worker : workers)
+            worker.start();
+        if (switcher != null)
+            switcher.start();
+
+        // Sample blocked threads until the end.
+        Map<String, Long> profile = new HashMap<String, Long>();
+        long samples = 0;
+        long deadline = System.currentTimeMillis() + durationMillis;
+        while (System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(SAMPLE_MILLIS);
+            samples++;
+            for (ThreadInfo info : mx.getThreadInfo(ids, 8))
+                sample(info, profile);
+        }
+        stop = true;
+        for (Worker worker : workers)
+            worker.join();
+        if (switcher != null)
+            switcher.join();
+        double seconds = (System.nanoTime() - start) / 1000000000.0;
+        TimeZone.setDefault(saved);
+
+        // Totals.
+        ops = 0;
+        inconsistent = 0;
+        unknown = 0;
+        long blockedCount = 0;
+        long blockedMillis = 0;
+        long waitedCount = 0;
+        long waitedMillis = 0;
+        for (Worker worker : workers)
+        {
+            ops += worker.ops;
+            inconsistent += worker.inconsistent;
+            unknown += worker.unknown;
+            blockedCount += worker.blockedCount;
+            blockedMillis += worker.blockedMillis;
+            waitedCount += worker.waitedCount;
+            waitedMillis += worker.waitedMillis;
+        }
+        TimeZoneMachine.printSeparator();
+        TimeZoneMachine.println(String.format(
+                "Threads: %d  Time: %.3fs  Ops: %d  Rate: %.0f ops/s  "
+                        + "Switches: %d", threads, seconds, ops, ops / seconds,
+                switches));
+        TimeZoneMachine.println(String.format(
+                "Inconsistent: %d (%.2f per million)  Unknown text: %d",
+                inconsistent, inconsistent * 1000000.0 / Math.max(1, ops),
+                unknown));
+        if (mx.isThreadContentionMonitoringEnabled())
+            TimeZoneMachine.println(String.format(
+                    "Blocked: %d times %dms  Waited: %d times %dms  "
+                            + "(%.1f%% of thread time blocked)", blockedCount,
+                    blockedMillis, waitedCount, waitedMillis, 100.0
+                            * blockedMillis / (seconds * 1000 * threads)));
+        else
+            TimeZoneMachine.println("Contention monitoring not supported");
+
+        // Lock profile, busiest sites first.
+        TimeZoneMachine.println("Lock profile (" + samples + " samples of "
+                + threads + " threads):");
+        List<Map.Entry<String, Long>> sites = new ArrayList<Map.Entry<String, Long>>(
+                profile.entrySet());
+        Collections.sort(sites, new Comparator<Map.Entry<String, Long>>()
+        {
+            public int compare(Map.Entry<String, Long> a,
+                    Map.Entry<String, Long> b)
+            {
+                return Long.compare(b.getValue(), a.getValue());
+            }
+        });
+        for (int i = 0; i < Math.min(10, sites.size()); i++)
+        {
+            Map.Entry<String, Long> site = sites.get(i);
+            TimeZoneMachine.println(String.format("  %5.1f%%  %s", 100.0
+                    * site.getValue() / (samples * threads), site.getKey()));
+        }
+        if (sites.isEmpty())
+            TimeZoneMachine.println("  (no blocked threads sampled)");
+    }
+
+    /** Returns the number of operations in the last run. */
+    public long getOps()
+    {
+        return ops;
+    }
+
+    /** Returns the number of inconsistent operations in the last run. */
+    public long getInconsistent()
+    {
+        return inconsistent;
+    }
+
+    /** Returns the number of operations that gave unknown text. */
+    public long getUnknown()
+    {
+        return unknown;
+    }
+
+    /**
+     * Checks formatted text against the zone it should reflect. Several
+     * zones may give the same text, so the text matches if any zone with
+     * that text has the ID.
+     *
+     * @param text Timestamp text
+     * @param id Zone ID
+     * @return {@link #TEXT_MATCHES}, {@link #TEXT_OTHER_ZONE} if only other
+     *         zones give the text, or {@link #TEXT_UNKNOWN} if no zone does
+     */
+    int checkText(String text, String id)
+    {
+        int result = TEXT_UNKNOWN;
+        for (int i = 0; i < expected.length; i++)
+        {
+            if (expected[i].equals(text))
+            {
+                if (zones[i].equals(id))
+                    return TEXT_MATCHES;
+                result = TEXT_OTHER_ZONE;
+            }
+        }
+        return result;
+    }
+
+    // Records where a thread is blocked or waiting on a lock, if it is.
+    private void sample(ThreadInfo info, Map<String, Long> profile)
+    {
+        if (info == null || info.getLockName() == null)
+            return;
+        Thread.State state = info.getThreadState();
+        if (state != Thread.State.BLOCKED && state != Thread.State.WAITING
+                && state != Thread.State.TIMED_WAITING)
+            return;
+        String lock = info.getLockName();
+        int at = lock.indexOf('@');
+        StringBuilder site = new StringBuilder(at < 0 ? lock : lock.substring(
+                0, at));
+        site.append(' ').append(state);
+
+        // Show the first frame outside the lock implementation.
+        for (StackTraceElement frame : info.getStackTrace())
+        {
+            String cls = frame.getClassName();
+            if (!cls.startsWith("java.util.concurrent.")
+                    && !cls.startsWith("jdk.internal.misc.")
+                    && !cls.startsWith("java.lang.Object"))
+            {
+                site.append(" at ").append(cls).append('.')
+                        .append(frame.getMethodName());
+                break;
+            }
+        }
+        String key = site.toString();
+        Long count = profile.get(key);
+        profile.put(key, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Worker that calls the default zone APIs and checks each result.
+     */
+    private class Worker extends Thread
+    {
+        private final ThreadMXBean mx;
+        long                       ops;
+        long                       inconsistent;
+        long                       unknown;
+        long                       blockedCount;
+        long                       blockedMillis;
+        long                       waitedCount;
+        long                       waitedMillis;
+
+        Worker(int id, ThreadMXBean mx)
+        {
+            super("zone-worker-" + id);
+            this.mx = mx;
+        }
+
+        public void run()
+        {
+            while (!stop)
+            {
+                TimeZone zone = TimeZone.getDefault();
+                Calendar calendar = new GregorianCalendar();
+                String text = new Timestamp(INSTANT_MILLIS).toString();
+                ops++;
+
+                // The calendar and default zone should agree, and the text
+                // should be what the calendar's zone gives.
+                String id = calendar.getTimeZone().getID();
+                int check = checkText(text, id);
+                if (check == TEXT_UNKNOWN)
+                    unknown++;
+                else if (check == TEXT_OTHER_ZONE
+                        || !zone.getID().equals(id))
+                    inconsistent++;
+            }
+
+            // Collect contention statistics while the thread is alive.
+            ThreadInfo info = mx.getThreadInfo(getId());
+            blockedCount = info.getBlockedCount();
+            blockedMillis = Math.max(0, info.getBlockedTime());
+            waitedCount = info.getWaitedCount();
+            waitedMillis = Math.max(0, info.getWaitedTime());
+        }
+    }
+}
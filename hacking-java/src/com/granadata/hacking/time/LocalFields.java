@@ -0,0 +1,59 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.time;
+
+/**
+ * Local date and time fields for a batch of timestamps, held as one array per
+ * field so that bulk conversion writes primitives only. Entry i of each array
+ * describes the same timestamp. Instances are reused from one batch to the
+ * next and are not safe for use by multiple threads at once.
+ */
+public class LocalFields
+{
+    public final int[] year;
+    public final int[] month;
+    public final int[] day;
+    public final int[] hour;
+    public final int[] minute;
+    public final int[] second;
+    public final int[] millis;
+
+    /**
+     * Creates arrays for a batch.
+     *
+     * @param capacity Maximum number of timestamps per batch
+     */
+    public LocalFields(int capacity)
+    {
+        year = new int[capacity];
+        month = new int[capacity];
+        day = new int[capacity];
+        hour = new int[capacity];
+        minute = new int[capacity];
+        second = new int[capacity];
+        millis = new int[capacity];
+    }
+
+    /** Returns the maximum number of timestamps per batch. */
+    public int capacity()
+    {
+        return year.length;
+    }
+}
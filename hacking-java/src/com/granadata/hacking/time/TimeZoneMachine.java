@@ -20,8 +20,14 @@
 package com.granadata.hacking.time;
 
 import java.io.IOException;
+import java.nio.CharBuffer;
 import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.Random;
 import java.util.TimeZone;
 
 import joptsimple.OptionException;
@@ -31,14 +37,34 @@ import joptsimple.OptionSet;
 /**
  * Prints timestamp values in various time zones to test behavior of class
  * java.util.Timestamp. You can run this under a debugger to look at Java
- * library execution paths.
+ * library execution paths. With --bulk the program instead measures bulk
+ * conversion using {@link BulkZoneConverter} against per-value conversion
+ * with Calendar.
  */
 public class TimeZoneMachine
 {
+    // Number of timestamps converted per call in bulk mode.
+    private static final int     BATCH_SIZE = 8192;
+
+    // Receives benchmark results so that work is not optimized away.
+    private static volatile long sink;
+
     /**
      * Accept options and print timestamp accordingly.
      */
     public static void main(String[] args)
+    {
+        int status = run(args);
+        if (status != 0)
+            System.exit(status);
+    }
+
+    /**
+     * Runs the tool without exiting, for callers such as the tool daemon.
+     *
+     * @return Exit status, which is 0 on success
+     */
+    public static int run(String[] args)
     {
         OptionParser parser = new OptionParser();
         parser.accepts("timestamp",
@@ -47,6 +73,26 @@ public class TimeZoneMachine
         parser.accepts("timezone",
                 "Time zone name for input and output of timestamps")
                 .withRequiredArg().ofType(String.class);
+        parser.accepts("bulk",
+                "Convert this many timestamps in bulk and report throughput; "
+                        + "--timezone may be a comma-separated list")
+                .withRequiredArg().ofType(Long.class);
+        parser.accepts("format",
+                "Format and parse this many timestamps with Timestamp and "
+                        + "TimestampFormatter and report throughput")
+                .withRequiredArg().ofType(Long.class);
+        parser.accepts("stress",
+                "Call the default time zone APIs from many threads for this "
+                        + "many seconds and report throughput, inconsistent "
+                        + "results and contention")
+                .withRequiredArg().ofType(Integer.class);
+        parser.accepts("switch-interval",
+                "Microseconds between default zone changes with --stress, "
+                        + "or 0 for none").withRequiredArg()
+                .ofType(Long.class).defaultsTo(1000L);
+        parser.accepts("threads",
+                "Number of threads for bulk conversion and stress tests")
+                .withRequiredArg().ofType(Integer.class).defaultsTo(1);
         parser.accepts("help");
 
         // Parse options.
@@ -59,7 +105,7 @@ public class TimeZoneMachine
         {
             println("Parsing failed: " + e.getMessage());
             println("Try --help for command line options");
-            System.exit(1);
+            return 1;
         }
         if (options.has("help"))
         {
@@ -74,12 +120,53 @@ public class TimeZoneMachine
                 // This is very unlikely.
                 e.printStackTrace();
             }
-            System.exit(0);
+            return 0;
         }
 
         // Grab option values for further processing.
         Long timestamp = (Long) options.valueOf("timestamp");
         String timezone = (String) options.valueOf("timezone");
+        if (options.has("bulk"))
+        {
+            String[] zones = (timezone == null ? "UTC" : timezone).split(",");
+            try
+            {
+                bulk((Long) options.valueOf("bulk"), zones,
+                        (Integer) options.valueOf("threads"));
+            }
+            catch (Exception e)
+            {
+                println("Bulk conversion failed: " + e);
+                return 1;
+            }
+            return 0;
+        }
+        if (options.has("stress"))
+        {
+            String[] zones = (timezone == null
+                    ? "UTC,America/New_York,Asia/Kolkata"
+                    : timezone).split(",");
+            DefaultZoneStress stress = new DefaultZoneStress(zones,
+                    (Integer) options.valueOf("threads"),
+                    (Integer) options.valueOf("stress") * 1000L,
+                    (Long) options.valueOf("switch-interval"));
+            try
+            {
+                stress.run();
+            }
+            catch (InterruptedException e)
+            {
+                println("Stress test interrupted");
+            }
+            return 0;
+        }
+        if (options.has("format"))
+        {
+            format((Long) options.valueOf("format"), timezone == null
+                    ? "UTC"
+                    : timezone);
+            return 0;
+        }
 
         // Print the starting time zone information.
         printSeparator();
@@ -123,6 +210,209 @@ public class TimeZoneMachine
         printTimestamp(ts1);
         println("Timestamp value #2...");
         printTimestamp(ts2);
+        return 0;
+    }
+
+    /**
+     * Converts timestamps with each method on a number of threads and prints
+     * throughput. Thread i converts for zone i modulo the number of zones.
+     * Timestamps advance by random steps from 1950 onward, roughly as event
+     * times do in a log, and results are checked against ZonedDateTime for
+     * the first batch on each thread.
+     *
+     * @param count Total number of timestamps to convert per method
+     * @param zones Zone IDs
+     * @param threads Number of threads
+     */
+    public static void bulk(long count, final String[] zones, int threads)
+            throws Exception
+    {
+        // Build the zone tables up front so that timing covers conversion
+        // only.
+        printSeparator();
+        for (String zone : zones)
+        {
+            long start = System.nanoTime();
+            ZoneTable table = ZoneTable.forZone(zone);
+            println(String.format("Zone: %-24s Transitions: %5d  Build: %.3fms",
+                    zone, table.getTransitionCount(),
+                    (System.nanoTime() - start) / 1000000.0));
+        }
+
+        final long perThread = count / threads;
+        for (final String method : new String[]{"bulk", "calendar"})
+        {
+            final long[] mismatches = new long[threads];
+            Thread[] workers = new Thread[threads];
+            long start = System.nanoTime();
+            for (int i = 0; i < threads; i++)
+            {
+                final int id = i;
+                workers[i] = new Thread("convert-" + i)
+                {
+                    public void run()
+                    {
+                        mismatches[id] = convert(method, zones[id
+                                % zones.length], perThread, id);
+                    }
+                };
+                workers[i].start();
+            }
+            long errors = 0;
+            for (int i = 0; i < threads; i++)
+            {
+                workers[i].join();
+                errors += mismatches[i];
+            }
+            double seconds = (System.nanoTime() - start) / 1000000000.0;
+            printSeparator();
+            println(String.format(
+                    "Method: %-9s Threads: %3d  Conversions: %d  Time: %.3fs  "
+                            + "Rate: %.1fM/s  Mismatches: %d", method,
+                    threads, perThread * threads, seconds, perThread * threads
+                            / seconds / 1000000.0, errors));
+        }
+    }
+
+    /**
+     * Formats timestamps with Timestamp.toString() and with
+     * {@link TimestampFormatter}, checks that the text matches, then parses
+     * the text back with Timestamp.valueOf() and the formatter. Prints
+     * throughput for each. The default time zone is set to the zone since
+     * Timestamp depends on it.
+     *
+     * @param count Number of timestamps
+     * @param zone Zone ID
+     */
+    public static void format(long count, String zone)
+    {
+        TimeZone.setDefault(TimeZone.getTimeZone(zone));
+        TimestampFormatter formatter = new TimestampFormatter(zone,
+                TimestampFormatter.Style.JDBC);
+        char[] buf = new char[TimestampFormatter.MAX_LENGTH];
+
+        // Generate timestamps from 1950 onward in random steps and verify
+        // that both methods agree on text and parsed values.
+        long[] millis = new long[(int) Math.min(count, 1 << 20)];
+        String[] texts = new String[millis.length];
+        Random random = new Random(1);
+        long next = -631152000000L;
+        long formatMismatches = 0;
+        long parseMismatches = 0;
+        for (int i = 0; i < millis.length; i++)
+        {
+            next += random.nextInt(600000);
+            millis[i] = next;
+            texts[i] = new Timestamp(next).toString();
+            int len = formatter.format(next, buf, 0);
+            if (!texts[i].contentEquals(CharBuffer.wrap(buf, 0, len)))
+                formatMismatches++;
+            if (formatter.parse(texts[i]) != Timestamp.valueOf(texts[i])
+                    .getTime())
+                parseMismatches++;
+        }
+
+        printSeparator();
+        String[] methods = {"timestamp-format", "formatter-format",
+                "timestamp-parse", "formatter-parse"};
+        long sum = 0;
+        for (String method : methods)
+        {
+            long start = System.nanoTime();
+            for (long i = 0; i < count; i++)
+            {
+                int j = (int) (i % millis.length);
+                if ("timestamp-format".equals(method))
+                    sum += new Timestamp(millis[j]).toString().length();
+                else if ("formatter-format".equals(method))
+                    sum += formatter.format(millis[j], buf, 0);
+                else if ("timestamp-parse".equals(method))
+                    sum += Timestamp.valueOf(texts[j]).getTime();
+                else
+                    sum += formatter.parse(texts[j]);
+            }
+            double seconds = (System.nanoTime() - start) / 1000000000.0;
+            println(String.format(
+                    "Method: %-17s Count: %d  Time: %.3fs  Rate: %.1fM/s",
+                    method, count, seconds, count / seconds / 1000000.0));
+        }
+        sink = sum;
+        println("Format mismatches: " + formatMismatches);
+        println("Parse mismatches: " + parseMismatches
+                + " (local times repeated when clocks go back are ambiguous)");
+    }
+
+    // Converts timestamps on the current thread and returns the number of
+    // mismatches found in the first batch.
+    private static long convert(String method, String zone, long count,
+            long seed)
+    {
+        Random random = new Random(seed);
+        long[] millis = new long[BATCH_SIZE];
+        int[] offsets = new int[BATCH_SIZE];
+        LocalFields fields = new LocalFields(BATCH_SIZE);
+        Calendar calendar = new GregorianCalendar(TimeZone.getTimeZone(zone));
+        long next = -631152000000L;
+        long mismatches = 0;
+        long sum = 0;
+        for (long done = 0; done < count; done += BATCH_SIZE)
+        {
+            int len = (int) Math.min(BATCH_SIZE, count - done);
+            for (int i = 0; i < len; i++)
+            {
+                next += random.nextInt(600000);
+                millis[i] = next;
+            }
+            if ("bulk".equals(method))
+            {
+                BulkZoneConverter.convert(zone, millis, 0, len, offsets,
+                        fields);
+            }
+            else
+            {
+                for (int i = 0; i < len; i++)
+                {
+                    calendar.setTimeInMillis(millis[i]);
+                    offsets[i] = calendar.get(Calendar.ZONE_OFFSET)
+                            + calendar.get(Calendar.DST_OFFSET);
+                    fields.year[i] = calendar.get(Calendar.YEAR);
+                    fields.month[i] = calendar.get(Calendar.MONTH) + 1;
+                    fields.day[i] = calendar.get(Calendar.DAY_OF_MONTH);
+                    fields.hour[i] = calendar.get(Calendar.HOUR_OF_DAY);
+                    fields.minute[i] = calendar.get(Calendar.MINUTE);
+                    fields.second[i] = calendar.get(Calendar.SECOND);
+                    fields.millis[i] = calendar.get(Calendar.MILLISECOND);
+                }
+            }
+            if (done == 0)
+                mismatches = verify(zone, millis, len, offsets, fields);
+            sum += fields.day[len - 1];
+        }
+        // Keep the results live so the conversions cannot be optimized away.
+        return sum < 0 ? -1 : mismatches;
+    }
+
+    // Counts conversions that differ from ZonedDateTime.
+    private static long verify(String zone, long[] millis, int len,
+            int[] offsets, LocalFields fields)
+    {
+        ZoneId zoneId = ZoneId.of(zone);
+        long mismatches = 0;
+        for (int i = 0; i < len; i++)
+        {
+            ZonedDateTime expected = Instant.ofEpochMilli(millis[i]).atZone(
+                    zoneId);
+            if (offsets[i] != expected.getOffset().getTotalSeconds() * 1000
+                    || fields.year[i] != expected.getYear()
+                    || fields.month[i] != expected.getMonthValue()
+                    || fields.day[i] != expected.getDayOfMonth()
+                    || fields.hour[i] != expected.getHour()
+                    || fields.minute[i] != expected.getMinute()
+                    || fields.second[i] != expected.getSecond()
+                    || fields.millis[i] != expected.getNano() / 1000000)
+                mismatches++;
+        }
+        return mismatches;
     }
 
     /**
@@ -144,6 +434,11 @@ public class TimeZoneMachine
     {
         println("Value: " + ts.getTime());
         println("String: " + ts.toString());
+        TimestampFormatter formatter = new TimestampFormatter(TimeZone
+                .getDefault().getID(), TimestampFormatter.Style.ISO);
+        char[] buf = new char[TimestampFormatter.MAX_LENGTH];
+        int len = formatter.format(ts.getTime(), ts.getNanos(), buf, 0);
+        println("ISO: " + new String(buf, 0, len));
     }
 
     // Generic output routines.
@@ -0,0 +1,477 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.time;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Formats and parses timestamps for one time zone without allocating. Text
+ * is written to caller-supplied char arrays or byte buffers. The formatter
+ * caches the date prefix and offset for the span of the current local day
+ * over which the offset does not change, so formatting a timestamp on the
+ * same day computes only the time-of-day digits. The parser likewise caches
+ * the offset for the last local day it saw.
+ * <p>
+ * JDBC style output matches Timestamp.toString() with the default time zone
+ * set to the same zone for Gregorian dates from 1583 through 9999;
+ * Timestamp uses the Julian calendar before 1582. Before 1900,
+ * java.util.TimeZone has no zone history and applies the zone's current
+ * standard offset, so JDBC style formats and parses with that offset too,
+ * whereas ISO style uses local mean time and other historic offsets from
+ * the zone rules. Formatters hold per-day state and are not thread-safe, so
+ * use one per thread.
+ */
+public class TimestampFormatter
+{
+    /** Text styles. */
+    public enum Style
+    {
+        /** Timestamp.toString() style, e.g. 2014-03-09 01:30:00.25 */
+        JDBC,
+        /** ISO-8601 with offset, e.g. 2014-03-09T01:30:00.250-05:00 */
+        ISO
+    }
+
+    /** Maximum length of formatted text for years up to 9999. */
+    public static final int     MAX_LENGTH     = 38;
+
+    private static final long   MILLIS_PER_DAY = 86400000L;
+
+    private final ZoneTable     table;
+    private final Style         style;
+
+    // Cached day for formatting. Instants in [cacheStart, cacheEnd) share the
+    // date prefix and offset suffix, and cacheDayStart is the instant of local
+    // midnight under that offset.
+    private long                cacheStart     = Long.MAX_VALUE;
+    private long                cacheEnd       = Long.MIN_VALUE;
+    private long                cacheDayStart;
+    private final char[]        prefix         = new char[16];
+    private int                 prefixLength;
+    private final char[]        suffix         = new char[9];
+    private int                 suffixLength;
+    private final LocalFields   fields         = new LocalFields(1);
+
+    // Cached day for parsing.
+    private long                parseDay       = Long.MIN_VALUE;
+    private int                 parseOffset    = ZoneTable.NO_FIXED_OFFSET;
+    private int                 parsedNanos;
+
+    // Scratch space for byte buffers and char sequences.
+    private final char[]        scratch        = new char[64];
+
+    /**
+     * Creates a formatter.
+     *
+     * @param zoneId Zone ID as accepted by ZoneId.of()
+     * @param style Text style
+     */
+    public TimestampFormatter(String zoneId, Style style)
+    {
+        this.table = ZoneTable.forZone(zoneId);
+        this.style = style;
+    }
+
+    public String getZoneId()
+    {
+        return table.getZoneId();
+    }
+
+    public Style getStyle()
+    {
+        return style;
+    }
+
+    /**
+     * Formats a timestamp.
+     *
+     * @param millis Milliseconds since 1970-01-01Z
+     * @param buf Destination, which must have room for {@link #MAX_LENGTH}
+     *            characters
+     * @param off Offset at which to write
+     * @return Number of characters written
+     */
+    public int format(long millis, char[] buf, int off)
+    {
+        return format(millis, (int) Math.floorMod(millis, 1000L) * 1000000,
+                buf, off);
+    }
+
+    /**
+     * Formats a timestamp with nanosecond precision, as for a Timestamp whose
+     * getTime() returns millis and getNanos() returns nanos.
+     *
+     * @param millis Milliseconds since 1970-01-01Z
+     * @param nanos Fraction of the second in nanoseconds, which replaces the
+     *            fraction in millis
+     * @param buf Destination
+     * @param off Offset at which to write
+     * @return Number of characters written
+     */
+    public int format(long millis, int nanos, char[] buf, int off)
+    {
+        if (millis < cacheStart || millis >= cacheEnd)
+            load(millis);
+        int secondOfDay = (int) ((millis - cacheDayStart) / 1000);
+
+        int pos = off;
+        System.arraycopy(prefix, 0, buf, pos, prefixLength);
+        pos += prefixLength;
+        pos = put2(secondOfDay / 3600, buf, pos);
+        buf[pos++] = ':';
+        pos = put2(secondOfDay / 60 % 60, buf, pos);
+        buf[pos++] = ':';
+        pos = put2(secondOfDay % 60, buf, pos);
+        buf[pos++] = '.';
+
+        if (style == Style.JDBC)
+        {
+            // Print nine digits less trailing zeros, or a single zero.
+            if (nanos == 0)
+                buf[pos++] = '0';
+            else
+            {
+                int digits = 9;
+                while (nanos % 10 == 0)
+                {
+                    nanos /= 10;
+                    digits--;
+                }
+                pos = putPadded(nanos, digits, buf, pos);
+            }
+        }
+        else
+        {
+            if (nanos % 1000000 == 0)
+                pos = putPadded(nanos / 1000000, 3, buf, pos);
+            else
+                pos = putPadded(nanos, 9, buf, pos);
+            System.arraycopy(suffix, 0, buf, pos, suffixLength);
+            pos += suffixLength;
+        }
+        return pos - off;
+    }
+
+    /**
+     * Formats a timestamp as ASCII bytes at the buffer's position, which is
+     * advanced past the text.
+     *
+     * @param millis Milliseconds since 1970-01-01Z
+     * @param buf Destination
+     * @return Number of bytes written
+     */
+    public int format(long millis, ByteBuffer buf)
+    {
+        int len = format(millis, scratch, 0);
+        for (int i = 0; i < len; i++)
+            buf.put((byte) scratch[i]);
+        return len;
+    }
+
+    /**
+     * Parses a timestamp in either style. The date and time may be separated
+     * by a space or 'T', the fraction is optional and may have up to nine
+     * digits, and a trailing offset such as "Z" or "+05:30" is used in place
+     * of the zone if present. Fractions finer than a millisecond are
+     * available afterwards from {@link #getParsedNanos()}.
+     *
+     * @param buf Source text
+     * @param off Offset of the first character
+     * @param len Length of the text
+     * @return Milliseconds since 1970-01-01Z
+     * @throws IllegalArgumentException Thrown if the text is malformed
+     */
+    public long parse(char[] buf, int off, int len)
+    {
+        int end = off + len;
+        int pos = off;
+
+        // Date.
+        int yearStart = pos;
+        while (pos < end && isDigit(buf[pos]))
+            pos++;
+        if (pos - yearStart < 4 || pos - yearStart > 9)
+            throw parseError(buf, off, len);
+        int year = digits(buf, yearStart, pos - yearStart);
+        pos = expect(buf, pos, end, '-', off, len);
+        int month = digits(buf, pos, 2, end, off, len);
+        pos = expect(buf, pos + 2, end, '-', off, len);
+        int day = digits(buf, pos, 2, end, off, len);
+        pos += 2;
+        if (pos >= end || (buf[pos] != ' ' && buf[pos] != 'T'))
+            throw parseError(buf, off, len);
+        pos++;
+
+        // Time.
+        int hour = digits(buf, pos, 2, end, off, len);
+        pos = expect(buf, pos + 2, end, ':', off, len);
+        int minute = digits(buf, pos, 2, end, off, len);
+        pos = expect(buf, pos + 2, end, ':', off, len);
+        int second = digits(buf, pos, 2, end, off, len);
+        pos += 2;
+        int nanos = 0;
+        if (pos < end && buf[pos] == '.')
+        {
+            int start = ++pos;
+            while (pos < end && isDigit(buf[pos]))
+                pos++;
+            int n = pos - start;
+            if (n == 0 || n > 9)
+                throw parseError(buf, off, len);
+            nanos = digits(buf, start, n);
+            for (; n < 9; n++)
+                nanos *= 10;
+        }
+        if (month < 1 || month > 12 || day < 1
+                || day > lengthOfMonth(year, month) || hour > 23
+                || minute > 59 || second > 59)
+            throw parseError(buf, off, len);
+
+        // Offset, if any.
+        int offsetSeconds = ZoneTable.NO_FIXED_OFFSET;
+        if (pos < end && buf[pos] == 'Z')
+        {
+            offsetSeconds = 0;
+            pos++;
+        }
+        else if (pos < end && (buf[pos] == '+' || buf[pos] == '-'))
+        {
+            int sign = buf[pos] == '-' ? -1 : 1;
+            int h = digits(buf, pos + 1, 2, end, off, len);
+            pos = expect(buf, pos + 3, end, ':', off, len);
+            int m = digits(buf, pos, 2, end, off, len);
+            pos += 2;
+            int s = 0;
+            if (pos < end && buf[pos] == ':')
+            {
+                s = digits(buf, pos + 1, 2, end, off, len);
+                pos += 3;
+            }
+            offsetSeconds = sign * (h * 3600 + m * 60 + s);
+        }
+        if (pos != end)
+            throw parseError(buf, off, len);
+
+        // Convert to an instant, using the cached day offset if we can.
+        long epochDay = BulkZoneConverter.toEpochDay(year, month, day);
+        long local = epochDay * MILLIS_PER_DAY + hour * 3600000L + minute
+                * 60000L + second * 1000L + nanos / 1000000;
+        parsedNanos = nanos;
+        if (offsetSeconds != ZoneTable.NO_FIXED_OFFSET)
+            return local - offsetSeconds * 1000L;
+        if (style == Style.JDBC)
+        {
+            // Where the legacy offset gives an instant before 1900 it wins,
+            // which is also the earlier instant if the local time repeats.
+            long legacy = local - table.getLegacyOffsetSeconds() * 1000L;
+            if (legacy < ZoneTable.LEGACY_LIMIT_MILLIS)
+                return legacy;
+        }
+        if (epochDay != parseDay)
+        {
+            parseDay = epochDay;
+            parseOffset = table.getDayOffsetSeconds(epochDay);
+        }
+        if (parseOffset != ZoneTable.NO_FIXED_OFFSET)
+            return local - parseOffset * 1000L;
+        return table.toEpochMillis(local);
+    }
+
+    /**
+     * Parses a timestamp from a char sequence.
+     *
+     * @see #parse(char[], int, int)
+     */
+    public long parse(CharSequence text)
+    {
+        int len = text.length();
+        if (len > scratch.length)
+            throw new IllegalArgumentException("Timestamp too long: " + text);
+        for (int i = 0; i < len; i++)
+            scratch[i] = text.charAt(i);
+        return parse(scratch, 0, len);
+    }
+
+    /**
+     * Parses ASCII bytes from the buffer's position to its limit, leaving the
+     * position at the limit.
+     *
+     * @see #parse(char[], int, int)
+     */
+    public long parse(ByteBuffer buf)
+    {
+        int len = buf.remaining();
+        if (len > scratch.length)
+            throw new IllegalArgumentException("Timestamp too long: length="
+                    + len);
+        for (int i = 0; i < len; i++)
+            scratch[i] = (char) (buf.get() & 0xff);
+        return parse(scratch, 0, len);
+    }
+
+    /** Returns the fraction of the second from the last parse. */
+    public int getParsedNanos()
+    {
+        return parsedNanos;
+    }
+
+    // Fills the cache for the local day and offset interval holding an
+    // instant.
+    private void load(long millis)
+    {
+        int offset;
+        long start;
+        long end;
+        if (style == Style.JDBC && millis < ZoneTable.LEGACY_LIMIT_MILLIS)
+        {
+            // Timestamp uses a single offset before 1900.
+            offset = table.getLegacyOffsetSeconds();
+            start = Long.MIN_VALUE;
+            end = ZoneTable.LEGACY_LIMIT_MILLIS;
+        }
+        else if (millis < ZoneTable.LIMIT_MILLIS)
+        {
+            int index = table.indexOf(millis, -1);
+            offset = table.offsetAt(index);
+            start = table.getIntervalStart(index);
+            end = table.getIntervalEnd(index);
+            if (style == Style.JDBC)
+                start = Math.max(start, ZoneTable.LEGACY_LIMIT_MILLIS);
+        }
+        else
+        {
+            // Not cached beyond the table.
+            offset = table.getOffsetSeconds(millis);
+            start = millis;
+            end = millis + 1;
+        }
+        long local = millis + offset * 1000L;
+        long dayStart = Math.floorDiv(local, MILLIS_PER_DAY) * MILLIS_PER_DAY
+                - offset * 1000L;
+        cacheStart = Math.max(start, dayStart);
+        cacheEnd = Math.min(end, dayStart + MILLIS_PER_DAY);
+        cacheDayStart = dayStart;
+
+        // Date prefix.
+        BulkZoneConverter.setFields(local, fields, 0);
+        int pos = putPadded(fields.year[0], 4, prefix, 0);
+        prefix[pos++] = '-';
+        pos = put2(fields.month[0], prefix, pos);
+        prefix[pos++] = '-';
+        pos = put2(fields.day[0], prefix, pos);
+        prefix[pos++] = style == Style.JDBC ? ' ' : 'T';
+        prefixLength = pos;
+
+        // Offset suffix.
+        if (offset == 0)
+        {
+            suffix[0] = 'Z';
+            suffixLength = 1;
+        }
+        else
+        {
+            int abs = Math.abs(offset);
+            suffix[0] = offset < 0 ? '-' : '+';
+            pos = put2(abs / 3600, suffix, 1);
+            suffix[pos++] = ':';
+            pos = put2(abs / 60 % 60, suffix, pos);
+            if (abs % 60 != 0)
+            {
+                suffix[pos++] = ':';
+                pos = put2(abs % 60, suffix, pos);
+            }
+            suffixLength = pos;
+        }
+    }
+
+    private static int put2(int value, char[] buf, int pos)
+    {
+        buf[pos] = (char) ('0' + value / 10);
+        buf[pos + 1] = (char) ('0' + value % 10);
+        return pos + 2;
+    }
+
+    // Writes a non-negative number with leading zeros to at least the given
+    // width.
+    private static int putPadded(int value, int width, char[] buf, int pos)
+    {
+        int digits = 1;
+        for (int v = value / 10; v > 0; v /= 10)
+            digits++;
+        int len = Math.max(digits, width);
+        for (int i = pos + len - 1; i >= pos; i--)
+        {
+            buf[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return pos + len;
+    }
+
+    private static boolean isDigit(char c)
+    {
+        return c >= '0' && c <= '9';
+    }
+
+    private static int digits(char[] buf, int pos, int n)
+    {
+        int value = 0;
+        for (int i = pos; i < pos + n; i++)
+            value = value * 10 + (buf[i] - '0');
+        return value;
+    }
+
+    // Reads exactly n digits within bounds.
+    private int digits(char[] buf, int pos, int n, int end, int off, int len)
+    {
+        if (pos + n > end)
+            throw parseError(buf, off, len);
+        for (int i = pos; i < pos + n; i++)
+        {
+            if (!isDigit(buf[i]))
+                throw parseError(buf, off, len);
+        }
+        return digits(buf, pos, n);
+    }
+
+    // Checks for a separator and returns the following position.
+    private int expect(char[] buf, int pos, int end, char c, int off, int len)
+    {
+        if (pos >= end || buf[pos] != c)
+            throw parseError(buf, off, len);
+        return pos + 1;
+    }
+
+    private static int lengthOfMonth(int year, int month)
+    {
+        if (month == 2)
+            return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0))
+                    ? 29
+                    : 28;
+        return month == 4 || month == 6 || month == 9 || month == 11
+                ? 30
+                : 31;
+    }
+
+    private IllegalArgumentException parseError(char[] buf, int off, int len)
+    {
+        return new IllegalArgumentException("Invalid timestamp: "
+                + new String(buf, off, len));
+    }
+}
@@ -0,0 +1,282 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.time;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Table of UTC offsets for a single time zone, built once from the zone's
+ * ZoneRules and cached. The table holds every transition up to the year 2200
+ * as sorted epoch milliseconds, so looking up an offset is a binary search
+ * over a primitive array with no allocation. Later instants fall back to
+ * ZoneRules. Tables are immutable and may be shared freely between threads.
+ */
+public class ZoneTable
+{
+    /** Transitions at or after this instant (2200-01-01Z) are not cached. */
+    public static final long LIMIT_MILLIS = 7258118400000L;
+
+    /**
+     * Start of 1900 (1900-01-01Z). java.util.TimeZone keeps no zone history
+     * before this instant and uses the zone's current standard offset.
+     */
+    public static final long LEGACY_LIMIT_MILLIS = -2208988800000L;
+
+    /** Returned when the offset changes during a local day. */
+    public static final int NO_FIXED_OFFSET = Integer.MIN_VALUE;
+
+    // Largest possible offset magnitude, which is 18 hours.
+    private static final long MAX_OFFSET_MILLIS = 64800000L;
+    private static final long MILLIS_PER_DAY    = 86400000L;
+
+    // Tables by zone ID.
+    private static final ConcurrentMap<String, ZoneTable> tables =
+            new ConcurrentHashMap<String, ZoneTable>();
+
+    private final String    zoneId;
+    private final ZoneRules rules;
+    private final int       legacyOffset;
+
+    // Offset i applies from transition i-1 (inclusive) to transition i
+    // (exclusive), so there is one more offset than transitions.
+    private final long[]    transitions;
+    private final int[]     offsets;
+
+    /**
+     * Returns the table for a zone, building it on first use.
+     *
+     * @param zoneId Zone ID as accepted by ZoneId.of(), e.g. "Europe/Paris"
+     * @throws java.time.DateTimeException Thrown if the zone ID is invalid
+     */
+    public static ZoneTable forZone(String zoneId)
+    {
+        ZoneTable table = tables.get(zoneId);
+        if (table == null)
+        {
+            ZoneId id = ZoneId.of(zoneId);
+            table = new ZoneTable(zoneId, id.getRules(), TimeZone
+                    .getTimeZone(id).getOffset(LEGACY_LIMIT_MILLIS - 1) / 1000);
+            ZoneTable existing = tables.putIfAbsent(zoneId, table);
+            if (existing != null)
+                table = existing;
+        }
+        return table;
+    }
+
+    // Walks the zone rules to collect transitions up to the limit.
+    private ZoneTable(String zoneId, ZoneRules rules, int legacyOffset)
+    {
+        this.zoneId = zoneId;
+        this.rules = rules;
+        this.legacyOffset = legacyOffset;
+
+        long[] times = new long[64];
+        int[] values = new int[65];
+        int count = 0;
+        Instant limit = Instant.ofEpochMilli(LIMIT_MILLIS);
+        ZoneOffsetTransition t = rules.nextTransition(Instant.MIN);
+        values[0] = t == null ? rules.getOffset(Instant.EPOCH)
+                .getTotalSeconds() : t.getOffsetBefore().getTotalSeconds();
+        while (t != null && t.getInstant().isBefore(limit))
+        {
+            if (count == times.length)
+            {
+                long[] newTimes = new long[count * 2];
+                int[] newValues = new int[count * 2 + 1];
+                System.arraycopy(times, 0, newTimes, 0, count);
+                System.arraycopy(values, 0, newValues, 0, count + 1);
+                times = newTimes;
+                values = newValues;
+            }
+            times[count] = t.getInstant().toEpochMilli();
+            values[count + 1] = t.getOffsetAfter().getTotalSeconds();
+            count++;
+            t = rules.nextTransition(t.getInstant());
+        }
+        transitions = new long[count];
+        offsets = new int[count + 1];
+        System.arraycopy(times, 0, transitions, 0, count);
+        System.arraycopy(values, 0, offsets, 0, count + 1);
+    }
+
+    public String getZoneId()
+    {
+        return zoneId;
+    }
+
+    /**
+     * Returns the offset in seconds that java.util.TimeZone, and therefore
+     * Timestamp and Date, apply to every instant before
+     * {@link #LEGACY_LIMIT_MILLIS}.
+     */
+    public int getLegacyOffsetSeconds()
+    {
+        return legacyOffset;
+    }
+
+    /** Returns the number of cached transitions. */
+    public int getTransitionCount()
+    {
+        return transitions.length;
+    }
+
+    /**
+     * Returns the index of the offset in effect at an instant, which is the
+     * number of transitions at or before it.
+     *
+     * @param epochMillis Instant in milliseconds since 1970-01-01Z
+     * @param hint Index from a previous lookup, which is checked first since
+     *            nearby instants usually fall in the same interval
+     */
+    public int indexOf(long epochMillis, int hint)
+    {
+        int n = transitions.length;
+        if (hint >= 0 && hint <= n
+                && (hint == 0 || transitions[hint - 1] <= epochMillis)
+                && (hint == n || epochMillis < transitions[hint]))
+            return hint;
+
+        // Find the first transition after the instant.
+        int lo = 0;
+        int hi = n;
+        while (lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if (transitions[mid] <= epochMillis)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Returns the offset for an index from {@link #indexOf(long, int)} in
+     * seconds.
+     */
+    public int offsetAt(int index)
+    {
+        return offsets[index];
+    }
+
+    /**
+     * Returns the instant at which the interval for an index from
+     * {@link #indexOf(long, int)} starts, or Long.MIN_VALUE for the first.
+     */
+    public long getIntervalStart(int index)
+    {
+        return index == 0 ? Long.MIN_VALUE : transitions[index - 1];
+    }
+
+    /**
+     * Returns the instant at which the interval for an index ends
+     * (exclusive). The last interval ends at {@link #LIMIT_MILLIS} since later
+     * transitions are not cached.
+     */
+    public long getIntervalEnd(int index)
+    {
+        return index == transitions.length ? LIMIT_MILLIS : transitions[index];
+    }
+
+    /**
+     * Returns the UTC offset in seconds at an instant.
+     *
+     * @param epochMillis Instant in milliseconds since 1970-01-01Z
+     */
+    public int getOffsetSeconds(long epochMillis)
+    {
+        if (epochMillis >= LIMIT_MILLIS)
+            return rules.getOffset(Instant.ofEpochMilli(epochMillis))
+                    .getTotalSeconds();
+        return offsets[indexOf(epochMillis, -1)];
+    }
+
+    /**
+     * Returns the offset in seconds for a local day if no transition falls
+     * within it, in which case every local time on the day maps to exactly
+     * one instant.
+     *
+     * @param epochDay Local date as days since 1970-01-01
+     * @return Offset in seconds or {@link #NO_FIXED_OFFSET}
+     */
+    public int getDayOffsetSeconds(long epochDay)
+    {
+        long start = epochDay * MILLIS_PER_DAY - MAX_OFFSET_MILLIS;
+        long end = start + MILLIS_PER_DAY + 2 * MAX_OFFSET_MILLIS;
+        if (end >= LIMIT_MILLIS)
+            return NO_FIXED_OFFSET;
+        int index = indexOf(start, -1);
+        if (index != indexOf(end, index))
+            return NO_FIXED_OFFSET;
+        return offsets[index];
+    }
+
+    /**
+     * Converts local time to an instant. Local times that occur twice when
+     * clocks go back use the earlier offset, and local times skipped when
+     * clocks go forward are moved forward by the length of the gap, which
+     * matches ZonedDateTime.
+     *
+     * @param localMillis Local time as milliseconds since 1970-01-01 local
+     * @return Instant in milliseconds since 1970-01-01Z
+     */
+    public long toEpochMillis(long localMillis)
+    {
+        if (localMillis >= LIMIT_MILLIS - MAX_OFFSET_MILLIS)
+        {
+            LocalDateTime local = LocalDateTime.ofEpochSecond(
+                    Math.floorDiv(localMillis, 1000L),
+                    (int) Math.floorMod(localMillis, 1000L) * 1000000,
+                    ZoneOffset.UTC);
+            ZoneOffsetTransition t = rules.getTransition(local);
+            int offset = t == null ? rules.getOffset(local).getTotalSeconds()
+                    : t.getOffsetBefore().getTotalSeconds();
+            return localMillis - offset * 1000L;
+        }
+
+        // Take the first interval that contains the local time under its
+        // own offset. If there is none, the time is in a gap.
+        int lo = indexOf(localMillis - MAX_OFFSET_MILLIS, -1);
+        int hi = indexOf(localMillis + MAX_OFFSET_MILLIS, lo);
+        for (int i = lo; i <= hi; i++)
+        {
+            long t = localMillis - offsets[i] * 1000L;
+            if (t >= getIntervalStart(i) && t < getIntervalEnd(i))
+                return t;
+        }
+        for (int i = lo; i < hi; i++)
+        {
+            long t = localMillis - offsets[i] * 1000L;
+            if (t >= transitions[i]
+                    && localMillis - offsets[i + 1] * 1000L < transitions[i])
+                return t;
+        }
+        throw new IllegalStateException("Unable to resolve local time: zone="
+                + zoneId + " localMillis=" + localMillis);
+    }
+}
@@ -0,0 +1,221 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.KeyGenerator;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the choices made by the adaptive block codec and decoding of each
+ * codec from framed files.
+ *
+ * @see com.granadata.hacking.compression.AdaptiveBlockCodec
+ * @see com.granadata.hacking.compression.FramedFileReader
+ */
+public class AdaptiveBlockCodecTest
+{
+    private static final int BLOCK_SIZE = 65536;
+
+    /**
+     * Verify that a block above the entropy limit is stored without trying
+     * to compress it.
+     */
+    @Test
+    public void testEntropySkip()
+    {
+        AdaptiveBlockCodec codec = new AdaptiveBlockCodec();
+        byte[] raw = random(1, BLOCK_SIZE);
+        Assert.assertTrue("Entropy above limit", codec.entropy(raw,
+                raw.length) > AdaptiveBlockCodec.DEFAULT_MAX_ENTROPY);
+        Assert.assertEquals(BLOCK_SIZE, codec.encode(raw, raw.length));
+        Assert.assertEquals(FramedFormat.CODEC_STORED, codec.getCodec());
+        Assert.assertSame(raw, codec.getOutput());
+        Assert.assertEquals(1, codec.getEntropySkips());
+        Assert.assertEquals(1, codec.getStoredBlocks());
+        codec.end();
+    }
+
+    /**
+     * Verify that blocks below the entropy limit are deflated at the fast
+     * level, and stored raw if the fast trial does not save enough.
+     */
+    @Test
+    public void testFastTrial()
+    {
+        // A gain of 100% can never be reached, so full deflate is not used.
+        AdaptiveBlockCodec codec = new AdaptiveBlockCodec(
+                AdaptiveBlockCodec.DEFAULT_MAX_ENTROPY, 0.2, 1.0,
+                AdaptiveBlockCodec.DEFAULT_PROBE_INTERVAL);
+
+        // Bytes from 128 symbols have 7 bits of entropy, which deflate
+        // reduces by only about 12%.
+        byte[] raw = symbols(2, BLOCK_SIZE, 128);
+        Assert.assertEquals(BLOCK_SIZE, codec.encode(raw, raw.length));
+        Assert.assertEquals(FramedFormat.CODEC_STORED, codec.getCodec());
+        Assert.assertEquals(0, codec.getEntropySkips());
+        Assert.assertEquals(1, codec.getStoredBlocks());
+
+        raw = text(3, BLOCK_SIZE);
+        int n = codec.encode(raw, raw.length);
+        Assert.assertEquals(FramedFormat.CODEC_FAST, codec.getCodec());
+        Assert.assertTrue("Text compresses", n < BLOCK_SIZE * 0.8);
+        codec.end();
+
+        // With default thresholds the smaller savings are enough.
+        codec = new AdaptiveBlockCodec();
+        raw = symbols(2, BLOCK_SIZE, 128);
+        Assert.assertTrue(codec.encode(raw, raw.length) < BLOCK_SIZE);
+        Assert.assertEquals(FramedFormat.CODEC_FAST, codec.getCodec());
+        codec.end();
+    }
+
+    /**
+     * Verify that full deflate is probed only every 16 blocks. Text gains
+     * much more from full deflate than bytes from 16 symbols, so the level
+     * chosen at each probe holds until the next one.
+     */
+    @Test
+    public void testProbeInterval()
+    {
+        AdaptiveBlockCodec codec = new AdaptiveBlockCodec();
+        byte[] text = text(4, BLOCK_SIZE);
+        byte[] symbols = symbols(5, BLOCK_SIZE, 16);
+        for (int i = 0; i <= 32; i++)
+        {
+            byte[] raw = i == 0 || i > 16 ? text : symbols;
+            byte expected = i < 16 || i == 32 ? FramedFormat.CODEC_DEFLATE
+                    : FramedFormat.CODEC_FAST;
+            codec.encode(raw, raw.length);
+            Assert.assertEquals("Block " + i, expected, codec.getCodec());
+        }
+        codec.end();
+    }
+
+    /**
+     * Verify that a framed file with mixed blocks uses each codec as
+     * expected and reads back correctly, with and without pooled
+     * resources.
+     */
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        // Blocks and the codec each should get. Block 16 is a probe that
+        // switches from full to fast deflate.
+        byte[][] blocks = new byte[20][];
+        byte[] codecs = new byte[blocks.length];
+        blocks[0] = text(6, BLOCK_SIZE);
+        codecs[0] = FramedFormat.CODEC_DEFLATE;
+        blocks[1] = random(7, BLOCK_SIZE);
+        codecs[1] = FramedFormat.CODEC_STORED;
+        for (int i = 2; i <= 16; i++)
+        {
+            blocks[i] = symbols(8 + i, BLOCK_SIZE, 16);
+            codecs[i] = i < 16 ? FramedFormat.CODEC_DEFLATE
+                    : FramedFormat.CODEC_FAST;
+        }
+        blocks[17] = symbols(30, BLOCK_SIZE, 128);
+        codecs[17] = FramedFormat.CODEC_FAST;
+        blocks[18] = random(31, BLOCK_SIZE);
+        codecs[18] = FramedFormat.CODEC_STORED;
+        blocks[19] = text(32, 10000);
+        codecs[19] = FramedFormat.CODEC_FAST;
+
+        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        keyGenerator.init(128);
+        ResourcePools pools = new ResourcePools(keyGenerator.generateKey(),
+                "AES", BLOCK_SIZE, 2, true);
+        File file = File.createTempFile("adaptive", ".dat");
+        try
+        {
+            for (int pass = 0; pass < 2; pass++)
+            {
+                boolean pooled = pass == 1;
+                FramedOutputStream out;
+                if (pooled)
+                    out = new FramedOutputStream(new FileOutputStream(file),
+                            BLOCK_SIZE, new AdaptiveBlockCodec(pools), true,
+                            pools);
+                else
+                    out = new FramedOutputStream(new FileOutputStream(file),
+                            BLOCK_SIZE, new AdaptiveBlockCodec(), null);
+                for (byte[] block : blocks)
+                    out.write(block);
+                out.close();
+
+                byte[] stored = Files.readAllBytes(file.toPath());
+                FramedFileReader reader = pooled ? new FramedFileReader(
+                        file, true, pools) : new FramedFileReader(file, null);
+                Assert.assertEquals(blocks.length, reader.getBlockCount());
+                byte[] dest = new byte[BLOCK_SIZE];
+                for (int i = 0; i < blocks.length; i++)
+                {
+                    String name = "pooled=" + pooled + " block=" + i;
+                    Assert.assertEquals(name, codecs[i],
+                            stored[(int) reader.getPosition(i)]);
+                    int n = reader.readBlock(i, dest);
+                    Assert.assertArrayEquals(name, blocks[i], Arrays
+                            .copyOf(dest, n));
+                }
+                reader.close();
+                Assert.assertEquals("Objects returned", 0, pools
+                        .getOutstanding());
+            }
+        }
+        finally
+        {
+            file.delete();
+            pools.close();
+        }
+    }
+
+    // Returns uniformly random bytes.
+    private static byte[] random(long seed, int length)
+    {
+        byte[] data = new byte[length];
+        new RandomDataGenerator(seed).fill(data, 0, length);
+        return data;
+    }
+
+    // Returns independent random bytes from the given number of symbols.
+    private static byte[] symbols(long seed, int length, int symbols)
+    {
+        Random random = new Random(seed);
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+            data[i] = (byte) random.nextInt(symbols);
+        return data;
+    }
+
+    // Returns generated text.
+    private static byte[] text(long seed, int length)
+    {
+        byte[] data = new byte[length];
+        new TextDataGenerator(seed).fill(data, 0, length);
+        return data;
+    }
+}
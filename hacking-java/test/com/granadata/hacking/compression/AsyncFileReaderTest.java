@@ -0,0 +1,120 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests asynchronous file reads in order and out of order.
+ *
+ * @see com.granadata.hacking.compression.AsyncFileReader
+ */
+public class AsyncFileReaderTest
+{
+    /**
+     * Verify that the ordered stream returns the file exactly at several
+     * queue depths, including a final partial request.
+     */
+    @Test
+    public void testOrderedStream() throws Exception
+    {
+        byte[] data = new byte[1000003];
+        new Random(1).nextBytes(data);
+        File file = write(data);
+        for (int depth = 1; depth <= 16; depth *= 4)
+        {
+            AsyncFileReader reader = new AsyncFileReader(file, depth, 2);
+            InputStream in = reader.openStream(data.length, 4096);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[1000];
+            int n;
+            while ((n = in.read(buf)) > 0)
+                out.write(buf, 0, n);
+            reader.close();
+            Assert.assertArrayEquals("depth=" + depth, data,
+                    out.toByteArray());
+            Assert.assertEquals(245, reader.getRequests());
+        }
+        file.delete();
+    }
+
+    /**
+     * Verify that every request of varying size completes with the right
+     * data when handlers run in parallel.
+     */
+    @Test
+    public void testReadAll() throws Exception
+    {
+        final byte[] data = new byte[500000];
+        new Random(2).nextBytes(data);
+        File file = write(data);
+        Random random = new Random(3);
+        int n = 200;
+        final long[] positions = new long[n];
+        int[] lengths = new int[n];
+        for (int i = 0; i < n; i++)
+        {
+            lengths[i] = 1 + random.nextInt(20000);
+            positions[i] = random.nextInt(data.length - lengths[i]);
+        }
+        final boolean[] seen = new boolean[n];
+        AsyncFileReader reader = new AsyncFileReader(file, 8, 3);
+        reader.readAll(positions, lengths, new AsyncFileReader.Handler()
+        {
+            public boolean completed(int request, ByteBuffer buf)
+            {
+                for (int i = 0; buf.hasRemaining(); i++)
+                {
+                    if (buf.get() != data[(int) positions[request] + i])
+                        throw new IllegalStateException("Bad data: request="
+                                + request);
+                }
+                synchronized (seen)
+                {
+                    seen[request] = true;
+                }
+                return true;
+            }
+        });
+        reader.close();
+        for (int i = 0; i < n; i++)
+            Assert.assertTrue("request=" + i, seen[i]);
+        Assert.assertTrue(reader.getLatencyNanos(50) <= reader
+                .getLatencyNanos(100));
+        file.delete();
+    }
+
+    private File write(byte[] data) throws Exception
+    {
+        File file = File.createTempFile("async", ".dat");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(data);
+        out.close();
+        return file;
+    }
+}
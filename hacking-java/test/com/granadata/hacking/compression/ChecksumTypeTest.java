@@ -0,0 +1,141 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Checksum;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests checksum types, including combination of values over ranges and the
+ * xxHash64 implementation.
+ *
+ * @see com.granadata.hacking.compression.ChecksumType
+ * @see com.granadata.hacking.compression.XxHash64
+ */
+public class ChecksumTypeTest
+{
+    /**
+     * Verify that combining values over random splits gives the value of the
+     * whole for every combinable type.
+     */
+    @Test
+    public void testCombine()
+    {
+        Random random = new Random(1);
+        byte[] data = new byte[100000];
+        random.nextBytes(data);
+        for (ChecksumType type : ChecksumType.values())
+        {
+            if (!type.isCombinable())
+                continue;
+            long whole = checksum(type, data, 0, data.length);
+            for (int trial = 0; trial < 20; trial++)
+            {
+                // Split into several ranges, some possibly empty.
+                int[] cuts = new int[5];
+                for (int i = 0; i < cuts.length; i++)
+                    cuts[i] = random.nextInt(data.length + 1);
+                Arrays.sort(cuts);
+                long combined = type.emptyValue();
+                int start = 0;
+                for (int i = 0; i <= cuts.length; i++)
+                {
+                    int end = i < cuts.length ? cuts[i] : data.length;
+                    combined = type.combine(combined,
+                            checksum(type, data, start, end - start), end
+                                    - start);
+                    start = end;
+                }
+                Assert.assertEquals("Combined " + type.getName(), whole,
+                        combined);
+            }
+        }
+    }
+
+    /**
+     * Verify that xxHash64 cannot be combined.
+     */
+    @Test(expected = UnsupportedOperationException.class)
+    public void testCombineUnsupported()
+    {
+        ChecksumType.XXHASH64.combine(0, 0, 1);
+    }
+
+    /**
+     * Verify xxHash64 against published values.
+     */
+    @Test
+    public void testXxHash64Vectors()
+    {
+        Assert.assertEquals(0xEF46DB3751D8E999L, xxh64(""));
+        Assert.assertEquals(0x44BC2CF5AD770999L, xxh64("abc"));
+
+        // Inputs of 32 bytes or more go through the four-lane loop.
+        Assert.assertEquals(0xFBCEA83C8A378BF1L,
+                xxh64("Nobody inspects the spammish repetition"));
+    }
+
+    /**
+     * Verify that xxHash64 gives the same value however input is divided
+     * between calls.
+     */
+    @Test
+    public void testXxHash64Streaming()
+    {
+        Random random = new Random(2);
+        byte[] data = new byte[1000];
+        random.nextBytes(data);
+        for (int length = 0; length <= data.length; length += 37)
+        {
+            long expected = checksum(ChecksumType.XXHASH64, data, 0, length);
+            XxHash64 hash = new XxHash64();
+            int off = 0;
+            while (off < length)
+            {
+                int n = Math.min(length - off, random.nextInt(40));
+                if (n == 1)
+                    hash.update(data[off]);
+                else
+                    hash.update(data, off, n);
+                off += n;
+            }
+            Assert.assertEquals("Length " + length, expected, hash.getValue());
+        }
+    }
+
+    private static long xxh64(String s)
+    {
+        byte[] data = s.getBytes(StandardCharsets.US_ASCII);
+        return checksum(ChecksumType.XXHASH64, data, 0, data.length);
+    }
+
+    private static long checksum(ChecksumType type, byte[] data, int off,
+            int len)
+    {
+        Checksum checksum = type.create();
+        checksum.update(data, off, len);
+        return checksum.getValue();
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests synthetic data generators.
+ *
+ * @see com.granadata.hacking.compression.DataGenerator
+ * @see com.granadata.hacking.compression.GeneratorInputStream
+ */
+public class DataGeneratorTest
+{
+    private static final int LENGTH = 200000;
+
+    /**
+     * Verify that each generator gives the same data for the same seed and
+     * different data for a different seed.
+     */
+    @Test
+    public void testDeterministic()
+    {
+        for (String type : DataGenerator.TYPES)
+        {
+            byte[] a = generate(type, 1);
+            byte[] b = generate(type, 1);
+            byte[] c = generate(type, 2);
+            Assert.assertArrayEquals(type, a, b);
+            Assert.assertFalse(type, Arrays.equals(a, c));
+        }
+    }
+
+    /**
+     * Verify that reading a generator stream in chunks of any size, or a
+     * byte at a time, gives the same data as a single fill.
+     */
+    @Test
+    public void testStreamMatchesFill() throws Exception
+    {
+        Random random = new Random(3);
+        for (String type : DataGenerator.TYPES)
+        {
+            byte[] expected = generate(type, 7);
+            GeneratorInputStream in = new GeneratorInputStream(DataGenerator
+                    .create(type, 7, 4.0), LENGTH);
+            byte[] actual = new byte[LENGTH + 100];
+            int pos = 0;
+            while (true)
+            {
+                int n;
+                if (random.nextInt(10) == 0)
+                {
+                    int b = in.read();
+                    if (b >= 0)
+                        actual[pos] = (byte) b;
+                    n = b < 0 ? -1 : 1;
+                }
+                else
+                    n = in.read(actual, pos, 1 + random.nextInt(100));
+                if (n < 0)
+                    break;
+                pos += n;
+            }
+            Assert.assertEquals(type, LENGTH, pos);
+            Assert.assertArrayEquals(type, expected, Arrays.copyOf(actual,
+                    LENGTH));
+        }
+    }
+
+    /**
+     * Verify that the measured entropy of mixed data is close to the target
+     * and that random data is close to 8 bits per byte.
+     */
+    @Test
+    public void testEntropy()
+    {
+        double[] targets = {0.5, 2.0, 4.0, 6.0, 7.5};
+        for (double target : targets)
+        {
+            byte[] buf = new byte[1000000];
+            new MixedDataGenerator(1, target).fill(buf, 0, buf.length);
+            double measured = entropy(buf);
+            Assert.assertEquals("target=" + target, target, measured, 0.1);
+        }
+        Assert.assertEquals(8.0, entropy(generate("random", 1)), 0.01);
+    }
+
+    private byte[] generate(String type, long seed)
+    {
+        byte[] buf = new byte[LENGTH];
+        DataGenerator.create(type, seed, 4.0).fill(buf, 0, buf.length);
+        return buf;
+    }
+
+    // Returns the Shannon entropy of byte frequencies in bits per byte.
+    private double entropy(byte[] buf)
+    {
+        long[] counts = new long[256];
+        for (byte b : buf)
+            counts[b & 0xff]++;
+        double h = 0.0;
+        for (long count : counts)
+        {
+            if (count > 0)
+            {
+                double p = (double) count / buf.length;
+                h -= p * Math.log(p) / Math.log(2);
+            }
+        }
+        return h;
+    }
+}
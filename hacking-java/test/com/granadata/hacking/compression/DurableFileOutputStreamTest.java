@@ -0,0 +1,220 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests durable and direct file I/O. Direct I/O is tested only where the JVM
+ * and the file system of the temporary directory support it; elsewhere the
+ * same checks run with buffered I/O.
+ *
+ * @see com.granadata.hacking.compression.DurableFileOutputStream
+ * @see com.granadata.hacking.compression.DirectFileInputStream
+ * @see com.granadata.hacking.compression.DirectIO
+ */
+public class DurableFileOutputStreamTest
+{
+    private static final int      BUFFER_SIZE = 8192;
+    private static final int      SYNC_BYTES  = 10000;
+    private static final int      MAX_WRITE   = 5000;
+    private static final String[] SYNC_MODES  = {"none", "block", "bytes",
+            "close"};
+    private static final int[]    LENGTHS     = {0, 1, 511, 4097, 8192,
+            100003};
+
+    private File                  file;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        file = File.createTempFile("durable", ".dat");
+    }
+
+    @After
+    public void tearDown()
+    {
+        file.delete();
+    }
+
+    /**
+     * Verify that files of lengths that are not multiples of the alignment
+     * are written completely under each sync mode, with and without direct
+     * I/O, and that forces happen when each mode calls for them.
+     */
+    @Test
+    public void testWriteModes() throws Exception
+    {
+        boolean[] directModes = directSupported() ? new boolean[]{false,
+                true} : new boolean[]{false};
+        for (boolean direct : directModes)
+        {
+            for (String sync : SYNC_MODES)
+            {
+                for (int length : LENGTHS)
+                {
+                    String name = "direct=" + direct + " sync=" + sync
+                            + " length=" + length;
+                    byte[] data = data(length);
+                    DurableFileOutputStream out = write(data, direct, sync);
+                    Assert.assertEquals(name, length, file.length());
+                    Assert.assertArrayEquals(name, data, Files
+                            .readAllBytes(file.toPath()));
+
+                    long forces = out.getForces();
+                    if ("none".equals(sync))
+                        Assert.assertEquals(name, 0, forces);
+                    else if ("close".equals(sync))
+                        Assert.assertEquals(name, 1, forces);
+                    else
+                    {
+                        // Each force but the last one at close covers at
+                        // least the interval and at most one write beyond.
+                        long interval = "block".equals(sync) ? BUFFER_SIZE
+                                : SYNC_BYTES;
+                        Assert.assertTrue(name + " forces=" + forces,
+                                forces >= 1 + length / (interval + MAX_WRITE)
+                                        && forces <= 1 + length / interval);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Verify that direct reads return the whole file, including the final
+     * partial unit, for lengths that are not multiples of the alignment.
+     */
+    @Test
+    public void testDirectRead() throws Exception
+    {
+        if (!directSupported())
+            return;
+        for (int length : LENGTHS)
+        {
+            byte[] data = data(length);
+            write(data, false, "none");
+            InputStream in = new DirectFileInputStream(file, BUFFER_SIZE);
+            byte[] read = new byte[length];
+            int total = 0;
+            try
+            {
+                // Mix single byte reads with reads that cross buffers.
+                int b;
+                while (total < length && (b = in.read()) >= 0)
+                {
+                    read[total++] = (byte) b;
+                    int n = in.read(read, total, Math.min(length - total,
+                            3000));
+                    if (n < 0)
+                        break;
+                    total += n;
+                }
+                Assert.assertEquals("Length " + length, -1, in.read());
+            }
+            finally
+            {
+                in.close();
+            }
+            Assert.assertEquals(length, total);
+            Assert.assertArrayEquals("Length " + length, data, read);
+        }
+    }
+
+    /**
+     * Verify rounding and that aligned buffers have the requested capacity.
+     */
+    @Test
+    public void testAlignment() throws Exception
+    {
+        int alignment = DirectIO.alignment(file);
+        Assert.assertTrue("Power of two", alignment > 0
+                && (alignment & (alignment - 1)) == 0);
+        Assert.assertEquals(0, DirectIO.roundUp(0, 512));
+        Assert.assertEquals(512, DirectIO.roundUp(1, 512));
+        Assert.assertEquals(512, DirectIO.roundUp(512, 512));
+        Assert.assertEquals(1024, DirectIO.roundUp(513, 512));
+
+        ByteBuffer buf = DirectIO.allocateAligned(5000, 4096);
+        Assert.assertTrue(buf.isDirect());
+        Assert.assertEquals(8192, buf.capacity());
+        Assert.assertEquals(0, buf.alignmentOffset(0, 4096));
+    }
+
+    // Writes data in uneven pieces with the stream that CompressionLab uses
+    // for the sync mode.
+    private DurableFileOutputStream write(byte[] data, boolean direct,
+            String sync) throws IOException
+    {
+        long interval = 0;
+        if ("block".equals(sync))
+            interval = BUFFER_SIZE;
+        else if ("bytes".equals(sync))
+            interval = SYNC_BYTES;
+        DurableFileOutputStream out = new DurableFileOutputStream(file,
+                direct, BUFFER_SIZE, interval, !"none".equals(sync));
+        Random random = new Random(data.length);
+        int off = 0;
+        while (off < data.length)
+        {
+            int n = Math.min(data.length - off, random.nextInt(MAX_WRITE));
+            if (n == 1)
+                out.write(data[off]);
+            else
+                out.write(data, off, n);
+            off += n;
+        }
+        out.close();
+        return out;
+    }
+
+    // Returns true if the temporary file system accepts direct I/O.
+    private boolean directSupported()
+    {
+        if (!DirectIO.isSupported())
+            return false;
+        try
+        {
+            new DirectFileInputStream(file, BUFFER_SIZE).close();
+            return true;
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+
+    private static byte[] data(int length)
+    {
+        byte[] data = new byte[length];
+        new RandomDataGenerator(length).fill(data, 0, length);
+        return data;
+    }
+}
@@ -0,0 +1,237 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests writing and reading the framed container format.
+ *
+ * @see com.granadata.hacking.compression.FramedOutputStream
+ * @see com.granadata.hacking.compression.FramedFileReader
+ * @see com.granadata.hacking.compression.FramedInputStream
+ */
+public class FramedFileReaderTest
+{
+    private static final int BLOCK_SIZE = 4096;
+
+    private SecretKey        key;
+    private byte[]           data;
+    private File             file;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        keyGenerator.init(128);
+        key = keyGenerator.generateKey();
+
+        // A partial last block makes the length an odd size.
+        data = new byte[BLOCK_SIZE * 10 + 1234];
+        new TextDataGenerator(1).fill(data, 0, data.length);
+        file = File.createTempFile("framed", ".dat");
+    }
+
+    @After
+    public void tearDown()
+    {
+        file.delete();
+    }
+
+    /**
+     * Verify that data round trip with and without compression and
+     * encryption, both as a stream and by point reads.
+     */
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        for (int i = 0; i < 4; i++)
+        {
+            boolean compress = (i & 1) != 0;
+            boolean encrypt = (i & 2) != 0;
+            String name = "compress=" + compress + " encrypt=" + encrypt;
+            write(compress, encrypt);
+
+            FramedFileReader reader = open(encrypt);
+            Assert.assertEquals(name, compress, reader.isCompressed());
+            Assert.assertEquals(name, encrypt, reader.isEncrypted());
+            Assert.assertEquals(name, data.length, reader.getLength());
+            Assert.assertEquals(name, 11, reader.getBlockCount());
+            Assert.assertArrayEquals(name, data, readAll(new FramedInputStream(
+                    reader, 0, Long.MAX_VALUE)));
+
+            reader = open(encrypt);
+            byte[] buf = new byte[100];
+            Assert.assertEquals(100, reader.read(BLOCK_SIZE * 3 - 50, buf, 0,
+                    100));
+            Assert.assertArrayEquals(name, Arrays.copyOfRange(data,
+                    BLOCK_SIZE * 3 - 50, BLOCK_SIZE * 3 + 50), buf);
+            Assert.assertEquals(-1, reader.read(data.length, buf, 0, 100));
+            reader.close();
+        }
+    }
+
+    /**
+     * Verify ranges that start and end mid-block, on block boundaries and at
+     * the end of the data.
+     */
+    @Test
+    public void testRanges() throws Exception
+    {
+        write(true, false);
+        long[][] ranges = { {0, 10}, {BLOCK_SIZE, BLOCK_SIZE},
+                {BLOCK_SIZE - 1, 2}, {BLOCK_SIZE + 1, 3 * BLOCK_SIZE},
+                {5 * BLOCK_SIZE - 7, 7}, {data.length - 1, 100},
+                {data.length - 1234, 1234}, {data.length, 10}, {17, 0}};
+        for (long[] range : ranges)
+        {
+            int start = (int) range[0];
+            int end = (int) Math.min(data.length, range[0] + range[1]);
+            byte[] actual = readAll(new FramedInputStream(open(false),
+                    range[0], range[1]));
+            Assert.assertArrayEquals("offset=" + start + " length="
+                    + range[1], Arrays.copyOfRange(data, start, end), actual);
+        }
+    }
+
+    /**
+     * Verify that a changed byte in block data is detected for each
+     * combination of compression and encryption.
+     */
+    @Test
+    public void testCorruptBlock() throws Exception
+    {
+        for (int i = 0; i < 4; i++)
+        {
+            boolean compress = (i & 1) != 0;
+            boolean encrypt = (i & 2) != 0;
+            write(compress, encrypt);
+            FramedFileReader reader = open(encrypt);
+            long position = reader.getPosition(2)
+                    + FramedFormat.BLOCK_HEADER_SIZE + 20;
+            reader.close();
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.seek(position);
+            int b = raf.read();
+            raf.seek(position);
+            raf.write(b ^ 0x10);
+            raf.close();
+
+            try
+            {
+                readAll(new FramedInputStream(open(encrypt), 0,
+                        Long.MAX_VALUE));
+                Assert.fail("Corruption not detected: compress=" + compress
+                        + " encrypt=" + encrypt);
+            }
+            catch (IOException e)
+            {
+                // Expected.
+            }
+        }
+    }
+
+    /**
+     * Verify that files cut short in the trailer or index fail to open.
+     */
+    @Test
+    public void testTruncated() throws Exception
+    {
+        write(true, false);
+        long length = file.length();
+        long[] cuts = {length - 1, length - FramedFormat.TRAILER_SIZE,
+                length - FramedFormat.TRAILER_SIZE - 5,
+                FramedFormat.HEADER_SIZE + 3};
+        for (long cut : cuts)
+        {
+            write(true, false);
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(cut);
+            raf.close();
+            try
+            {
+                open(false).close();
+                Assert.fail("Truncation not detected: length=" + cut);
+            }
+            catch (IOException e)
+            {
+                // Expected.
+            }
+        }
+    }
+
+    private void write(boolean compress, boolean encrypt) throws Exception
+    {
+        Cipher cipher = null;
+        if (encrypt)
+        {
+            cipher = Cipher.getInstance("AES");
+            cipher.init(Cipher.ENCRYPT_MODE, key);
+        }
+        FramedOutputStream out = new FramedOutputStream(new FileOutputStream(
+                file), BLOCK_SIZE, compress, cipher);
+        for (int off = 0; off < data.length; off += 1000)
+            out.write(data, off, Math.min(1000, data.length - off));
+        out.close();
+    }
+
+    private FramedFileReader open(boolean encrypt) throws Exception
+    {
+        Cipher cipher = null;
+        if (encrypt)
+        {
+            cipher = Cipher.getInstance("AES");
+            cipher.init(Cipher.DECRYPT_MODE, key);
+        }
+        return new FramedFileReader(file, cipher);
+    }
+
+    private byte[] readAll(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[777];
+        int n;
+        try
+        {
+            while ((n = in.read(buf)) > 0)
+                out.write(buf, 0, n);
+        }
+        finally
+        {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,194 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import javax.crypto.KeyGenerator;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests pooled gzip streams for compatibility with the standard gzip streams
+ * and for proper return of pooled objects.
+ *
+ * @see com.granadata.hacking.compression.PooledGZIPOutputStream
+ * @see com.granadata.hacking.compression.PooledGZIPInputStream
+ */
+public class PooledGZIPStreamTest
+{
+    /**
+     * Verify that data written with a pooled deflater can be read by
+     * GZIPInputStream and that the deflater is reused across streams.
+     */
+    @Test
+    public void testWriteCompatible() throws Exception
+    {
+        DeflaterPool pool = new DeflaterPool(Deflater.DEFAULT_COMPRESSION,
+                true, 2, true);
+        for (int i = 0; i < 3; i++)
+        {
+            byte[] data = generate(i, 100000);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            OutputStream out = new PooledGZIPOutputStream(bytes, pool, 512);
+            out.write(data);
+            out.close();
+            Assert.assertEquals("Deflater returned", 0, pool.getOutstanding());
+
+            InputStream in = new GZIPInputStream(new ByteArrayInputStream(
+                    bytes.toByteArray()));
+            Assert.assertArrayEquals("Round trip " + i, data, readAll(in));
+        }
+        pool.close();
+    }
+
+    /**
+     * Verify that data written by GZIPOutputStream can be read with a pooled
+     * inflater and that the inflater goes back to the pool on close.
+     */
+    @Test
+    public void testReadCompatible() throws Exception
+    {
+        InflaterPool pool = new InflaterPool(true, 2, true);
+        for (int i = 0; i < 3; i++)
+        {
+            byte[] data = generate(i, 100000);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            OutputStream out = new GZIPOutputStream(bytes);
+            out.write(data);
+            out.close();
+
+            InputStream in = new PooledGZIPInputStream(
+                    new ByteArrayInputStream(bytes.toByteArray()), pool, 512);
+            Assert.assertArrayEquals("Round trip " + i, data, readAll(in));
+            Assert.assertEquals("Inflater borrowed", 1, pool.getOutstanding());
+            in.close();
+            Assert.assertEquals("Inflater returned", 0, pool.getOutstanding());
+        }
+        pool.close();
+    }
+
+    /**
+     * Verify that a corrupted trailer is detected.
+     */
+    @Test
+    public void testBadTrailer() throws Exception
+    {
+        byte[] data = generate(0, 10000);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream out = new GZIPOutputStream(bytes);
+        out.write(data);
+        out.close();
+        byte[] gzip = bytes.toByteArray();
+        gzip[gzip.length - 8] ^= 1;
+
+        InflaterPool pool = new InflaterPool(true, 2, false);
+        InputStream in = new PooledGZIPInputStream(new ByteArrayInputStream(
+                gzip), pool, 512);
+        try
+        {
+            readAll(in);
+            Assert.fail("Corrupt CRC not detected");
+        }
+        catch (ZipException e)
+        {
+            // Expected.
+        }
+        in.close();
+        Assert.assertEquals("Inflater returned", 0, pool.getOutstanding());
+    }
+
+    /**
+     * Verify that when a read stack cannot be opened because the gzip header
+     * is bad, the file is closed and the pooled cipher and inflater go back.
+     */
+    @Test
+    public void testBadHeaderReleases() throws Exception
+    {
+        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        keyGenerator.init(128);
+        ResourcePools pools = new ResourcePools(keyGenerator.generateKey(),
+                "AES", 4096, 2, true);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream out = pools.getEncryptCiphers().openOutputStream(bytes);
+        out.write(generate(0, 10000));
+        out.close();
+
+        final boolean[] closed = new boolean[1];
+        InputStream file = new ByteArrayInputStream(bytes.toByteArray())
+        {
+            @Override
+            public void close()
+            {
+                closed[0] = true;
+            }
+        };
+        try
+        {
+            ReadTask.openStream(file, true, true, null, "AES",
+                    new StreamMeters(false), pools);
+            Assert.fail("Bad gzip header not detected");
+        }
+        catch (ZipException e)
+        {
+            // Expected.
+        }
+        Assert.assertTrue("File closed", closed[0]);
+        Assert.assertEquals("Objects returned", 0, pools.getOutstanding());
+        pools.close();
+    }
+
+    /**
+     * Verify that releasing an object that was not borrowed fails.
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testReleaseUnknown() throws Exception
+    {
+        InflaterPool pool = new InflaterPool(true, 2, false);
+        pool.release(new Inflater(true));
+    }
+
+    // Returns compressible data.
+    private static byte[] generate(long seed, int length)
+    {
+        byte[] data = new byte[length];
+        DataGenerator.create("text", seed, 0).fill(data, 0, length);
+        return data;
+    }
+
+    private static byte[] readAll(InputStream in) throws Exception
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buf = new byte[1000];
+        int n;
+        while ((n = in.read(buf, 0, buf.length)) >= 0)
+            bytes.write(buf, 0, n);
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.zip.Checksum;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests reading a file in page-aligned ranges and combining the partial
+ * checksums.
+ *
+ * @see com.granadata.hacking.compression.RangeReadTask
+ */
+public class RangeReadTaskTest
+{
+    /**
+     * Verify that ranges cover the whole file and that combined checksums
+     * match a checksum over the file, including lengths that are not page
+     * aligned and lengths where each thread's share is a whole number of
+     * pages with bytes left over.
+     */
+    @Test
+    public void testCombinedRanges() throws Exception
+    {
+        long[] lengths = {0, 1, 4095, 4097, 1048576, 1048577, 1048579,
+                3 * 4096 + 2};
+        for (long length : lengths)
+        {
+            byte[] data = new byte[(int) length];
+            new Random(length).nextBytes(data);
+            File file = File.createTempFile("range", ".dat");
+            FileOutputStream fos = new FileOutputStream(file);
+            fos.write(data);
+            fos.close();
+
+            for (ChecksumType type : new ChecksumType[]{ChecksumType.CRC32,
+                    ChecksumType.ADLER32})
+            {
+                Checksum expected = type.create();
+                expected.update(data, 0, data.length);
+                for (int threads = 1; threads <= 4; threads++)
+                {
+                    String name = type.getName() + " length=" + length
+                            + " threads=" + threads;
+                    Assert.assertEquals(name, expected.getValue(), read(file,
+                            type, threads));
+                }
+            }
+            file.delete();
+        }
+    }
+
+    // Reads the file in ranges as the partitioned read does and combines
+    // the partial values in order.
+    private long read(File file, ChecksumType type, int threads)
+            throws Exception
+    {
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        try
+        {
+            long size = channel.size();
+            long rangeSize = CompressionLab.rangeSize(size, threads);
+            Assert.assertEquals(0, rangeSize % 4096);
+            long combined = type.emptyValue();
+            long total = 0;
+            for (int i = 0; i < threads; i++)
+            {
+                long start = Math.min(size, i * rangeSize);
+                long length = Math.min(rangeSize, size - start);
+                RangeReadTask task = new RangeReadTask(channel, start, length,
+                        1000, type);
+                task.run();
+                Assert.assertEquals(length, task.read);
+                total += task.read;
+                combined = type.combine(combined, task.crcValue, task.read);
+            }
+            Assert.assertEquals(size, total);
+            return combined;
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+}
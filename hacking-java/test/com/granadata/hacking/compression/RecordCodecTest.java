@@ -0,0 +1,173 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests compression of records with and without trained dictionaries.
+ *
+ * @see com.granadata.hacking.compression.RecordCodec
+ * @see com.granadata.hacking.compression.DictionaryTrainer
+ */
+public class RecordCodecTest
+{
+    private static final int RECORDS = 500;
+
+    // Sample records, laid end to end.
+    private final byte[]     data    = new byte[RECORDS * 1024];
+    private final int[]      offsets = new int[RECORDS];
+    private final int[]      lengths = new int[RECORDS];
+    private int              size;
+
+    public RecordCodecTest()
+    {
+        RecordDataGenerator generator = new RecordDataGenerator(1);
+        for (int i = 0; i < RECORDS; i++)
+        {
+            offsets[i] = size;
+            lengths[i] = generator.nextLine(data, size);
+            size += lengths[i];
+        }
+    }
+
+    /**
+     * Verify single records round trip without a dictionary and with a
+     * trained one, and that the dictionary makes records smaller.
+     */
+    @Test
+    public void testSingleRecords() throws Exception
+    {
+        byte[] dictionary = DictionaryTrainer.train(data, offsets, lengths,
+                RECORDS / 2, 4096);
+        Assert.assertTrue("Dictionary size: " + dictionary.length,
+                dictionary.length > 0 && dictionary.length <= 4096);
+        long plain = roundTripRecords(null);
+        long trained = roundTripRecords(dictionary);
+        Assert.assertTrue("plain=" + plain + " trained=" + trained,
+                trained < plain * 0.8);
+
+        // An empty record also round trips.
+        RecordCodec codec = new RecordCodec(dictionary,
+                Deflater.DEFAULT_COMPRESSION);
+        byte[] packed = new byte[RecordCodec.maxCompressedLength(0)];
+        int n = codec.compress(data, 0, 0, packed, 0);
+        Assert.assertEquals(0, codec.decompress(packed, 0, n, new byte[10],
+                0));
+        codec.end();
+    }
+
+    /**
+     * Verify batches of consecutive records round trip, with and without a
+     * dictionary, at several batch sizes.
+     */
+    @Test
+    public void testBatches() throws Exception
+    {
+        byte[] dictionary = DictionaryTrainer.train(data, offsets, lengths,
+                RECORDS, 16384);
+        int[] batches = {1, 7, 32, RECORDS};
+        for (int batch : batches)
+        {
+            for (byte[] dict : new byte[][]{null, dictionary})
+            {
+                RecordCodec codec = new RecordCodec(dict, Deflater.BEST_SPEED);
+                for (int first = 0; first < RECORDS; first += batch)
+                {
+                    int last = Math.min(RECORDS, first + batch);
+                    int start = offsets[first];
+                    int len = offsets[last - 1] + lengths[last - 1] - start;
+                    roundTrip(codec, start, len);
+                }
+                codec.end();
+            }
+        }
+    }
+
+    /**
+     * Verify that training with a size limit larger than the sample returns
+     * a dictionary no larger than the sample, and that a dictionary larger
+     * than the deflate window still round trips.
+     */
+    @Test
+    public void testLargeDictionary() throws Exception
+    {
+        int count = 10;
+        int sampleSize = offsets[count - 1] + lengths[count - 1];
+        byte[] small = DictionaryTrainer.train(data, offsets, lengths, count,
+                32768);
+        Assert.assertTrue("Dictionary size: " + small.length,
+                small.length <= sampleSize);
+        RecordCodec codec = new RecordCodec(small,
+                Deflater.DEFAULT_COMPRESSION);
+        for (int i = 0; i < RECORDS; i++)
+            roundTrip(codec, offsets[i], lengths[i]);
+        codec.end();
+
+        byte[] large = Arrays.copyOf(data, 40000);
+        codec = new RecordCodec(large, Deflater.DEFAULT_COMPRESSION);
+        for (int i = 0; i < RECORDS; i++)
+            roundTrip(codec, offsets[i], lengths[i]);
+        codec.end();
+    }
+
+    /**
+     * Verify that truncated data are reported rather than returned short.
+     */
+    @Test(expected = DataFormatException.class)
+    public void testTruncated() throws Exception
+    {
+        RecordCodec codec = new RecordCodec(null,
+                Deflater.DEFAULT_COMPRESSION);
+        byte[] packed = new byte[RecordCodec.maxCompressedLength(size)];
+        int n = codec.compress(data, 0, size, packed, 0);
+        codec.decompress(packed, 0, n / 2, new byte[size], 0);
+    }
+
+    // Compresses every record on its own and returns the total size.
+    private long roundTripRecords(byte[] dictionary) throws Exception
+    {
+        RecordCodec codec = new RecordCodec(dictionary,
+                Deflater.DEFAULT_COMPRESSION);
+        long total = 0;
+        for (int i = 0; i < RECORDS; i++)
+            total += roundTrip(codec, offsets[i], lengths[i]);
+        codec.end();
+        return total;
+    }
+
+    // Compresses and decompresses a range and returns the compressed size.
+    private int roundTrip(RecordCodec codec, int off, int len)
+            throws Exception
+    {
+        byte[] packed = new byte[RecordCodec.maxCompressedLength(len) + 3];
+        int n = codec.compress(data, off, len, packed, 3);
+        byte[] unpacked = new byte[len + 5];
+        Assert.assertEquals(len, codec.decompress(packed, 3, n, unpacked, 5));
+        Assert.assertArrayEquals(Arrays.copyOfRange(data, off, off + len),
+                Arrays.copyOfRange(unpacked, 5, 5 + len));
+        return n;
+    }
+}
@@ -0,0 +1,171 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests per-layer metering of stream stacks.
+ *
+ * @see com.granadata.hacking.compression.StreamMeters
+ * @see com.granadata.hacking.compression.MeteredInputStream
+ * @see com.granadata.hacking.compression.MeteredOutputStream
+ * @see com.granadata.hacking.compression.ResourceUsage
+ */
+public class StreamMetersTest
+{
+    private static final int CHUNK  = 300;
+    private static final int CHUNKS = 10;
+    private static final int BUFFER = 1000;
+
+    /**
+     * Verify calls and bytes for each layer of a checksum, buffer and file
+     * output stack, in order from the outermost layer, and that time in
+     * each layer includes the layers beneath.
+     */
+    @Test
+    public void testOutputStack() throws Exception
+    {
+        StreamMeters meters = new StreamMeters(true);
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        OutputStream os = meters.wrap("crc", new CheckedOutputStream(meters
+                .wrap("buffer", new BufferedOutputStream(meters.wrap("file",
+                        file), BUFFER)), new CRC32()));
+        byte[] chunk = new byte[CHUNK];
+        for (int i = 0; i < CHUNKS; i++)
+            os.write(chunk, 0, chunk.length);
+        os.close();
+        Assert.assertEquals(CHUNK * CHUNKS, file.size());
+
+        // The buffer passes on what it holds whenever the next chunk does
+        // not fit, and the rest at close.
+        List<StreamMeter> list = meters.getMeters();
+        check(list.get(0), "crc", CHUNKS, CHUNK * CHUNKS);
+        check(list.get(1), "buffer", CHUNKS, CHUNK * CHUNKS);
+        check(list.get(2), "file", 4, CHUNK * CHUNKS);
+        checkInclusive(list);
+    }
+
+    /**
+     * Verify calls and bytes for each layer of an input stack, including the
+     * reads that return end of stream.
+     */
+    @Test
+    public void testInputStack() throws Exception
+    {
+        StreamMeters meters = new StreamMeters(true);
+        byte[] data = new byte[CHUNK * CHUNKS];
+        InputStream is = meters.wrap("crc", new CheckedInputStream(meters
+                .wrap("buffer", new BufferedInputStream(meters.wrap("file",
+                        new ByteArrayInputStream(data)), BUFFER)),
+                new CRC32()));
+        byte[] chunk = new byte[CHUNK];
+        int total = 0;
+        int n;
+        while ((n = is.read(chunk, 0, chunk.length)) > 0)
+            total += n;
+        is.close();
+        Assert.assertEquals(data.length, total);
+
+        // Each read fills the caller's buffer, so there is one call per
+        // chunk and one for end of stream. The buffer refills in whole
+        // buffers and then finds end of stream.
+        List<StreamMeter> list = meters.getMeters();
+        check(list.get(0), "crc", CHUNKS + 1, data.length);
+        check(list.get(1), "buffer", CHUNKS + 1, data.length);
+        Assert.assertEquals("file", list.get(2).getName());
+        Assert.assertEquals(data.length, list.get(2).getBytes());
+        Assert.assertEquals((data.length + BUFFER - 1) / BUFFER + 1, list
+                .get(2).getCalls());
+        checkInclusive(list);
+    }
+
+    /**
+     * Verify that disabled meters leave streams unwrapped and that adding
+     * stacks sums their counts layer by layer.
+     */
+    @Test
+    public void testDisabledAndAdd() throws Exception
+    {
+        StreamMeters disabled = new StreamMeters(false);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertSame(out, disabled.wrap("file", out));
+        Assert.assertTrue(disabled.getMeters().isEmpty());
+
+        StreamMeters total = new StreamMeters(true);
+        for (int i = 1; i <= 3; i++)
+        {
+            StreamMeters meters = new StreamMeters(true);
+            OutputStream os = meters.wrap("buffer", new BufferedOutputStream(
+                    meters.wrap("file", new ByteArrayOutputStream())));
+            for (int j = 0; j < i; j++)
+                os.write(new byte[CHUNK]);
+            os.write(1);
+            os.close();
+            total.add(meters);
+        }
+        check(total.getMeters().get(0), "buffer", 9, 6 * CHUNK + 3);
+        check(total.getMeters().get(1), "file", 3, 6 * CHUNK + 3);
+    }
+
+    /**
+     * Verify that allocation by the current thread is counted when the JVM
+     * supports it.
+     */
+    @Test
+    public void testThreadAllocatedBytes()
+    {
+        long before = ResourceUsage.threadAllocatedBytes();
+        byte[] block = new byte[1 << 20];
+        long after = ResourceUsage.threadAllocatedBytes();
+        Assert.assertEquals(1 << 20, block.length);
+        if (before > 0)
+            Assert.assertTrue(after - before >= 1 << 20);
+        else
+            Assert.assertEquals(0, after);
+    }
+
+    private void check(StreamMeter meter, String name, long calls, long bytes)
+    {
+        Assert.assertEquals(name, meter.getName());
+        Assert.assertEquals(name + " calls", calls, meter.getCalls());
+        Assert.assertEquals(name + " bytes", bytes, meter.getBytes());
+    }
+
+    // Each layer's time includes the time of the layers beneath it.
+    private void checkInclusive(List<StreamMeter> list)
+    {
+        for (int i = 1; i < list.size(); i++)
+            Assert.assertTrue(list.get(i).getName(), list.get(i - 1)
+                    .getNanos() >= list.get(i).getNanos());
+    }
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.compression;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Checksum;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests that the write pipeline produces the same bytes as the serial
+ * stream stack.
+ *
+ * @see com.granadata.hacking.compression.WritePipeline
+ */
+public class WritePipelineTest
+{
+    private static final int    LENGTH    = 1000003;
+    private static final String ALGORITHM = "AES";
+
+    /**
+     * Verify pipelined and serial output are identical for each combination
+     * of compression and encryption in stream and framed formats, with and
+     * without pooled resources, and that the pipeline returns everything it
+     * borrows.
+     */
+    @Test
+    public void testMatchesSerial() throws Exception
+    {
+        KeyGenerator keyGenerator = KeyGenerator.getInstance(ALGORITHM);
+        keyGenerator.init(128);
+        SecretKey key = keyGenerator.generateKey();
+        ResourcePools pools = new ResourcePools(key, ALGORITHM, 65536, 2,
+                false);
+        for (int i = 0; i < 16; i++)
+        {
+            boolean compress = (i & 1) != 0;
+            boolean encrypt = (i & 2) != 0;
+            boolean framed = (i & 4) != 0;
+            boolean pooled = (i & 8) != 0;
+            String name = "compress=" + compress + " encrypt=" + encrypt
+                    + " framed=" + framed + " pooled=" + pooled;
+
+            // Serial stack.
+            ByteArrayOutputStream serial = new ByteArrayOutputStream();
+            OutputStream os;
+            if (framed)
+                os = new FramedOutputStream(serial, 65536, compress,
+                        encrypt ? cipher(key) : null);
+            else
+                os = CompressionLab.openWriteStack(serial, compress,
+                        encrypt, key, ALGORITHM, new StreamMeters(false),
+                        null);
+            Checksum crc = ChecksumType.CRC32.create();
+            InputStream in = source();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = in.read(buf)) > 0)
+            {
+                crc.update(buf, 0, n);
+                os.write(buf, 0, n);
+            }
+            os.close();
+
+            // Pipeline with small buffers so stages exchange many of them.
+            ByteArrayOutputStream piped = new ByteArrayOutputStream();
+            WritePipeline wp = new WritePipeline(source(), LENGTH, piped,
+                    compress, encrypt, framed, null, key, ALGORITHM,
+                    pooled ? pools : null, 3, 65536, ChecksumType.CRC32);
+            wp.run();
+            Assert.assertEquals(name, 0, pools.getOutstanding());
+            Assert.assertEquals(name, crc.getValue(), wp.getCrcValue());
+            Assert.assertArrayEquals(name, serial.toByteArray(), piped
+                    .toByteArray());
+        }
+        pools.close();
+    }
+
+    /**
+     * Verify that when the file write fails every stage closes its streams,
+     * so pooled deflaters and ciphers and the output stream are released,
+     * and that the write failure is the one reported.
+     */
+    @Test
+    public void testFailedWrite() throws Exception
+    {
+        KeyGenerator keyGenerator = KeyGenerator.getInstance(ALGORITHM);
+        keyGenerator.init(128);
+        SecretKey key = keyGenerator.generateKey();
+        ResourcePools pools = new ResourcePools(key, ALGORITHM, 65536, 2,
+                false);
+        for (int i = 0; i < 2; i++)
+        {
+            boolean framed = i == 1;
+            final boolean[] closed = new boolean[1];
+            OutputStream failing = new OutputStream()
+            {
+                private long written;
+
+                @Override
+                public void write(int b) throws IOException
+                {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len)
+                        throws IOException
+                {
+                    written += len;
+                    if (written > 100000)
+                        throw new IOException("Disk full");
+                }
+
+                @Override
+                public void close()
+                {
+                    closed[0] = true;
+                }
+            };
+            WritePipeline wp = new WritePipeline(source(), LENGTH, failing,
+                    true, true, framed, null, key, ALGORITHM, pools, 3, 65536,
+                    ChecksumType.CRC32);
+            try
+            {
+                wp.run();
+                Assert.fail("Write failure not reported: framed=" + framed);
+            }
+            catch (IOException e)
+            {
+                Assert.assertEquals("Disk full", e.getMessage());
+            }
+            Assert.assertTrue("framed=" + framed, closed[0]);
+            Assert.assertEquals("framed=" + framed, 0, pools
+                    .getOutstanding());
+        }
+        pools.close();
+    }
+
+    private InputStream source()
+    {
+        return new GeneratorInputStream(new TextDataGenerator(5), LENGTH);
+    }
+
+    private Cipher cipher(SecretKey key) throws Exception
+    {
+        Cipher cipher = Cipher.getInstance(ALGORITHM);
+        cipher.init(Cipher.ENCRYPT_MODE, key);
+        return cipher;
+    }
+}
@@ -0,0 +1,195 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.daemon;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests running tools through the daemon protocol.
+ *
+ * @see com.granadata.hacking.daemon.ToolDaemon
+ */
+public class ToolDaemonTest
+{
+    private static final String TOOL = "com.granadata.hacking.time.TimeZoneMachine";
+
+    private File                socketDir;
+    private ToolDaemon          daemon;
+    private Thread              server;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        socketDir = new File(Files.createTempDirectory("tooldaemon").toFile(),
+                ToolDaemon.SOCKET_DIR);
+        daemon = new ToolDaemon(socketDir, 500, new PrintStream(
+                new ByteArrayOutputStream()));
+        server = new Thread()
+        {
+            public void run()
+            {
+                try
+                {
+                    daemon.serve();
+                }
+                catch (Exception e)
+                {
+                    e.printStackTrace();
+                }
+            }
+        };
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        daemon.close();
+        server.join(10000);
+        socketDir.delete();
+        socketDir.getParentFile().delete();
+    }
+
+    /**
+     * Verify that invocations return tool output and exit status, that
+     * clients in another directory are refused and that stop ends serving
+     * and removes the socket from its owner-only directory.
+     */
+    @Test
+    public void testInvocations() throws Exception
+    {
+        Assert.assertEquals("rwx------", PosixFilePermissions.toString(Files
+                .getPosixFilePermissions(socketDir.toPath())));
+        String dir = System.getProperty("user.dir");
+
+        StringBuilder out = new StringBuilder();
+        Assert.assertEquals(0, call(dir, TOOL, out, "--timezone",
+                "UTC", "--timestamp", "0"));
+        Assert.assertTrue(out.toString(), out.toString().contains(
+                "ISO: 1970-01-01T00:00:00.000Z"));
+
+        out.setLength(0);
+        Assert.assertEquals(1, call(dir, TOOL, out, "--bogus"));
+        Assert.assertTrue(out.toString().contains("Parsing failed"));
+
+        out.setLength(0);
+        Assert.assertEquals(1, call(dir, "no.such.Tool", out));
+        Assert.assertTrue(out.toString().contains("not found"));
+
+        out.setLength(0);
+        Assert.assertEquals(1, call(dir + "/elsewhere", TOOL, out));
+        Assert.assertTrue(out.toString().contains("Daemon runs in"));
+
+        Assert.assertEquals(0, call(dir, ToolDaemon.STOP, out));
+        server.join(10000);
+        Assert.assertFalse(server.isAlive());
+        Assert.assertEquals(3, daemon.getInvocations());
+        Assert.assertFalse(Files.exists(daemon.getSocketPath()));
+    }
+
+    /**
+     * Verify that clients that stall or announce an oversized request are
+     * dropped without running anything and the daemon goes on serving.
+     */
+    @Test
+    public void testStalledClients() throws Exception
+    {
+        SocketChannel stalled = connect();
+        long start = System.nanoTime();
+        Assert.assertEquals(-1, stalled.read(ByteBuffer.allocate(1)));
+        Assert.assertTrue((System.nanoTime() - start) / 1000000 < 5000);
+        stalled.close();
+
+        SocketChannel partial = connect();
+        partial.write(ByteBuffer.wrap(new byte[]{0, 0, 1}));
+        Assert.assertEquals(-1, partial.read(ByteBuffer.allocate(1)));
+        partial.close();
+
+        SocketChannel oversized = connect();
+        oversized.write(ByteBuffer.allocate(4).putInt(
+                ToolDaemon.MAX_REQUEST + 1).flip());
+        Assert.assertEquals(-1, oversized.read(ByteBuffer.allocate(1)));
+        oversized.close();
+
+        StringBuilder out = new StringBuilder();
+        String dir = System.getProperty("user.dir");
+        Assert.assertEquals(0, call(dir, TOOL, out, "--timezone", "UTC",
+                "--timestamp", "0"));
+        Assert.assertEquals(1, daemon.getInvocations());
+    }
+
+    private SocketChannel connect() throws Exception
+    {
+        return SocketChannel.open(UnixDomainSocketAddress.of(daemon
+                .getSocketPath()));
+    }
+
+    // Sends a request and collects output and error frames.
+    private int call(String dir, String className, StringBuilder output,
+            String... args) throws Exception
+    {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream request = new DataOutputStream(body);
+        request.writeUTF(dir);
+        request.writeUTF(className);
+        request.writeInt(args.length);
+        for (String arg : args)
+            request.writeUTF(arg);
+
+        SocketChannel socket = connect();
+        DataOutputStream out = new DataOutputStream(Channels
+                .newOutputStream(socket));
+        out.writeInt(body.size());
+        body.writeTo(out);
+        out.flush();
+
+        DataInputStream in = new DataInputStream(Channels
+                .newInputStream(socket));
+        while (true)
+        {
+            byte type = in.readByte();
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            if (type == ToolDaemon.FRAME_EXIT)
+            {
+                socket.close();
+                return new DataInputStream(new ByteArrayInputStream(data))
+                        .readInt();
+            }
+            output.append(new String(data, "UTF-8"));
+        }
+    }
+}
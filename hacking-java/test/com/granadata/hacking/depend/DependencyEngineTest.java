@@ -0,0 +1,207 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.depend;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.granadata.hacking.compression.GeneratorInputStream;
+
+/**
+ * Tests the component dependency engine.
+ *
+ * @see com.granadata.hacking.depend.DependencyEngine
+ */
+public class DependencyEngineTest
+{
+    // Commands from data/proga.dat and the classic expected results.
+    private static final String PROGA = "DEPEND   TELNET TCPIP NETCARD\n"
+            + "DEPEND TCPIP NETCARD\n"
+            + "DEPEND DNS TCPIP NETCARD\n"
+            + "DEPEND  BROWSER   TCPIP  HTML\n"
+            + "INSTALL NETCARD\n"
+            + "INSTALL TELNET\n"
+            + "INSTALL foo\n"
+            + "REMOVE NETCARD\n"
+            + "INSTALL BROWSER\n"
+            + "INSTALL DNS\n"
+            + "LIST\n"
+            + "REMOVE TELNET\n"
+            + "REMOVE NETCARD\n"
+            + "REMOVE DNS\n"
+            + "REMOVE NETCARD\n"
+            + "INSTALL NETCARD\n"
+            + "REMOVE TCPIP\n"
+            + "REMOVE BROWSER\n"
+            + "REMOVE TCPIP\n"
+            + "LIST\n"
+            + "END\n";
+    private static final String EXPECTED = "DEPEND   TELNET TCPIP NETCARD\n"
+            + "DEPEND TCPIP NETCARD\n"
+            + "DEPEND DNS TCPIP NETCARD\n"
+            + "DEPEND  BROWSER   TCPIP  HTML\n"
+            + "INSTALL NETCARD\n"
+            + "   Installing NETCARD\n"
+            + "INSTALL TELNET\n"
+            + "   Installing TCPIP\n"
+            + "   Installing TELNET\n"
+            + "INSTALL foo\n"
+            + "   Installing foo\n"
+            + "REMOVE NETCARD\n"
+            + "   NETCARD is still needed.\n"
+            + "INSTALL BROWSER\n"
+            + "   Installing HTML\n"
+            + "   Installing BROWSER\n"
+            + "INSTALL DNS\n"
+            + "   Installing DNS\n"
+            + "LIST\n"
+            + "   NETCARD\n"
+            + "   TCPIP\n"
+            + "   TELNET\n"
+            + "   foo\n"
+            + "   HTML\n"
+            + "   BROWSER\n"
+            + "   DNS\n"
+            + "REMOVE TELNET\n"
+            + "   Removing TELNET\n"
+            + "REMOVE NETCARD\n"
+            + "   NETCARD is still needed.\n"
+            + "REMOVE DNS\n"
+            + "   Removing DNS\n"
+            + "REMOVE NETCARD\n"
+            + "   NETCARD is still needed.\n"
+            + "INSTALL NETCARD\n"
+            + "   NETCARD is already installed.\n"
+            + "REMOVE TCPIP\n"
+            + "   TCPIP is still needed.\n"
+            + "REMOVE BROWSER\n"
+            + "   Removing BROWSER\n"
+            + "   Removing TCPIP\n"
+            + "   Removing HTML\n"
+            + "REMOVE TCPIP\n"
+            + "   TCPIP is not installed.\n"
+            + "LIST\n"
+            + "   NETCARD\n"
+            + "   foo\n"
+            + "END\n";
+
+    /**
+     * Verify the classic results for proga.dat with both name tables, with
+     * and without carriage returns.
+     */
+    @Test
+    public void testProga() throws IOException
+    {
+        Assert.assertEquals(EXPECTED, run(new ProbingNameTable(4), PROGA));
+        Assert.assertEquals(EXPECTED, run(new KHashNameTable(16), PROGA));
+        Assert.assertEquals(EXPECTED,
+                run(new ProbingNameTable(4), PROGA.replace("\n", "\r\n")));
+    }
+
+    /**
+     * Verify that a dependency chain far deeper than the thread stack could
+     * recurse installs and removes in order, and that cycles terminate.
+     */
+    @Test
+    public void testDeepChainAndCycle() throws IOException
+    {
+        int n = 200000;
+        StringBuilder commands = new StringBuilder();
+        for (int i = 1; i < n; i++)
+            commands.append("DEPEND c").append(i).append(" c").append(i - 1)
+                    .append('\n');
+        commands.append("INSTALL c").append(n - 1).append('\n');
+        commands.append("REMOVE c").append(n - 1).append('\n');
+        commands.append("DEPEND a b\nDEPEND b a\nINSTALL a\nREMOVE a\nEND\n");
+
+        NameTable names = new ProbingNameTable(16);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DependencyEngine engine = new DependencyEngine(names, out);
+        Assert.assertTrue(engine.process(new ByteArrayInputStream(commands
+                .toString().getBytes(StandardCharsets.US_ASCII))));
+        String text = out.toString("US-ASCII");
+        Assert.assertTrue(text.contains("   Installing c0\n   Installing c1\n"));
+        Assert.assertTrue(text.contains("   Removing c1\n   Removing c0\n"));
+        Assert.assertTrue(text.endsWith("INSTALL a\n   Installing b\n"
+                + "   Installing a\nREMOVE a\n   Removing a\n"
+                + "   Removing b\nEND\n"));
+        Assert.assertEquals(0, engine.getInstalled());
+    }
+
+    /**
+     * Verify that a dependency declared after its component is installed
+     * does not let removing that component take away a dependency that
+     * another installed component still needs.
+     */
+    @Test
+    public void testLateDependency() throws IOException
+    {
+        String commands = "DEPEND C B\nINSTALL C\nINSTALL A\nDEPEND A B\n"
+                + "REMOVE A\nLIST\nREMOVE C\nLIST\nEND\n";
+        String expected = "DEPEND C B\n"
+                + "INSTALL C\n   Installing B\n   Installing C\n"
+                + "INSTALL A\n   Installing A\n"
+                + "DEPEND A B\n"
+                + "REMOVE A\n   Removing A\n"
+                + "LIST\n   B\n   C\n"
+                + "REMOVE C\n   Removing C\n   Removing B\n"
+                + "LIST\nEND\n";
+        Assert.assertEquals(expected, run(new ProbingNameTable(4), commands));
+    }
+
+    /**
+     * Verify that both name tables give identical results on a synthetic
+     * workload, which also exercises table growth and long input.
+     */
+    @Test
+    public void testNameTablesAgree() throws IOException
+    {
+        String probing = runWorkload(new ProbingNameTable(16));
+        String khash = runWorkload(new KHashNameTable(1024));
+        Assert.assertEquals(probing, khash);
+    }
+
+    private String run(NameTable names, String commands) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DependencyEngine engine = new DependencyEngine(names, out);
+        engine.process(new ByteArrayInputStream(commands
+                .getBytes(StandardCharsets.US_ASCII)));
+        return out.toString("US-ASCII");
+    }
+
+    private String runWorkload(NameTable names) throws IOException
+    {
+        DependencyWorkload workload = new DependencyWorkload(20000, 200000,
+                4, 5000, 7);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DependencyEngine engine = new DependencyEngine(names, out);
+        Assert.assertTrue(engine.process(new GeneratorInputStream(workload,
+                Long.MAX_VALUE)));
+        Assert.assertEquals(workload.getTotalCommands(), engine.getCommands());
+        Assert.assertEquals(20000, names.size());
+        return out.toString("US-ASCII");
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.knuth.hashing;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests key placement on a consistent hash ring.
+ *
+ * @see com.granadata.hacking.knuth.hashing.ConsistentHashRing
+ */
+public class ConsistentHashRingTest
+{
+    private static final int KEYS = 100000;
+
+    /**
+     * Verify that placement does not depend on the order of adding nodes and
+     * that nodes get roughly equal shares of keys.
+     */
+    @Test
+    public void testPlacement()
+    {
+        ConsistentHashRing ring = new ConsistentHashRing(128);
+        ConsistentHashRing reversed = new ConsistentHashRing(128);
+        Assert.assertNull("Empty ring", ring.getNode("key"));
+        for (int i = 0; i < 4; i++)
+        {
+            ring.addNode("127.0.0.1:" + (9000 + i));
+            reversed.addNode("127.0.0.1:" + (9003 - i));
+        }
+
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (int i = 0; i < KEYS; i++)
+        {
+            String node = ring.getNode("key-" + i);
+            Assert.assertEquals("key-" + i, node, reversed.getNode("key-" + i));
+            Integer count = counts.get(node);
+            counts.put(node, count == null ? 1 : count + 1);
+        }
+        Assert.assertEquals("Nodes used", 4, counts.size());
+        for (int count : counts.values())
+        {
+            Assert.assertTrue("Share: " + count, count > KEYS * 0.15
+                    && count < KEYS * 0.35);
+        }
+    }
+
+    /**
+     * Verify that adding a node moves only keys to that node, about 1/n of
+     * them, and that removing it restores the previous placement.
+     */
+    @Test
+    public void testAddRemove()
+    {
+        ConsistentHashRing ring = new ConsistentHashRing(128);
+        for (int i = 0; i < 4; i++)
+            ring.addNode("shard-" + i);
+        String[] before = new String[KEYS];
+        for (int i = 0; i < KEYS; i++)
+            before[i] = ring.getNode("key-" + i);
+
+        ring.addNode("shard-4");
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++)
+        {
+            String node = ring.getNode("key-" + i);
+            if (!node.equals(before[i]))
+            {
+                Assert.assertEquals("Moved to new node", "shard-4", node);
+                moved++;
+            }
+        }
+        Assert.assertTrue("Moved: " + moved, moved > KEYS * 0.10
+                && moved < KEYS * 0.30);
+
+        Assert.assertTrue(ring.removeNode("shard-4"));
+        Assert.assertFalse(ring.removeNode("shard-4"));
+        for (int i = 0; i < KEYS; i++)
+            Assert.assertEquals(before[i], ring.getNode("key-" + i));
+    }
+}
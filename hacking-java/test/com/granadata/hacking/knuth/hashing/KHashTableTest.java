@@ -19,6 +19,10 @@
 
 package com.granadata.hacking.knuth.hashing;
 
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Assert;
@@ -27,6 +31,7 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import com.granadata.hacking.knuth.hashing.KHashTable;
+import com.granadata.hacking.knuth.hashing.MultiplicativeHashMethod;
 
 /**
  * Tests hash table behavior.
@@ -147,6 +152,26 @@ public class KHashTableTest
         }
     }
 
+    /**
+     * Verify that keys() returns each key once and reflects removals.
+     */
+    @Test
+    public void testKeys()
+    {
+        KHashTable kht = new KHashTable(7, new MultiplicativeHashMethod());
+        String[] keys = generateStrings(40, false);
+        for (int i = 0; i < keys.length; i++)
+            kht.put(keys[i], i);
+        kht.remove(keys[3]);
+
+        List<Object> found = kht.keys();
+        Assert.assertEquals("Key count", keys.length - 1, found.size());
+        Set<Object> unique = new HashSet<Object>(found);
+        Assert.assertEquals("Unique keys", found.size(), unique.size());
+        Assert.assertFalse("Removed key", unique.contains(keys[3]));
+        Assert.assertTrue("Remaining key", unique.contains(keys[4]));
+    }
+
     // Print out bucket counts.
     private void printBuckets(KHashTable kht)
     {
@@ -0,0 +1,151 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.knuth.hashing;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests a sharded table with servers running in this JVM.
+ *
+ * @see com.granadata.hacking.knuth.hashing.ShardClient
+ */
+public class ShardClientTest
+{
+    private final List<ShardServer> servers = new ArrayList<ShardServer>();
+
+    @After
+    public void tearDown() throws Exception
+    {
+        for (ShardServer server : servers)
+            server.close();
+    }
+
+    /**
+     * Verify single and bulk operations with batches smaller than the number
+     * of keys per shard, so that requests are pipelined.
+     */
+    @Test
+    public void testOperations() throws Exception
+    {
+        ShardClient client = new ShardClient(32, 7, 3);
+        client.connect(startServer());
+        client.connect(startServer());
+
+        Assert.assertTrue(client.put("a", "1"));
+        Assert.assertFalse(client.put("a", "2"));
+        Assert.assertEquals("2", client.get("a"));
+        Assert.assertNull(client.get("b"));
+        Assert.assertTrue(client.remove("a"));
+        Assert.assertFalse(client.remove("a"));
+
+        String[] keys = keys(1000);
+        Assert.assertEquals(1000, client.putAll(keys, keys));
+        String[] values = client.getAll(keys);
+        Assert.assertArrayEquals(keys, values);
+        long[] sizes = client.getShardSizes();
+        Assert.assertEquals(1000, sizes[0] + sizes[1]);
+        Assert.assertTrue("Both shards used", sizes[0] > 0 && sizes[1] > 0);
+        Assert.assertEquals(500, client.removeAll(subset(keys, 2)));
+        Assert.assertEquals(500, client.size());
+        client.close();
+    }
+
+    /**
+     * Verify that adding a shard moves only the keys it now owns and that
+     * all keys remain readable.
+     */
+    @Test
+    public void testAddShard() throws Exception
+    {
+        ShardClient client = new ShardClient(64, 50, 4);
+        client.connect(startServer());
+        client.connect(startServer());
+        String[] keys = keys(3000);
+        client.putAll(keys, keys);
+
+        String address = startServer();
+        long moved = client.addShard(address);
+        long[] sizes = client.getShardSizes();
+        Assert.assertEquals(moved, sizes[2]);
+        Assert.assertTrue("Moved: " + moved, moved > 300 && moved < 1800);
+        Assert.assertEquals(3000, sizes[0] + sizes[1] + sizes[2]);
+        Assert.assertArrayEquals(keys, client.getAll(keys));
+        for (int i = 0; i < 100; i++)
+            Assert.assertEquals(keys[i], client.getShard(keys[i]).equals(
+                    address), storedOn(keys[i], address));
+        client.close();
+    }
+
+    // Returns true if the key is stored on the shard, found by asking a
+    // client that knows only that shard.
+    private boolean storedOn(String key, String address)
+            throws Exception
+    {
+        ShardClient single = new ShardClient(1, 1, 1);
+        single.connect(address);
+        boolean found = single.get(key) != null;
+        single.close();
+        return found;
+    }
+
+    private String startServer() throws Exception
+    {
+        final ShardServer server = new ShardServer(0, 1024);
+        servers.add(server);
+        Thread t = new Thread()
+        {
+            public void run()
+            {
+                try
+                {
+                    server.serve();
+                }
+                catch (Exception e)
+                {
+                    e.printStackTrace();
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+        return "127.0.0.1:" + server.getPort();
+    }
+
+    private String[] keys(int count)
+    {
+        String[] keys = new String[count];
+        for (int i = 0; i < count; i++)
+            keys[i] = "key-" + i;
+        return keys;
+    }
+
+    private String[] subset(String[] keys, int step)
+    {
+        String[] subset = new String[keys.length / step];
+        for (int i = 0; i < subset.length; i++)
+            subset[i] = keys[i * step];
+        return subset;
+    }
+}
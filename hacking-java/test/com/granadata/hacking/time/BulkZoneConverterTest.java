@@ -0,0 +1,143 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.time;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests bulk time zone conversion against ZonedDateTime.
+ *
+ * @see com.granadata.hacking.time.BulkZoneConverter
+ * @see com.granadata.hacking.time.ZoneTable
+ */
+public class BulkZoneConverterTest
+{
+    // Zones with DST, half-hour offsets and an offset change across the
+    // date line.
+    private static final String[] ZONES = {"UTC", "America/New_York",
+            "Europe/London", "Asia/Kolkata", "Australia/Lord_Howe",
+            "Pacific/Apia"};
+
+    /**
+     * Verify random timestamps from the year 1600 through 2400, which covers
+     * local mean time before zones were standardized and instants past the
+     * cached table.
+     */
+    @Test
+    public void testRandomTimestamps()
+    {
+        Random random = new Random(1);
+        long min = -11676096000000L;
+        long max = 13569465600000L;
+        long[] millis = new long[10000];
+        for (String zone : ZONES)
+        {
+            for (int i = 0; i < millis.length; i++)
+                millis[i] = min + (long) (random.nextDouble() * (max - min));
+            check(zone, millis);
+        }
+    }
+
+    /**
+     * Verify instants on either side of every cached transition, which is
+     * where a wrong boundary comparison would show up.
+     */
+    @Test
+    public void testTransitions()
+    {
+        for (String zone : ZONES)
+        {
+            List<Long> times = new ArrayList<Long>();
+            ZoneRules rules = ZoneId.of(zone).getRules();
+            ZoneOffsetTransition t = rules.nextTransition(Instant.MIN);
+            while (t != null && t.toEpochSecond() < 8000000000L)
+            {
+                long ms = t.getInstant().toEpochMilli();
+                times.add(ms - 1);
+                times.add(ms);
+                times.add(ms + 1);
+                t = rules.nextTransition(t.getInstant());
+            }
+            long[] millis = new long[times.size()];
+            for (int i = 0; i < millis.length; i++)
+                millis[i] = times.get(i);
+            check(zone, millis);
+        }
+    }
+
+    /**
+     * Verify sequential timestamps, which exercise the lookup hint, and the
+     * offset-only conversion.
+     */
+    @Test
+    public void testSequentialOffsets()
+    {
+        long[] millis = new long[50000];
+        for (int i = 0; i < millis.length; i++)
+            millis[i] = 1300000000000L + i * 3600000L;
+        int[] offsets = new int[millis.length];
+        BulkZoneConverter.offsets("America/New_York", millis, 0,
+                millis.length, offsets);
+        ZoneId zoneId = ZoneId.of("America/New_York");
+        for (int i = 0; i < millis.length; i++)
+        {
+            Assert.assertEquals(zoneId.getRules()
+                    .getOffset(Instant.ofEpochMilli(millis[i]))
+                    .getTotalSeconds() * 1000, offsets[i]);
+        }
+    }
+
+    // Converts and compares every field.
+    private void check(String zone, long[] millis)
+    {
+        int[] offsets = new int[millis.length];
+        LocalFields fields = new LocalFields(millis.length);
+        BulkZoneConverter.convert(zone, millis, 0, millis.length, offsets,
+                fields);
+        ZoneId zoneId = ZoneId.of(zone);
+        for (int i = 0; i < millis.length; i++)
+        {
+            ZonedDateTime expected = Instant.ofEpochMilli(millis[i]).atZone(
+                    zoneId);
+            String msg = "zone=" + zone + " millis=" + millis[i];
+            Assert.assertEquals(msg, expected.getOffset().getTotalSeconds()
+                    * 1000, offsets[i]);
+            Assert.assertEquals(msg, expected.getYear(), fields.year[i]);
+            Assert.assertEquals(msg, expected.getMonthValue(),
+                    fields.month[i]);
+            Assert.assertEquals(msg, expected.getDayOfMonth(), fields.day[i]);
+            Assert.assertEquals(msg, expected.getHour(), fields.hour[i]);
+            Assert.assertEquals(msg, expected.getMinute(), fields.minute[i]);
+            Assert.assertEquals(msg, expected.getSecond(), fields.second[i]);
+            Assert.assertEquals(msg, expected.getNano() / 1000000,
+                    fields.millis[i]);
+        }
+    }
+}
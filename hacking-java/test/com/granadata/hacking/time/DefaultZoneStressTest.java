@@ -0,0 +1,84 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.time;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests consistency checks in the default time zone stress test.
+ *
+ * @see com.granadata.hacking.time.DefaultZoneStress
+ */
+public class DefaultZoneStressTest
+{
+    // Zones that give the same text for the test instant.
+    private static final String[] SAME_TEXT = {"Europe/Paris",
+            "Europe/Berlin"};
+
+    /**
+     * Verify that text shared by several zones matches each of them, and
+     * that text from a different zone or no zone is reported as such.
+     */
+    @Test
+    public void testCheckText()
+    {
+        DefaultZoneStress stress = new DefaultZoneStress(new String[]{
+                "Europe/Paris", "Europe/Berlin", "UTC"}, 1, 0, 0);
+        String central = format("Europe/Berlin");
+        Assert.assertEquals(central, format("Europe/Paris"));
+        Assert.assertEquals(DefaultZoneStress.TEXT_MATCHES, stress.checkText(
+                central, "Europe/Paris"));
+        Assert.assertEquals(DefaultZoneStress.TEXT_MATCHES, stress.checkText(
+                central, "Europe/Berlin"));
+        Assert.assertEquals(DefaultZoneStress.TEXT_OTHER_ZONE, stress
+                .checkText(central, "UTC"));
+        Assert.assertEquals(DefaultZoneStress.TEXT_OTHER_ZONE, stress
+                .checkText(format("UTC"), "Europe/Berlin"));
+        Assert.assertEquals(DefaultZoneStress.TEXT_UNKNOWN, stress.checkText(
+                format("Asia/Tokyo"), "Asia/Tokyo"));
+    }
+
+    /**
+     * Verify that workers find no inconsistency when the default zone does
+     * not change, even though another zone gives the same text.
+     */
+    @Test
+    public void testFixedZone() throws Exception
+    {
+        for (int i = 0; i < SAME_TEXT.length; i++)
+        {
+            String[] zones = {SAME_TEXT[i], SAME_TEXT[1 - i]};
+            DefaultZoneStress stress = new DefaultZoneStress(zones, 2, 200, 0);
+            stress.run();
+            Assert.assertTrue(stress.getOps() > 0);
+            Assert.assertEquals(zones[0], 0, stress.getInconsistent());
+            Assert.assertEquals(zones[0], 0, stress.getUnknown());
+        }
+    }
+
+    private String format(String zone)
+    {
+        char[] buf = new char[TimestampFormatter.MAX_LENGTH];
+        int len = new TimestampFormatter(zone, TimestampFormatter.Style.JDBC)
+                .format(DefaultZoneStress.INSTANT_MILLIS, buf, 0);
+        return new String(buf, 0, len);
+    }
+}
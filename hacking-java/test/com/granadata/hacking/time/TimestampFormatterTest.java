@@ -0,0 +1,225 @@
+/**
+ * Copyright 2014 Robert Hodges
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.granadata.hacking.time;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.zone.ZoneRules;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests timestamp formatting and parsing against Timestamp and
+ * ZonedDateTime.
+ *
+ * @see com.granadata.hacking.time.TimestampFormatter
+ */
+public class TimestampFormatterTest
+{
+    private static final String[] ZONES = {"UTC", "America/New_York",
+            "Europe/London", "Asia/Kolkata", "Australia/Lord_Howe",
+            "Pacific/Apia"};
+
+    /**
+     * Verify that JDBC style text matches Timestamp.toString() byte for byte
+     * and parses back to the same value, including nanosecond fractions.
+     * Dates start in 1583 so that they cover the years before 1900, for
+     * which Timestamp uses a single offset per zone.
+     */
+    @Test
+    public void testMatchesTimestamp()
+    {
+        TimeZone saved = TimeZone.getDefault();
+        try
+        {
+            Random random = new Random(1);
+            char[] buf = new char[TimestampFormatter.MAX_LENGTH];
+            for (String zone : ZONES)
+            {
+                TimeZone.setDefault(TimeZone.getTimeZone(zone));
+                TimestampFormatter formatter = new TimestampFormatter(zone,
+                        TimestampFormatter.Style.JDBC);
+                ZoneRules rules = ZoneId.of(zone).getRules();
+                int legacyOffset = TimeZone.getDefault().getRawOffset() / 1000;
+
+                // From 1583 to 2300 in random steps, sometimes small
+                // enough to stay within a day.
+                long millis = -12212553600000L;
+                while (millis < 10413792000000L)
+                {
+                    millis += random.nextBoolean() ? random.nextInt(100000)
+                            : (long) random.nextInt(1000000) * 10000;
+                    Timestamp ts = new Timestamp(millis);
+                    if (random.nextInt(4) == 0)
+                        ts.setNanos(random.nextInt(1000000000)
+                                / (int) Math.pow(10, random.nextInt(9)));
+                    String expected = ts.toString();
+                    int len = formatter.format(ts.getTime(), ts.getNanos(),
+                            buf, 0);
+                    Assert.assertEquals(expected, new String(buf, 0, len));
+
+                    // Local times in overlaps parse to the earlier instant.
+                    // Times from early 1900 may also repeat a local time
+                    // from before 1900.
+                    long parsed = formatter.parse(buf, 0, len);
+                    Assert.assertEquals(expected, ts.getNanos(),
+                            formatter.getParsedNanos());
+                    LocalDateTime local = ts.toLocalDateTime();
+                    boolean repeated = millis >= ZoneTable.LEGACY_LIMIT_MILLIS
+                            && local.toInstant(ZoneOffset.ofTotalSeconds(
+                                    legacyOffset)).toEpochMilli()
+                                    < ZoneTable.LEGACY_LIMIT_MILLIS;
+                    if (millis < ZoneTable.LEGACY_LIMIT_MILLIS
+                            || (!repeated && rules.getValidOffsets(local)
+                                    .size() == 1))
+                        Assert.assertEquals(expected, ts.getTime(), parsed);
+                    else
+                        Assert.assertTrue(expected, parsed <= ts.getTime());
+                }
+            }
+        }
+        finally
+        {
+            TimeZone.setDefault(saved);
+        }
+    }
+
+    /**
+     * Verify the example of a time before 1900 in a zone whose local mean
+     * time differs from its standard offset, in both styles.
+     */
+    @Test
+    public void testBefore1900()
+    {
+        TimeZone saved = TimeZone.getDefault();
+        try
+        {
+            TimeZone.setDefault(TimeZone.getTimeZone("America/New_York"));
+            long millis = -7761283598678L;
+            Timestamp ts = new Timestamp(millis);
+            Assert.assertEquals("1724-01-21 02:53:21.322", ts.toString());
+            TimestampFormatter jdbc = new TimestampFormatter(
+                    "America/New_York", TimestampFormatter.Style.JDBC);
+            Assert.assertEquals(ts.toString(), format(jdbc, millis));
+            Assert.assertEquals(millis, jdbc.parse(ts.toString()));
+
+            // ISO style keeps local mean time of -04:56:02.
+            TimestampFormatter iso = new TimestampFormatter(
+                    "America/New_York", TimestampFormatter.Style.ISO);
+            String text = format(iso, millis);
+            Assert.assertEquals("1724-01-21T02:57:19.322-04:56:02", text);
+            Assert.assertEquals(millis, iso.parse(text));
+        }
+        finally
+        {
+            TimeZone.setDefault(saved);
+        }
+    }
+
+    /**
+     * Verify that ISO style text and parsing of local times agree with
+     * ZonedDateTime, including times in gaps and overlaps.
+     */
+    @Test
+    public void testIsoAndLocalResolution()
+    {
+        Random random = new Random(2);
+        char[] buf = new char[TimestampFormatter.MAX_LENGTH];
+        for (String zone : ZONES)
+        {
+            ZoneId zoneId = ZoneId.of(zone);
+            TimestampFormatter formatter = new TimestampFormatter(zone,
+                    TimestampFormatter.Style.ISO);
+            for (int i = 0; i < 20000; i++)
+            {
+                long millis = 1000L * (long) (random.nextDouble() * 9000000000L)
+                        - 2000000000000L;
+                ZonedDateTime expected = Instant.ofEpochMilli(millis).atZone(
+                        zoneId);
+                int len = formatter.format(millis, buf, 0);
+                String text = new String(buf, 0, len);
+                Assert.assertEquals(text, expected.toOffsetDateTime(),
+                        OffsetDateTime.parse(text));
+                Assert.assertEquals(text, millis, formatter.parse(text));
+
+                // Local time without offset on a random half hour.
+                LocalDateTime local = LocalDateTime.ofEpochSecond(
+                        millis / 1800000 * 1800, 0, ZoneOffset.UTC);
+                String localText = String.format(
+                        "%04d-%02d-%02d %02d:%02d:00", local.getYear(),
+                        local.getMonthValue(), local.getDayOfMonth(),
+                        local.getHour(), local.getMinute());
+                Assert.assertEquals(localText, local.atZone(zoneId)
+                        .toInstant().toEpochMilli(), formatter
+                        .parse(localText));
+            }
+        }
+    }
+
+    /**
+     * Verify byte buffer output and input and rejection of bad text.
+     */
+    @Test
+    public void testBuffersAndErrors()
+    {
+        TimestampFormatter formatter = new TimestampFormatter(
+                "Asia/Kolkata", TimestampFormatter.Style.ISO);
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        formatter.format(0L, buf);
+        buf.flip();
+        Assert.assertEquals("1970-01-01T05:30:00.000+05:30", new String(
+                buf.array(), 0, buf.limit(), StandardCharsets.US_ASCII));
+        Assert.assertEquals(0L, formatter.parse(buf));
+        Assert.assertEquals(0L, formatter.parse("1970-01-01 00:00:00Z"));
+
+        String[] bad = {"", "1970-01-01", "1970-13-01 00:00:00",
+                "1970-02-29 00:00:00", "1970-01-01 24:00:00",
+                "1970-01-01 00:00:00.", "1970-01-01 00:00:00.1234567890",
+                "1970-01-01 00:00:00+5:30", "1970-01-01 00:00:00 "};
+        for (String text : bad)
+        {
+            try
+            {
+                formatter.parse(text);
+                Assert.fail("Parsed invalid timestamp: " + text);
+            }
+            catch (IllegalArgumentException e)
+            {
+                // Expected.
+            }
+        }
+    }
+
+    private static String format(TimestampFormatter formatter, long millis)
+    {
+        char[] buf = new char[TimestampFormatter.MAX_LENGTH];
+        return new String(buf, 0, formatter.format(millis, buf, 0));
+    }
+}